@@ -22,32 +22,37 @@ import android.app.AlertDialog;
 import android.app.Dialog;
 import android.app.DialogFragment;
 import android.app.Fragment;
+import android.content.ComponentCallbacks2;
 import android.content.Context;
 import android.content.DialogInterface;
+import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.pm.PackageManager;
 import android.content.res.Configuration;
-import android.graphics.ImageFormat;
 import android.graphics.Matrix;
+import android.graphics.Point;
 import android.graphics.RectF;
 import android.graphics.SurfaceTexture;
 import android.hardware.camera2.CameraAccessException;
 import android.hardware.camera2.CameraCaptureSession;
-import android.hardware.camera2.CameraCharacteristics;
-import android.hardware.camera2.CameraDevice;
+import android.hardware.camera2.CameraConstrainedHighSpeedCaptureSession;
 import android.hardware.camera2.CameraManager;
 import android.hardware.camera2.CameraMetadata;
 import android.hardware.camera2.CaptureRequest;
-import android.hardware.camera2.params.StreamConfigurationMap;
+import android.hardware.camera2.CaptureFailure;
+import android.hardware.camera2.TotalCaptureResult;
 import android.media.Image;
 import android.media.ImageReader;
-import android.media.MediaRecorder;
+import android.media.MediaCodec;
+import android.os.BatteryManager;
+import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
-import android.os.HandlerThread;
 import android.support.annotation.NonNull;
 import android.support.v13.app.FragmentCompat;
 import android.support.v4.app.ActivityCompat;
 import android.util.Log;
+import android.util.Range;
 import android.util.Size;
 import android.util.SparseIntArray;
 import android.view.LayoutInflater;
@@ -60,12 +65,28 @@ import android.widget.Toast;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.concurrent.Semaphore;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
 
 public class Camera2VideoFragment extends Fragment
         implements View.OnClickListener, FragmentCompat.OnRequestPermissionsResultCallback {
@@ -109,28 +130,133 @@ public class Camera2VideoFragment extends Fragment
     private Button mButtonVideo;
 
     /**
-     * A reference to the opened {@link android.hardware.camera2.CameraDevice}.
+     * The cameras this app runs. Each one is found by its characteristics, the ids are only
+     * preferred, and used as a last resort on devices that do not report monochrome sensors.
+     * Adding a sensor only needs another entry here.
      */
-    private static int N_CAMERAS = 3;
-    private final int COLOR_ID = 0;
-    private final int MONO_ID = 2;
+    private static final List<CameraRig.Spec> CAMERA_SPECS = Arrays.asList(
+            new CameraRig.Spec(CameraRig.Role.COLOR, CameraMetadata.LENS_FACING_BACK, false, "0"),
+            new CameraRig.Spec(CameraRig.Role.MONO, CameraMetadata.LENS_FACING_BACK, true, "2"));
+
+    /**
+     * A message on a camera thread that waits or runs longer than this, one frame at 30 fps, is
+     * reported as a stall.
+     */
+    private static final long CAMERA_STALL_MS = 33;
+
+    /**
+     * The threads the process may gain over repeated recordings before it is reported, to allow
+     * for the short-lived ones that are still ending when it is counted.
+     */
+    private static final int THREAD_COUNT_SLACK = 2;
+
+    /**
+     * The threads of the process after the first recording since the fragment resumed, or 0.
+     */
+    private int mBaselineThreadCount;
+
+    /**
+     * The opened cameras and the state that belongs to each of them.
+     */
+    private CameraRig mRig;
+
+    /**
+     * The number of images {@link #mImageReader} can hold. Two are kept free of the
+     * {@link #mFramePipeline}, so the reader can always hand out the next image.
+     */
+    private static final int MONO_MAX_IMAGES = 10;
 
     private ImageReader mImageReader;
 
-    private CameraDevice[] mCameraDevices = new CameraDevice[N_CAMERAS];
+    /**
+     * Whether the luma of every mono image is copied into a buffer of {@link #mFramePool}, so the
+     * image goes back to {@link #mImageReader} right away instead of when the analyzers are done.
+     * A buffer held for longer than {@link #FRAME_BUFFER_LEAK_NS} is reported as leaked.
+     */
+    private static final boolean USE_FRAME_BUFFER_POOL = true;
+    private static final long FRAME_BUFFER_LEAK_NS = 2_000_000_000L;
+
+    private FrameBufferPool mFramePool;
+
+    /**
+     * Delivers the frames of the mono stream to the registered analyzers.
+     */
+    private FramePipeline mFramePipeline;
+
+    /**
+     * Downscales every mono frame for the analyzers that do not need its full size. Its bands
+     * run on {@link #mAnalysisPool}.
+     */
+    private LumaPyramid mLumaPyramid;
+    private ForkJoinPool mAnalysisPool;
+    private static final int PYRAMID_BAND_ROWS = 32;
+
+    /**
+     * Whether {@link #mLumaPyramid} builds every mono frame while no analyzer consumes it yet, so
+     * its cost on the device is logged on pause.
+     */
+    private static final boolean MEASURE_LUMA_PYRAMID = true;
+
+    /**
+     * Whether the luma of the mono stream is kept losslessly in a {@link Y8RingFile} while
+     * recording, for calibration. The ring holds the last {@link #MONO_RING_FRAMES} frames, and
+     * {@link #MONO_RING_WORKERS} threads copy them, deflated if {@link #MONO_RING_COMPRESS}.
+     */
+    private static final boolean USE_MONO_RING = false;
+    private static final int MONO_RING_FRAMES = 90;
+    private static final boolean MONO_RING_COMPRESS = true;
+    private static final int MONO_RING_WORKERS = 2;
+
+    /**
+     * The ring of the current recording, read by the capture callback of the mono camera.
+     */
+    private volatile Y8RingFile mMonoRing;
+
+    /**
+     * The largest sensor timestamp difference, in nanoseconds, at which a color and a mono frame
+     * are still taken as the same moment. Half a frame at 30 fps.
+     */
+    private static final long PAIRING_TOLERANCE_NS = 16_000_000L;
+
+    /**
+     * Matches the frames of the color and the mono camera by their sensor timestamps.
+     */
+    private final FramePairer mFramePairer = new FramePairer(16, PAIRING_TOLERANCE_NS);
+
+    /**
+     * Collects the pairs of {@link #mFramePairer} while recording, for the pairs file of the
+     * session.
+     */
+    private final FramePairIndex mPairIndex = new FramePairIndex();
+
+    /**
+     * The recording time {@link #mPairIndex} has room for as soon as a recording starts.
+     */
+    private static final int PAIR_INDEX_SECONDS = 10 * 60;
 
-//    private CameraDevice mCameraDevice;
-//    private CameraDevice mCameraDeviceMono;
+    /**
+     * Whether the camera characteristics are kept in {@link #CHARACTERISTICS_CACHE_FILE}, so
+     * later starts do not have to query the camera service.
+     */
+    private static final boolean USE_CHARACTERISTICS_CACHE = true;
+    private static final String CHARACTERISTICS_CACHE_FILE = "camera_characteristics";
 
     /**
-     * A reference to the current {@link android.hardware.camera2.CameraCaptureSession} for
-     * preview.
+     * The {@link System#nanoTime()} of the last {@link #onResume()}, or 0 once the color camera
+     * has started capturing its first frame after it.
      */
-    private CameraCaptureSession[] mPreviewSessions = new CameraCaptureSession[N_CAMERAS];
+    private final AtomicLong mResumeNanos = new AtomicLong();
 
+    /**
+     * The {@link System#nanoTime()} of the last {@link #onResume()}, for the time until every
+     * camera is ready to record.
+     */
+    private long mRecordReadyStartNanos;
 
-//    private CameraCaptureSession mPreviewSession;
-//    private CameraCaptureSession mPreviewSessionMono;
+    /**
+     * Prepares the encoders while the cameras open.
+     */
+    private ExecutorService mWarmUpExecutor;
 
     /**
      * {@link TextureView.SurfaceTextureListener} handles several lifecycle events on a
@@ -142,7 +268,20 @@ public class Camera2VideoFragment extends Fragment
         @Override
         public void onSurfaceTextureAvailable(SurfaceTexture surfaceTexture,
                                               int width, int height) {
-            openCameras(width, height);
+            if (null == mRig || null == mPreviewSize) {
+                return;
+            }
+            configureTransform(width, height);
+            // The cameras have been opening since onResume, only the preview waited for this
+            final CameraRig.Camera color = mRig.get(CameraRig.Role.COLOR);
+            if (null != color.mHandler) {
+                color.mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        startPreviewWhenReady(color);
+                    }
+                });
+            }
         }
 
         @Override
@@ -173,39 +312,97 @@ public class Camera2VideoFragment extends Fragment
     private Size mVideoSize;
 
     /**
-     * MediaRecorder
+     * The {@link android.util.Size} of the mono frames handed to the analyzers.
      */
-    private MediaRecorder[] mMediaRecorders = new MediaRecorder[N_CAMERAS];
-//    private MediaRecorder mMediaRecorderMono;
+    private Size mAnalysisSize;
 
     /**
-     * Whether the app is recording video now
+     * The asset the {@link CaptureProfile}s are read from. The built-in ones are used if it is
+     * missing or invalid.
      */
-    private boolean mIsRecordingVideo;
+    private static final String CAPTURE_PROFILES_ASSET = "capture_profiles.properties";
+
+    /**
+     * The capture settings of each mode, read along with the rig. The record profile sets the
+     * frame rate every stream of every camera has to sustain and the largest size recorded at.
+     */
+    private Map<CaptureProfile.Mode, CaptureProfile> mProfiles = CaptureProfile.defaults();
+
+    /**
+     * Whether the cameras that support it record in a constrained high-speed session at
+     * {@link #HIGH_SPEED_FRAME_RATE}. The preview and the recording then share one size, and
+     * cameras that cannot run at high speed, such as the mono camera with its analysis stream,
+     * stay at the frame rate of the record profile.
+     */
+    private static final boolean USE_HIGH_SPEED = false;
+    private static final int HIGH_SPEED_FRAME_RATE = 120;
 
     /**
-     * An additional thread for running tasks that shouldn't block the UI.
+     * Whether a {@link RecordingGovernor} lowers the recording quality while the encoder, the
+     * capture or the storage falls behind, or the device runs hot, and raises it again once they
+     * have recovered. It checks every {@link #GOVERNOR_INTERVAL_MS} while recording.
      */
-    private HandlerThread[] mBackgroundThreads = new HandlerThread[N_CAMERAS];
+    private static final boolean USE_GOVERNOR = true;
+    private static final long GOVERNOR_INTERVAL_MS = 1000;
 
-//    private HandlerThread mBackgroundThread;
+    /**
+     * The battery temperatures, in degrees Celsius, between which the governor sees the load of
+     * the device go from none to full.
+     */
+    private static final double COOL_BATTERY_CELSIUS = 35;
+    private static final double HOT_BATTERY_CELSIUS = 45;
+
+    /**
+     * Runs the governor of the current recording.
+     */
+    private ScheduledExecutorService mGovernorExecutor;
+
+    /**
+     * Whether recordings are encoded with {@link MediaCodecEngine} instead of
+     * {@link MediaRecorderEngine}.
+     */
+    private static final boolean USE_MEDIA_CODEC_ENGINE = false;
 
+    /**
+     * The length and size at which a recording rolls over to a new file. The encoder switches at
+     * the next key frame after either limit is reached.
+     */
+    private static final int SEGMENT_DURATION_SECONDS = 60;
+    private static final long SEGMENT_SIZE_BYTES = 256L * 1024 * 1024;
+
+    /**
+     * Names the files of the next or current recording of all cameras.
+     */
+    private volatile RecordingSession mRecordingSession;
 
     /**
-     * A {@link Handler} for running tasks in the background.
+     * Stops the encoders and finalizes their files, so stopping never waits for them on the UI
+     * thread. {@link #onPause()} waits for at most {@link #FINALIZE_TIMEOUT_MS} for the files
+     * still being finalized before it closes the cameras.
      */
-    private Handler[] mBackgroundHandlers = new Handler[N_CAMERAS];
+    private RecordingFinalizer mFinalizer;
+    private static final long FINALIZE_TIMEOUT_MS = 10_000;
 
-//    private Handler mBackgroundHandler;
+    /**
+     * Opens the recording files and stops the recording before the volume fills up.
+     */
+    private RecordingStorage mStorage;
 
+    /**
+     * The space on the volume that recordings never use.
+     */
+    private static final long STORAGE_RESERVE_BYTES = 200L * 1024 * 1024;
 
     /**
-     * A {@link Semaphore} to prevent the app from exiting before closing the camera.
+     * The estimated recording time left at which a recording is stopped, and the least a new
+     * recording needs to start.
      */
-//    private Semaphore[] mCameraOpenCloseLocks = new Semaphore[N_CAMERAS];
+    private static final long STORAGE_LOW_SECONDS = 15;
 
-    private Semaphore mCameraOpenCloseLockColor = new Semaphore(1);
-    private Semaphore mCameraOpenCloseLockMono = new Semaphore(1);
+    /**
+     * Whether the app is recording video now
+     */
+    private boolean mIsRecordingVideo;
 
 //    CaptureRequest.Key<Byte> BayerMonoLinkEnableKey =
 //            new CaptureRequest.Key<>("org.codeaurora.qcamera3.dualcam_link_meta_data.enable",
@@ -240,52 +437,24 @@ public class Camera2VideoFragment extends Fragment
 //    }
 
     /**
-     * {@link CameraDevice.StateCallback} is called when {@link CameraDevice} changes its status.
+     * {@link CameraRig.Callback} is called when a camera of the rig changes its status.
      */
-    private CameraDevice.StateCallback mStateCallback = new CameraDevice.StateCallback() {
+    private CameraRig.Callback mRigCallback = new CameraRig.Callback() {
 
         @Override
-        public void onOpened(@NonNull CameraDevice cameraDevice) {
-            int id = Integer.valueOf(cameraDevice.getId());
-//            mCameraDevice = cameraDevice;
-            mCameraDevices[id] = cameraDevice;
-            if (id == COLOR_ID) {
-                startPreview(id);
-                mCameraOpenCloseLockColor.release();
-                if (null != mTextureView) {
-                    configureTransform(mTextureView.getWidth(), mTextureView.getHeight());
-                }
-            }
-            else
-            {
-                startPreview(id);
-                mCameraOpenCloseLockMono.release();
+        public void onOpened(CameraRig.Camera camera) {
+            startPreviewWhenReady(camera);
+            if (camera.getRole() == CameraRig.Role.COLOR && null != mTextureView) {
+                configureTransform(mTextureView.getWidth(), mTextureView.getHeight());
             }
         }
 
         @Override
-        public void onDisconnected(@NonNull CameraDevice cameraDevice) {
-            int id = Integer.valueOf(cameraDevice.getId());
-            if (id == COLOR_ID)
-                mCameraOpenCloseLockColor.release();
-            else
-                mCameraOpenCloseLockMono.release();
-
-            cameraDevice.close();
-            mCameraDevices[id] = null;
+        public void onDisconnected(CameraRig.Camera camera) {
         }
 
         @Override
-        public void onError(@NonNull CameraDevice cameraDevice, int error) {
-            int id = Integer.valueOf(cameraDevice.getId());
-
-            if (id == COLOR_ID)
-                mCameraOpenCloseLockColor.release();
-            else
-                mCameraOpenCloseLockMono.release();
-
-            cameraDevice.close();
-            mCameraDevices[id] = null;
+        public void onError(CameraRig.Camera camera, int error) {
             Activity activity = getActivity();
             if (null != activity) {
                 activity.finish();
@@ -295,62 +464,70 @@ public class Camera2VideoFragment extends Fragment
     };
 
     private Integer mSensorOrientation;
-    private String[] mNextVideoAbsolutePaths = new String[N_CAMERAS];
 
-//    private CaptureRequest.Builder mPreviewBuilder;
-    private CaptureRequest.Builder[] mPreviewBuilders = new CaptureRequest.Builder[N_CAMERAS];
+    /**
+     * Whether each camera keeps one capture session that already includes the encoder input.
+     * Starting and stopping a recording then only swaps the repeating request, instead of
+     * rebuilding the session around a new encoder surface.
+     */
+    private static final boolean PERSISTENT_RECORDING_SESSION = true;
 
-    public static Camera2VideoFragment newInstance() {
-        return new Camera2VideoFragment();
-    }
+    /**
+     * How long the start of each camera waits for the starts of the others before it starts
+     * anyway. See {@link StartBarrier}.
+     */
+    private static final long START_ALIGN_TIMEOUT_MS = 100;
 
     /**
-     * In this sample, we choose a video size with 3x4 aspect ratio. Also, we don't use sizes
-     * larger than 1080p, since MediaRecorder cannot handle such a high-resolution video.
-     *
-     * @param choices The list of available sizes
-     * @return The video size
+     * How long {@link #onPause()} waits for a camera that is still opening to close.
      */
-    private static Size chooseVideoSize(Size[] choices) {
-        for (Size size : choices) {
-            if (size.getWidth() == size.getHeight() * 4 / 3 && size.getWidth() <= 1080) {
-                return size;
-            }
-        }
-        Log.e(TAG, "Couldn't find any suitable video size");
-        return choices[choices.length - 1];
-    }
+    private static final long CLOSE_TIMEOUT_MS = 2500;
 
     /**
-     * Given {@code choices} of {@code Size}s supported by a camera, chooses the smallest one whose
-     * width and height are at least as large as the respective requested values, and whose aspect
-     * ratio matches with the specified value.
-     *
-     * @param choices     The list of sizes that the camera supports for the intended output class
-     * @param width       The minimum desired width
-     * @param height      The minimum desired height
-     * @param aspectRatio The aspect ratio
-     * @return The optimal {@code Size}, or an arbitrary one if none were big enough
-     */
-    private static Size chooseOptimalSize(Size[] choices, int width, int height, Size aspectRatio) {
-        // Collect the supported resolutions that are at least as big as the preview Surface
-        List<Size> bigEnough = new ArrayList<>();
-        int w = aspectRatio.getWidth();
-        int h = aspectRatio.getHeight();
-        for (Size option : choices) {
-            if (option.getHeight() == option.getWidth() * h / w &&
-                    option.getWidth() >= width && option.getHeight() >= height) {
-                bigEnough.add(option);
-            }
-        }
-
-        // Pick the smallest of those, assuming we found any
-        if (bigEnough.size() > 0) {
-            return Collections.min(bigEnough, new CompareSizesByArea());
-        } else {
-            Log.e(TAG, "Couldn't find any suitable preview size");
-            return choices[0];
+     * How long closing a camera waits for its encoder warm-up, which may be on the main thread.
+     * A longer warm-up releases the encoder itself once it is done.
+     */
+    private static final long WARM_UP_CLOSE_TIMEOUT_MS = 500;
+
+    /**
+     * How long {@link #openCameras()} waits for the encoders of the last pause to be released
+     * before it tries again.
+     */
+    private static final long REOPEN_DELAY_MS = 100;
+
+    private final Runnable mOpenCamerasLater = new Runnable() {
+        @Override
+        public void run() {
+            openCameras();
         }
+    };
+
+    /**
+     * Starts the cameras of the recording being started, or null once they have.
+     */
+    private StartBarrier mStartBarrier;
+
+    /**
+     * Whether armed cameras keep encoding into a {@link PreRollBuffer}, so a recording starts
+     * with the last {@link #PRE_ROLL_SECONDS} before the button was pressed. Needs
+     * {@link #USE_MEDIA_CODEC_ENGINE} and {@link #PERSISTENT_RECORDING_SESSION}. Since the buffer
+     * always starts with a key frame, up to one key frame interval less may be kept.
+     */
+    private static final boolean USE_PRE_ROLL = false;
+    private static final int PRE_ROLL_SECONDS = 3;
+
+    /**
+     * Tags the requests that feed the encoder, so the capture callback can tell them apart.
+     */
+    private static final Object RECORD_REQUEST_TAG = new Object();
+
+    /**
+     * The {@link Surface} of `mTextureView` used by the current color session.
+     */
+    private Surface mPreviewSurface;
+
+    public static Camera2VideoFragment newInstance() {
+        return new Camera2VideoFragment();
     }
 
     @Override
@@ -370,49 +547,241 @@ public class Camera2VideoFragment extends Fragment
     @Override
     public void onResume() {
         super.onResume();
-        startBackgroundThread(COLOR_ID);
-        startBackgroundThread(MONO_ID);
+        mResumeNanos.set(System.nanoTime());
+        mRecordReadyStartNanos = System.nanoTime();
+        if (!setUpRig()) {
+            return;
+        }
+        mRig.startThreads(CAMERA_STALL_MS);
+        mFinalizer = new RecordingFinalizer(mRig.getCameras().size() + 1);
+        mStorage = new RecordingStorage(getActivity().getExternalFilesDir(null),
+                STORAGE_RESERVE_BYTES, STORAGE_LOW_SECONDS);
+        mStorage.setListener(mStorageListener);
+        mRig.saveCache(mStorage);
+        mFramePairer.setListener(mPairIndex);
+
+        if (null != mRig.get(CameraRig.Role.MONO)) {
+            mFramePipeline = new FramePipeline(MONO_MAX_IMAGES - 2,
+                    Math.max(1, Runtime.getRuntime().availableProcessors() / 2), 2,
+                    FramePipeline.DropPolicy.LATEST);
+            mAnalysisPool = new ForkJoinPool(
+                    Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+            mLumaPyramid = new LumaPyramid(mAnalysisPool, PYRAMID_BAND_ROWS,
+                    LumaPyramid.DEFAULT_BUDGET_NANOS);
+            mLumaPyramid.setMeasuring(MEASURE_LUMA_PYRAMID);
+            mFramePipeline.addAnalyzer(mLumaPyramid);
+        }
 
-        mImageReader = ImageReader.newInstance(3840, 2160, ImageFormat.YUV_420_888, 10);
-        mImageReader.setOnImageAvailableListener(
-                new ImageReader.OnImageAvailableListener() {
-                    @Override
-                    public void onImageAvailable(ImageReader reader) {
-                        Image image = reader.acquireNextImage();
-                        image.close();
-                    }
-                }, mBackgroundHandlers[MONO_ID]);
+        mWarmUpExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                return new Thread(runnable, "EncoderWarmUp");
+            }
+        });
 
-        if (mTextureView.isAvailable()) {
-            openCameras(mTextureView.getWidth(), mTextureView.getHeight());
-        } else {
-            mTextureView.setSurfaceTextureListener(mSurfaceTextureListener);
+        // Nothing here waits for the TextureView, the color preview starts once it is available
+        mTextureView.setSurfaceTextureListener(mSurfaceTextureListener);
+        openCameras();
+        if (mTextureView.isAvailable() && null != mPreviewSize) {
+            configureTransform(mTextureView.getWidth(), mTextureView.getHeight());
         }
     }
 
     @Override
     public void onPause() {
-        closeCamera(COLOR_ID);
-//        closeCamera(MONO_ID);
+        mTextureView.removeCallbacks(mOpenCamerasLater);
+        if (null != mStartBarrier) {
+            mStartBarrier.cancel();
+            mStartBarrier = null;
+        }
+        stopGovernor();
+        stopMonoRing();
+        if (null != mFinalizer) {
+            // The encoders are released with the cameras
+            if (!mFinalizer.shutdown(FINALIZE_TIMEOUT_MS)) {
+                Log.w(TAG, "Recordings still being finalized after " + FINALIZE_TIMEOUT_MS
+                        + " ms");
+            }
+            mFinalizer = null;
+        }
+        if (null != mRig) {
+            for (CameraRig.Camera camera : mRig.getCameras()) {
+                Log.d(TAG, camera + " capture telemetry: " + camera.mTelemetry);
+                if (null != camera.mPreRoll) {
+                    Log.d(TAG, camera + " pre-roll: " + camera.mPreRoll);
+                }
+                if (null != camera.mThreads) {
+                    Log.d(TAG, camera + " threads: " + camera.mThreads);
+                }
+                Log.d(TAG, "States: " + camera.mState);
+                camera.mState.close();
+            }
+            // A camera that is still opening closes once its device is open, on its thread. One
+            // whose device does not open in time is closed now, and its device once it opens.
+            for (CameraRig.Camera camera : mRig.getCameras()) {
+                try {
+                    if (!camera.mState.awaitClosed(CLOSE_TIMEOUT_MS)) {
+                        Log.w(TAG, camera + " did not close within " + CLOSE_TIMEOUT_MS + " ms");
+                        camera.mState.forceClose();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    camera.mState.forceClose();
+                }
+            }
+            mRig.stopThreads();
+        }
+        mBaselineThreadCount = 0;
+        if (null != mWarmUpExecutor) {
+            mWarmUpExecutor.shutdown();
+            mWarmUpExecutor = null;
+        }
+        writePairs(mRecordingSession);
+        mRecordingSession = null;
+        if (null != mStorage) {
+            mStorage.shutdown();
+            mStorage = null;
+        }
 
-        stopBackgroundThread(COLOR_ID);
-//        stopBackgroundThread(MONO_ID);
+        if (null != mImageReader) {
+            mImageReader.close();
+            mImageReader = null;
+        }
+        if (null != mFramePool) {
+            Log.d(TAG, "Mono frame buffers: " + mFramePool);
+            mFramePool = null;
+        }
+        if (null != mFramePipeline) {
+            Log.d(TAG, "Mono frames: " + mFramePipeline.getSubmittedFrames() + " submitted, "
+                    + mFramePipeline.getRejectedFrames() + " rejected, "
+                    + mFramePipeline.getDroppedDeliveries() + " dropped by analyzers");
+            mFramePipeline.shutdown();
+            mFramePipeline = null;
+        }
+        if (null != mLumaPyramid) {
+            Log.d(TAG, "Mono pyramid: " + mLumaPyramid);
+            mLumaPyramid = null;
+            mAnalysisPool.shutdown();
+            mAnalysisPool = null;
+        }
+        Log.d(TAG, "Frame pairing: " + mFramePairer);
 
         super.onPause();
     }
 
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        FrameBufferPool pool = mFramePool;
+        if (null == pool) {
+            return;
+        }
+        // Free buffers are only kept to avoid allocating, keep a couple while memory lasts
+        long trimmed = pool.trim(level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW ? 0 : 2);
+        Log.d(TAG, "Trimmed " + trimmed / 1024 + " KiB of frame buffers at level " + level);
+    }
+
+    /**
+     * Finds the cameras of {@link #CAMERA_SPECS} on this device.
+     *
+     * @return Whether the rig has a color camera to preview
+     */
+    private boolean setUpRig() {
+        final Activity activity = getActivity();
+        if (null == activity || activity.isFinishing()) {
+            return false;
+        }
+        if (null != mRig) {
+            return null != mRig.get(CameraRig.Role.COLOR);
+        }
+        mProfiles = loadProfiles(activity);
+        CameraManager manager = (CameraManager) activity.getSystemService(Context.CAMERA_SERVICE);
+        try {
+            CameraRig rig = new CameraRig(manager, CAMERA_SPECS);
+            rig.resolve(USE_CHARACTERISTICS_CACHE ? new CharacteristicsCache(
+                    new File(activity.getFilesDir(), CHARACTERISTICS_CACHE_FILE),
+                    Build.FINGERPRINT) : null);
+            for (CameraRig.Camera camera : rig.getCameras()) {
+                camera.mState.setBackend(createBackend(camera));
+                camera.mState.setListener(mStateListener);
+            }
+            mRig = rig;
+        } catch (CameraAccessException e) {
+            Toast.makeText(activity, "Cannot access the camera.", Toast.LENGTH_SHORT).show();
+            activity.finish();
+            return false;
+        } catch (NullPointerException e) {
+            // Currently an NPE is thrown when the Camera2API is used but not supported on the
+            // device this code runs.
+            ErrorDialog.newInstance(getString(R.string.camera_error))
+                    .show(getChildFragmentManager(), FRAGMENT_DIALOG);
+            return false;
+        }
+        if (null == mRig.get(CameraRig.Role.COLOR)) {
+            ErrorDialog.newInstance(getString(R.string.camera_error))
+                    .show(getChildFragmentManager(), FRAGMENT_DIALOG);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Reads the {@link CaptureProfile}s from {@link #CAPTURE_PROFILES_ASSET}, or returns the
+     * built-in ones if it cannot.
+     */
+    private static Map<CaptureProfile.Mode, CaptureProfile> loadProfiles(Context context) {
+        Map<CaptureProfile.Mode, CaptureProfile> profiles;
+        try (InputStream in = context.getAssets().open(CAPTURE_PROFILES_ASSET)) {
+            profiles = CaptureProfile.load(in);
+        } catch (IOException | IllegalArgumentException e) {
+            Log.w(TAG, "Using the built-in capture profiles", e);
+            profiles = CaptureProfile.defaults();
+        }
+        Log.i(TAG, "Capture profiles: " + profiles.values());
+        return profiles;
+    }
+
+    /**
+     * Returns the profile of the repeating request of {@code camera} while it does not record.
+     */
+    private CaptureProfile getIdleProfile(CameraRig.Camera camera) {
+        return mProfiles.get(camera.getRole() == CameraRig.Role.MONO
+                ? CaptureProfile.Mode.ANALYSIS : CaptureProfile.Mode.PREVIEW);
+    }
+
+    /**
+     * Wraps a luma plane copied into {@code buffer} in a {@link FramePipeline.Frame} that
+     * releases the buffer once every analyzer is done with it.
+     */
+    private static FramePipeline.Frame toFrame(FrameBufferPool.Buffer buffer, long timestamp) {
+        return new FramePipeline.Frame(buffer, new ByteBuffer[]{buffer.getData()},
+                new int[]{buffer.getRowStride()}, new int[]{1}, buffer.getWidth(),
+                buffer.getHeight(), timestamp);
+    }
+
+    /**
+     * Wraps the luma plane of {@code image} in a {@link FramePipeline.Frame} that closes the
+     * image once every analyzer is done with it. The analyzers only read luma, so any chroma
+     * planes are left out whatever the format.
+     */
+    private static FramePipeline.Frame toFrame(Image image) {
+        Image.Plane luma = image.getPlanes()[0];
+        return new FramePipeline.Frame(image, new ByteBuffer[]{luma.getBuffer()},
+                new int[]{luma.getRowStride()}, new int[]{luma.getPixelStride()},
+                image.getWidth(), image.getHeight(), image.getTimestamp());
+    }
+
     @Override
     public void onClick(View view) {
         switch (view.getId()) {
             case R.id.video: {
-                if (mIsRecordingVideo) {
-                    stopRecordingVideo(COLOR_ID);
-                    stopRecordingVideo(MONO_ID);
-
+                if (mIsRecordingVideo || null != mStartBarrier) {
+                    stopRecording();
+                } else if (!mStorage.hasRoomFor(2 * STORAGE_LOW_SECONDS, getBytesPerSecond())) {
+                    Toast.makeText(getActivity(), "Not enough storage left to record",
+                            Toast.LENGTH_SHORT).show();
                 } else {
-                    startRecordingVideo(COLOR_ID);
-                    startRecordingVideo(MONO_ID);
-
+                    startRecording();
                 }
                 break;
             }
@@ -430,71 +799,489 @@ public class Camera2VideoFragment extends Fragment
     }
 
     /**
-     * Starts a background thread and its {@link Handler}.
+     * Starts the recording of every camera that can record, so that they all start together. A
+     * camera that is still opening or stopping starts once it shows its preview, and the others
+     * wait for it.
      */
-    private void startBackgroundThread(int id) {
-        mBackgroundThreads[id] = new HandlerThread("CameraBackground");
-        mBackgroundThreads[id].start();
-        mBackgroundHandlers[id] = new Handler(mBackgroundThreads[id].getLooper());
+    private void startRecording() {
+        List<String> names = new ArrayList<>();
+        List<CameraRig.Camera> cameras = new ArrayList<>();
+        for (CameraRig.Camera camera : mRig.getCameras()) {
+            if (camera.mState.canRecord()) {
+                names.add(camera.mId);
+                cameras.add(camera);
+            } else {
+                Log.w(TAG, camera + " cannot record while " + camera.mState.getState());
+            }
+        }
+        if (cameras.isEmpty()) {
+            return;
+        }
+        final RecordingSession session = getRecordingSession();
+        mStartBarrier = new StartBarrier(names,
+                TimeUnit.MILLISECONDS.toNanos(START_ALIGN_TIMEOUT_MS),
+                new StartBarrier.Listener() {
+                    @Override
+                    public void onStarted(StartBarrier.Result result) {
+                        onRecordingStarted(session, result);
+                    }
+                });
+        // Tapping again stops the recording, even before it has started
+        mButtonVideo.setText(R.string.stop);
+        for (CameraRig.Camera camera : cameras) {
+            camera.mState.record();
+        }
+        startGovernor();
+        startMonoRing();
+        mPairIndex.start(PAIR_INDEX_SECONDS
+                * mProfiles.get(CaptureProfile.Mode.RECORD).getMaxFps());
     }
-//    private void startBackgroundThread() {
-//        mBackgroundThread = new HandlerThread("CameraBackground");
-//        mBackgroundThread.start();
-//        mBackgroundHandler = new Handler(mBackgroundThread.getLooper());
-//    }
-//
-
 
     /**
-     * Stops the background thread and its {@link Handler}.
+     * Called once every camera of {@code session} has started recording or failed to, on the
+     * thread of the last one. Writes the start skew to the metadata of the session.
      */
-//    private void stopBackgroundThread() {
-//        mBackgroundThread.quitSafely();
-//        try {
-//            mBackgroundThread.join();
-//            mBackgroundThread = null;
-//            mBackgroundHandler = null;
-//        } catch (InterruptedException e) {
-//            e.printStackTrace();
-//        }
-//
-//    }
-
-    private void stopBackgroundThread(int id) {
-        mBackgroundThreads[id].quitSafely();
+    private void onRecordingStarted(final RecordingSession session,
+                                    final StartBarrier.Result result) {
+        Log.i(TAG, "Recording " + session.getId() + " started, " + result);
+        Map<String, String> metadata = new LinkedHashMap<>();
+        metadata.put("session", session.getId());
+        metadata.put("start.skew_us", String.valueOf(result.getSkewNanos() / 1000));
+        metadata.put("start.align_timed_out", String.valueOf(result.isAlignTimedOut()));
+        for (int i = 0; i < result.getNames().size(); i++) {
+            String key = "camera." + result.getNames().get(i) + ".";
+            CameraRig.Camera camera = mRig.get(result.getNames().get(i));
+            if (null != result.getError(i)) {
+                camera.mState.onRecordingFailed();
+                Log.e(TAG, "Camera " + result.getNames().get(i) + " failed to start",
+                        result.getError(i));
+                metadata.put(key + "error", String.valueOf(result.getError(i)));
+            } else {
+                camera.mState.onRecordingStarted();
+                metadata.put(key + "start_offset_us",
+                        String.valueOf(result.getStartOffsetNanos(i) / 1000));
+                metadata.put(key + "start_duration_us",
+                        String.valueOf(result.getStartDurationNanos(i) / 1000));
+            }
+        }
         try {
-            mBackgroundThreads[id].join();
-            mBackgroundThreads[id] = null;
-            mBackgroundHandlers[id] = null;
-        } catch (InterruptedException e) {
-            e.printStackTrace();
+            session.writeMetadata(metadata);
+        } catch (RejectedExecutionException e) {
+            Log.w(TAG, "The storage has shut down, the metadata of " + session.getId()
+                    + " is not written");
+        }
+        Activity activity = getActivity();
+        if (null == activity) {
+            return;
         }
+        activity.runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                if (mRecordingSession != session) {
+                    // Paused meanwhile
+                    return;
+                }
+                mStartBarrier = null;
+                if (result.isStarted()) {
+                    mIsRecordingVideo = true;
+                } else {
+                    mButtonVideo.setText(R.string.record);
+                    stopGovernor();
+                    stopMonoRing();
+                    mPairIndex.stop();
+                    Toast.makeText(getActivity(), "Failed to start recording",
+                            Toast.LENGTH_SHORT).show();
+                }
+            }
+        });
+    }
 
+    /**
+     * Stops collecting frame pairs and writes them to the pairs file of {@code session}, if any.
+     */
+    private void writePairs(RecordingSession session) {
+        FramePairIndex.Pairs pairs = mPairIndex.stop();
+        if (null == pairs || null == session || null == mStorage) {
+            return;
+        }
+        try {
+            session.writePairs(pairs);
+        } catch (RejectedExecutionException e) {
+            Log.w(TAG, "The storage has shut down, the frame pairs of " + session.getId()
+                    + " are not written");
+        }
     }
 
     /**
-     * Gets whether you should show UI with rationale for requesting permissions.
-     *
-     * @param permissions The permissions your app wants to request.
-     * @return Whether you can show permission rationale UI.
+     * Gives up on starting the current recording, when a camera will never be ready to start.
+     * Called on the UI thread.
      */
-    private boolean shouldShowRequestPermissionRationale(String[] permissions) {
-        for (String permission : permissions) {
-            if (FragmentCompat.shouldShowRequestPermissionRationale(this, permission)) {
-                return true;
+    private void cancelStart() {
+        if (null != mStartBarrier && mStartBarrier.cancel()) {
+            mStartBarrier = null;
+            mButtonVideo.setText(R.string.record);
+            stopGovernor();
+            stopMonoRing();
+            mPairIndex.stop();
+            for (CameraRig.Camera camera : mRig.getCameras()) {
+                camera.mState.onRecordingFailed();
             }
         }
-        return false;
     }
 
     /**
-     * Requests permissions needed for recording video.
+     * Stops the recording of every camera. The cameras go back to preview and their files are
+     * finalized in the background, so this returns right away.
      */
-    private void requestVideoPermissions() {
-        if (shouldShowRequestPermissionRationale(VIDEO_PERMISSIONS)) {
-            new ConfirmationDialog().show(getChildFragmentManager(), FRAGMENT_DIALOG);
-        } else {
-            FragmentCompat.requestPermissions(this, VIDEO_PERMISSIONS, REQUEST_VIDEO_PERMISSIONS);
+    private void stopRecording() {
+        long stopNanos = System.nanoTime();
+        writePairs(mRecordingSession);
+        // The cameras are armed again for a new session as they stop
+        mRecordingSession = null;
+        mIsRecordingVideo = false;
+        mButtonVideo.setText(R.string.record);
+        StartBarrier barrier = mStartBarrier;
+        mStartBarrier = null;
+        stopGovernor();
+        stopMonoRing();
+        for (CameraRig.Camera camera : mRig.getCameras()) {
+            CameraStateMachine.State state = camera.mState.getState();
+            if (state == CameraStateMachine.State.ARMING
+                    || state == CameraStateMachine.State.RECORDING) {
+                camera.mStopNanos.set(stopNanos);
+            }
+            // A camera still arming stops once it has started
+            camera.mState.stop();
+        }
+        if (null != barrier && barrier.cancel()) {
+            // None of them will start
+            for (CameraRig.Camera camera : mRig.getCameras()) {
+                camera.mState.onRecordingFailed();
+            }
+        }
+        checkThreadCount();
+    }
+
+    /**
+     * Returns the {@link CameraStateMachine.Backend} that records with and closes
+     * {@code camera}. Starting and stopping run on the UI thread.
+     */
+    private CameraStateMachine.Backend createBackend(final CameraRig.Camera camera) {
+        return new CameraStateMachine.Backend() {
+            @Override
+            public void startRecording() {
+                Activity activity = getActivity();
+                if (null == activity) {
+                    camera.mState.onRecordingFailed();
+                    return;
+                }
+                activity.runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        startRecordingVideo(camera);
+                    }
+                });
+            }
+
+            @Override
+            public void stopRecording() {
+                Activity activity = getActivity();
+                if (null == activity) {
+                    // Stopped when the camera closes
+                    return;
+                }
+                activity.runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        stopRecordingVideo(camera);
+                    }
+                });
+            }
+
+            @Override
+            public void close() {
+                closeCamera(camera);
+            }
+        };
+    }
+
+    private final CameraStateMachine.Listener mStateListener = new CameraStateMachine.Listener() {
+        @Override
+        public void onTransition(String name, CameraStateMachine.State from,
+                                 CameraStateMachine.State to, long nanosInFrom) {
+            Log.d(TAG, name + " moved from " + from + " to " + to + " after "
+                    + nanosInFrom / 1000000 + " ms");
+        }
+    };
+
+    /**
+     * Reports when the process has more threads after this recording than after the first one,
+     * as every recording should reuse the threads of the one before.
+     */
+    private void checkThreadCount() {
+        int count = CameraThreads.countThreads();
+        if (0 == mBaselineThreadCount) {
+            mBaselineThreadCount = count;
+        } else if (count > mBaselineThreadCount + THREAD_COUNT_SLACK) {
+            Log.w(TAG, "The process has " + count + " threads after recording, up from "
+                    + mBaselineThreadCount + ": " + CameraThreads.getThreadNames());
+        }
+    }
+
+    /**
+     * Starts keeping the mono frames in a ring file next to the recordings.
+     */
+    private void startMonoRing() {
+        CameraRig.Camera mono = mRig.get(CameraRig.Role.MONO);
+        if (!USE_MONO_RING || null == mono || null == mFramePipeline || null == mAnalysisSize
+                || null != mMonoRing) {
+            return;
+        }
+        int width = mAnalysisSize.getWidth();
+        int height = mAnalysisSize.getHeight();
+        if (mStorage.getRemainingBytes() < (long) MONO_RING_FRAMES * width * height) {
+            Log.w(TAG, "Not enough storage left for the mono ring");
+            return;
+        }
+        try {
+            Y8RingFile ring = new Y8RingFile(new File(getRecordingSession().getRingPath(mono.mId)),
+                    width, height, MONO_RING_FRAMES, MONO_RING_COMPRESS, MONO_RING_WORKERS);
+            mMonoRing = ring;
+            mFramePipeline.addAnalyzer(ring);
+        } catch (IOException e) {
+            Log.e(TAG, "Could not create the mono ring", e);
+        }
+    }
+
+    private void stopMonoRing() {
+        final Y8RingFile ring = mMonoRing;
+        if (null == ring) {
+            return;
+        }
+        mMonoRing = null;
+        if (null != mFramePipeline) {
+            mFramePipeline.removeAnalyzer(ring);
+        }
+        Runnable close = new Runnable() {
+            @Override
+            public void run() {
+                ring.close();
+                Log.d(TAG, "Mono ring: " + ring);
+            }
+        };
+        // Writing the mapped file back can take a while, onPause waits for it with the recordings
+        RecordingFinalizer finalizer = mFinalizer;
+        try {
+            if (null != finalizer) {
+                finalizer.finish(close);
+                return;
+            }
+        } catch (RejectedExecutionException e) {
+            // Shut down already
+        }
+        close.run();
+    }
+
+    /**
+     * Starts governing the quality of every camera that has an encoder, each at the step it was
+     * left at.
+     */
+    private void startGovernor() {
+        if (!USE_GOVERNOR || null != mGovernorExecutor) {
+            return;
+        }
+        final RecordingGovernor governor = new RecordingGovernor(new RecordingGovernor.Policy(),
+                mGovernorSignals, createBatteryLoad(getActivity().getApplicationContext()),
+                mGovernorListener);
+        for (CameraRig.Camera camera : mRig.getCameras()) {
+            if (null != camera.mQualityLadder) {
+                governor.addCamera(camera.mId, camera.mQualityLadder, camera.mQualityStep);
+            }
+        }
+        mGovernorExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                return new Thread(runnable, "RecordingGovernor");
+            }
+        });
+        mGovernorExecutor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                governor.tick();
+            }
+        }, GOVERNOR_INTERVAL_MS, GOVERNOR_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    private void stopGovernor() {
+        if (null != mGovernorExecutor) {
+            mGovernorExecutor.shutdownNow();
+            mGovernorExecutor = null;
+        }
+    }
+
+    /**
+     * Reads the encoder backlog, the capture rate and the storage write rate of a camera.
+     */
+    private final RecordingGovernor.Signals mGovernorSignals = new RecordingGovernor.Signals() {
+
+        @Override
+        public void read(String cameraId, RecordingGovernor.Sample sample) {
+            CameraRig.Camera camera = mRig.get(cameraId);
+            // MediaRecorder does not report encoded frames, and pre-rolled frames are encoded
+            // without being counted as recorded
+            sample.mEncoderBacklogFrames = USE_MEDIA_CODEC_ENGINE && !USE_PRE_ROLL
+                    ? (int) Math.max(0, camera.mRecordedFrames.get()
+                    - camera.mEncodedFrames.get()) : 0;
+            sample.mCaptureFps = camera.mTelemetry.getRecentFps();
+            RecordingStorage storage = mStorage;
+            sample.mStorageBytesPerSecond = null == storage ? 0 : storage.getBytesPerSecond();
+        }
+
+    };
+
+    /**
+     * Returns the load of the device as seen from its battery temperature, which rises with the
+     * heat of the whole device.
+     */
+    private static RecordingGovernor.LoadSignal createBatteryLoad(final Context context) {
+        final IntentFilter filter = new IntentFilter(Intent.ACTION_BATTERY_CHANGED);
+        return new RecordingGovernor.LoadSignal() {
+            @Override
+            public double getLoad() {
+                // The battery broadcast is sticky, so this only reads its last value
+                Intent battery = context.registerReceiver(null, filter);
+                if (null == battery) {
+                    return 0;
+                }
+                double celsius = battery.getIntExtra(BatteryManager.EXTRA_TEMPERATURE, 0) / 10.0;
+                return Math.max(0, (celsius - COOL_BATTERY_CELSIUS)
+                        / (HOT_BATTERY_CELSIUS - COOL_BATTERY_CELSIUS));
+            }
+        };
+    }
+
+    /**
+     * Logs every decision of the governor and hands it to the camera thread.
+     */
+    private final RecordingGovernor.Listener mGovernorListener = new RecordingGovernor.Listener() {
+
+        @Override
+        public void onStepChanged(String cameraId, final RecordingGovernor.Step from,
+                                  final RecordingGovernor.Step to, String reason) {
+            final CameraRig.Camera camera = mRig.get(cameraId);
+            Log.i(TAG, camera + " moves from " + from + " to " + to + ", " + reason);
+            Handler handler = camera.mHandler;
+            if (null != handler) {
+                handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        applyQualityStep(camera, from, to);
+                    }
+                });
+            }
+        }
+
+    };
+
+    /**
+     * Moves {@code camera} from quality step {@code from} to {@code to}. The running encoder
+     * takes the bitrate if it can and the camera the frame rate right away. A size, and a bitrate
+     * the encoder cannot change while running, applies from the next time the encoder is armed.
+     * Called on the camera thread.
+     */
+    private void applyQualityStep(CameraRig.Camera camera, RecordingGovernor.Step from,
+                                  RecordingGovernor.Step to) {
+        camera.mQualityStep = camera.mQualityLadder.indexOf(to);
+        camera.mEncoderConfig = camera.mEncoderConfig.withQuality(to.mWidth, to.mHeight,
+                to.mBitRate, to.mFrameRate);
+        if (PERSISTENT_RECORDING_SESSION && !to.hasSameSize(from)) {
+            // The encoder input changes size, which needs a new session
+            camera.mSessionStale = true;
+        }
+        boolean recording = null != camera.mEncoder && !camera.mEncoderPrepared;
+        if (recording && to.mBitRate != from.mBitRate && !camera.mEncoder.setBitRate(to.mBitRate)) {
+            Log.d(TAG, camera + " changes its bitrate from the next recording on");
+        }
+        if (to.mFrameRate == from.mFrameRate || null != camera.mHighSpeed
+                || null == camera.mSession) {
+            return;
+        }
+        try {
+            if (null == camera.mRecordRequest) {
+                // Built with the frame rate of the step once the session is configured
+                return;
+            }
+            buildRecordRequest(camera);
+            if (recording || camera.mPreRolling) {
+                setRepeatingRequest(camera, camera.mRecordRequest);
+            }
+        } catch (CameraAccessException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Returns the combined target bitrate of all encoders, in bytes per second.
+     */
+    private long getBytesPerSecond() {
+        long total = 0;
+        for (CameraRig.Camera camera : mRig.getCameras()) {
+            if (null != camera.mEncoderConfig) {
+                total += camera.mEncoderConfig.getBitRate() / 8;
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Stops a running recording while there is still room to finalize its files.
+     */
+    private RecordingStorage.Listener mStorageListener = new RecordingStorage.Listener() {
+
+        @Override
+        public void onStorageLow(final long remainingSeconds, long remainingBytes) {
+            final Activity activity = getActivity();
+            if (null == activity) {
+                return;
+            }
+            activity.runOnUiThread(new Runnable() {
+                @Override
+                public void run() {
+                    if (!mIsRecordingVideo || null == mRig) {
+                        return;
+                    }
+                    Toast.makeText(activity, "Storage almost full, recording stopped",
+                            Toast.LENGTH_LONG).show();
+                    stopRecording();
+                }
+            });
+        }
+
+    };
+
+    /**
+     * Gets whether you should show UI with rationale for requesting permissions.
+     *
+     * @param permissions The permissions your app wants to request.
+     * @return Whether you can show permission rationale UI.
+     */
+    private boolean shouldShowRequestPermissionRationale(String[] permissions) {
+        for (String permission : permissions) {
+            if (FragmentCompat.shouldShowRequestPermissionRationale(this, permission)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Requests permissions needed for recording video.
+     */
+    private void requestVideoPermissions() {
+        if (shouldShowRequestPermissionRationale(VIDEO_PERMISSIONS)) {
+            new ConfirmationDialog().show(getChildFragmentManager(), FRAGMENT_DIALOG);
+        } else {
+            FragmentCompat.requestPermissions(this, VIDEO_PERMISSIONS, REQUEST_VIDEO_PERMISSIONS);
         }
     }
 
@@ -531,43 +1318,42 @@ public class Camera2VideoFragment extends Fragment
     }
 
     /**
-     * Tries to open a {@link CameraDevice}. The result is listened by `mStateCallback`.
+     * Resolves the streams, then opens every camera of {@link #mRig} and prepares their encoders
+     * at the same time. The results are listened by `mRigCallback`.
      */
-    @SuppressWarnings("MissingPermission")
-    private void openCameras(int width, int height) {
+    private void openCameras() {
         if (!hasPermissionsGranted(VIDEO_PERMISSIONS)) {
             requestVideoPermissions();
             return;
         }
         final Activity activity = getActivity();
-        if (null == activity || activity.isFinishing()) {
+        if (null == activity || activity.isFinishing() || null == mRig) {
             return;
         }
-        CameraManager manager = (CameraManager) activity.getSystemService(Context.CAMERA_SERVICE);
+        for (CameraRig.Camera camera : mRig.getCameras()) {
+            if (null != camera.mEncoderWarmUp) {
+                // Its encoder outlived the last pause and is not released yet
+                Log.d(TAG, camera + " still releases its encoder, opening later");
+                mTextureView.postDelayed(mOpenCamerasLater, REOPEN_DELAY_MS);
+                return;
+            }
+        }
         try {
-            Log.d(TAG, "tryAcquire");
-            if (!mCameraOpenCloseLockColor.tryAcquire(2500, TimeUnit.MILLISECONDS)) {
-                throw new RuntimeException("Time out waiting to lock color camera opening.");
-            }
-//            String cameraId = manager.getCameraIdList()[0];
-             String[] cameraIds = manager.getCameraIdList();
-
-            String cameraId = String.valueOf(COLOR_ID);
-            String cameraIdMono = String.valueOf(MONO_ID);
-
-            // Choose the sizes for camera preview and video recording
-            CameraCharacteristics characteristics = manager.getCameraCharacteristics(cameraId);
-            StreamConfigurationMap map = characteristics
-                    .get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
-            mSensorOrientation = characteristics.get(CameraCharacteristics.SENSOR_ORIENTATION);
-            if (map == null) {
-                throw new RuntimeException("Cannot get available preview/video sizes");
-            }
-            mVideoSize = chooseVideoSize(map.getOutputSizes(MediaRecorder.class));
-//            mVideoSize = map.getOutputSizes(MediaRecorder.class)[0];
-//            mVideoSize = map.getHighResolutionOutputSizes(MediaRecorder.OutputFormat.MPEG_4)[0];
-            mPreviewSize = chooseOptimalSize(map.getOutputSizes(SurfaceTexture.class),
-                    width, height, mVideoSize);
+            mSensorOrientation = mRig.get(CameraRig.Role.COLOR).mSnapshot.getSensorOrientation();
+            // The preview covers the whole display, so the display size stands in for the view
+            // that may not be laid out yet
+            Point display = new Point();
+            activity.getWindowManager().getDefaultDisplay().getSize(display);
+            if (!resolveStreams(Math.max(display.x, display.y),
+                    Math.min(display.x, display.y))) {
+                ErrorDialog.newInstance(getString(R.string.camera_error))
+                        .show(getChildFragmentManager(), FRAGMENT_DIALOG);
+                return;
+            }
+            if (USE_HIGH_SPEED) {
+                chooseHighSpeed();
+            }
+            setUpImageReader();
 
             int orientation = getResources().getConfiguration().orientation;
             if (orientation == Configuration.ORIENTATION_LANDSCAPE) {
@@ -575,13 +1361,30 @@ public class Camera2VideoFragment extends Fragment
             } else {
                 mTextureView.setAspectRatio(mPreviewSize.getHeight(), mPreviewSize.getWidth());
             }
-            configureTransform(width, height);
-            mMediaRecorders[COLOR_ID] = new MediaRecorder();
-            mMediaRecorders[MONO_ID] = new MediaRecorder();
-
-            manager.openCamera(cameraIdMono, mStateCallback, null);
+            // Created up front, so the encoders that warm up in parallel share it
+            getRecordingSession();
+            List<CompletableFuture<Void>> ready = new ArrayList<>();
+            for (CameraRig.Camera camera : mRig.getCameras()) {
+                camera.mEncoder = createEncoder(camera);
+                camera.mReadyToRecord = new CompletableFuture<>();
+                ready.add(camera.mReadyToRecord);
+            }
+            final long start = mRecordReadyStartNanos;
+            final boolean fromCache = mRig.isResolvedFromCache();
+            CompletableFuture.allOf(ready.toArray(new CompletableFuture[0])).thenRun(
+                    new Runnable() {
+                        @Override
+                        public void run() {
+                            Log.i(TAG, "Record-ready " + (System.nanoTime() - start) / 1000000
+                                    + " ms after resume, cameras "
+                                    + (fromCache ? "from the cache" : "queried"));
+                        }
+                    });
 
-            manager.openCamera(cameraId, mStateCallback, null);
+            mRig.openAll(mRigCallback);
+            for (CameraRig.Camera camera : mRig.getCameras()) {
+                warmUpEncoder(camera);
+            }
 
         } catch (CameraAccessException e) {
             Toast.makeText(activity, "Cannot access the camera.", Toast.LENGTH_SHORT).show();
@@ -591,79 +1394,300 @@ public class Camera2VideoFragment extends Fragment
             // device this code runs.
             ErrorDialog.newInstance(getString(R.string.camera_error))
                     .show(getChildFragmentManager(), FRAGMENT_DIALOG);
-        } catch (InterruptedException e) {
-            throw new RuntimeException("Interrupted while trying to lock camera opening.");
         }
     }
 
-    private void closeCamera(int id) {
-        try {
-            if (id == COLOR_ID)
-                mCameraOpenCloseLockColor.acquire();
-            else
-                mCameraOpenCloseLockMono.acquire();
+    /**
+     * Chooses the sizes of the preview, recorder and analysis streams so that both cameras keep
+     * up with the frame rate of the record profile while running all of them.
+     *
+     * @return Whether such sizes exist
+     */
+    private boolean resolveStreams(int width, int height) {
+        CaptureProfile record = mProfiles.get(CaptureProfile.Mode.RECORD);
+        StreamConfigResolver.Request request = new StreamConfigResolver.Request(
+                record.getMaxFps(), record.getSize(), width, height);
+        for (CameraRig.Camera camera : mRig.getCameras()) {
+            Log.d(TAG, "Stream profile of " + camera + ":\n"
+                    + camera.mSnapshot.getStreams().toProfile());
+            request.addCamera(camera.mSnapshot.getStreams(), getStreamTargets(camera));
+        }
+        StreamConfigResolver.Resolution resolution = StreamConfigResolver.resolve(request);
+        for (String rejection : resolution.getRejections()) {
+            Log.d(TAG, "Stream configuration: " + rejection);
+        }
+        if (!resolution.isResolved()) {
+            Log.e(TAG, "No stream configuration sustains " + record.getMaxFps() + " fps");
+            return false;
+        }
+        Log.i(TAG, "Stream configuration: " + resolution);
+        String colorId = mRig.get(CameraRig.Role.COLOR).mId;
+        mVideoSize = resolution.getSize(colorId, StreamCapabilities.Target.RECORDER);
+        mPreviewSize = resolution.getSize(colorId, StreamCapabilities.Target.PREVIEW);
+        CameraRig.Camera mono = mRig.get(CameraRig.Role.MONO);
+        mAnalysisSize = null == mono ? null
+                : resolution.getSize(mono.mId, StreamCapabilities.Target.ANALYSIS);
+        return true;
+    }
 
-            closePreviewSession(id);
-            if (null != mCameraDevices[id]) {
-                mCameraDevices[id].close();
-                mCameraDevices[id] = null;
+    /**
+     * Moves the cameras that support it to a constrained high-speed session. The color camera
+     * then previews at the high-speed size.
+     */
+    private void chooseHighSpeed() {
+        for (CameraRig.Camera camera : mRig.getCameras()) {
+            HighSpeedSelector.Selection selection = HighSpeedSelector.choose(
+                    camera.mSnapshot.getStreams(), getStreamTargets(camera),
+                    HIGH_SPEED_FRAME_RATE, mProfiles.get(CaptureProfile.Mode.RECORD).getSize());
+            Log.i(TAG, camera + " records at " + selection);
+            camera.mHighSpeed = selection.isHighSpeed() ? selection : null;
+            if (selection.isHighSpeed() && camera.getRole() == CameraRig.Role.COLOR) {
+                mPreviewSize = selection.getSize();
+                mVideoSize = selection.getSize();
             }
-            if (null != mMediaRecorders[id]) {
-                mMediaRecorders[id].release();
-                mMediaRecorders[id] = null;
+        }
+    }
+
+    /**
+     * Returns the streams {@code camera} runs at the same time.
+     */
+    private static Set<StreamCapabilities.Target> getStreamTargets(CameraRig.Camera camera) {
+        switch (camera.getRole()) {
+            case COLOR:
+                return EnumSet.of(StreamCapabilities.Target.PREVIEW,
+                        StreamCapabilities.Target.RECORDER);
+            case MONO:
+                return EnumSet.of(StreamCapabilities.Target.RECORDER,
+                        StreamCapabilities.Target.ANALYSIS);
+            default:
+                return EnumSet.of(StreamCapabilities.Target.RECORDER);
+        }
+    }
+
+    /**
+     * Creates the reader that feeds the mono frames of {@link #mAnalysisSize} into
+     * {@link #mFramePipeline}.
+     */
+    private void setUpImageReader() {
+        CameraRig.Camera mono = mRig.get(CameraRig.Role.MONO);
+        final FramePipeline pipeline = mFramePipeline;
+        if (null == mono || null == pipeline || null == mAnalysisSize) {
+            return;
+        }
+        int format = mono.mSnapshot.getStreams().getAnalysisFormat();
+        if (null != mImageReader) {
+            if (mImageReader.getWidth() == mAnalysisSize.getWidth()
+                    && mImageReader.getHeight() == mAnalysisSize.getHeight()
+                    && mImageReader.getImageFormat() == format) {
+                return;
             }
+            mImageReader.close();
+        }
+        Log.d(TAG, mono + " analyzes " + mAnalysisSize + " " + LumaFormat.getName(format)
+                + ", " + LumaFormat.getFrameBytes(format, mAnalysisSize.getWidth(),
+                mAnalysisSize.getHeight()) / 1024 + " KiB per frame");
+        mImageReader = ImageReader.newInstance(mAnalysisSize.getWidth(),
+                mAnalysisSize.getHeight(), format, MONO_MAX_IMAGES);
+        // The pipeline holds no more frames than the pool has buffers
+        final FrameBufferPool pool = USE_FRAME_BUFFER_POOL ? new FrameBufferPool(
+                mAnalysisSize.getWidth() * mAnalysisSize.getHeight(), MONO_MAX_IMAGES - 2,
+                FRAME_BUFFER_LEAK_NS) : null;
+        mFramePool = pool;
+        mImageReader.setOnImageAvailableListener(
+                new ImageReader.OnImageAvailableListener() {
+                    @Override
+                    public void onImageAvailable(ImageReader reader) {
+                        Image image = reader.acquireNextImage();
+                        if (null == image) {
+                            return;
+                        }
+                        if (null == pool) {
+                            pipeline.submit(toFrame(image));
+                            return;
+                        }
+                        FrameBufferPool.Buffer buffer = pool.acquire();
+                        if (null == buffer) {
+                            // The pipeline is full and would reject the frame anyway
+                            image.close();
+                            String leaks = pool.describeLeaks();
+                            if (!leaks.isEmpty()) {
+                                Log.w(TAG, "Frame buffers leaked:\n" + leaks);
+                            }
+                            return;
+                        }
+                        Image.Plane luma = image.getPlanes()[0];
+                        buffer.copyPlane(luma.getBuffer(), luma.getRowStride(),
+                                luma.getPixelStride(), image.getWidth(), image.getHeight());
+                        long timestamp = image.getTimestamp();
+                        image.close();
+                        pipeline.submit(toFrame(buffer, timestamp));
+                    }
+                }, mono.mThreads.getFrameHandler());
+    }
+
+    /**
+     * Closes the device of {@code camera} and releases everything that belongs to it. Called by
+     * its {@link CameraStateMachine} on the thread that closed it.
+     */
+    private void closeCamera(final CameraRig.Camera camera) {
+        final CompletableFuture<Void> warmUp = camera.mEncoderWarmUp;
+        // Most warm-ups are done by the time a camera closes
+        boolean warmedUp = null == warmUp || awaitWarmUp(camera, warmUp);
+        closePreviewSession(camera);
+        camera.mSessionPending = false;
+        if (null != camera.mDevice) {
+            camera.mDevice.close();
+            camera.mDevice = null;
+        }
+        camera.mPreviewRequest = null;
+        camera.mRecordRequest = null;
+        camera.mRecordTargets = null;
+        camera.mPreRolling = false;
+        camera.mPreRoll = null;
+        final boolean recording = mIsRecordingVideo;
+        if (warmedUp) {
+            releaseEncoder(camera, recording);
+            return;
+        }
+        // The warm-up still uses the encoder, it releases it on its own thread once it is done
+        warmUp.whenComplete(new BiConsumer<Void, Throwable>() {
+            @Override
+            public void accept(Void result, Throwable failure) {
+                releaseEncoder(camera, recording);
+                Log.d(TAG, camera + " released its encoder after the warm-up");
+            }
+        });
+    }
+
+    /**
+     * Waits for at most {@link #WARM_UP_CLOSE_TIMEOUT_MS} for {@code warmUp} to be done.
+     *
+     * @return Whether it is done
+     */
+    private static boolean awaitWarmUp(CameraRig.Camera camera, CompletableFuture<Void> warmUp) {
+        try {
+            warmUp.get(WARM_UP_CLOSE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException e) {
+            // Already logged by the warm-up
+        } catch (TimeoutException e) {
+            Log.w(TAG, camera + " still prepares its encoder after " + WARM_UP_CLOSE_TIMEOUT_MS
+                    + " ms, closing without waiting for it");
+            return false;
         } catch (InterruptedException e) {
-            throw new RuntimeException("Interrupted while trying to lock camera closing.");
-        } finally {
-            if (id == COLOR_ID)
-                mCameraOpenCloseLockColor.release();
-            else
-                mCameraOpenCloseLockMono.release();        }
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Releases the encoder of {@code camera} and what its warm-up prepared for it, once that is
+     * done. {@link #openCameras()} does not reopen the camera until then.
+     *
+     * @param recording Whether a recording was running when the camera closed
+     */
+    private void releaseEncoder(CameraRig.Camera camera, boolean recording) {
+        if (null != camera.mEncoder) {
+            camera.mEncoder.release();
+            camera.mEncoder = null;
+        }
+        if (camera.mEncoderPrepared && !recording && null != camera.mOutput) {
+            // The encoder was armed for a recording that never started
+            new File(camera.mOutput.getSegmentPath(0)).delete();
+            camera.mOutput = null;
+        }
+        camera.mEncoderPrepared = false;
+        if (null != camera.mPersistentSurface) {
+            camera.mPersistentSurface.release();
+            camera.mPersistentSurface = null;
+        }
+        camera.mEncoderWarmUp = null;
+    }
+
+    /**
+     * Returns the surfaces {@code camera} streams to besides the encoder: the preview for the
+     * color camera and the frame pipeline for the mono camera.
+     */
+    private List<Surface> getStreamSurfaces(CameraRig.Camera camera) {
+        List<Surface> surfaces = new ArrayList<>();
+        if (camera.getRole() == CameraRig.Role.COLOR) {
+            surfaces.add(mPreviewSurface);
+        } else if (camera.getRole() == CameraRig.Role.MONO && null != mImageReader) {
+            surfaces.add(mImageReader.getSurface());
+        }
+        return surfaces;
     }
 
     /**
      * Start the camera preview.
      */
-    private void startPreview(final int id) {
-        if (null == mCameraDevices[id] || !mTextureView.isAvailable() || null == mPreviewSize) {
+    private void startPreview(final CameraRig.Camera camera) {
+        if (null == camera.mDevice || !mTextureView.isAvailable() || null == mPreviewSize) {
             return;
         }
         try {
-            mPreviewBuilders[id] = mCameraDevices[id].createCaptureRequest(CameraDevice.TEMPLATE_PREVIEW);
-            List<Surface> outs = new ArrayList<>();
-            if (id == COLOR_ID) {
-                closePreviewSession(id);
+            if (camera.getRole() == CameraRig.Role.COLOR) {
+                closePreviewSession(camera);
                 SurfaceTexture texture = mTextureView.getSurfaceTexture();
                 assert texture != null;
                 texture.setDefaultBufferSize(mPreviewSize.getWidth(), mPreviewSize.getHeight());
 
-                Surface previewSurface = new Surface(texture);
-                mPreviewBuilders[id].addTarget(previewSurface);
-                outs = Collections.singletonList(previewSurface);
+                mPreviewSurface = new Surface(texture);
             }
-            else {
-                mPreviewBuilders[id].addTarget(mImageReader.getSurface());
-                outs = Collections.singletonList(mImageReader.getSurface());
-
+            List<Surface> outs = getStreamSurfaces(camera);
+            if (outs.isEmpty()) {
+                // Nothing to stream to until the camera records
+                return;
+            }
+            // Both requests of the session are built once here, so switching between preview
+            // and recording only changes the repeating request
+            camera.mPreviewRequest = buildRequest(camera, getIdleProfile(camera), outs, null,
+                    false);
+            camera.mRecordRequest = null;
+            camera.mRecordTargets = null;
+            if (PERSISTENT_RECORDING_SESSION) {
+                // The encoder input is part of the session from the start, but only the record
+                // request targets it. It was created by the warm-up.
+                outs.add(camera.mPersistentSurface);
+                camera.mRecordTargets = new ArrayList<>(outs);
             }
-            mCameraDevices[id].createCaptureSession(outs,
+            camera.mSessionPending = true;
+            createCaptureSession(camera, outs,
                     new CameraCaptureSession.StateCallback() {
 
                         @Override
                         public void onConfigured(@NonNull CameraCaptureSession session) {
-                            mPreviewSessions[id] = session;
+                            camera.mSessionPending = false;
+                            camera.mSession = session;
+                            camera.mTelemetry.onSessionStarted();
 //                            linkBayerMono(id);
-                            updatePreview(id);
+                            updatePreview(camera);
+                            if (PERSISTENT_RECORDING_SESSION) {
+                                buildRecordRequest(camera);
+                                if (USE_PRE_ROLL) {
+                                    startPreRoll(camera);
+                                }
+                            }
+                            reportReadyToRecord(camera);
+                            if (PERSISTENT_RECORDING_SESSION && camera.mState.getState()
+                                    == CameraStateMachine.State.STOPPING) {
+                                // The session was rebuilt for the next recording, see
+                                // rearmEncoder
+                                camera.mState.onStopped();
+                            } else {
+                                camera.mState.onPreviewStarted();
+                            }
                         }
 
                         @Override
                         public void onConfigureFailed(@NonNull CameraCaptureSession session) {
+                            camera.mSessionPending = false;
                             Activity activity = getActivity();
                             if (null != activity) {
                                 Toast.makeText(activity, "Failed " + session.getDevice(), Toast.LENGTH_SHORT).show();
                             }
                         }
-                    }, mBackgroundHandlers[id]);
+                    });
 
         } catch (CameraAccessException e) {
             e.printStackTrace();
@@ -671,25 +1695,255 @@ public class Camera2VideoFragment extends Fragment
     }
 
     /**
-     * Update the camera preview. {@link #startPreview()} needs to be called in advance.
+     * Creates a session of {@code camera} on {@code outputs}, a constrained high-speed one if the
+     * camera runs at high speed. {@code callback} is called on the camera thread.
+     */
+    private void createCaptureSession(CameraRig.Camera camera, List<Surface> outputs,
+                                      CameraCaptureSession.StateCallback callback)
+            throws CameraAccessException {
+        if (null != camera.mHighSpeed) {
+            camera.mDevice.createConstrainedHighSpeedCaptureSession(outputs, callback,
+                    camera.mHandler);
+        } else {
+            camera.mDevice.createCaptureSession(outputs, callback, camera.mHandler);
+        }
+    }
+
+    /**
+     * Repeats {@code request} on the session of {@code camera}. A high-speed session repeats it
+     * as the burst the camera needs to reach its frame rate.
      */
-    private void updatePreview(int id) {
-        if (null == mCameraDevices[id]) {
+    private void setRepeatingRequest(CameraRig.Camera camera, CaptureRequest request)
+            throws CameraAccessException {
+        if (camera.mSession instanceof CameraConstrainedHighSpeedCaptureSession) {
+            CameraConstrainedHighSpeedCaptureSession session =
+                    (CameraConstrainedHighSpeedCaptureSession) camera.mSession;
+            session.setRepeatingBurst(session.createHighSpeedRequestList(request),
+                    createCaptureCallback(camera), camera.mHandler);
+        } else {
+            camera.mSession.setRepeatingRequest(request, createCaptureCallback(camera),
+                    camera.mHandler);
+        }
+    }
+
+    /**
+     * Sets the frame rate range of a high-speed camera on {@code builder}, the fixed one if the
+     * request feeds the encoder.
+     */
+    private static void setUpHighSpeedRange(CameraRig.Camera camera,
+                                            CaptureRequest.Builder builder, boolean recording) {
+        if (null == camera.mHighSpeed) {
+            return;
+        }
+        StreamCapabilities.HighSpeedConfig config = recording
+                ? camera.mHighSpeed.getRecordConfig() : camera.mHighSpeed.getPreviewConfig();
+        builder.set(CaptureRequest.CONTROL_AE_TARGET_FPS_RANGE,
+                Range.create(config.getMinFps(), config.getMaxFps()));
+    }
+
+    /**
+     * Limits a normal-speed request that feeds the encoder of {@code camera} to the frame rate of
+     * its quality step, if the governor has lowered it below the one of the record profile.
+     */
+    private void setUpGovernedFrameRate(CameraRig.Camera camera, CaptureRequest.Builder builder) {
+        if (null != camera.mHighSpeed || null == camera.mEncoderConfig
+                || camera.mEncoderConfig.getFrameRate()
+                >= mProfiles.get(CaptureProfile.Mode.RECORD).getMaxFps()) {
+            return;
+        }
+        Range<Integer> range =
+                camera.mSnapshot.chooseAeFpsRange(camera.mEncoderConfig.getFrameRate());
+        if (null != range) {
+            builder.set(CaptureRequest.CONTROL_AE_TARGET_FPS_RANGE, range);
+        }
+    }
+
+    /**
+     * Starts the preview of {@code camera} once everything it streams to is ready: the device is
+     * open, the encoder has been warmed up in persistent mode, and the color camera has its
+     * texture. Called on the camera thread whenever one of them becomes ready.
+     */
+    private void startPreviewWhenReady(CameraRig.Camera camera) {
+        if (null != camera.mSession || camera.mSessionPending || null == camera.mDevice
+                || (PERSISTENT_RECORDING_SESSION && !camera.mEncoderPrepared)
+                || (camera.getRole() == CameraRig.Role.COLOR && !mTextureView.isAvailable())) {
             return;
         }
+        startPreview(camera);
+    }
+
+    /**
+     * Prepares the encoder of {@code camera} in the background, then lets the camera thread
+     * start the preview if the device is already open.
+     */
+    private void warmUpEncoder(final CameraRig.Camera camera) {
+        camera.mEncoderWarmUp = CompletableFuture.runAsync(new Runnable() {
+            @Override
+            public void run() {
+                long start = System.nanoTime();
+                try {
+                    if (PERSISTENT_RECORDING_SESSION && null == camera.mPersistentSurface) {
+                        camera.mPersistentSurface = MediaCodec.createPersistentInputSurface();
+                    }
+                    setUpEncoder(camera);
+                } catch (IOException e) {
+                    Log.e(TAG, "Could not prepare the encoder of " + camera, e);
+                    return;
+                }
+                Log.d(TAG, camera + " prepared its encoder in "
+                        + (System.nanoTime() - start) / 1000000 + " ms");
+                Handler handler = camera.mHandler;
+                if (null != handler) {
+                    handler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            startPreviewWhenReady(camera);
+                            reportReadyToRecord(camera);
+                        }
+                    });
+                }
+            }
+        }, mWarmUpExecutor);
+    }
+
+    /**
+     * Completes {@link CameraRig.Camera#mReadyToRecord} if {@code camera} could start recording
+     * right now. Called on the camera thread.
+     */
+    private void reportReadyToRecord(CameraRig.Camera camera) {
+        if (null != camera.mReadyToRecord && null != camera.mSession && camera.mEncoderPrepared
+                && (!PERSISTENT_RECORDING_SESSION || null != camera.mRecordRequest)) {
+            camera.mReadyToRecord.complete(null);
+        }
+    }
+
+    /**
+     * Builds a request of {@code camera} from {@code profile} that targets {@code targets}.
+     *
+     * @param tag       The tag of the request, or null
+     * @param recording Whether the request feeds the encoder
+     */
+    private CaptureRequest buildRequest(CameraRig.Camera camera, CaptureProfile profile,
+                                        List<Surface> targets, Object tag, boolean recording)
+            throws CameraAccessException {
+        CaptureRequest.Builder builder = camera.mDevice.createCaptureRequest(profile.getTemplate());
+        for (Surface surface : targets) {
+            builder.addTarget(surface);
+        }
+        builder.setTag(tag);
+        profile.applyTo(builder);
+        Range<Integer> range = profile.getFpsRange();
+        if (null != range && camera.mSnapshot.hasAeFpsRange(range)) {
+            builder.set(CaptureRequest.CONTROL_AE_TARGET_FPS_RANGE, range);
+        }
+        setUpHighSpeedRange(camera, builder, recording);
+        if (recording) {
+            setUpGovernedFrameRate(camera, builder);
+        }
+        return builder.build();
+    }
+
+    /**
+     * Builds the request that feeds both the stream surfaces and the encoder input of
+     * {@code camera}, {@link CameraRig.Camera#mRecordTargets}. It is kept for the lifetime of the
+     * session.
+     */
+    private void buildRecordRequest(CameraRig.Camera camera) {
         try {
-            setUpCaptureRequestBuilder(mPreviewBuilders[id]);
-            HandlerThread thread = new HandlerThread("CameraPreview " + String.valueOf(id));
-            thread.start();
-            mPreviewSessions[id].setRepeatingRequest(mPreviewBuilders[id].build(), null, mBackgroundHandlers[id]);
+            camera.mRecordRequest = buildRequest(camera,
+                    mProfiles.get(CaptureProfile.Mode.RECORD), camera.mRecordTargets,
+                    RECORD_REQUEST_TAG, true);
         } catch (CameraAccessException e) {
             e.printStackTrace();
         }
     }
 
-    private void setUpCaptureRequestBuilder(CaptureRequest.Builder builder) {
-        builder.set(CaptureRequest.CONTROL_MODE, CameraMetadata.CONTROL_MODE_AUTO);
-        builder.set(CaptureRequest.CONTROL_AF_MODE, CaptureRequest.CONTROL_AF_MODE_AUTO);
+    /**
+     * Update the camera preview. {@link #startPreview(CameraRig.Camera)} needs to be called in
+     * advance.
+     */
+    private void updatePreview(CameraRig.Camera camera) {
+        if (null == camera.mDevice || null == camera.mPreviewRequest) {
+            return;
+        }
+        try {
+            setRepeatingRequest(camera, camera.mPreviewRequest);
+        } catch (CameraAccessException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Returns the {@link CameraCaptureSession.CaptureCallback} for the repeating requests of
+     * {@code camera}. It feeds the camera's {@link CaptureTelemetry} and reports the sensor
+     * timestamp of every started capture to {@link #mFramePairer}. The callbacks only take
+     * primitives from the framework, so nothing is allocated per frame.
+     */
+    private CameraCaptureSession.CaptureCallback createCaptureCallback(
+            final CameraRig.Camera camera) {
+        if (null != camera.mCaptureCallback) {
+            return camera.mCaptureCallback;
+        }
+        camera.mCaptureCallback = new CameraCaptureSession.CaptureCallback() {
+
+            @Override
+            public void onCaptureStarted(@NonNull CameraCaptureSession session,
+                                         @NonNull CaptureRequest request,
+                                         long timestamp, long frameNumber) {
+                camera.mTelemetry.onCaptureStarted(timestamp, frameNumber);
+                if (camera.getRole() == CameraRig.Role.COLOR) {
+                    long resumeNanos = mResumeNanos.get();
+                    if (resumeNanos != 0 && mResumeNanos.compareAndSet(resumeNanos, 0)) {
+                        Log.i(TAG, "First preview frame " + (System.nanoTime() - resumeNanos)
+                                / 1000000 + " ms after resume, cameras "
+                                + (mRig.isResolvedFromCache() ? "from the cache" : "queried"));
+                    }
+                    mFramePairer.onColorFrame(timestamp, frameNumber);
+                } else if (camera.getRole() == CameraRig.Role.MONO) {
+                    mFramePairer.onMonoFrame(timestamp, frameNumber);
+                    Y8RingFile ring = mMonoRing;
+                    if (null != ring) {
+                        ring.onCaptureStarted(timestamp, frameNumber);
+                    }
+                }
+            }
+
+            @Override
+            public void onCaptureCompleted(@NonNull CameraCaptureSession session,
+                                           @NonNull CaptureRequest request,
+                                           @NonNull TotalCaptureResult result) {
+                if (request.getTag() == RECORD_REQUEST_TAG) {
+                    camera.mRecordedFrames.incrementAndGet();
+                    long startNanos = camera.mRecordStartNanos.get();
+                    if (startNanos != 0 && camera.mRecordStartNanos.compareAndSet(startNanos, 0)) {
+                        Log.i(TAG, camera + " captured its first recorded frame "
+                                + (System.nanoTime() - startNanos) / 1000 + " us after start");
+                    }
+                } else {
+                    long stopNanos = camera.mStopNanos.get();
+                    if (stopNanos != 0 && camera.mStopNanos.compareAndSet(stopNanos, 0)) {
+                        Log.i(TAG, camera + " resumed its preview "
+                                + (System.nanoTime() - stopNanos) / 1000 + " us after stop");
+                    }
+                }
+            }
+
+            @Override
+            public void onCaptureFailed(@NonNull CameraCaptureSession session,
+                                        @NonNull CaptureRequest request,
+                                        @NonNull CaptureFailure failure) {
+                camera.mTelemetry.onCaptureFailed();
+            }
+
+            @Override
+            public void onCaptureBufferLost(@NonNull CameraCaptureSession session,
+                                            @NonNull CaptureRequest request,
+                                            @NonNull Surface target, long frameNumber) {
+                camera.mTelemetry.onCaptureBufferLost();
+            }
+
+        };
+        return camera.mCaptureCallback;
     }
 
     /**
@@ -723,25 +1977,108 @@ public class Camera2VideoFragment extends Fragment
         mTextureView.setTransform(matrix);
     }
 
-    private void setUpMediaRecorder(int id) throws IOException {
+    /**
+     * Creates the encoder of {@code camera} along with its default settings.
+     */
+    private VideoEncoderEngine createEncoder(final CameraRig.Camera camera) {
+        if (null == camera.mEncoderConfig) {
+            Size size = null != camera.mHighSpeed ? camera.mHighSpeed.getSize() : mVideoSize;
+            CaptureProfile profile = mProfiles.get(CaptureProfile.Mode.RECORD);
+            int frameRate = null != camera.mHighSpeed
+                    ? camera.mHighSpeed.getFrameRate() : profile.getMaxFps();
+            // Scale the bitrate with the pixels per second
+            long bitRate = (long) profile.getBitRate() * size.getWidth() * size.getHeight()
+                    * frameRate / ((long) profile.getSize().getWidth()
+                    * profile.getSize().getHeight() * profile.getMaxFps());
+            camera.mEncoderConfig = new EncoderConfig(profile.getCodec(),
+                    EncoderConfig.BitrateMode.VBR, size.getWidth(), size.getHeight(),
+                    (int) Math.min(bitRate, profile.getBitRate()), frameRate, 1,
+                    SEGMENT_DURATION_SECONDS, SEGMENT_SIZE_BYTES);
+            camera.mQualityLadder = createQualityLadder(camera, camera.mEncoderConfig);
+            camera.mQualityStep = 0;
+        }
+        VideoEncoderEngine encoder = USE_MEDIA_CODEC_ENGINE
+                ? new MediaCodecEngine("Encoder " + camera.mId) : new MediaRecorderEngine();
+        encoder.setListener(new VideoEncoderEngine.Listener() {
+            @Override
+            public void onFrameEncoded(long presentationTimeUs, int size, boolean keyFrame) {
+                camera.mEncodedFrames.incrementAndGet();
+                long startNanos = camera.mEncodeStartNanos.get();
+                if (startNanos != 0 && camera.mEncodeStartNanos.compareAndSet(startNanos, 0)) {
+                    Log.i(TAG, camera + " encoded its first frame "
+                            + (System.nanoTime() - startNanos) / 1000 + " us after start");
+                }
+            }
+
+            @Override
+            public void onSegmentFinished(int sequence, String path) {
+                Log.d(TAG, camera + " finished segment " + sequence + ": " + path);
+            }
+
+            @Override
+            public void onError(Exception e) {
+                Log.e(TAG, "Encoder of " + camera + " failed", e);
+            }
+        });
+        return encoder;
+    }
+
+    /**
+     * Returns the quality steps of {@code camera}, starting at {@code config}. The cheapest step
+     * records at the largest supported size with at most half the pixels, half the frame rate
+     * and half the bitrate those scale to. A high-speed camera keeps its size and frame rate.
+     */
+    private static List<RecordingGovernor.Step> createQualityLadder(CameraRig.Camera camera,
+                                                                   EncoderConfig config) {
+        RecordingGovernor.Step best = new RecordingGovernor.Step(config.getWidth(),
+                config.getHeight(), config.getBitRate(), config.getFrameRate());
+        if (null != camera.mHighSpeed) {
+            return RecordingGovernor.ladder(best, new RecordingGovernor.Step(config.getWidth(),
+                    config.getHeight(), config.getBitRate() / 4, config.getFrameRate()));
+        }
+        long pixels = (long) config.getWidth() * config.getHeight();
+        Size cheapest = new Size(config.getWidth(), config.getHeight());
+        long cheapestPixels = 0;
+        for (StreamCapabilities.Output output : camera.mSnapshot.getStreams()
+                .getOutputs(StreamCapabilities.Target.RECORDER)) {
+            Size size = output.getSize();
+            long outputPixels = (long) size.getWidth() * size.getHeight();
+            // Same aspect ratio, at most half the pixels
+            if ((long) size.getWidth() * config.getHeight()
+                    == (long) size.getHeight() * config.getWidth()
+                    && 2 * outputPixels <= pixels && outputPixels > cheapestPixels) {
+                cheapest = size;
+                cheapestPixels = outputPixels;
+            }
+        }
+        int frameRate = Math.max(1, config.getFrameRate() / 2);
+        long bitRate = (long) config.getBitRate() * cheapest.getWidth() * cheapest.getHeight()
+                * frameRate / (pixels * config.getFrameRate()) / 2;
+        return RecordingGovernor.ladder(best, new RecordingGovernor.Step(cheapest.getWidth(),
+                cheapest.getHeight(), (int) bitRate, frameRate));
+    }
+
+    private void setUpEncoder(CameraRig.Camera camera) throws IOException {
         final Activity activity = getActivity();
         if (null == activity) {
             return;
         }
 //        mMediaRecorder.setAudioSource(MediaRecorder.AudioSource.MIC);
-        mMediaRecorders[id].setVideoSource(MediaRecorder.VideoSource.SURFACE);
-        mMediaRecorders[id].setOutputFormat(MediaRecorder.OutputFormat.MPEG_4);
-        if (mNextVideoAbsolutePaths[id] == null || mNextVideoAbsolutePaths[id].isEmpty()) {
-            mNextVideoAbsolutePaths[id] = getVideoFilePath(getActivity(), id);
-        }
-        mMediaRecorders[id].setOutputFile(mNextVideoAbsolutePaths[id]);
-        mMediaRecorders[id].setVideoEncodingBitRate(25_000_000);
-        mMediaRecorders[id].setVideoSize(3840, 2160);
+        if (null == camera.mOutput) {
+            EncoderConfig config = camera.mEncoderConfig;
+            // Reserve a whole segment, or a minute of an unsegmented recording
+            long preallocate = config.isSegmented() ? config.getSegmentSizeLimitBytes()
+                    : 60L * config.getBitRate() / 8;
+            if (USE_MEDIA_CODEC_ENGINE && Build.VERSION.SDK_INT < Build.VERSION_CODES.O) {
+                // The muxer opens the file by its path there, which truncates it again
+                preallocate = 0;
+            }
+            camera.mOutput = getRecordingSession().newOutput(camera.mId, preallocate);
+        }
 //        mediaRecorder.setCaptureRate(10);
-//        mediaRecorder.setVideoFrameRate(10);
 //        mediaRecorder.setVideoSize(mVideoSize.getWidth(), mVideoSize.getHeight());
-//        mMediaRecorders[id].setVideoEncoder(MediaRecorder.VideoEncoder.HEVC);
-        mMediaRecorders[id].setVideoEncoder(MediaRecorder.VideoEncoder.H264);
+        camera.mEncoder.prepare(camera.mEncoderConfig, camera.mOutput,
+                PERSISTENT_RECORDING_SESSION ? camera.mPersistentSurface : null);
 
 //        mMediaRecorders[id].setAudioEncoder(MediaRecorder.AudioEncoder.AAC);
         int rotation = activity.getWindowManager().getDefaultDisplay().getRotation();
@@ -753,139 +2090,305 @@ public class Camera2VideoFragment extends Fragment
 //                mediaRecorder.setOrientationHint(INVERSE_ORIENTATIONS.get(rotation));
 //                break;
 //        }
-        mMediaRecorders[id].prepare();
+        camera.mEncoderPrepared = true;
     }
 
-    private String getVideoFilePath(Context context, int id) {
-        final File dir = context.getExternalFilesDir(null);
-        return (dir == null ? "" : (dir.getAbsolutePath() + "/"))
-                + System.currentTimeMillis() + String.format("_%02d", id) +  ".mp4";
+    /**
+     * Returns the session the next recording of every camera belongs to.
+     */
+    private synchronized RecordingSession getRecordingSession() {
+        if (null == mRecordingSession) {
+            mRecordingSession = new RecordingSession(mStorage);
+        }
+        return mRecordingSession;
     }
 
-    private void startRecordingOnRecorder(int id) {
-        mMediaRecorders[id].start();
+    private void startRecordingOnEncoder(CameraRig.Camera camera) {
+        camera.mEncodeStartNanos.set(System.nanoTime());
+        camera.mRecordedFrames.set(0);
+        camera.mEncodedFrames.set(0);
+        camera.mEncoder.start();
+        camera.mEncoderPrepared = false;
 
-//        startRecordingOnRecorder(id);
+//        startRecordingOnEncoder(id);
 
     }
-    private void startRecordingVideo(final int id) {
-        if (null == mCameraDevices[id] || !mTextureView.isAvailable() || null == mPreviewSize) {
+    private void startRecordingVideo(final CameraRig.Camera camera) {
+        if (null == mStartBarrier) {
+            // The start was cancelled meanwhile
+            camera.mState.onRecordingFailed();
             return;
         }
+        if (null == camera.mDevice || !mTextureView.isAvailable() || null == mPreviewSize) {
+            cancelStart();
+            return;
+        }
+        camera.mRecordStartNanos.set(System.nanoTime());
+        if (PERSISTENT_RECORDING_SESSION) {
+            startPersistentRecording(camera);
+            return;
+        }
+        final StartBarrier barrier = mStartBarrier;
         try {
-            closePreviewSession(id);
+            closePreviewSession(camera);
 
-            setUpMediaRecorder(id);
+            if (!camera.mEncoderPrepared) {
+                setUpEncoder(camera);
+            }
 //            setUpMediaRecorder(mMediaRecorderMono);
 
             List<Surface> surfaces = new ArrayList<>();
-            mPreviewBuilders[id] = mCameraDevices[id].createCaptureRequest(CameraDevice.TEMPLATE_RECORD);
-
-            if (id == COLOR_ID) {
+            if (camera.getRole() == CameraRig.Role.COLOR) {
                 SurfaceTexture texture = mTextureView.getSurfaceTexture();
                 assert texture != null;
                 texture.setDefaultBufferSize(mPreviewSize.getWidth(), mPreviewSize.getHeight());
                 // Set up Surface for the camera preview
                 Surface previewSurface = new Surface(texture);
                 surfaces.add(previewSurface);
-                mPreviewBuilders[id].addTarget(previewSurface);
 
             }
 
-            // Set up Surface for the MediaRecorder
-            Surface recorderSurface = mMediaRecorders[id].getSurface();
-            surfaces.add(recorderSurface);
-            mPreviewBuilders[id].addTarget(recorderSurface);
+            // Set up Surface for the encoder
+            surfaces.add(camera.mEncoder.getInputSurface());
+            camera.mRecordTargets = surfaces;
+            buildRecordRequest(camera);
 
             // Start a capture session
-            // Once the session starts, we can update the UI and start recording
-            mCameraDevices[id].createCaptureSession(surfaces, new CameraCaptureSession.StateCallback() {
+            // Once the session starts, the encoder starts along with those of the other cameras
+            createCaptureSession(camera, surfaces, new CameraCaptureSession.StateCallback() {
 
                 @Override
                 public void onConfigured(@NonNull CameraCaptureSession cameraCaptureSession) {
-                    mPreviewSessions[id] = cameraCaptureSession;
-                    if (id == COLOR_ID) {
-                        updatePreview(id);
-                        getActivity().runOnUiThread(new Runnable() {
-                            @Override
-                            public void run() {
-                                // UI
-                                mButtonVideo.setText(R.string.stop);
-                                mIsRecordingVideo = true;
-
-                                // Start recording
-                                startRecordingOnRecorder(id);
-//                                mMediaRecorders[id].start();
-                            }
-                        });
+                    camera.mSession = cameraCaptureSession;
+                    camera.mTelemetry.onSessionStarted();
+                    try {
+                        setRepeatingRequest(camera, camera.mRecordRequest);
+                    } catch (CameraAccessException e) {
+                        e.printStackTrace();
                     }
-                    else {
-                        updatePreview(id);
+                    barrier.arrive(camera.mId, new StartBarrier.Participant() {
+                        @Override
+                        public Executor getExecutor() {
+                            return camera.mThreads.getControlExecutor();
+                        }
 
-                        getActivity().runOnUiThread(new Runnable() {
-                            @Override
-                            public void run() {
-                                startRecordingOnRecorder(id);
-//                                mMediaRecorders[id].start();
-                            }
-                        });
-                    }
+                        @Override
+                        public void start() {
+                            startRecordingOnEncoder(camera);
+                        }
+                    });
                 }
 
                 @Override
                 public void onConfigureFailed(@NonNull CameraCaptureSession cameraCaptureSession) {
                     Activity activity = getActivity();
                     if (null != activity) {
+                        activity.runOnUiThread(new Runnable() {
+                            @Override
+                            public void run() {
+                                cancelStart();
+                            }
+                        });
                         Toast.makeText(activity, "Failed", Toast.LENGTH_SHORT).show();
                     }
                 }
-            }, mBackgroundHandlers[id]);
+            });
         } catch (CameraAccessException | IOException e) {
             e.printStackTrace();
+            cancelStart();
+        }
+
+    }
+
+    /**
+     * Starts recording on a session that already includes the encoder input, by starting the
+     * prepared encoder and switching the repeating request over to the record request. The
+     * session is already configured, so the camera is ready to start along with the others.
+     */
+    private void startPersistentRecording(final CameraRig.Camera camera) {
+        if (null == camera.mSession || null == camera.mRecordRequest
+                || !camera.mEncoderPrepared) {
+            Log.w(TAG, camera + " is not ready to record");
+            camera.mRecordStartNanos.set(0);
+            cancelStart();
+            return;
         }
+        mStartBarrier.arrive(camera.mId, new StartBarrier.Participant() {
+            @Override
+            public Executor getExecutor() {
+                return camera.mThreads.getControlExecutor();
+            }
 
+            @Override
+            public void start() throws CameraAccessException {
+                boolean preRolling = camera.mPreRolling;
+                camera.mPreRolling = false;
+                startRecordingOnEncoder(camera);
+                if (!preRolling) {
+                    setRepeatingRequest(camera, camera.mRecordRequest);
+                }
+            }
+        });
     }
 
-    private void closePreviewSession(int id) {
-        if (mPreviewSessions[id] != null) {
-            mPreviewSessions[id].close();
-            mPreviewSessions[id] = null;
+    /**
+     * Starts feeding the armed encoder of {@code camera} into its pre-roll buffer. The encoder
+     * runs from now on, and starting the recording only makes it write to the file.
+     */
+    private void startPreRoll(CameraRig.Camera camera) {
+        if (null == camera.mSession || null == camera.mRecordRequest
+                || !camera.mEncoderPrepared) {
+            return;
+        }
+        if (!camera.mPreRolling) {
+            if (null == camera.mPreRoll) {
+                EncoderConfig config = camera.mEncoderConfig;
+                // Twice the target bitrate leaves room for variable rate control
+                long capacity = 2L * config.getBitRate() / 8 * PRE_ROLL_SECONDS;
+                camera.mPreRoll = new PreRollBuffer((int) Math.min(capacity, Integer.MAX_VALUE),
+                        2 * config.getFrameRate() * PRE_ROLL_SECONDS,
+                        PRE_ROLL_SECONDS * 1_000_000L);
+            }
+            if (!camera.mEncoder.startPreRoll(camera.mPreRoll)) {
+                Log.w(TAG, "The encoder of " + camera + " does not support pre-roll");
+                camera.mPreRoll = null;
+                return;
+            }
+            camera.mPreRolling = true;
+            Log.d(TAG, camera + " pre-rolls into " + camera.mPreRoll.getCapacityBytes() / 1024
+                    + " KiB of direct memory");
+        }
+        try {
+            setRepeatingRequest(camera, camera.mRecordRequest);
+        } catch (CameraAccessException e) {
+            e.printStackTrace();
         }
     }
 
-    private void stopRecordingVideo(int id) {
-        // UI
-        if (id == COLOR_ID) {
-            mIsRecordingVideo = false;
-            mButtonVideo.setText(R.string.record);
+    private void closePreviewSession(CameraRig.Camera camera) {
+        if (camera.mSession != null) {
+            camera.mSession.close();
+            camera.mSession = null;
         }
-        // Stop recording
-        mMediaRecorders[id].stop();
+    }
 
-        Activity activity = getActivity();
-        if (null != activity) {
-            Toast.makeText(activity, "Video saved: " + mNextVideoAbsolutePaths[id],
-                    Toast.LENGTH_SHORT).show();
-            Log.d(TAG, "Video saved: " + mNextVideoAbsolutePaths[id]);
+    /**
+     * Stops the recording of {@code camera}. Called on the UI thread. The camera goes back to
+     * preview on its own thread, and {@link #mFinalizer} then stops the encoder and finalizes its
+     * files. Once they are complete, the encoder is armed for the next recording and the camera
+     * reports that it has stopped.
+     */
+    private void stopRecordingVideo(final CameraRig.Camera camera) {
+        final RecordingFinalizer finalizer = mFinalizer;
+        final VideoEncoderEngine.Output output = camera.mOutput;
+        if (null == camera.mEncoder || camera.mEncoderPrepared || null == output
+                || null == finalizer || null == camera.mThreads) {
+            // This camera never started recording
+            camera.mState.onStopped();
+            return;
         }
-        mNextVideoAbsolutePaths[id] = null;
-        if (id == COLOR_ID) {
-            startPreview(id);
+        camera.mOutput = null;
+        try {
+            camera.mThreads.getControlExecutor().execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (PERSISTENT_RECORDING_SESSION) {
+                        // Stop feeding the encoder before it is stopped
+                        updatePreview(camera);
+                    } else if (camera.getRole() == CameraRig.Role.COLOR) {
+                        startPreview(camera);
+                    }
+                    try {
+                        finalizer.stop(camera.mId, camera.mEncoder, output,
+                                new RecordingFinalizer.Listener() {
+                                    @Override
+                                    public void onFinalized(
+                                            RecordingFinalizer.Recording recording) {
+                                        onRecordingFinalized(camera, recording);
+                                    }
+                                });
+                    } catch (RejectedExecutionException e) {
+                        // Pausing, finish the file before the encoder is released
+                        camera.mEncoder.stop();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            Log.w(TAG, camera + " closed before its recording was stopped");
         }
     }
 
     /**
-     * Compares two {@code Size}s based on their areas.
+     * Reports the finalized files of {@code camera} and arms its encoder for the next recording.
+     * Called on a finalizer thread.
      */
-    static class CompareSizesByArea implements Comparator<Size> {
-
-        @Override
-        public int compare(Size lhs, Size rhs) {
-            // We cast here to ensure the multiplications won't overflow
-            return Long.signum((long) lhs.getWidth() * lhs.getHeight() -
-                    (long) rhs.getWidth() * rhs.getHeight());
+    private void onRecordingFinalized(final CameraRig.Camera camera,
+                                      RecordingFinalizer.Recording recording) {
+        if (null != recording.getError()) {
+            Log.e(TAG, camera + " failed to stop", recording.getError());
         }
+        final String saved = "Video saved: " + (recording.getPaths().isEmpty() ? "nothing"
+                : recording.getPaths().get(0)) + (recording.getPaths().size() > 1
+                ? " and following segments" : "") + ", " + recording;
+        Log.d(TAG, saved);
+        Log.d(TAG, camera + " capture telemetry: " + camera.mTelemetry);
+        final Activity activity = getActivity();
+        if (null != activity) {
+            activity.runOnUiThread(new Runnable() {
+                @Override
+                public void run() {
+                    Toast.makeText(activity, saved, Toast.LENGTH_SHORT).show();
+                }
+            });
+        }
+        CameraThreads threads = camera.mThreads;
+        if (!PERSISTENT_RECORDING_SESSION) {
+            // The encoder is prepared again when the next recording starts
+            camera.mState.onStopped();
+            return;
+        }
+        if (null == threads) {
+            return;
+        }
+        try {
+            threads.getControlExecutor().execute(new Runnable() {
+                @Override
+                public void run() {
+                    rearmEncoder(camera);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // The camera was closed meanwhile, it is armed again when it opens
+        }
+    }
 
+    /**
+     * Arms the stopped encoder of {@code camera} for the next recording on the same input
+     * surface. Called on the thread of the camera.
+     */
+    private void rearmEncoder(final CameraRig.Camera camera) {
+        if (null == camera.mEncoder) {
+            return;
+        }
+        try {
+            camera.mEncoder.reset();
+            setUpEncoder(camera);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        if (camera.mSessionStale) {
+            // The governor changed the size of the encoder input, rebuild the session for it
+            camera.mSessionStale = false;
+            closePreviewSession(camera);
+            camera.mRecordRequest = null;
+            // Stopped once the new session is configured
+            startPreviewWhenReady(camera);
+            return;
+        }
+        if (USE_PRE_ROLL) {
+            startPreRoll(camera);
+        }
+        camera.mState.onStopped();
     }
 
     public static class ErrorDialog extends DialogFragment {
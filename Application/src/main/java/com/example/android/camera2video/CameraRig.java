@@ -0,0 +1,621 @@
+/*
+ * Copyright 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2video;
+
+import android.hardware.camera2.CameraAccessException;
+import android.hardware.camera2.CameraCaptureSession;
+import android.hardware.camera2.CameraCharacteristics;
+import android.hardware.camera2.CameraDevice;
+import android.hardware.camera2.CameraManager;
+import android.hardware.camera2.CaptureRequest;
+import android.os.Handler;
+import android.support.annotation.NonNull;
+import android.util.Log;
+import android.view.Surface;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Finds the cameras of a multi-camera rig by their characteristics, opens them in parallel and
+ * keeps the state of each one in a {@link Camera}.
+ *
+ * The rig is described by a list of {@link Spec}s, one per camera the app wants. Adding a sensor
+ * only needs another spec.
+ */
+class CameraRig {
+
+    private static final String TAG = "CameraRig";
+
+    // Capability and color filter values newer than the SDK this app compiles against
+    private static final int CAPABILITY_LOGICAL_MULTI_CAMERA = 11;
+    private static final int CAPABILITY_MONOCHROME = 12;
+    private static final int COLOR_FILTER_ARRANGEMENT_MONO = 5;
+    private static final int COLOR_FILTER_ARRANGEMENT_NIR = 6;
+
+    /**
+     * Passed as the lens facing of a {@link Spec} that accepts any lens.
+     */
+    static final int ANY_LENS_FACING = -1;
+
+    /**
+     * What the app does with a camera.
+     */
+    enum Role {
+        /**
+         * Shown in the preview and recorded.
+         */
+        COLOR,
+        /**
+         * Fed to the frame pipeline and recorded.
+         */
+        MONO,
+        /**
+         * Only recorded.
+         */
+        AUX
+    }
+
+    /**
+     * Describes a camera the rig needs.
+     */
+    static final class Spec {
+
+        final Role mRole;
+        final int mLensFacing;
+        final boolean mMonochrome;
+        final String mFallbackId;
+
+        /**
+         * @param role       What the camera is used for
+         * @param lensFacing The required lens facing, or {@link #ANY_LENS_FACING}
+         * @param monochrome Whether the camera must have a monochrome sensor
+         * @param fallbackId The camera to prefer among the matching ones, and to use when no
+         *                   camera reports whether its sensor is monochrome. May be null.
+         */
+        Spec(Role role, int lensFacing, boolean monochrome, String fallbackId) {
+            mRole = role;
+            mLensFacing = lensFacing;
+            mMonochrome = monochrome;
+            mFallbackId = fallbackId;
+        }
+
+        @Override
+        public String toString() {
+            return mRole + (mMonochrome ? " (monochrome)" : "");
+        }
+
+    }
+
+    /**
+     * The properties of a camera that are used to match it to a {@link Spec}.
+     */
+    static final class Description {
+
+        final String mId;
+        final int mLensFacing;
+        final boolean mMonochrome;
+        final boolean mLogical;
+
+        Description(String id, int lensFacing, boolean monochrome, boolean logical) {
+            mId = id;
+            mLensFacing = lensFacing;
+            mMonochrome = monochrome;
+            mLogical = logical;
+        }
+
+        static Description of(String id, CameraCharacteristics characteristics) {
+            boolean monochrome = false;
+            boolean logical = false;
+            int[] capabilities =
+                    characteristics.get(CameraCharacteristics.REQUEST_AVAILABLE_CAPABILITIES);
+            if (null != capabilities) {
+                for (int capability : capabilities) {
+                    if (capability == CAPABILITY_MONOCHROME) {
+                        monochrome = true;
+                    } else if (capability == CAPABILITY_LOGICAL_MULTI_CAMERA) {
+                        logical = true;
+                    }
+                }
+            }
+            Integer arrangement =
+                    characteristics.get(CameraCharacteristics.SENSOR_INFO_COLOR_FILTER_ARRANGEMENT);
+            if (null != arrangement && (arrangement == COLOR_FILTER_ARRANGEMENT_MONO
+                    || arrangement == COLOR_FILTER_ARRANGEMENT_NIR)) {
+                monochrome = true;
+            }
+            Integer lensFacing = characteristics.get(CameraCharacteristics.LENS_FACING);
+            return new Description(id, null == lensFacing ? ANY_LENS_FACING : lensFacing,
+                    monochrome, logical);
+        }
+
+        @Override
+        public String toString() {
+            return "camera " + mId + " facing " + mLensFacing + (mMonochrome ? " monochrome" : "")
+                    + (mLogical ? " logical" : "");
+        }
+
+    }
+
+    /**
+     * Matches cameras to specs. Specs are served in order, each taking the first unused physical
+     * camera that fits, preferring its fallback id. Monochrome is only checked when at least one
+     * camera reports a monochrome sensor, since older HALs do not report it at all.
+     *
+     * @return The id chosen for each spec, or null where no camera fits
+     */
+    static List<String> assign(List<Spec> specs, List<Description> cameras) {
+        boolean monochromeReported = false;
+        for (Description camera : cameras) {
+            monochromeReported |= camera.mMonochrome;
+        }
+        List<String> taken = new ArrayList<>();
+        List<String> assigned = new ArrayList<>();
+        for (Spec spec : specs) {
+            Description match = null;
+            for (Description camera : cameras) {
+                if (taken.contains(camera.mId) || camera.mLogical
+                        || (spec.mLensFacing != ANY_LENS_FACING
+                        && camera.mLensFacing != spec.mLensFacing)
+                        || (monochromeReported && camera.mMonochrome != spec.mMonochrome)) {
+                    continue;
+                }
+                if (null == match || camera.mId.equals(spec.mFallbackId)) {
+                    match = camera;
+                }
+            }
+            String id = null == match ? null : match.mId;
+            if (null == id && !monochromeReported && null != spec.mFallbackId
+                    && !taken.contains(spec.mFallbackId)) {
+                for (Description camera : cameras) {
+                    if (camera.mId.equals(spec.mFallbackId)) {
+                        id = camera.mId;
+                    }
+                }
+            }
+            if (null != id) {
+                taken.add(id);
+            }
+            assigned.add(id);
+        }
+        return assigned;
+    }
+
+    /**
+     * One camera of the rig and everything that belongs to it.
+     */
+    static final class Camera {
+
+        final Spec mSpec;
+        final String mId;
+        final CameraSnapshot mSnapshot;
+
+        /**
+         * The lifecycle of the camera. The app sets its backend before the rig opens it.
+         */
+        final CameraStateMachine mState;
+
+        CameraThreads mThreads;
+
+        /**
+         * The {@link Handler} of the control thread of {@link #mThreads}.
+         */
+        Handler mHandler;
+
+        CameraDevice mDevice;
+        CameraCaptureSession mSession;
+
+        /**
+         * The repeating request of the camera while it does not record, built once per session
+         * from its preview or analysis {@link CaptureProfile}.
+         */
+        CaptureRequest mPreviewRequest;
+
+        /**
+         * The repeating request that targets the preview and the encoder, built once per session
+         * from the record {@link CaptureProfile}, and again when the governor changes the frame
+         * rate.
+         */
+        CaptureRequest mRecordRequest;
+
+        /**
+         * The surfaces {@link #mRecordRequest} targets.
+         */
+        List<Surface> mRecordTargets;
+
+        /**
+         * The high-speed configuration of the camera, or null if it runs at the normal rate.
+         */
+        HighSpeedSelector.Selection mHighSpeed;
+
+        EncoderConfig mEncoderConfig;
+        VideoEncoderEngine mEncoder;
+
+        /**
+         * The quality steps of the encoder, from the best one down, and the index of the one
+         * {@link #mEncoderConfig} is at. Set up with the first encoder.
+         */
+        List<RecordingGovernor.Step> mQualityLadder;
+        int mQualityStep;
+
+        /**
+         * Whether the encoder input has changed size since the session was configured, so the
+         * session has to be rebuilt before the next recording.
+         */
+        boolean mSessionStale;
+
+        /**
+         * Whether {@link #mEncoder} is prepared and waiting to be started.
+         */
+        boolean mEncoderPrepared;
+
+        /**
+         * The encoder input surface that outlives the encoder in persistent mode.
+         */
+        Surface mPersistentSurface;
+
+        /**
+         * The recent frames kept while the camera is armed but not recording, if pre-roll is on.
+         */
+        PreRollBuffer mPreRoll;
+        boolean mPreRolling;
+
+        /**
+         * The files of the prepared or running recording.
+         */
+        VideoEncoderEngine.Output mOutput;
+
+        /**
+         * The {@link System#nanoTime()} at which the camera was asked to start recording, or 0
+         * once the first frame for the encoder has been captured.
+         */
+        final AtomicLong mRecordStartNanos = new AtomicLong();
+
+        /**
+         * The {@link System#nanoTime()} at which the encoder was started, or 0 once it has
+         * reported its first encoded frame.
+         */
+        final AtomicLong mEncodeStartNanos = new AtomicLong();
+
+        /**
+         * The {@link System#nanoTime()} at which the camera was asked to stop recording, or 0
+         * once the first frame of the preview after it has been captured.
+         */
+        final AtomicLong mStopNanos = new AtomicLong();
+
+        final CaptureTelemetry mTelemetry = new CaptureTelemetry();
+
+        /**
+         * The frames captured for the encoder and the frames it has encoded during the current
+         * recording. The difference is the encoder backlog.
+         */
+        final AtomicLong mRecordedFrames = new AtomicLong();
+        final AtomicLong mEncodedFrames = new AtomicLong();
+
+        /**
+         * The callback of every repeating request of this camera, created once so that swapping
+         * requests does not allocate.
+         */
+        CameraCaptureSession.CaptureCallback mCaptureCallback;
+
+        /**
+         * Whether a capture session has been requested and is not configured yet.
+         */
+        boolean mSessionPending;
+
+        /**
+         * The preparation of {@link #mEncoder} in the background, started while the camera opens.
+         * Cleared once the encoder is released, which may be after the device closed if the
+         * preparation was still running then.
+         */
+        volatile CompletableFuture<Void> mEncoderWarmUp;
+
+        /**
+         * Completes once the camera has its session and a prepared encoder, so a recording can
+         * start without any further setup.
+         */
+        CompletableFuture<Void> mReadyToRecord;
+
+        CompletableFuture<CameraDevice> mOpened;
+        volatile long mOpenDurationNanos;
+
+        Camera(Spec spec, CameraSnapshot snapshot) {
+            mSpec = spec;
+            mId = snapshot.getId();
+            mSnapshot = snapshot;
+            mState = new CameraStateMachine(toString());
+        }
+
+        Role getRole() {
+            return mSpec.mRole;
+        }
+
+        @Override
+        public String toString() {
+            return mSpec.mRole + " camera " + mId;
+        }
+
+    }
+
+    private final CameraManager mManager;
+    private final List<Spec> mSpecs;
+    private final List<Camera> mCameras = new ArrayList<>();
+    private boolean mResolvedFromCache;
+    // The cameras the last resolve() queried, until they are handed to the cache
+    private CharacteristicsCache mCache;
+    private List<CameraSnapshot> mUnsavedSnapshots;
+
+    CameraRig(CameraManager manager, List<Spec> specs) {
+        mManager = manager;
+        mSpecs = specs;
+    }
+
+    /**
+     * Finds the cameras of the device and assigns them to the specs. The cameras are taken from
+     * {@code cache} if it has them, and otherwise queried from the camera service and stored in
+     * the cache by {@link #saveCache}.
+     *
+     * @param cache The cache of the camera snapshots, or null to always query
+     */
+    void resolve(CharacteristicsCache cache) throws CameraAccessException {
+        long start = System.nanoTime();
+        List<CameraSnapshot> snapshots = null == cache ? null : cache.load();
+        mResolvedFromCache = null != snapshots;
+        if (null == snapshots) {
+            List<CameraSnapshot> queried = new ArrayList<>();
+            for (String id : mManager.getCameraIdList()) {
+                queried.add(CameraSnapshot.of(id, mManager.getCameraCharacteristics(id)));
+            }
+            mCache = cache;
+            mUnsavedSnapshots = null == cache ? null : queried;
+            snapshots = queried;
+        }
+        List<Description> descriptions = new ArrayList<>();
+        for (CameraSnapshot snapshot : snapshots) {
+            descriptions.add(snapshot.getDescription());
+        }
+        List<String> ids = assign(mSpecs, descriptions);
+        mCameras.clear();
+        for (int i = 0; i < mSpecs.size(); i++) {
+            String id = ids.get(i);
+            if (null == id) {
+                Log.w(TAG, "No camera found for " + mSpecs.get(i) + " among " + descriptions);
+                continue;
+            }
+            for (CameraSnapshot snapshot : snapshots) {
+                if (snapshot.getId().equals(id)) {
+                    mCameras.add(new Camera(mSpecs.get(i), snapshot));
+                }
+            }
+        }
+        Log.d(TAG, "Resolved " + mCameras + (mResolvedFromCache ? " from the cache" : "")
+                + " in " + (System.nanoTime() - start) / 1000 + " us");
+    }
+
+    /**
+     * Stores the cameras queried by the last {@link #resolve} in its cache on the storage thread,
+     * once. Does nothing if they came from the cache.
+     */
+    void saveCache(RecordingStorage storage) {
+        if (null == mUnsavedSnapshots) {
+            return;
+        }
+        final CharacteristicsCache cache = mCache;
+        final List<CameraSnapshot> snapshots = mUnsavedSnapshots;
+        mCache = null;
+        mUnsavedSnapshots = null;
+        storage.execute(new Runnable() {
+            @Override
+            public void run() {
+                cache.save(snapshots);
+            }
+        });
+    }
+
+    /**
+     * Whether the last {@link #resolve} took the cameras from the cache.
+     */
+    boolean isResolvedFromCache() {
+        return mResolvedFromCache;
+    }
+
+    List<Camera> getCameras() {
+        return Collections.unmodifiableList(mCameras);
+    }
+
+    /**
+     * Returns the first camera with {@code role}, or null if the rig has none.
+     */
+    Camera get(Role role) {
+        for (Camera camera : mCameras) {
+            if (camera.getRole() == role) {
+                return camera;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the camera with id {@code id}, or null if the rig has none.
+     */
+    Camera get(String id) {
+        for (Camera camera : mCameras) {
+            if (camera.mId.equals(id)) {
+                return camera;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Starts the {@link CameraThreads} of every camera. Only the mono camera delivers frames to
+     * the app, so only it gets a frame thread.
+     *
+     * @param stallMillis The queue wait or dispatch time reported as a stall
+     */
+    void startThreads(long stallMillis) {
+        for (Camera camera : mCameras) {
+            if (null != camera.mThreads) {
+                // Kept by stopThreads() for a device that was still opening
+                continue;
+            }
+            camera.mThreads = new CameraThreads(camera.mId, camera.getRole() == Role.MONO,
+                    stallMillis);
+            camera.mHandler = camera.mThreads.getControlHandler();
+        }
+    }
+
+    /**
+     * Stops the {@link CameraThreads} of every camera, except those of a camera whose device is
+     * still opening. The device is closed on them once it opens, and the next
+     * {@link #startThreads} reuses them.
+     */
+    void stopThreads() {
+        for (Camera camera : mCameras) {
+            if (null == camera.mThreads) {
+                continue;
+            }
+            if (null != camera.mOpened && !camera.mOpened.isDone()) {
+                Log.w(TAG, camera + " is still opening, keeping its threads");
+                continue;
+            }
+            try {
+                camera.mThreads.quit();
+                camera.mThreads = null;
+                camera.mHandler = null;
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Receives the state changes of the cameras of a rig, on the thread of each camera.
+     */
+    interface Callback {
+
+        void onOpened(Camera camera);
+
+        void onDisconnected(Camera camera);
+
+        void onError(Camera camera, int error);
+
+    }
+
+    /**
+     * Opens every camera at once, each on its own thread. {@code callback} is called on that
+     * thread after the rig has recorded the new state of the camera.
+     *
+     * @return A future that completes once every camera has opened
+     */
+    @SuppressWarnings("MissingPermission")
+    CompletableFuture<Void> openAll(final Callback callback) throws CameraAccessException {
+        final long start = System.nanoTime();
+        List<CompletableFuture<CameraDevice>> futures = new ArrayList<>();
+        for (final Camera camera : mCameras) {
+            camera.mState.onOpening();
+            final CompletableFuture<CameraDevice> opened = new CompletableFuture<>();
+            final long cameraStart = System.nanoTime();
+            camera.mOpened = opened;
+            futures.add(opened);
+            mManager.openCamera(camera.mId, new CameraDevice.StateCallback() {
+
+                @Override
+                public void onOpened(@NonNull CameraDevice cameraDevice) {
+                    if (isStale(cameraDevice)) {
+                        return;
+                    }
+                    camera.mOpenDurationNanos = System.nanoTime() - cameraStart;
+                    camera.mDevice = cameraDevice;
+                    // Closes the device right away if the camera was closed while it opened
+                    if (camera.mState.onDeviceOpened()) {
+                        callback.onOpened(camera);
+                        opened.complete(cameraDevice);
+                        return;
+                    }
+                    if (camera.mDevice == cameraDevice) {
+                        // Force-closed before the device was there to close
+                        cameraDevice.close();
+                        camera.mDevice = null;
+                    }
+                    opened.completeExceptionally(
+                            new IllegalStateException(camera + " closed while opening"));
+                }
+
+                /**
+                 * Closes {@code cameraDevice} if the camera has been opened again since, after
+                 * it was force-closed during this open.
+                 */
+                private boolean isStale(CameraDevice cameraDevice) {
+                    if (camera.mOpened == opened) {
+                        return false;
+                    }
+                    cameraDevice.close();
+                    opened.completeExceptionally(
+                            new IllegalStateException(camera + " opened again meanwhile"));
+                    return true;
+                }
+
+                @Override
+                public void onDisconnected(@NonNull CameraDevice cameraDevice) {
+                    if (isStale(cameraDevice)) {
+                        return;
+                    }
+                    cameraDevice.close();
+                    camera.mDevice = null;
+                    camera.mState.close();
+                    opened.completeExceptionally(
+                            new IllegalStateException(camera + " disconnected"));
+                    callback.onDisconnected(camera);
+                }
+
+                @Override
+                public void onError(@NonNull CameraDevice cameraDevice, int error) {
+                    if (isStale(cameraDevice)) {
+                        return;
+                    }
+                    cameraDevice.close();
+                    camera.mDevice = null;
+                    camera.mState.close();
+                    opened.completeExceptionally(
+                            new IllegalStateException(camera + " error " + error));
+                    callback.onError(camera, error);
+                }
+
+            }, camera.mHandler);
+        }
+        CompletableFuture<Void> all =
+                CompletableFuture.allOf(futures.toArray(new CompletableFuture[0]));
+        all.thenRun(new Runnable() {
+            @Override
+            public void run() {
+                long slowest = 0;
+                for (Camera camera : mCameras) {
+                    slowest = Math.max(slowest, camera.mOpenDurationNanos);
+                }
+                Log.i(TAG, "Opened " + mCameras.size() + " cameras in "
+                        + (System.nanoTime() - start) / 1000000 + " ms, slowest single camera "
+                        + slowest / 1000000 + " ms");
+            }
+        });
+        return all;
+    }
+
+}
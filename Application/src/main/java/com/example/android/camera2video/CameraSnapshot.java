@@ -0,0 +1,170 @@
+/*
+ * Copyright 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2video;
+
+import android.hardware.camera2.CameraCharacteristics;
+import android.util.Range;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The characteristics of one camera that the app uses, as plain values.
+ *
+ * A snapshot is taken from {@link CameraCharacteristics} once, and can then be stored by the
+ * {@link CharacteristicsCache}, so later starts know the cameras without asking the camera
+ * service.
+ */
+final class CameraSnapshot {
+
+    private final CameraRig.Description mDescription;
+    private final int mSensorOrientation;
+    private final int mHardwareLevel;
+    private final int[] mCapabilities;
+    private final List<String> mKeys;
+    private final StreamCapabilities mStreams;
+    // The lower and upper bound of each range, one after the other
+    private final int[] mAeFpsRanges;
+
+    CameraSnapshot(CameraRig.Description description, int sensorOrientation, int hardwareLevel,
+                   int[] capabilities, List<String> keys, StreamCapabilities streams,
+                   int[] aeFpsRanges) {
+        mDescription = description;
+        mSensorOrientation = sensorOrientation;
+        mHardwareLevel = hardwareLevel;
+        mCapabilities = capabilities;
+        mKeys = Collections.unmodifiableList(keys);
+        mStreams = streams;
+        mAeFpsRanges = aeFpsRanges;
+    }
+
+    /**
+     * Takes a snapshot of camera {@code id}.
+     */
+    static CameraSnapshot of(String id, CameraCharacteristics characteristics) {
+        Integer orientation = characteristics.get(CameraCharacteristics.SENSOR_ORIENTATION);
+        Integer level = characteristics.get(CameraCharacteristics.INFO_SUPPORTED_HARDWARE_LEVEL);
+        int[] capabilities =
+                characteristics.get(CameraCharacteristics.REQUEST_AVAILABLE_CAPABILITIES);
+        List<String> keys = new ArrayList<>();
+        for (CameraCharacteristics.Key<?> key : characteristics.getKeys()) {
+            keys.add(key.getName());
+        }
+        Range<Integer>[] ranges =
+                characteristics.get(CameraCharacteristics.CONTROL_AE_AVAILABLE_TARGET_FPS_RANGES);
+        int[] aeFpsRanges = new int[null == ranges ? 0 : 2 * ranges.length];
+        for (int i = 0; i < aeFpsRanges.length / 2; i++) {
+            aeFpsRanges[2 * i] = ranges[i].getLower();
+            aeFpsRanges[2 * i + 1] = ranges[i].getUpper();
+        }
+        return new CameraSnapshot(CameraRig.Description.of(id, characteristics),
+                null == orientation ? 0 : orientation, null == level ? -1 : level,
+                null == capabilities ? new int[0] : capabilities, keys,
+                StreamCapabilities.of(id, characteristics), aeFpsRanges);
+    }
+
+    String getId() {
+        return mDescription.mId;
+    }
+
+    CameraRig.Description getDescription() {
+        return mDescription;
+    }
+
+    int getSensorOrientation() {
+        return mSensorOrientation;
+    }
+
+    /**
+     * One of the {@code INFO_SUPPORTED_HARDWARE_LEVEL} values, or -1 if not reported.
+     */
+    int getHardwareLevel() {
+        return mHardwareLevel;
+    }
+
+    int[] getCapabilities() {
+        return mCapabilities.clone();
+    }
+
+    boolean hasCapability(int capability) {
+        for (int available : mCapabilities) {
+            if (available == capability) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * The names of the characteristics the camera reports.
+     */
+    List<String> getKeys() {
+        return mKeys;
+    }
+
+    StreamCapabilities getStreams() {
+        return mStreams;
+    }
+
+    /**
+     * The auto-exposure target frame rate ranges, as the lower and upper bound of each range one
+     * after the other.
+     */
+    int[] getAeFpsRanges() {
+        return mAeFpsRanges.clone();
+    }
+
+    /**
+     * Returns the auto-exposure target range that comes closest to {@code fps} without going
+     * above it, preferring a fixed range, or null if every range goes above it.
+     */
+    Range<Integer> chooseAeFpsRange(int fps) {
+        int lower = 0;
+        int upper = 0;
+        for (int i = 0; i < mAeFpsRanges.length; i += 2) {
+            int min = mAeFpsRanges[i];
+            int max = mAeFpsRanges[i + 1];
+            if (max > fps) {
+                continue;
+            }
+            if (max > upper || (max == upper && min > lower)) {
+                lower = min;
+                upper = max;
+            }
+        }
+        return upper == 0 ? null : Range.create(lower, upper);
+    }
+
+    /**
+     * Returns whether {@code range} is one of the auto-exposure target ranges of the camera.
+     */
+    boolean hasAeFpsRange(Range<Integer> range) {
+        for (int i = 0; i < mAeFpsRanges.length; i += 2) {
+            if (mAeFpsRanges[i] == range.getLower() && mAeFpsRanges[i + 1] == range.getUpper()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public String toString() {
+        return mDescription.toString();
+    }
+
+}
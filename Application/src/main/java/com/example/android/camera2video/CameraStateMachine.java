@@ -0,0 +1,423 @@
+/*
+ * Copyright 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2video;
+
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The lifecycle of one camera, from closed through preview to recording and back.
+ *
+ * The app asks for changes with {@link #record()}, {@link #stop()} and {@link #close()}, and
+ * reports what the camera did with the {@code on...} methods. Every move is checked against the
+ * allowed transitions, so an event that arrives late, such as a session configured after the
+ * camera was closed, is ignored instead of acting on a camera that is gone.
+ *
+ * A request that cannot run in the current state is kept until it can, instead of blocking a
+ * thread until the camera gets there: a recording asked for while the camera is still opening or
+ * stopping starts once it shows its preview, a stop during arming runs once the recording has
+ * started, and a close during opening runs once the device is open. Only the latest request is
+ * kept, so a record followed by a stop before either ran cancel each other out. A caller that
+ * cannot wait for a device that may never open uses {@link #forceClose()} instead.
+ *
+ * The work itself is done by the {@link Backend}, outside the lock of the machine and on the
+ * thread of the call that caused it. The machine has no Android dependencies, so it can be
+ * driven headless with a fake backend.
+ *
+ * Every transition is timed and reported to the {@link Listener}, along with how long the camera
+ * spent in the state it left.
+ */
+class CameraStateMachine {
+
+    enum State {
+        /**
+         * The device is closed.
+         */
+        CLOSED,
+        /**
+         * The device is being opened and its preview session configured.
+         */
+        OPENING,
+        /**
+         * The preview runs and the camera is ready to record.
+         */
+        PREVIEW,
+        /**
+         * The recording has been asked to start and waits for its session or for the other
+         * cameras.
+         */
+        ARMING,
+        /**
+         * The encoder runs.
+         */
+        RECORDING,
+        /**
+         * The encoder is being stopped, its files finalized and the next recording armed.
+         */
+        STOPPING
+    }
+
+    /**
+     * Does the work of the transitions the app asked for.
+     */
+    interface Backend {
+
+        /**
+         * Starts recording. Calls {@link #onRecordingStarted()} or {@link #onRecordingFailed()}
+         * once the outcome is known.
+         */
+        void startRecording();
+
+        /**
+         * Stops recording. Calls {@link #onStopped()} once the camera is ready to record again.
+         */
+        void stopRecording();
+
+        /**
+         * Closes the device and releases everything that belongs to the camera.
+         */
+        void close();
+
+    }
+
+    /**
+     * Receives the transitions, on the thread that caused them and with the lock of the machine
+     * held, so it must not call back into the machine.
+     */
+    interface Listener {
+
+        /**
+         * @param nanosInFrom How long the camera was in {@code from}
+         */
+        void onTransition(String name, State from, State to, long nanosInFrom);
+
+    }
+
+    private enum Request {
+        NONE,
+        RECORD,
+        STOP,
+        CLOSE
+    }
+
+    private static final Map<State, EnumSet<State>> TRANSITIONS = new EnumMap<>(State.class);
+
+    static {
+        TRANSITIONS.put(State.CLOSED, EnumSet.of(State.OPENING));
+        TRANSITIONS.put(State.OPENING, EnumSet.of(State.PREVIEW, State.CLOSED));
+        TRANSITIONS.put(State.PREVIEW, EnumSet.of(State.ARMING, State.CLOSED));
+        TRANSITIONS.put(State.ARMING,
+                EnumSet.of(State.RECORDING, State.PREVIEW, State.CLOSED));
+        TRANSITIONS.put(State.RECORDING, EnumSet.of(State.STOPPING, State.CLOSED));
+        TRANSITIONS.put(State.STOPPING, EnumSet.of(State.PREVIEW, State.CLOSED));
+    }
+
+    private final String mName;
+    private volatile Backend mBackend;
+    private volatile Listener mListener;
+
+    // Guarded by this.
+    private State mState = State.CLOSED;
+    private long mEnteredNanos = System.nanoTime();
+    private boolean mDeviceOpen;
+    private Request mPending = Request.NONE;
+    private final long[] mTransitions = new long[State.values().length];
+    private final long[] mTotalNanos = new long[State.values().length];
+    private final long[] mMaxNanos = new long[State.values().length];
+
+    CameraStateMachine(String name) {
+        mName = name;
+    }
+
+    void setBackend(Backend backend) {
+        mBackend = backend;
+    }
+
+    void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    synchronized State getState() {
+        return mState;
+    }
+
+    /**
+     * Returns whether the camera will record after a {@link #record()} now, at once or once it
+     * gets to its preview.
+     */
+    synchronized boolean canRecord() {
+        return mState == State.PREVIEW
+                || ((mState == State.OPENING || mState == State.STOPPING)
+                && mPending != Request.CLOSE);
+    }
+
+    /**
+     * Starts recording from the preview, or once the camera gets there.
+     */
+    void record() {
+        boolean start;
+        synchronized (this) {
+            start = mState == State.PREVIEW && moveTo(State.ARMING);
+            if (!start && (mState == State.OPENING || mState == State.STOPPING)
+                    && mPending != Request.CLOSE) {
+                mPending = Request.RECORD;
+            } else if (mState == State.ARMING && mPending == Request.STOP) {
+                // Still starting, so keep recording after all
+                mPending = Request.NONE;
+            }
+        }
+        if (start) {
+            mBackend.startRecording();
+        }
+    }
+
+    /**
+     * Stops recording, once it has started if it is still arming. Cancels a recording that has
+     * not been started yet.
+     */
+    void stop() {
+        boolean stop;
+        synchronized (this) {
+            stop = mState == State.RECORDING && moveTo(State.STOPPING);
+            if (mState == State.ARMING) {
+                mPending = Request.STOP;
+            } else if (mPending == Request.RECORD) {
+                mPending = Request.NONE;
+            }
+        }
+        if (stop) {
+            mBackend.stopRecording();
+        }
+    }
+
+    /**
+     * Closes the camera, once the device is open if it is still opening.
+     */
+    void close() {
+        synchronized (this) {
+            if (mState == State.CLOSED) {
+                return;
+            }
+            if (mState == State.OPENING && !mDeviceOpen) {
+                mPending = Request.CLOSE;
+                return;
+            }
+            moveTo(State.CLOSED);
+        }
+        mBackend.close();
+    }
+
+    /**
+     * Closes the camera now, even if its device is still opening. A device that opens afterwards
+     * is reported as closed by {@link #onDeviceOpened()}, and the camera can be opened again
+     * meanwhile.
+     */
+    void forceClose() {
+        synchronized (this) {
+            if (mState == State.CLOSED) {
+                return;
+            }
+            mPending = Request.NONE;
+            moveTo(State.CLOSED);
+        }
+        mBackend.close();
+    }
+
+    /**
+     * Waits for at most {@code timeoutMs} until the camera is closed.
+     *
+     * @return Whether it is closed
+     */
+    synchronized boolean awaitClosed(long timeoutMs) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        while (mState != State.CLOSED) {
+            long left = deadline - System.nanoTime();
+            if (left <= 0) {
+                return false;
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, left);
+        }
+        return true;
+    }
+
+    /**
+     * Reports that the device is being opened.
+     *
+     * @throws IllegalStateException If the camera is not closed
+     */
+    synchronized void onOpening() {
+        if (!moveTo(State.OPENING)) {
+            throw new IllegalStateException(mName + " is " + mState + ", not closed.");
+        }
+        mDeviceOpen = false;
+        mPending = Request.NONE;
+    }
+
+    /**
+     * Reports that the device has opened.
+     *
+     * @return Whether the camera should go on to its preview, false if it was closed instead. The
+     *         device has then been closed by the backend, unless the camera was force-closed
+     *         before the device was there.
+     */
+    boolean onDeviceOpened() {
+        synchronized (this) {
+            if (mState != State.OPENING) {
+                return false;
+            }
+            mDeviceOpen = true;
+            if (mPending != Request.CLOSE) {
+                return true;
+            }
+            mPending = Request.NONE;
+            moveTo(State.CLOSED);
+        }
+        mBackend.close();
+        return false;
+    }
+
+    /**
+     * Reports that the preview of a camera that was opening runs.
+     *
+     * @return Whether the report was expected, false if the camera was not opening
+     */
+    boolean onPreviewStarted() {
+        synchronized (this) {
+            if (mState != State.OPENING || !moveTo(State.PREVIEW)) {
+                return false;
+            }
+        }
+        runPending();
+        return true;
+    }
+
+    /**
+     * Reports that the recording has started.
+     *
+     * @return Whether the report was expected, false if the camera was not arming
+     */
+    boolean onRecordingStarted() {
+        synchronized (this) {
+            if (mState != State.ARMING || !moveTo(State.RECORDING)) {
+                return false;
+            }
+        }
+        runPending();
+        return true;
+    }
+
+    /**
+     * Reports that the recording could not be started. The camera goes back to its preview.
+     *
+     * @return Whether the report was expected, false if the camera was not arming
+     */
+    boolean onRecordingFailed() {
+        synchronized (this) {
+            if (mState != State.ARMING || !moveTo(State.PREVIEW)) {
+                return false;
+            }
+            // A stop of a recording that never started has nothing left to do
+            if (mPending == Request.STOP) {
+                mPending = Request.NONE;
+            }
+        }
+        runPending();
+        return true;
+    }
+
+    /**
+     * Reports that the recording has stopped and the camera is ready to record again.
+     *
+     * @return Whether the report was expected, false if the camera was not stopping
+     */
+    boolean onStopped() {
+        synchronized (this) {
+            if (mState != State.STOPPING || !moveTo(State.PREVIEW)) {
+                return false;
+            }
+        }
+        runPending();
+        return true;
+    }
+
+    /**
+     * Runs the kept request if the current state allows it.
+     */
+    private void runPending() {
+        Request request;
+        synchronized (this) {
+            request = mPending;
+            mPending = Request.NONE;
+        }
+        switch (request) {
+            case RECORD:
+                record();
+                break;
+            case STOP:
+                stop();
+                break;
+            case CLOSE:
+                close();
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Moves to {@code to} if the transition is allowed. Called with the lock held.
+     */
+    private boolean moveTo(State to) {
+        if (!TRANSITIONS.get(mState).contains(to)) {
+            return false;
+        }
+        long now = System.nanoTime();
+        long nanosInFrom = now - mEnteredNanos;
+        State from = mState;
+        mState = to;
+        mEnteredNanos = now;
+        mTransitions[from.ordinal()]++;
+        mTotalNanos[from.ordinal()] += nanosInFrom;
+        mMaxNanos[from.ordinal()] = Math.max(mMaxNanos[from.ordinal()], nanosInFrom);
+        notifyAll();
+        Listener listener = mListener;
+        if (null != listener) {
+            listener.onTransition(mName, from, to, nanosInFrom);
+        }
+        return true;
+    }
+
+    /**
+     * Returns, for every state that has been left, how often and how long the camera was in it.
+     */
+    @Override
+    public synchronized String toString() {
+        StringBuilder builder = new StringBuilder(mName).append(' ').append(mState);
+        for (State state : State.values()) {
+            int i = state.ordinal();
+            if (mTransitions[i] > 0) {
+                builder.append(", ").append(state).append(' ').append(mTransitions[i])
+                        .append("x avg ").append(mTotalNanos[i] / mTransitions[i] / 1000000)
+                        .append(" ms max ").append(mMaxNanos[i] / 1000000).append(" ms");
+            }
+        }
+        return builder.toString();
+    }
+
+}
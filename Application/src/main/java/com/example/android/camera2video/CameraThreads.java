@@ -0,0 +1,244 @@
+/*
+ * Copyright 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2video;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Message;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * The threads of one camera of the rig.
+ *
+ * Every camera has a control thread, which runs the callbacks of its device, its session and its
+ * captures, and the work posted for it. A camera that delivers frames to the app through an
+ * {@link android.media.ImageReader} also has a frame thread, so copying a frame never delays a
+ * capture callback behind it. Both run above the default priority, as the camera service drops
+ * frames when their callbacks fall behind.
+ *
+ * The {@link Handler}s of both threads measure how long every message waited in the queue past
+ * the time it was due, and how long it took to dispatch. A message that waited or ran longer than
+ * the stall threshold is reported, at most once a second per thread.
+ *
+ * The executor-based variants of the camera APIs need API 28, so the callbacks are still
+ * delivered through the {@link Handler}s. Work of the app that takes an {@link Executor} runs on
+ * the control thread through {@link #getControlExecutor()}.
+ */
+class CameraThreads {
+
+    private static final String TAG = "CameraThreads";
+
+    /**
+     * The priority of the control thread, that of the threads the media framework runs video on.
+     */
+    private static final int CONTROL_PRIORITY = Process.THREAD_PRIORITY_VIDEO;
+
+    /**
+     * The priority of the frame thread, below the control thread and above the app.
+     */
+    private static final int FRAME_PRIORITY = Process.THREAD_PRIORITY_DISPLAY;
+
+    private static final long STALL_REPORT_INTERVAL_MS = 1000;
+
+    private final HandlerThread mControlThread;
+    private final HandlerThread mFrameThread;
+    private final MonitoredHandler mControlHandler;
+    private final MonitoredHandler mFrameHandler;
+    private final Executor mControlExecutor = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            if (!mControlHandler.post(command)) {
+                throw new RejectedExecutionException(mControlThread.getName() + " has quit");
+            }
+        }
+    };
+
+    /**
+     * Starts the threads of camera {@code cameraId}.
+     *
+     * @param withFrameThread Whether the camera gets a frame thread
+     * @param stallMillis     The queue wait or dispatch time reported as a stall
+     */
+    CameraThreads(String cameraId, boolean withFrameThread, long stallMillis) {
+        mControlThread = new HandlerThread("Camera " + cameraId, CONTROL_PRIORITY);
+        mControlThread.start();
+        mControlHandler = new MonitoredHandler(mControlThread.getLooper(),
+                mControlThread.getName(), stallMillis);
+        if (withFrameThread) {
+            mFrameThread = new HandlerThread("Frames " + cameraId, FRAME_PRIORITY);
+            mFrameThread.start();
+            mFrameHandler = new MonitoredHandler(mFrameThread.getLooper(),
+                    mFrameThread.getName(), stallMillis);
+        } else {
+            mFrameThread = null;
+            mFrameHandler = null;
+        }
+    }
+
+    /**
+     * Returns the {@link Handler} of the control thread.
+     */
+    Handler getControlHandler() {
+        return mControlHandler;
+    }
+
+    /**
+     * Returns an {@link Executor} that runs on the control thread, and rejects work once the
+     * thread has quit.
+     */
+    Executor getControlExecutor() {
+        return mControlExecutor;
+    }
+
+    /**
+     * Returns the {@link Handler} of the frame thread, or that of the control thread if the camera
+     * has no frame thread.
+     */
+    Handler getFrameHandler() {
+        return null != mFrameHandler ? mFrameHandler : mControlHandler;
+    }
+
+    /**
+     * Stops the threads once their queues are empty, and waits for them to end.
+     */
+    void quit() throws InterruptedException {
+        mControlThread.quitSafely();
+        if (null != mFrameThread) {
+            mFrameThread.quitSafely();
+        }
+        mControlThread.join();
+        if (null != mFrameThread) {
+            mFrameThread.join();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return null == mFrameHandler ? mControlHandler.toString()
+                : mControlHandler + "; " + mFrameHandler;
+    }
+
+    /**
+     * Returns the number of live threads in the process.
+     */
+    static int countThreads() {
+        return enumerateThreads().size();
+    }
+
+    /**
+     * Returns the names of the live threads in the process, sorted.
+     */
+    static List<String> getThreadNames() {
+        List<String> names = new ArrayList<>();
+        for (Thread thread : enumerateThreads()) {
+            names.add(thread.getName());
+        }
+        Collections.sort(names);
+        return names;
+    }
+
+    private static List<Thread> enumerateThreads() {
+        ThreadGroup root = Thread.currentThread().getThreadGroup();
+        while (null != root.getParent()) {
+            root = root.getParent();
+        }
+        // The count is an estimate, leave room for threads started meanwhile
+        Thread[] threads = new Thread[root.activeCount() + 8];
+        int count = root.enumerate(threads, true);
+        List<Thread> live = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            live.add(threads[i]);
+        }
+        return live;
+    }
+
+    /**
+     * A {@link Handler} that times the messages it dispatches.
+     *
+     * The statistics are only written by the thread of the handler. They are read from others
+     * without synchronization, so a reading may mix two messages.
+     */
+    private static final class MonitoredHandler extends Handler {
+
+        private final String mName;
+        private final long mStallMillis;
+        private long mMessages;
+        private long mTotalWaitMillis;
+        private long mMaxWaitMillis;
+        private long mTotalDispatchMillis;
+        private long mMaxDispatchMillis;
+        private long mStalls;
+        private long mLastStallReportMillis = -STALL_REPORT_INTERVAL_MS;
+
+        MonitoredHandler(Looper looper, String name, long stallMillis) {
+            super(looper);
+            mName = name;
+            mStallMillis = stallMillis;
+        }
+
+        @Override
+        public void dispatchMessage(Message msg) {
+            long start = SystemClock.uptimeMillis();
+            // A message posted at the front of the queue is due at 0
+            long wait = msg.getWhen() > 0 ? Math.max(0, start - msg.getWhen()) : 0;
+            // Read before dispatching, the message is recycled afterwards
+            Runnable callback = msg.getCallback();
+            int what = msg.what;
+            super.dispatchMessage(msg);
+            long end = SystemClock.uptimeMillis();
+            long dispatch = end - start;
+            mMessages++;
+            mTotalWaitMillis += wait;
+            mMaxWaitMillis = Math.max(mMaxWaitMillis, wait);
+            mTotalDispatchMillis += dispatch;
+            mMaxDispatchMillis = Math.max(mMaxDispatchMillis, dispatch);
+            if (wait > mStallMillis || dispatch > mStallMillis) {
+                mStalls++;
+                if (end - mLastStallReportMillis >= STALL_REPORT_INTERVAL_MS) {
+                    mLastStallReportMillis = end;
+                    Log.w(TAG, mName + " stalled: "
+                            + (null != callback ? callback.getClass().getName() : "what " + what)
+                            + " waited " + wait + " ms and ran " + dispatch + " ms ("
+                            + mStalls + " stalls so far)");
+                }
+            }
+        }
+
+        @Override
+        public String toString() {
+            long messages = mMessages;
+            if (0 == messages) {
+                return mName + ": no messages";
+            }
+            return mName + ": " + messages + " messages, wait " + mTotalWaitMillis / messages
+                    + " ms avg " + mMaxWaitMillis + " ms max, dispatch "
+                    + mTotalDispatchMillis / messages + " ms avg " + mMaxDispatchMillis
+                    + " ms max, " + mStalls + " stalls";
+        }
+
+    }
+
+}
@@ -0,0 +1,293 @@
+/*
+ * Copyright 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2video;
+
+import android.hardware.camera2.CameraDevice;
+import android.hardware.camera2.CameraMetadata;
+import android.hardware.camera2.CaptureRequest;
+import android.util.Range;
+import android.util.Size;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * The capture settings of one mode of a camera: the request template, the frame rate range, the
+ * focus and exposure modes, and for {@link Mode#RECORD} the largest recorded size, the codec and
+ * the bitrate.
+ *
+ * The profiles are read from a properties file, where every key is the lower case name of a mode
+ * followed by the name of a setting, such as {@code record.fps=30}. Settings that are missing
+ * keep the built-in default of their mode, see {@link #defaults()}.
+ */
+final class CaptureProfile {
+
+    enum Mode {
+        /**
+         * The preview of the color camera.
+         */
+        PREVIEW,
+        /**
+         * Every camera while it feeds its encoder.
+         */
+        RECORD,
+        /**
+         * The mono camera while it only feeds the analyzers.
+         */
+        ANALYSIS
+    }
+
+    private final Mode mMode;
+    private final int mTemplate;
+    private final Size mSize;
+    private final int mMinFps;
+    private final int mMaxFps;
+    private final int mAfMode;
+    private final int mAeMode;
+    private final EncoderConfig.Codec mCodec;
+    private final int mBitRate;
+
+    /**
+     * @param mode     The mode the profile is for
+     * @param template The {@link CameraDevice} template the requests start from
+     * @param size     The largest size recorded at, or null if the mode does not record
+     * @param minFps   The lower bound of the target frame rate range
+     * @param maxFps   The upper bound of the target frame rate range, or 0 to keep the one of the
+     *                 template
+     * @param afMode   The {@link CaptureRequest#CONTROL_AF_MODE}
+     * @param aeMode   The {@link CaptureRequest#CONTROL_AE_MODE}
+     * @param codec    The video codec
+     * @param bitRate  The bitrate at {@code size} and {@code maxFps}, in bits per second
+     */
+    CaptureProfile(Mode mode, int template, Size size, int minFps, int maxFps, int afMode,
+                   int aeMode, EncoderConfig.Codec codec, int bitRate) {
+        if (minFps < 0 || minFps > maxFps) {
+            throw new IllegalArgumentException("Invalid frame rate range of the "
+                    + mode + " profile: " + minFps + "-" + maxFps);
+        }
+        if (mode == Mode.RECORD && (null == size || maxFps == 0 || bitRate <= 0)) {
+            throw new IllegalArgumentException(
+                    "The record profile needs a size, a frame rate and a bitrate.");
+        }
+        mMode = mode;
+        mTemplate = template;
+        mSize = size;
+        mMinFps = minFps;
+        mMaxFps = maxFps;
+        mAfMode = afMode;
+        mAeMode = aeMode;
+        mCodec = codec;
+        mBitRate = bitRate;
+    }
+
+    /**
+     * Returns the built-in profile of every mode.
+     */
+    static Map<Mode, CaptureProfile> defaults() {
+        Map<Mode, CaptureProfile> profiles = new EnumMap<>(Mode.class);
+        for (Mode mode : Mode.values()) {
+            profiles.put(mode, getDefault(mode));
+        }
+        return Collections.unmodifiableMap(profiles);
+    }
+
+    private static CaptureProfile getDefault(Mode mode) {
+        if (mode == Mode.RECORD) {
+            return new CaptureProfile(mode, CameraDevice.TEMPLATE_RECORD, new Size(3840, 2160),
+                    30, 30, CameraMetadata.CONTROL_AF_MODE_AUTO, CameraMetadata.CONTROL_AE_MODE_ON,
+                    EncoderConfig.Codec.H264, 25_000_000);
+        }
+        return new CaptureProfile(mode, CameraDevice.TEMPLATE_PREVIEW, null, 0, 0,
+                CameraMetadata.CONTROL_AF_MODE_AUTO, CameraMetadata.CONTROL_AE_MODE_ON,
+                EncoderConfig.Codec.H264, 0);
+    }
+
+    /**
+     * Reads the profile of every mode from the properties in {@code in}.
+     *
+     * @throws IllegalArgumentException If a setting has an invalid value
+     */
+    static Map<Mode, CaptureProfile> load(InputStream in) throws IOException {
+        Properties properties = new Properties();
+        properties.load(in);
+        Map<Mode, CaptureProfile> profiles = new EnumMap<>(Mode.class);
+        for (Mode mode : Mode.values()) {
+            profiles.put(mode, parse(mode, properties, getDefault(mode)));
+        }
+        return Collections.unmodifiableMap(profiles);
+    }
+
+    private static CaptureProfile parse(Mode mode, Properties properties,
+                                        CaptureProfile defaults) {
+        String prefix = mode.name().toLowerCase(Locale.US) + ".";
+        int template = defaults.mTemplate;
+        String value = properties.getProperty(prefix + "template");
+        if (null != value) {
+            template = parseEnum(prefix + "template", value, new String[]{"preview", "record"},
+                    new int[]{CameraDevice.TEMPLATE_PREVIEW, CameraDevice.TEMPLATE_RECORD});
+        }
+        Size size = defaults.mSize;
+        value = properties.getProperty(prefix + "size");
+        if (null != value) {
+            try {
+                size = Size.parseSize(value.trim());
+            } catch (NumberFormatException e) {
+                throw invalid(prefix + "size", value);
+            }
+        }
+        int minFps = defaults.mMinFps;
+        int maxFps = defaults.mMaxFps;
+        value = properties.getProperty(prefix + "fps");
+        if (null != value) {
+            // Either one rate for a fixed range, or MIN-MAX
+            int separator = value.indexOf('-');
+            minFps = parseInt(prefix + "fps",
+                    separator < 0 ? value : value.substring(0, separator));
+            maxFps = separator < 0 ? minFps
+                    : parseInt(prefix + "fps", value.substring(separator + 1));
+        }
+        int afMode = defaults.mAfMode;
+        value = properties.getProperty(prefix + "af_mode");
+        if (null != value) {
+            afMode = parseEnum(prefix + "af_mode", value,
+                    new String[]{"off", "auto", "continuous_video", "continuous_picture"},
+                    new int[]{CameraMetadata.CONTROL_AF_MODE_OFF,
+                            CameraMetadata.CONTROL_AF_MODE_AUTO,
+                            CameraMetadata.CONTROL_AF_MODE_CONTINUOUS_VIDEO,
+                            CameraMetadata.CONTROL_AF_MODE_CONTINUOUS_PICTURE});
+        }
+        int aeMode = defaults.mAeMode;
+        value = properties.getProperty(prefix + "ae_mode");
+        if (null != value) {
+            aeMode = parseEnum(prefix + "ae_mode", value, new String[]{"off", "on"},
+                    new int[]{CameraMetadata.CONTROL_AE_MODE_OFF,
+                            CameraMetadata.CONTROL_AE_MODE_ON});
+        }
+        EncoderConfig.Codec codec = defaults.mCodec;
+        value = properties.getProperty(prefix + "codec");
+        if (null != value) {
+            try {
+                codec = EncoderConfig.Codec.valueOf(value.trim().toUpperCase(Locale.US));
+            } catch (IllegalArgumentException e) {
+                throw invalid(prefix + "codec", value);
+            }
+        }
+        int bitRate = defaults.mBitRate;
+        value = properties.getProperty(prefix + "bitrate");
+        if (null != value) {
+            bitRate = parseInt(prefix + "bitrate", value);
+        }
+        return new CaptureProfile(mode, template, size, minFps, maxFps, afMode, aeMode, codec,
+                bitRate);
+    }
+
+    private static int parseInt(String key, String value) {
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            throw invalid(key, value);
+        }
+    }
+
+    private static int parseEnum(String key, String value, String[] names, int[] values) {
+        String name = value.trim().toLowerCase(Locale.US);
+        for (int i = 0; i < names.length; i++) {
+            if (names[i].equals(name)) {
+                return values[i];
+            }
+        }
+        throw invalid(key, value);
+    }
+
+    private static IllegalArgumentException invalid(String key, String value) {
+        return new IllegalArgumentException("Invalid " + key + ": " + value);
+    }
+
+    Mode getMode() {
+        return mMode;
+    }
+
+    int getTemplate() {
+        return mTemplate;
+    }
+
+    /**
+     * The largest size recorded at. The aspect ratio of every stream follows it. Null unless the
+     * profile is for {@link Mode#RECORD}.
+     */
+    Size getSize() {
+        return mSize;
+    }
+
+    /**
+     * The target frame rate range, or null to keep the one of the template.
+     */
+    Range<Integer> getFpsRange() {
+        return mMaxFps == 0 ? null : Range.create(mMinFps, mMaxFps);
+    }
+
+    /**
+     * The highest frame rate of the mode, or 0 if the template decides.
+     */
+    int getMaxFps() {
+        return mMaxFps;
+    }
+
+    EncoderConfig.Codec getCodec() {
+        return mCodec;
+    }
+
+    /**
+     * The bitrate at {@link #getSize()} and {@link #getMaxFps()}, in bits per second. Other sizes
+     * and rates scale it.
+     */
+    int getBitRate() {
+        return mBitRate;
+    }
+
+    /**
+     * Sets the control modes of the profile on {@code builder}. The frame rate range is left to
+     * the caller, which knows the ranges the camera supports.
+     */
+    void applyTo(CaptureRequest.Builder builder) {
+        builder.set(CaptureRequest.CONTROL_MODE, CameraMetadata.CONTROL_MODE_AUTO);
+        builder.set(CaptureRequest.CONTROL_AF_MODE, mAfMode);
+        builder.set(CaptureRequest.CONTROL_AE_MODE, mAeMode);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder(mMode.name().toLowerCase(Locale.US));
+        if (null != mSize) {
+            sb.append(' ').append(mSize);
+        }
+        if (mMaxFps != 0) {
+            sb.append(' ').append(mMinFps).append('-').append(mMaxFps).append(" fps");
+        }
+        sb.append(" af ").append(mAfMode).append(" ae ").append(mAeMode);
+        if (mMode == Mode.RECORD) {
+            sb.append(' ').append(mCodec).append(' ').append(mBitRate / 1000).append(" kbps");
+        }
+        return sb.toString();
+    }
+
+}
@@ -0,0 +1,213 @@
+/*
+ * Copyright 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2video;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Frame delivery statistics of one camera: a histogram of the intervals between frames, gaps in
+ * the frame numbers, failed captures, lost buffers and the achieved frame rate.
+ *
+ * The capture callbacks of a camera all run on its handler thread, so every statistic has a single
+ * writer and is published with a lazy set. Nothing is allocated per frame, so the telemetry does
+ * not add garbage collections of its own while recording.
+ */
+class CaptureTelemetry {
+
+    /**
+     * The width of a histogram bucket, in microseconds.
+     */
+    static final int BUCKET_WIDTH_US = 1000;
+
+    /**
+     * The number of histogram buckets. The last one also counts every longer interval.
+     */
+    static final int BUCKET_COUNT = 100;
+
+    /**
+     * The span over which {@link #getRecentFps()} is measured, in nanoseconds.
+     */
+    private static final long FPS_WINDOW_NS = 1_000_000_000L;
+
+    private final AtomicLongArray mIntervalHistogram = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong mFrames = new AtomicLong();
+    private final AtomicLong mSessionFrames = new AtomicLong();
+    private final AtomicLong mFailedCaptures = new AtomicLong();
+    private final AtomicLong mLostBuffers = new AtomicLong();
+    private final AtomicLong mMissingFrames = new AtomicLong();
+    private final AtomicLong mFirstTimestamp = new AtomicLong();
+    private final AtomicLong mLastTimestamp = new AtomicLong();
+    private final AtomicLong mMaxIntervalNs = new AtomicLong();
+    // The frame rate over the last complete window, as raw double bits.
+    private final AtomicLong mRecentFpsBits = new AtomicLong();
+
+    // Only touched by the camera thread.
+    private long mLastFrameNumber = -1;
+    private long mWindowStart;
+    private int mWindowFrames;
+
+    /**
+     * Reports the start of a capture. Called from the camera thread.
+     *
+     * @param timestamp   The sensor timestamp of the frame, in nanoseconds
+     * @param frameNumber The frame number of the capture
+     */
+    void onCaptureStarted(long timestamp, long frameNumber) {
+        if (mLastFrameNumber >= 0 && frameNumber > mLastFrameNumber + 1) {
+            mMissingFrames.lazySet(mMissingFrames.get() + frameNumber - mLastFrameNumber - 1);
+        }
+        mLastFrameNumber = frameNumber;
+
+        long last = mLastTimestamp.get();
+        if (mSessionFrames.get() == 0) {
+            mFirstTimestamp.lazySet(timestamp);
+            mWindowStart = timestamp;
+        } else if (timestamp > last) {
+            long interval = timestamp - last;
+            int bucket = (int) Math.min(interval / 1000 / BUCKET_WIDTH_US, BUCKET_COUNT - 1);
+            mIntervalHistogram.lazySet(bucket, mIntervalHistogram.get(bucket) + 1);
+            if (interval > mMaxIntervalNs.get()) {
+                mMaxIntervalNs.lazySet(interval);
+            }
+        }
+        mLastTimestamp.lazySet(timestamp);
+        mFrames.lazySet(mFrames.get() + 1);
+        mSessionFrames.lazySet(mSessionFrames.get() + 1);
+
+        mWindowFrames++;
+        long elapsed = timestamp - mWindowStart;
+        if (elapsed >= FPS_WINDOW_NS) {
+            double fps = (mWindowFrames - 1) * 1e9 / elapsed;
+            mRecentFpsBits.lazySet(Double.doubleToRawLongBits(fps));
+            mWindowStart = timestamp;
+            mWindowFrames = 1;
+        }
+    }
+
+    /**
+     * Reports a capture that produced no result. Called from the camera thread.
+     */
+    void onCaptureFailed() {
+        mFailedCaptures.lazySet(mFailedCaptures.get() + 1);
+    }
+
+    /**
+     * Reports a buffer that never reached its output surface. Called from the camera thread.
+     */
+    void onCaptureBufferLost() {
+        mLostBuffers.lazySet(mLostBuffers.get() + 1);
+    }
+
+    /**
+     * Forgets the last frame, so the first frame of a new session is counted neither as a gap nor
+     * as an interval. The histogram and the counters are kept, the mean frame rate starts over.
+     * Called from the camera thread.
+     */
+    void onSessionStarted() {
+        mLastFrameNumber = -1;
+        mWindowFrames = 0;
+        mSessionFrames.lazySet(0);
+    }
+
+    long getFrameCount() {
+        return mFrames.get();
+    }
+
+    long getFailedCaptureCount() {
+        return mFailedCaptures.get();
+    }
+
+    long getLostBufferCount() {
+        return mLostBuffers.get();
+    }
+
+    /**
+     * The number of frame numbers that were skipped between two started captures.
+     */
+    long getMissingFrameCount() {
+        return mMissingFrames.get();
+    }
+
+    long getMaxIntervalNs() {
+        return mMaxIntervalNs.get();
+    }
+
+    /**
+     * The number of intervals in histogram bucket {@code index}, which covers the intervals from
+     * {@code index * BUCKET_WIDTH_US} up to the next bucket.
+     */
+    long getIntervalCount(int index) {
+        return mIntervalHistogram.get(index);
+    }
+
+    /**
+     * The upper bound of the bucket that holds the given fraction of all intervals, in
+     * microseconds, or 0 if no interval was recorded yet.
+     *
+     * @param fraction A value between 0 and 1, such as 0.99 for the 99th percentile
+     */
+    long getIntervalPercentileUs(double fraction) {
+        long total = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            total += mIntervalHistogram.get(i);
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long target = (long) Math.ceil(total * fraction);
+        long count = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            count += mIntervalHistogram.get(i);
+            if (count >= target) {
+                return (long) (i + 1) * BUCKET_WIDTH_US;
+            }
+        }
+        return (long) BUCKET_COUNT * BUCKET_WIDTH_US;
+    }
+
+    /**
+     * The mean frame rate since the session started.
+     */
+    double getMeanFps() {
+        long frames = mSessionFrames.get();
+        long span = mLastTimestamp.get() - mFirstTimestamp.get();
+        return frames < 2 || span <= 0 ? 0 : (frames - 1) * 1e9 / span;
+    }
+
+    /**
+     * The frame rate over the last complete second.
+     */
+    double getRecentFps() {
+        return Double.longBitsToDouble(mRecentFpsBits.get());
+    }
+
+    @Override
+    public String toString() {
+        return "frames=" + getFrameCount()
+                + " meanFps=" + String.format(Locale.US, "%.2f", getMeanFps())
+                + " recentFps=" + String.format(Locale.US, "%.2f", getRecentFps())
+                + " missing=" + getMissingFrameCount()
+                + " failed=" + getFailedCaptureCount()
+                + " lostBuffers=" + getLostBufferCount()
+                + " p50IntervalUs=" + getIntervalPercentileUs(0.5)
+                + " p99IntervalUs=" + getIntervalPercentileUs(0.99)
+                + " maxIntervalUs=" + getMaxIntervalNs() / 1000;
+    }
+
+}
@@ -0,0 +1,208 @@
+/*
+ * Copyright 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2video;
+
+import android.util.Log;
+import android.util.Size;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Keeps the {@link CameraSnapshot}s of every camera of the device in a file.
+ *
+ * The file is keyed by the build fingerprint, so it is thrown away after a system update that
+ * could have changed what the cameras report. Anything the file does not match, or cannot be read,
+ * counts as a miss and the cameras are queried again.
+ */
+class CharacteristicsCache {
+
+    private static final String TAG = "CharacteristicsCache";
+
+    private static final int MAGIC = 0x43414d53;
+
+    /**
+     * Bumped whenever the fields of a snapshot change.
+     */
+    private static final int FORMAT_VERSION = 4;
+
+    private final File mFile;
+    private final String mFingerprint;
+
+    /**
+     * @param file        The file the snapshots are kept in
+     * @param fingerprint Identifies the system build the snapshots are valid for
+     */
+    CharacteristicsCache(File file, String fingerprint) {
+        mFile = file;
+        mFingerprint = fingerprint;
+    }
+
+    /**
+     * Returns the stored snapshots, or null if there are none for this build.
+     */
+    List<CameraSnapshot> load() {
+        DataInputStream in;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+        } catch (FileNotFoundException e) {
+            return null;
+        }
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION
+                    || !mFingerprint.equals(in.readUTF())) {
+                Log.d(TAG, "Discarding the snapshots of another build");
+                return null;
+            }
+            int count = in.readInt();
+            List<CameraSnapshot> snapshots = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                snapshots.add(readSnapshot(in));
+            }
+            return snapshots;
+        } catch (IOException e) {
+            Log.w(TAG, "Could not read " + mFile, e);
+            return null;
+        } finally {
+            try {
+                in.close();
+            } catch (IOException e) {
+                // Only read from
+            }
+        }
+    }
+
+    /**
+     * Replaces the stored snapshots. The file is written next to the old one and renamed over
+     * it, so a crash never leaves half a file behind.
+     */
+    void save(List<CameraSnapshot> snapshots) {
+        File temp = new File(mFile.getPath() + ".tmp");
+        try {
+            DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(temp)));
+            try {
+                out.writeInt(MAGIC);
+                out.writeInt(FORMAT_VERSION);
+                out.writeUTF(mFingerprint);
+                out.writeInt(snapshots.size());
+                for (CameraSnapshot snapshot : snapshots) {
+                    writeSnapshot(out, snapshot);
+                }
+            } finally {
+                out.close();
+            }
+            if (!temp.renameTo(mFile)) {
+                throw new IOException("Could not rename " + temp);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Could not write " + mFile, e);
+            temp.delete();
+        }
+    }
+
+    private static void writeSnapshot(DataOutputStream out, CameraSnapshot snapshot)
+            throws IOException {
+        CameraRig.Description description = snapshot.getDescription();
+        out.writeUTF(description.mId);
+        out.writeInt(description.mLensFacing);
+        out.writeBoolean(description.mMonochrome);
+        out.writeBoolean(description.mLogical);
+        out.writeInt(snapshot.getSensorOrientation());
+        out.writeInt(snapshot.getHardwareLevel());
+        int[] capabilities = snapshot.getCapabilities();
+        out.writeInt(capabilities.length);
+        for (int capability : capabilities) {
+            out.writeInt(capability);
+        }
+        out.writeInt(snapshot.getKeys().size());
+        for (String key : snapshot.getKeys()) {
+            out.writeUTF(key);
+        }
+        StreamCapabilities streams = snapshot.getStreams();
+        out.writeInt(streams.getAnalysisFormat());
+        for (StreamCapabilities.Target target : StreamCapabilities.Target.values()) {
+            List<StreamCapabilities.Output> outputs = streams.getOutputs(target);
+            out.writeInt(outputs.size());
+            for (StreamCapabilities.Output output : outputs) {
+                out.writeInt(output.getSize().getWidth());
+                out.writeInt(output.getSize().getHeight());
+                out.writeLong(output.getMinFrameDurationNs());
+                out.writeLong(output.getStallDurationNs());
+            }
+        }
+        List<StreamCapabilities.HighSpeedConfig> highSpeed = streams.getHighSpeedConfigs();
+        out.writeInt(highSpeed.size());
+        for (StreamCapabilities.HighSpeedConfig config : highSpeed) {
+            out.writeInt(config.getSize().getWidth());
+            out.writeInt(config.getSize().getHeight());
+            out.writeInt(config.getMinFps());
+            out.writeInt(config.getMaxFps());
+        }
+        int[] aeFpsRanges = snapshot.getAeFpsRanges();
+        out.writeInt(aeFpsRanges.length);
+        for (int bound : aeFpsRanges) {
+            out.writeInt(bound);
+        }
+    }
+
+    private static CameraSnapshot readSnapshot(DataInputStream in) throws IOException {
+        String id = in.readUTF();
+        CameraRig.Description description = new CameraRig.Description(id, in.readInt(),
+                in.readBoolean(), in.readBoolean());
+        int sensorOrientation = in.readInt();
+        int hardwareLevel = in.readInt();
+        int[] capabilities = new int[in.readInt()];
+        for (int i = 0; i < capabilities.length; i++) {
+            capabilities[i] = in.readInt();
+        }
+        int keyCount = in.readInt();
+        List<String> keys = new ArrayList<>(keyCount);
+        for (int i = 0; i < keyCount; i++) {
+            keys.add(in.readUTF());
+        }
+        StreamCapabilities streams = new StreamCapabilities(id).setAnalysisFormat(in.readInt());
+        for (StreamCapabilities.Target target : StreamCapabilities.Target.values()) {
+            int outputCount = in.readInt();
+            for (int i = 0; i < outputCount; i++) {
+                Size size = new Size(in.readInt(), in.readInt());
+                streams.add(target, size, in.readLong(), in.readLong());
+            }
+        }
+        int highSpeedCount = in.readInt();
+        for (int i = 0; i < highSpeedCount; i++) {
+            Size size = new Size(in.readInt(), in.readInt());
+            streams.addHighSpeed(size, in.readInt(), in.readInt());
+        }
+        int[] aeFpsRanges = new int[in.readInt()];
+        for (int i = 0; i < aeFpsRanges.length; i++) {
+            aeFpsRanges[i] = in.readInt();
+        }
+        return new CameraSnapshot(description, sensorOrientation, hardwareLevel, capabilities,
+                keys, streams, aeFpsRanges);
+    }
+
+}
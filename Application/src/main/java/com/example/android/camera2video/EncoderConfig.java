@@ -0,0 +1,163 @@
+/*
+ * Copyright 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2video;
+
+/**
+ * The video encoder settings of one camera.
+ */
+final class EncoderConfig {
+
+    enum Codec {
+        H264,
+        HEVC
+    }
+
+    enum BitrateMode {
+        /**
+         * Constant bitrate.
+         */
+        CBR,
+        /**
+         * Variable bitrate around the target.
+         */
+        VBR,
+        /**
+         * Constant quality, the bitrate is only a hint.
+         */
+        CQ
+    }
+
+    private final Codec mCodec;
+    private final BitrateMode mBitrateMode;
+    private final int mWidth;
+    private final int mHeight;
+    private final int mBitRate;
+    private final int mFrameRate;
+    private final int mIFrameIntervalSeconds;
+    private final int mSegmentDurationSeconds;
+    private final long mSegmentSizeBytes;
+
+    /**
+     * @param codec                 The video codec
+     * @param bitrateMode           The rate control mode
+     * @param width                 The width of the encoded video
+     * @param height                The height of the encoded video
+     * @param bitRate               The target bitrate, in bits per second
+     * @param frameRate             The expected frame rate, in frames per second
+     * @param iFrameIntervalSeconds The time between two key frames, in seconds
+     */
+    EncoderConfig(Codec codec, BitrateMode bitrateMode, int width, int height, int bitRate,
+                  int frameRate, int iFrameIntervalSeconds) {
+        this(codec, bitrateMode, width, height, bitRate, frameRate, iFrameIntervalSeconds, 0, 0);
+    }
+
+    /**
+     * Creates a configuration that splits a recording into segments. A new segment is started at
+     * the first key frame after either limit is reached.
+     *
+     * @param segmentDurationSeconds The length of a segment, in seconds, or 0 for no limit
+     * @param segmentSizeBytes       The size of a segment, in bytes, or 0 for no limit
+     */
+    EncoderConfig(Codec codec, BitrateMode bitrateMode, int width, int height, int bitRate,
+                  int frameRate, int iFrameIntervalSeconds, int segmentDurationSeconds,
+                  long segmentSizeBytes) {
+        if (width <= 0 || height <= 0 || bitRate <= 0 || frameRate <= 0
+                || iFrameIntervalSeconds < 0 || segmentDurationSeconds < 0
+                || segmentSizeBytes < 0) {
+            throw new IllegalArgumentException("Invalid encoder configuration.");
+        }
+        mCodec = codec;
+        mBitrateMode = bitrateMode;
+        mWidth = width;
+        mHeight = height;
+        mBitRate = bitRate;
+        mFrameRate = frameRate;
+        mIFrameIntervalSeconds = iFrameIntervalSeconds;
+        mSegmentDurationSeconds = segmentDurationSeconds;
+        mSegmentSizeBytes = segmentSizeBytes;
+    }
+
+    /**
+     * Returns a copy of this configuration with another size, bitrate and frame rate.
+     */
+    EncoderConfig withQuality(int width, int height, int bitRate, int frameRate) {
+        return new EncoderConfig(mCodec, mBitrateMode, width, height, bitRate, frameRate,
+                mIFrameIntervalSeconds, mSegmentDurationSeconds, mSegmentSizeBytes);
+    }
+
+    Codec getCodec() {
+        return mCodec;
+    }
+
+    BitrateMode getBitrateMode() {
+        return mBitrateMode;
+    }
+
+    int getWidth() {
+        return mWidth;
+    }
+
+    int getHeight() {
+        return mHeight;
+    }
+
+    int getBitRate() {
+        return mBitRate;
+    }
+
+    int getFrameRate() {
+        return mFrameRate;
+    }
+
+    int getIFrameIntervalSeconds() {
+        return mIFrameIntervalSeconds;
+    }
+
+    int getSegmentDurationSeconds() {
+        return mSegmentDurationSeconds;
+    }
+
+    long getSegmentSizeBytes() {
+        return mSegmentSizeBytes;
+    }
+
+    boolean isSegmented() {
+        return mSegmentDurationSeconds > 0 || mSegmentSizeBytes > 0;
+    }
+
+    /**
+     * The size at which a segment is started, in bytes. A duration limit is turned into the size
+     * the target bitrate produces in that time. Returns 0 if the recording is not segmented.
+     */
+    long getSegmentSizeLimitBytes() {
+        long byDuration = (long) mSegmentDurationSeconds * mBitRate / 8;
+        if (byDuration == 0) {
+            return mSegmentSizeBytes;
+        }
+        return mSegmentSizeBytes == 0 ? byDuration : Math.min(byDuration, mSegmentSizeBytes);
+    }
+
+    @Override
+    public String toString() {
+        return mCodec + " " + mWidth + "x" + mHeight + " " + mBitrateMode + " "
+                + mBitRate / 1000 + " kbps " + mFrameRate + " fps, I-frame every "
+                + mIFrameIntervalSeconds + " s"
+                + (isSegmented() ? ", segments of " + mSegmentDurationSeconds + " s / "
+                + mSegmentSizeBytes / (1024 * 1024) + " MB" : "");
+    }
+
+}
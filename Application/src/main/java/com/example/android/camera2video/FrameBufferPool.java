@@ -0,0 +1,266 @@
+/*
+ * Copyright 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2video;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A pool of equally sized direct buffers for frames that have to outlive their image.
+ *
+ * An ImageReader only has a few images, and every image held by a slow consumer is one the
+ * camera cannot fill. A consumer that needs a frame for longer copies its plane into a buffer of
+ * the pool with {@link Buffer#copyPlane}, closes the image right away, and releases the buffer
+ * once it is done. Buffers are allocated on demand up to a maximum and kept for reuse, and
+ * {@link #trim} gives the free ones back when memory runs low.
+ *
+ * A buffer that is held longer than the leak timeout counts as leaked, {@link #describeLeaks}
+ * names the thread that acquired it. Acquiring, copying and releasing do not allocate once the
+ * pool has grown to its working size. All methods may be called from any thread.
+ */
+class FrameBufferPool {
+
+    /**
+     * A buffer of the pool. Closing it releases it.
+     */
+    static final class Buffer implements AutoCloseable {
+
+        private final FrameBufferPool mPool;
+        private final ByteBuffer mData;
+        private int mWidth;
+        private int mHeight;
+        // 0 while the buffer is in the pool
+        private long mAcquiredNanos;
+        private String mOwner;
+
+        private Buffer(FrameBufferPool pool, int capacity) {
+            mPool = pool;
+            mData = ByteBuffer.allocateDirect(capacity);
+        }
+
+        /**
+         * Copies a plane of {@code width} by {@code height} pixels into this buffer, packed to
+         * one byte per pixel and {@code width} bytes per row. Rows of a plane with a pixel stride
+         * of 1 are copied in bulk. The position and limit of {@code plane} are restored.
+         *
+         * @param plane       The plane, read from index 0 on
+         * @param rowStride   The distance between two rows of {@code plane}, in bytes
+         * @param pixelStride The distance between two pixels of {@code plane}, in bytes
+         */
+        void copyPlane(ByteBuffer plane, int rowStride, int pixelStride, int width, int height) {
+            if ((long) width * height > mData.capacity()) {
+                throw new IllegalArgumentException("The plane does not fit the buffer.");
+            }
+            mData.clear();
+            if (pixelStride == 1) {
+                int position = plane.position();
+                int limit = plane.limit();
+                if (rowStride == width) {
+                    plane.limit(width * height).position(0);
+                    mData.put(plane);
+                } else {
+                    for (int y = 0; y < height; y++) {
+                        int start = y * rowStride;
+                        plane.limit(start + width).position(start);
+                        mData.put(plane);
+                    }
+                }
+                plane.limit(limit).position(position);
+            } else {
+                for (int y = 0; y < height; y++) {
+                    int base = y * rowStride;
+                    for (int x = 0; x < width; x++) {
+                        mData.put(plane.get(base + x * pixelStride));
+                    }
+                }
+            }
+            mData.clear();
+            mWidth = width;
+            mHeight = height;
+        }
+
+        /**
+         * The memory of the buffer, with the copied plane from index 0 on.
+         */
+        ByteBuffer getData() {
+            return mData;
+        }
+
+        int getWidth() {
+            return mWidth;
+        }
+
+        int getHeight() {
+            return mHeight;
+        }
+
+        /**
+         * The distance between two rows of the copied plane, in bytes.
+         */
+        int getRowStride() {
+            return mWidth;
+        }
+
+        /**
+         * Returns this buffer to its pool.
+         *
+         * @throws IllegalStateException if it has already been released
+         */
+        void release() {
+            mPool.release(this);
+        }
+
+        @Override
+        public void close() {
+            release();
+        }
+
+        @Override
+        public String toString() {
+            return mData.capacity() / 1024 + " KiB held by " + mOwner + " for "
+                    + (System.nanoTime() - mAcquiredNanos) / 1000000 + " ms";
+        }
+
+    }
+
+    private final int mBufferBytes;
+    private final int mMaxBuffers;
+    private final long mLeakTimeoutNanos;
+
+    // Guarded by this
+    private final ArrayDeque<Buffer> mFree = new ArrayDeque<>();
+    private final List<Buffer> mAcquired = new ArrayList<>();
+    private int mHighWaterMark;
+    private long mAcquisitions;
+    private long mExhaustions;
+    private long mTrimmedBuffers;
+
+    /**
+     * @param bufferBytes      The size of each buffer, in bytes
+     * @param maxBuffers       The number of buffers that may exist at once
+     * @param leakTimeoutNanos The time after which a buffer that has not been released counts
+     *                         as leaked
+     */
+    FrameBufferPool(int bufferBytes, int maxBuffers, long leakTimeoutNanos) {
+        if (bufferBytes < 1 || maxBuffers < 1 || leakTimeoutNanos < 1) {
+            throw new IllegalArgumentException("Invalid pool configuration.");
+        }
+        mBufferBytes = bufferBytes;
+        mMaxBuffers = maxBuffers;
+        mLeakTimeoutNanos = leakTimeoutNanos;
+    }
+
+    /**
+     * Takes a buffer out of the pool, allocating one if none is free.
+     *
+     * @return The buffer, or null if {@code maxBuffers} are already held
+     */
+    Buffer acquire() {
+        Buffer buffer;
+        synchronized (this) {
+            buffer = mFree.pollFirst();
+            if (null == buffer && mAcquired.size() >= mMaxBuffers) {
+                mExhaustions++;
+                return null;
+            }
+            if (null == buffer) {
+                buffer = new Buffer(this, mBufferBytes);
+            }
+            buffer.mAcquiredNanos = System.nanoTime();
+            buffer.mOwner = Thread.currentThread().getName();
+            mAcquired.add(buffer);
+            mAcquisitions++;
+            mHighWaterMark = Math.max(mHighWaterMark, mAcquired.size());
+        }
+        return buffer;
+    }
+
+    private synchronized void release(Buffer buffer) {
+        if (buffer.mAcquiredNanos == 0 || !mAcquired.remove(buffer)) {
+            throw new IllegalStateException("Buffer released more often than acquired.");
+        }
+        buffer.mAcquiredNanos = 0;
+        buffer.mOwner = null;
+        // The most recently used buffer is handed out first, while its pages are still mapped
+        mFree.addFirst(buffer);
+    }
+
+    /**
+     * Drops free buffers until at most {@code keepFree} are left. Held buffers are not affected.
+     *
+     * @return The number of bytes given back
+     */
+    synchronized long trim(int keepFree) {
+        long bytes = 0;
+        while (mFree.size() > Math.max(0, keepFree)) {
+            mFree.pollLast();
+            mTrimmedBuffers++;
+            bytes += mBufferBytes;
+        }
+        return bytes;
+    }
+
+    /**
+     * Returns the buffers held longer than the leak timeout, one per line, or an empty string.
+     */
+    synchronized String describeLeaks() {
+        long now = System.nanoTime();
+        StringBuilder leaks = new StringBuilder();
+        for (Buffer buffer : mAcquired) {
+            if (now - buffer.mAcquiredNanos > mLeakTimeoutNanos) {
+                leaks.append(leaks.length() == 0 ? "" : "\n").append(buffer);
+            }
+        }
+        return leaks.toString();
+    }
+
+    int getBufferBytes() {
+        return mBufferBytes;
+    }
+
+    synchronized int getAcquiredBuffers() {
+        return mAcquired.size();
+    }
+
+    synchronized int getFreeBuffers() {
+        return mFree.size();
+    }
+
+    /**
+     * The largest number of buffers that have been held at once.
+     */
+    synchronized int getHighWaterMark() {
+        return mHighWaterMark;
+    }
+
+    /**
+     * The number of times no buffer could be acquired.
+     */
+    synchronized long getExhaustions() {
+        return mExhaustions;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "bufferKiB=" + mBufferBytes / 1024 + " acquired=" + mAcquired.size() + " free="
+                + mFree.size() + " highWaterMark=" + mHighWaterMark + " acquisitions="
+                + mAcquisitions + " exhaustions=" + mExhaustions + " trimmed=" + mTrimmedBuffers;
+    }
+
+}
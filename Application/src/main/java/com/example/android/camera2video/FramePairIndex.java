@@ -0,0 +1,129 @@
+/*
+ * Copyright 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2video;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Collects the frame pairs of a {@link FramePairer} while a recording runs, so the color video can
+ * be lined up with the mono frames afterwards.
+ *
+ * The pairs are kept as four longs each, in chunks of {@link #CHUNK_PAIRS} pairs. The chunks for
+ * the expected length of a recording are allocated when it starts, and a recording that outlasts
+ * them only adds a chunk, so the camera thread never copies the pairs it already has. Stopping
+ * hands the chunks over as {@link Pairs}, which are only formatted when they are written out. The
+ * lock is only contended while a recording starts or stops.
+ */
+class FramePairIndex implements FramePairer.Listener {
+
+    /**
+     * The pairs per chunk, 32 KiB of longs.
+     */
+    static final int CHUNK_PAIRS = 1024;
+
+    /**
+     * The pairs of a stopped recording, written as CSV with one pair per line after a header.
+     */
+    static final class Pairs implements RecordingStorage.Text {
+
+        private final List<long[]> mChunks;
+        private final int mCount;
+
+        Pairs(List<long[]> chunks, int count) {
+            mChunks = chunks;
+            mCount = count;
+        }
+
+        int getCount() {
+            return mCount;
+        }
+
+        @Override
+        public void writeTo(Writer out) throws IOException {
+            out.write("color_timestamp,color_frame,mono_timestamp,mono_frame\n");
+            StringBuilder line = new StringBuilder(80);
+            for (int pair = 0; pair < mCount; pair++) {
+                long[] chunk = mChunks.get(pair / CHUNK_PAIRS);
+                int i = 4 * (pair % CHUNK_PAIRS);
+                line.setLength(0);
+                line.append(chunk[i]).append(',').append(chunk[i + 1]).append(',')
+                        .append(chunk[i + 2]).append(',').append(chunk[i + 3]).append('\n');
+                out.append(line);
+            }
+        }
+
+    }
+
+    private List<long[]> mChunks = new ArrayList<>();
+    private int mCount;
+    private boolean mCollecting;
+
+    /**
+     * Drops the pairs collected so far and starts collecting.
+     *
+     * @param expectedPairs The pairs to allocate room for right away
+     */
+    synchronized void start(int expectedPairs) {
+        mChunks = new ArrayList<>();
+        for (int pairs = 0; pairs < expectedPairs; pairs += CHUNK_PAIRS) {
+            mChunks.add(new long[4 * CHUNK_PAIRS]);
+        }
+        mCount = 0;
+        mCollecting = true;
+    }
+
+    /**
+     * Stops collecting and returns the collected pairs, or null if it was not collecting.
+     */
+    synchronized Pairs stop() {
+        if (!mCollecting) {
+            return null;
+        }
+        mCollecting = false;
+        Pairs pairs = new Pairs(mChunks, mCount);
+        mChunks = new ArrayList<>();
+        mCount = 0;
+        return pairs;
+    }
+
+    synchronized int getCount() {
+        return mCount;
+    }
+
+    @Override
+    public synchronized void onFramesPaired(long colorTimestamp, long colorFrameNumber,
+                                            long monoTimestamp, long monoFrameNumber) {
+        if (!mCollecting) {
+            return;
+        }
+        int chunk = mCount / CHUNK_PAIRS;
+        if (chunk == mChunks.size()) {
+            mChunks.add(new long[4 * CHUNK_PAIRS]);
+        }
+        long[] pairs = mChunks.get(chunk);
+        int index = 4 * (mCount % CHUNK_PAIRS);
+        pairs[index] = colorTimestamp;
+        pairs[index + 1] = colorFrameNumber;
+        pairs[index + 2] = monoTimestamp;
+        pairs[index + 3] = monoFrameNumber;
+        mCount++;
+    }
+
+}
@@ -0,0 +1,249 @@
+/*
+ * Copyright 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2video;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pairs the frames of the color and the mono camera by their sensor timestamps.
+ *
+ * Each camera reports its frames from its own thread into its own single-producer ring. Whichever
+ * thread finds the matcher idle drains both rings, the other one just leaves a note that there is
+ * more work, so neither camera thread ever blocks on the other. Two frames are paired when their
+ * timestamps are at most the tolerance apart. A frame that is older than the other camera's
+ * oldest pending frame by more than the tolerance can no longer be paired and is counted as
+ * unmatched.
+ *
+ * Nothing is allocated per frame, so this can run inside the capture callbacks.
+ */
+class FramePairer {
+
+    /**
+     * Receives paired frames. Called on whichever camera thread is draining the rings.
+     */
+    interface Listener {
+
+        void onFramesPaired(long colorTimestamp, long colorFrameNumber,
+                            long monoTimestamp, long monoFrameNumber);
+
+    }
+
+    private final Ring mColor;
+    private final Ring mMono;
+    private final long mToleranceNs;
+    private volatile Listener mListener;
+
+    /**
+     * Whether a thread is draining the rings, plus the number of drain requests it has missed.
+     */
+    private final AtomicInteger mDrainRequests = new AtomicInteger();
+
+    // Statistics are written only by the draining thread and may be read from any thread.
+    private final AtomicLong mPairs = new AtomicLong();
+    private final AtomicLong mUnmatchedColor = new AtomicLong();
+    private final AtomicLong mUnmatchedMono = new AtomicLong();
+    private final AtomicLong mSkewSumNs = new AtomicLong();
+    private final AtomicLong mAbsSkewSumNs = new AtomicLong();
+    private final AtomicLong mMaxAbsSkewNs = new AtomicLong();
+    private final AtomicLong mLastSkewNs = new AtomicLong();
+
+    /**
+     * @param capacity    The number of pending frames kept per camera, rounded up to a power of two
+     * @param toleranceNs The largest timestamp difference of two frames that still form a pair
+     */
+    FramePairer(int capacity, long toleranceNs) {
+        if (capacity < 1 || toleranceNs < 0) {
+            throw new IllegalArgumentException("Invalid pairing configuration.");
+        }
+        mColor = new Ring(capacity);
+        mMono = new Ring(capacity);
+        mToleranceNs = toleranceNs;
+    }
+
+    void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Reports a frame of the color camera. Must always be called from the same thread.
+     */
+    void onColorFrame(long timestamp, long frameNumber) {
+        if (!mColor.offer(timestamp, frameNumber)) {
+            mUnmatchedColor.incrementAndGet();
+        }
+        drain();
+    }
+
+    /**
+     * Reports a frame of the mono camera. Must always be called from the same thread.
+     */
+    void onMonoFrame(long timestamp, long frameNumber) {
+        if (!mMono.offer(timestamp, frameNumber)) {
+            mUnmatchedMono.incrementAndGet();
+        }
+        drain();
+    }
+
+    private void drain() {
+        if (mDrainRequests.getAndIncrement() != 0) {
+            return;
+        }
+        int missed = 1;
+        while (true) {
+            match();
+            missed = mDrainRequests.addAndGet(-missed);
+            if (missed == 0) {
+                return;
+            }
+        }
+    }
+
+    private void match() {
+        while (!mColor.isEmpty() && !mMono.isEmpty()) {
+            long colorTimestamp = mColor.peekTimestamp();
+            long monoTimestamp = mMono.peekTimestamp();
+            long skew = colorTimestamp - monoTimestamp;
+            if (skew > mToleranceNs) {
+                mMono.poll();
+                mUnmatchedMono.incrementAndGet();
+            } else if (skew < -mToleranceNs) {
+                mColor.poll();
+                mUnmatchedColor.incrementAndGet();
+            } else {
+                long colorFrameNumber = mColor.peekFrameNumber();
+                long monoFrameNumber = mMono.peekFrameNumber();
+                mColor.poll();
+                mMono.poll();
+                recordPair(skew);
+                Listener listener = mListener;
+                if (null != listener) {
+                    listener.onFramesPaired(colorTimestamp, colorFrameNumber,
+                            monoTimestamp, monoFrameNumber);
+                }
+            }
+        }
+    }
+
+    private void recordPair(long skew) {
+        long absSkew = Math.abs(skew);
+        mPairs.lazySet(mPairs.get() + 1);
+        mSkewSumNs.lazySet(mSkewSumNs.get() + skew);
+        mAbsSkewSumNs.lazySet(mAbsSkewSumNs.get() + absSkew);
+        mLastSkewNs.lazySet(skew);
+        if (absSkew > mMaxAbsSkewNs.get()) {
+            mMaxAbsSkewNs.lazySet(absSkew);
+        }
+    }
+
+    long getPairCount() {
+        return mPairs.get();
+    }
+
+    long getUnmatchedColorCount() {
+        return mUnmatchedColor.get();
+    }
+
+    long getUnmatchedMonoCount() {
+        return mUnmatchedMono.get();
+    }
+
+    /**
+     * The mean of color minus mono timestamp over all pairs, in nanoseconds.
+     */
+    long getMeanSkewNs() {
+        long pairs = mPairs.get();
+        return pairs == 0 ? 0 : mSkewSumNs.get() / pairs;
+    }
+
+    long getMeanAbsSkewNs() {
+        long pairs = mPairs.get();
+        return pairs == 0 ? 0 : mAbsSkewSumNs.get() / pairs;
+    }
+
+    long getMaxAbsSkewNs() {
+        return mMaxAbsSkewNs.get();
+    }
+
+    long getLastSkewNs() {
+        return mLastSkewNs.get();
+    }
+
+    @Override
+    public String toString() {
+        return "pairs=" + getPairCount()
+                + " unmatchedColor=" + getUnmatchedColorCount()
+                + " unmatchedMono=" + getUnmatchedMonoCount()
+                + " meanSkewUs=" + getMeanSkewNs() / 1000
+                + " meanAbsSkewUs=" + getMeanAbsSkewNs() / 1000
+                + " maxAbsSkewUs=" + getMaxAbsSkewNs() / 1000;
+    }
+
+    /**
+     * A bounded single-producer, single-consumer queue of (timestamp, frame number) entries.
+     */
+    private static final class Ring {
+
+        private final long[] mTimestamps;
+        private final long[] mFrameNumbers;
+        private final int mMask;
+        // Written by the consumer, read by the producer.
+        private final AtomicLong mHead = new AtomicLong();
+        // Written by the producer, read by the consumer.
+        private final AtomicLong mTail = new AtomicLong();
+
+        Ring(int capacity) {
+            int size = Integer.highestOneBit(capacity);
+            if (size < capacity) {
+                size <<= 1;
+            }
+            mTimestamps = new long[size];
+            mFrameNumbers = new long[size];
+            mMask = size - 1;
+        }
+
+        boolean offer(long timestamp, long frameNumber) {
+            long tail = mTail.get();
+            if (tail - mHead.get() == mTimestamps.length) {
+                return false;
+            }
+            int index = (int) tail & mMask;
+            mTimestamps[index] = timestamp;
+            mFrameNumbers[index] = frameNumber;
+            mTail.lazySet(tail + 1);
+            return true;
+        }
+
+        boolean isEmpty() {
+            return mHead.get() == mTail.get();
+        }
+
+        long peekTimestamp() {
+            return mTimestamps[(int) mHead.get() & mMask];
+        }
+
+        long peekFrameNumber() {
+            return mFrameNumbers[(int) mHead.get() & mMask];
+        }
+
+        void poll() {
+            mHead.lazySet(mHead.get() + 1);
+        }
+
+    }
+
+}
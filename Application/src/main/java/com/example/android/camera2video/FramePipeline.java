@@ -0,0 +1,445 @@
+/*
+ * Copyright 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2video;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Fans every frame of a camera stream out to a set of {@link Analyzer}s.
+ *
+ * The plane {@link ByteBuffer}s of a {@link Frame} are handed to the analyzers as they are, no
+ * pixel data is copied. Each analyzer holds a reference on the frame while it is queued or
+ * running, and the underlying image is closed once the last reference is released.
+ *
+ * Analyzers run on a fixed pool of worker threads. Every analyzer has its own short queue, so a
+ * slow analyzer only drops its own frames and never blocks the thread that submits them.
+ */
+class FramePipeline {
+
+    /**
+     * What happens when an analyzer's queue is full.
+     */
+    enum DropPolicy {
+        /**
+         * The oldest queued frame is dropped, so the analyzer always sees the newest frame.
+         */
+        LATEST,
+        /**
+         * The incoming frame is dropped, so the analyzer sees frames in arrival order.
+         */
+        FIFO
+    }
+
+    /**
+     * A consumer of frames. {@link #analyze(Frame)} runs on a pipeline worker thread and frames
+     * are delivered to one analyzer in submission order, one at a time.
+     */
+    interface Analyzer {
+
+        /**
+         * Processes a frame. The frame and its planes are only valid until this method returns,
+         * unless the analyzer takes its own reference with {@link Frame#retain()}.
+         */
+        void analyze(Frame frame);
+
+    }
+
+    /**
+     * A reference-counted view on the planes of one image.
+     */
+    static final class Frame {
+
+        private final AutoCloseable mOwner;
+        private final ByteBuffer[] mPlanes;
+        private final int[] mRowStrides;
+        private final int[] mPixelStrides;
+        private final int mWidth;
+        private final int mHeight;
+        private final long mTimestamp;
+        private final AtomicInteger mRefCount = new AtomicInteger(1);
+
+        /**
+         * Wraps the planes of an image. The new frame holds a single reference, and {@code owner}
+         * is closed once every reference has been released.
+         *
+         * @param owner        The object that owns the plane memory, usually an Image
+         * @param planes       The plane buffers
+         * @param rowStrides   The row stride of each plane, in bytes
+         * @param pixelStrides The pixel stride of each plane, in bytes
+         * @param width        The width of the first plane, in pixels
+         * @param height       The height of the first plane, in pixels
+         * @param timestamp    The sensor timestamp of the frame, in nanoseconds
+         */
+        Frame(AutoCloseable owner, ByteBuffer[] planes, int[] rowStrides, int[] pixelStrides,
+              int width, int height, long timestamp) {
+            mOwner = owner;
+            mPlanes = planes;
+            mRowStrides = rowStrides;
+            mPixelStrides = pixelStrides;
+            mWidth = width;
+            mHeight = height;
+            mTimestamp = timestamp;
+        }
+
+        int getPlaneCount() {
+            return mPlanes.length;
+        }
+
+        /**
+         * Returns plane {@code index}. The buffer shares its memory with the image but has its own
+         * position and limit, so analyzers running at the same time do not disturb each other.
+         */
+        ByteBuffer getPlane(int index) {
+            return mPlanes[index].duplicate();
+        }
+
+        int getRowStride(int index) {
+            return mRowStrides[index];
+        }
+
+        int getPixelStride(int index) {
+            return mPixelStrides[index];
+        }
+
+        /**
+         * Copies row {@code y} of plane {@code index} into {@code row} from {@code offset} on,
+         * one byte per pixel. The plane is read with absolute indices, so nothing is allocated
+         * and other readers of the plane are not disturbed.
+         */
+        void readRow(int index, int y, byte[] row, int offset, int width) {
+            ByteBuffer plane = mPlanes[index];
+            int pixelStride = mPixelStrides[index];
+            int base = y * mRowStrides[index];
+            for (int x = 0; x < width; x++) {
+                row[offset + x] = plane.get(base + x * pixelStride);
+            }
+        }
+
+        /**
+         * Copies {@code rowCount} rows of plane {@code index} from row {@code firstRow} on into
+         * {@code rows}, packed to {@code width} bytes each. A plane with a pixel stride of 1 is
+         * copied in bulk through a single duplicate of its buffer, which is much faster than
+         * {@link #readRow} at the cost of that one allocation.
+         */
+        void readRows(int index, int firstRow, int rowCount, byte[] rows, int width) {
+            if (mPixelStrides[index] != 1) {
+                for (int y = 0; y < rowCount; y++) {
+                    readRow(index, firstRow + y, rows, y * width, width);
+                }
+                return;
+            }
+            ByteBuffer plane = mPlanes[index].duplicate();
+            int rowStride = mRowStrides[index];
+            for (int y = 0; y < rowCount; y++) {
+                plane.position((firstRow + y) * rowStride);
+                plane.get(rows, y * width, width);
+            }
+        }
+
+        int getWidth() {
+            return mWidth;
+        }
+
+        int getHeight() {
+            return mHeight;
+        }
+
+        long getTimestamp() {
+            return mTimestamp;
+        }
+
+        /**
+         * Takes an additional reference on this frame.
+         *
+         * @return This frame
+         * @throws IllegalStateException if the frame has already been closed
+         */
+        Frame retain() {
+            while (true) {
+                int count = mRefCount.get();
+                if (count <= 0) {
+                    throw new IllegalStateException("Frame has already been closed.");
+                }
+                if (mRefCount.compareAndSet(count, count + 1)) {
+                    return this;
+                }
+            }
+        }
+
+        /**
+         * Drops one reference on this frame, closing the owner when it was the last one.
+         */
+        void release() {
+            int count = mRefCount.decrementAndGet();
+            if (count == 0) {
+                try {
+                    mOwner.close();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            } else if (count < 0) {
+                throw new IllegalStateException("Frame released more often than retained.");
+            }
+        }
+
+    }
+
+    private final int mMaxFramesInFlight;
+    private final int mQueueDepth;
+    private final DropPolicy mDropPolicy;
+    private final ThreadPoolExecutor mExecutor;
+    private final List<AnalyzerSlot> mSlots = new CopyOnWriteArrayList<>();
+
+    private final AtomicInteger mFramesInFlight = new AtomicInteger();
+    private final AtomicLong mSubmittedFrames = new AtomicLong();
+    private final AtomicLong mRejectedFrames = new AtomicLong();
+    private final AtomicLong mDroppedDeliveries = new AtomicLong();
+    private final AtomicLong mCompletedDeliveries = new AtomicLong();
+
+    /**
+     * @param maxFramesInFlight The number of frames that may be held at once. This must stay below
+     *                          the image count of the producing ImageReader.
+     * @param workerThreads     The number of threads the analyzers run on
+     * @param queueDepth        The number of frames queued per analyzer, not counting the one it
+     *                          is working on
+     * @param dropPolicy        Which frame to drop when an analyzer's queue is full
+     */
+    FramePipeline(int maxFramesInFlight, int workerThreads, int queueDepth,
+                  DropPolicy dropPolicy) {
+        if (maxFramesInFlight < 1 || workerThreads < 1 || queueDepth < 1) {
+            throw new IllegalArgumentException("Pipeline limits must be positive.");
+        }
+        mMaxFramesInFlight = maxFramesInFlight;
+        mQueueDepth = queueDepth;
+        mDropPolicy = dropPolicy;
+        // Each analyzer has at most one task scheduled at a time, so the task queue is bounded by
+        // the number of analyzers even though the executor's queue is not.
+        mExecutor = new ThreadPoolExecutor(workerThreads, workerThreads, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable,
+                        "FramePipeline " + mCount.getAndIncrement());
+                thread.setPriority(Thread.NORM_PRIORITY - 1);
+                return thread;
+            }
+        });
+    }
+
+    void addAnalyzer(Analyzer analyzer) {
+        mSlots.add(new AnalyzerSlot(analyzer));
+    }
+
+    void removeAnalyzer(Analyzer analyzer) {
+        for (AnalyzerSlot slot : mSlots) {
+            if (slot.mAnalyzer == analyzer) {
+                mSlots.remove(slot);
+                slot.clear();
+            }
+        }
+    }
+
+    /**
+     * Delivers a frame to every analyzer. The pipeline takes over the caller's reference, so the
+     * caller must not release the frame afterwards.
+     *
+     * @return Whether the frame was accepted. A rejected frame has already been released.
+     */
+    boolean submit(Frame frame) {
+        mSubmittedFrames.incrementAndGet();
+        if (mExecutor.isShutdown()) {
+            return reject(frame);
+        }
+        if (mFramesInFlight.incrementAndGet() > mMaxFramesInFlight) {
+            mFramesInFlight.decrementAndGet();
+            return reject(frame);
+        }
+        // Analyzers share a wrapper whose close frees the in-flight slot before it releases the
+        // caller's frame.
+        Frame tracked = new TrackedFrame(frame).mFrame;
+        for (AnalyzerSlot slot : mSlots) {
+            slot.offer(tracked.retain());
+        }
+        tracked.release();
+        return true;
+    }
+
+    private boolean reject(Frame frame) {
+        mRejectedFrames.incrementAndGet();
+        frame.release();
+        return false;
+    }
+
+    /**
+     * Stops the workers and releases every queued frame. Frames submitted afterwards are rejected.
+     */
+    void shutdown() {
+        mExecutor.shutdown();
+        for (AnalyzerSlot slot : mSlots) {
+            slot.clear();
+        }
+        try {
+            mExecutor.awaitTermination(500, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    int getFramesInFlight() {
+        return mFramesInFlight.get();
+    }
+
+    long getSubmittedFrames() {
+        return mSubmittedFrames.get();
+    }
+
+    /**
+     * The number of frames rejected because the pipeline was full or shut down.
+     */
+    long getRejectedFrames() {
+        return mRejectedFrames.get();
+    }
+
+    /**
+     * The number of times a frame was dropped from an analyzer's queue.
+     */
+    long getDroppedDeliveries() {
+        return mDroppedDeliveries.get();
+    }
+
+    long getCompletedDeliveries() {
+        return mCompletedDeliveries.get();
+    }
+
+    /**
+     * Wraps a submitted frame so that closing it also frees its in-flight slot.
+     */
+    private final class TrackedFrame implements AutoCloseable {
+
+        final Frame mFrame;
+        private final Frame mSource;
+
+        TrackedFrame(Frame source) {
+            mSource = source;
+            mFrame = new Frame(this, source.mPlanes, source.mRowStrides, source.mPixelStrides,
+                    source.mWidth, source.mHeight, source.mTimestamp);
+        }
+
+        @Override
+        public void close() {
+            mFramesInFlight.decrementAndGet();
+            mSource.release();
+        }
+
+    }
+
+    /**
+     * The queue and scheduling state of one analyzer.
+     */
+    private final class AnalyzerSlot implements Runnable {
+
+        final Analyzer mAnalyzer;
+        private final ArrayDeque<Frame> mPending = new ArrayDeque<>();
+        private boolean mScheduled;
+
+        AnalyzerSlot(Analyzer analyzer) {
+            mAnalyzer = analyzer;
+        }
+
+        void offer(Frame frame) {
+            Frame dropped = null;
+            boolean schedule = false;
+            synchronized (this) {
+                if (mPending.size() >= mQueueDepth) {
+                    if (mDropPolicy == DropPolicy.LATEST) {
+                        dropped = mPending.pollFirst();
+                        mPending.addLast(frame);
+                    } else {
+                        dropped = frame;
+                    }
+                } else {
+                    mPending.addLast(frame);
+                }
+                if (!mScheduled) {
+                    mScheduled = true;
+                    schedule = true;
+                }
+            }
+            if (null != dropped) {
+                mDroppedDeliveries.incrementAndGet();
+                dropped.release();
+            }
+            if (schedule) {
+                try {
+                    mExecutor.execute(this);
+                } catch (RejectedExecutionException e) {
+                    clear();
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                Frame frame;
+                synchronized (this) {
+                    frame = mPending.pollFirst();
+                    if (null == frame) {
+                        mScheduled = false;
+                        return;
+                    }
+                }
+                try {
+                    mAnalyzer.analyze(frame);
+                    mCompletedDeliveries.incrementAndGet();
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                } finally {
+                    frame.release();
+                }
+            }
+        }
+
+        void clear() {
+            while (true) {
+                Frame frame;
+                synchronized (this) {
+                    frame = mPending.pollFirst();
+                    if (null == frame) {
+                        return;
+                    }
+                }
+                mDroppedDeliveries.incrementAndGet();
+                frame.release();
+            }
+        }
+
+    }
+
+}
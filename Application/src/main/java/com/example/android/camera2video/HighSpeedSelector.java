@@ -0,0 +1,165 @@
+/*
+ * Copyright 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2video;
+
+import android.util.Size;
+
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Chooses the size and frame rates of a constrained high-speed session.
+ *
+ * High-speed sessions only take up to two outputs of the same size, a preview and an encoder,
+ * and only run the sizes and frame rate ranges the camera lists for them. While recording the
+ * range must be fixed. The preview may use a range that starts lower, which the camera lists
+ * separately. The selector only reads a {@link StreamCapabilities} snapshot, so it can be checked
+ * against any capability table.
+ */
+final class HighSpeedSelector {
+
+    private HighSpeedSelector() {
+    }
+
+    /**
+     * The outcome of {@link #choose}: either a high-speed configuration, or the reason why the
+     * camera has to stay at its normal frame rate.
+     */
+    static final class Selection {
+
+        private final StreamCapabilities.HighSpeedConfig mRecord;
+        private final StreamCapabilities.HighSpeedConfig mPreview;
+        private final String mReason;
+
+        private Selection(StreamCapabilities.HighSpeedConfig record,
+                          StreamCapabilities.HighSpeedConfig preview, String reason) {
+            mRecord = record;
+            mPreview = preview;
+            mReason = reason;
+        }
+
+        boolean isHighSpeed() {
+            return null != mRecord;
+        }
+
+        /**
+         * The size of both the preview and the encoder.
+         */
+        Size getSize() {
+            return mRecord.getSize();
+        }
+
+        int getFrameRate() {
+            return mRecord.getMaxFps();
+        }
+
+        /**
+         * The fixed range requests that feed the encoder use.
+         */
+        StreamCapabilities.HighSpeedConfig getRecordConfig() {
+            return mRecord;
+        }
+
+        /**
+         * The range requests that only feed the preview use.
+         */
+        StreamCapabilities.HighSpeedConfig getPreviewConfig() {
+            return mPreview;
+        }
+
+        /**
+         * Why the camera stays at its normal frame rate, or null.
+         */
+        String getReason() {
+            return mReason;
+        }
+
+        @Override
+        public String toString() {
+            return isHighSpeed() ? "high speed " + getSize() + " at " + getFrameRate()
+                    + " fps, preview " + mPreview : "normal speed: " + mReason;
+        }
+
+    }
+
+    /**
+     * Chooses the largest high-speed size at {@code frameRate}, or at the highest rate below it
+     * if the camera does not reach it. The size keeps the aspect ratio of {@code maxSize}, like
+     * the sizes {@link StreamConfigResolver} chooses.
+     *
+     * @param streams   The outputs of the camera
+     * @param targets   The streams the camera runs. High-speed sessions can only run a preview
+     *                  and an encoder.
+     * @param frameRate The desired frame rate
+     * @param maxSize   The largest size to record at, with the aspect ratio to record at
+     */
+    static Selection choose(StreamCapabilities streams, Set<StreamCapabilities.Target> targets,
+                            int frameRate, Size maxSize) {
+        if (targets.contains(StreamCapabilities.Target.ANALYSIS)) {
+            return new Selection(null, null, "the " + StreamCapabilities.Target.ANALYSIS
+                    + " stream is not allowed in high-speed sessions");
+        }
+        if (streams.getHighSpeedConfigs().isEmpty()) {
+            return new Selection(null, null, "camera " + streams.getCameraId()
+                    + " has no constrained high-speed configurations");
+        }
+        StreamCapabilities.HighSpeedConfig record = null;
+        Set<Integer> rates = new TreeSet<>();
+        for (StreamCapabilities.HighSpeedConfig config : streams.getHighSpeedConfigs()) {
+            Size size = config.getSize();
+            if (!config.isFixed() || !hasAspectRatio(size, maxSize)
+                    || size.getWidth() > maxSize.getWidth()
+                    || size.getHeight() > maxSize.getHeight()) {
+                continue;
+            }
+            rates.add(config.getMaxFps());
+            if (config.getMaxFps() > frameRate) {
+                continue;
+            }
+            if (null == record || config.getMaxFps() > record.getMaxFps()
+                    || (config.getMaxFps() == record.getMaxFps()
+                    && area(size) > area(record.getSize()))) {
+                record = config;
+            }
+        }
+        if (null == record) {
+            return new Selection(null, null, "camera " + streams.getCameraId()
+                    + " has no fixed high-speed range up to " + frameRate + " fps within "
+                    + maxSize + " and its aspect ratio, only " + rates);
+        }
+        // The preview may ramp up from a lower rate, if the camera lists such a range
+        StreamCapabilities.HighSpeedConfig preview = record;
+        for (StreamCapabilities.HighSpeedConfig config : streams.getHighSpeedConfigs()) {
+            if (config.getSize().equals(record.getSize())
+                    && config.getMaxFps() == record.getMaxFps()
+                    && config.getMinFps() < preview.getMinFps()) {
+                preview = config;
+            }
+        }
+        return new Selection(record, preview, null);
+    }
+
+    private static boolean hasAspectRatio(Size size, Size reference) {
+        return (long) size.getWidth() * reference.getHeight()
+                == (long) size.getHeight() * reference.getWidth();
+    }
+
+    private static long area(Size size) {
+        return (long) size.getWidth() * size.getHeight();
+    }
+
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2video;
+
+/**
+ * Picks the image format the analysis stream of a camera is read in.
+ *
+ * The analyzers only ever read the luma of a frame, so the cheapest format with an 8-bit luma
+ * plane wins. Y8 has nothing else; YUV_420_888 adds two chroma planes that take half as much
+ * memory and bandwidth again, and that a mono camera fills with a constant. The RAW formats are
+ * not considered: their samples are wider than 8 bits or packed, and skip the processing that
+ * the luma of the other formats went through.
+ *
+ * The formats are plain ints, so the choice can be made against any list of formats.
+ */
+final class LumaFormat {
+
+    /**
+     * {@code ImageFormat.Y8}, which the framework only names from API 29 on.
+     */
+    static final int Y8 = 0x20203859;
+
+    /**
+     * {@code ImageFormat.YUV_420_888}, which every camera supports.
+     */
+    static final int YUV_420_888 = 0x23;
+
+    /**
+     * The formats in the order they are preferred.
+     */
+    private static final int[] PREFERENCE = {Y8, YUV_420_888};
+
+    private LumaFormat() {
+    }
+
+    /**
+     * Returns the preferred format of those in {@code outputFormats}, or -1 if none of them has a
+     * usable luma plane.
+     */
+    static int choose(int[] outputFormats) {
+        return choose(outputFormats, PREFERENCE);
+    }
+
+    /**
+     * Returns the first format of {@code preference} that is in {@code outputFormats}, or -1.
+     */
+    static int choose(int[] outputFormats, int[] preference) {
+        if (null == outputFormats) {
+            return -1;
+        }
+        for (int format : preference) {
+            for (int available : outputFormats) {
+                if (available == format) {
+                    return format;
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the bytes a frame of {@code width} by {@code height} takes in {@code format},
+     * without row padding.
+     */
+    static long getFrameBytes(int format, int width, int height) {
+        long pixels = (long) width * height;
+        return format == YUV_420_888 ? pixels * 3 / 2 : pixels;
+    }
+
+    static String getName(int format) {
+        switch (format) {
+            case Y8:
+                return "Y8";
+            case YUV_420_888:
+                return "YUV_420_888";
+            default:
+                return "0x" + Integer.toHexString(format);
+        }
+    }
+
+}
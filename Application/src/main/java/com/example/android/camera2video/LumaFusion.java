@@ -0,0 +1,263 @@
+/*
+ * Copyright 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2video;
+
+import java.nio.ByteBuffer;
+import java.util.Locale;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Fuses the luma of a color frame with the plane of a mono frame of the same moment.
+ *
+ * The mono sensor sees the scene without a color filter, so its plane has less noise. It is first
+ * scaled to the brightness of the color luma, and then blended into it with a fixed weight. Both
+ * planes must have the same size and be registered to each other.
+ *
+ * The rows are split into bands that run on a {@link ForkJoinPool}. Each worker reads its rows into
+ * scratch arrays it keeps across frames, so nothing is allocated per pixel or per row, and any row
+ * and pixel stride is handled.
+ *
+ * The app does not fuse yet: the color camera only streams to the preview and the encoder, so
+ * there are no color planes to fuse into. Until it has a YUV stream, the engine only runs in
+ * {@code LumaFusionBenchmark}.
+ */
+class LumaFusion {
+
+    /**
+     * The throughput one core should reach on 3840x2160 planes, in frames per second. Two 30 fps
+     * streams then need no more than three cores.
+     */
+    static final double TARGET_4K_FRAMES_PER_SECOND_PER_CORE = 10;
+
+    /**
+     * The step between the pixels sampled to match the brightness of the two planes.
+     */
+    private static final int MEAN_SAMPLE_STEP = 8;
+
+    private final ForkJoinPool mPool;
+    private final int mBandRows;
+    private final int mMonoWeight;
+
+    private final ThreadLocal<byte[][]> mScratch = new ThreadLocal<>();
+
+    private final AtomicLong mFusedFrames = new AtomicLong();
+    private final AtomicLong mFusedPixels = new AtomicLong();
+    private final AtomicLong mFusionNanos = new AtomicLong();
+
+    /**
+     * @param pool       The pool the bands run on
+     * @param bandRows   The number of rows a single task works on
+     * @param monoWeight The share of the mono plane in the result, from 0 to 256
+     */
+    LumaFusion(ForkJoinPool pool, int bandRows, int monoWeight) {
+        if (bandRows < 1 || monoWeight < 0 || monoWeight > 256) {
+            throw new IllegalArgumentException("Invalid fusion configuration.");
+        }
+        mPool = pool;
+        mBandRows = bandRows;
+        mMonoWeight = monoWeight;
+    }
+
+    /**
+     * Fuses the first plane of {@code color} with the first plane of {@code mono}.
+     *
+     * @param out          The buffer the fused plane is written to, from index 0 on
+     * @param outRowStride The distance between two rows in {@code out}, in bytes
+     */
+    void fuse(FramePipeline.Frame color, FramePipeline.Frame mono, ByteBuffer out,
+              int outRowStride) {
+        if (color.getWidth() != mono.getWidth() || color.getHeight() != mono.getHeight()) {
+            throw new IllegalArgumentException("Color and mono frames differ in size.");
+        }
+        fuse(color.getPlane(0), color.getRowStride(0), color.getPixelStride(0),
+                mono.getPlane(0), mono.getRowStride(0), mono.getPixelStride(0),
+                color.getWidth(), color.getHeight(), out, outRowStride);
+    }
+
+    /**
+     * Fuses two luma planes. Plane buffers are read with absolute indices from 0, so their
+     * position and limit are left alone.
+     */
+    void fuse(ByteBuffer color, int colorRowStride, int colorPixelStride,
+              ByteBuffer mono, int monoRowStride, int monoPixelStride,
+              int width, int height, ByteBuffer out, int outRowStride) {
+        long start = System.nanoTime();
+        Plane colorPlane = new Plane(color, colorRowStride, colorPixelStride);
+        Plane monoPlane = new Plane(mono, monoRowStride, monoPixelStride);
+        int gain = matchGain(colorPlane, monoPlane, width, height);
+        mPool.invoke(new Band(colorPlane, monoPlane, out, outRowStride, width, gain, 0, height));
+        mFusionNanos.addAndGet(System.nanoTime() - start);
+        mFusedFrames.incrementAndGet();
+        mFusedPixels.addAndGet((long) width * height);
+    }
+
+    /**
+     * Returns the factor that scales the mono plane to the mean brightness of the color plane, in
+     * units of 1/256.
+     */
+    private static int matchGain(Plane color, Plane mono, int width, int height) {
+        long colorSum = 0;
+        long monoSum = 0;
+        for (int y = 0; y < height; y += MEAN_SAMPLE_STEP) {
+            for (int x = 0; x < width; x += MEAN_SAMPLE_STEP) {
+                colorSum += color.get(x, y);
+                monoSum += mono.get(x, y);
+            }
+        }
+        if (monoSum == 0) {
+            return 256;
+        }
+        return (int) Math.max(64, Math.min(1024, (colorSum << 8) / monoSum));
+    }
+
+    long getFusedFrames() {
+        return mFusedFrames.get();
+    }
+
+    /**
+     * The measured throughput, scaled to 3840x2160 frames per second on one core of the pool. A
+     * pool with more threads than the device has cores only counts the cores.
+     */
+    double get4KFramesPerSecondPerCore() {
+        long nanos = mFusionNanos.get();
+        if (nanos == 0) {
+            return 0;
+        }
+        double framesOf4K = mFusedPixels.get() / (3840.0 * 2160.0);
+        int cores = Math.min(mPool.getParallelism(), Runtime.getRuntime().availableProcessors());
+        return framesOf4K * 1e9 / nanos / cores;
+    }
+
+    boolean meetsTarget() {
+        return get4KFramesPerSecondPerCore() >= TARGET_4K_FRAMES_PER_SECOND_PER_CORE;
+    }
+
+    @Override
+    public String toString() {
+        return "frames=" + getFusedFrames() + " 4kFpsPerCore="
+                + String.format(Locale.US, "%.1f", get4KFramesPerSecondPerCore())
+                + " target=" + TARGET_4K_FRAMES_PER_SECOND_PER_CORE;
+    }
+
+    /**
+     * Returns two rows of {@code width} bytes for the calling worker.
+     */
+    private byte[][] scratch(int width) {
+        byte[][] rows = mScratch.get();
+        if (null == rows || rows[0].length < width) {
+            rows = new byte[][]{new byte[width], new byte[width]};
+            mScratch.set(rows);
+        }
+        return rows;
+    }
+
+    /**
+     * One plane and its layout.
+     */
+    private static final class Plane {
+
+        final ByteBuffer mBuffer;
+        final int mRowStride;
+        final int mPixelStride;
+
+        Plane(ByteBuffer buffer, int rowStride, int pixelStride) {
+            mBuffer = buffer;
+            mRowStride = rowStride;
+            mPixelStride = pixelStride;
+        }
+
+        int get(int x, int y) {
+            return mBuffer.get(y * mRowStride + x * mPixelStride) & 0xff;
+        }
+
+        /**
+         * Copies row {@code y} into {@code row}, one byte per pixel.
+         */
+        void readRow(int y, byte[] row, int width) {
+            int base = y * mRowStride;
+            for (int x = 0; x < width; x++) {
+                row[x] = mBuffer.get(base + x * mPixelStride);
+            }
+        }
+
+    }
+
+    /**
+     * Fuses the rows from {@code mStart} up to {@code mEnd}, splitting itself while the range is
+     * larger than one band.
+     */
+    private final class Band extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Plane mColor;
+        private final Plane mMono;
+        private final ByteBuffer mOut;
+        private final int mOutRowStride;
+        private final int mWidth;
+        private final int mGain;
+        private final int mStart;
+        private final int mEnd;
+
+        Band(Plane color, Plane mono, ByteBuffer out, int outRowStride, int width, int gain,
+             int start, int end) {
+            mColor = color;
+            mMono = mono;
+            mOut = out;
+            mOutRowStride = outRowStride;
+            mWidth = width;
+            mGain = gain;
+            mStart = start;
+            mEnd = end;
+        }
+
+        @Override
+        protected void compute() {
+            if (mEnd - mStart > mBandRows) {
+                int middle = (mStart + mEnd) >>> 1;
+                invokeAll(new Band(mColor, mMono, mOut, mOutRowStride, mWidth, mGain, mStart,
+                                middle),
+                        new Band(mColor, mMono, mOut, mOutRowStride, mWidth, mGain, middle,
+                                mEnd));
+                return;
+            }
+            byte[][] rows = scratch(mWidth);
+            byte[] colorRow = rows[0];
+            byte[] monoRow = rows[1];
+            int monoWeight = mMonoWeight;
+            int colorWeight = 256 - monoWeight;
+            for (int y = mStart; y < mEnd; y++) {
+                mColor.readRow(y, colorRow, mWidth);
+                mMono.readRow(y, monoRow, mWidth);
+                for (int x = 0; x < mWidth; x++) {
+                    int c = colorRow[x] & 0xff;
+                    int m = Math.min(255, ((monoRow[x] & 0xff) * mGain) >> 8);
+                    // The fused value is written back into the color row
+                    colorRow[x] = (byte) ((colorWeight * c + monoWeight * m) >> 8);
+                }
+                int base = y * mOutRowStride;
+                for (int x = 0; x < mWidth; x++) {
+                    mOut.put(base + x, colorRow[x]);
+                }
+            }
+        }
+
+    }
+
+}
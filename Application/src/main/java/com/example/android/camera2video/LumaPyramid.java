@@ -0,0 +1,363 @@
+/*
+ * Copyright 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2video;
+
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Builds a pyramid of downscaled luma levels from every frame of a stream, so each analyzer can
+ * work on the coarsest level that suits it instead of the full frame.
+ *
+ * Level {@code i} has {@code 1 / 2^(i + 1)} of the width and height of the frame, down to
+ * {@link #LEVEL_COUNT} levels, and every pixel is the mean of a 2x2 block of the level above. The
+ * levels are kept in arrays that are reused across frames. Their rows are split into bands that
+ * run on a {@link ForkJoinPool}, like {@link LumaFusion}.
+ *
+ * The time each level takes is measured. A frame that takes longer than the budget makes the
+ * pyramid skip as many of the following frames as it overran by, so on a slow device the
+ * analyzers run at a lower rate instead of falling further behind.
+ *
+ * Without analyzers nothing is built, unless the pyramid is {@link #setMeasuring measuring}: it
+ * then builds every frame it would not skip, so its cost on a device is known before anything
+ * consumes it.
+ */
+class LumaPyramid implements FramePipeline.Analyzer {
+
+    /**
+     * The number of levels: 1/2, 1/4 and 1/8 of the frame size.
+     */
+    static final int LEVEL_COUNT = 3;
+
+    /**
+     * The default time all levels of one frame may take, in nanoseconds. A third of a frame at
+     * 30 fps.
+     */
+    static final long DEFAULT_BUDGET_NANOS = 11_000_000L;
+
+    /**
+     * A consumer of the pyramid.
+     */
+    interface Analyzer {
+
+        /**
+         * The smallest width the analyzer can work with. It is given the coarsest level that is
+         * at least this wide.
+         */
+        int getMinWidth();
+
+        /**
+         * Processes a level. The level is only valid until this method returns, its data is
+         * overwritten by the next frame.
+         *
+         * @param timestamp The sensor timestamp of the frame, in nanoseconds
+         */
+        void analyze(Level level, long timestamp);
+
+    }
+
+    /**
+     * One level of the pyramid. Rows are {@link #getWidth()} bytes long and follow each other
+     * without padding.
+     */
+    static final class Level {
+
+        private final int mIndex;
+        private final int mWidth;
+        private final int mHeight;
+        private final byte[] mData;
+
+        Level(int index, int width, int height) {
+            mIndex = index;
+            mWidth = width;
+            mHeight = height;
+            mData = new byte[width * height];
+        }
+
+        /**
+         * The factor the frame was scaled down by.
+         */
+        int getScale() {
+            return 2 << mIndex;
+        }
+
+        int getWidth() {
+            return mWidth;
+        }
+
+        int getHeight() {
+            return mHeight;
+        }
+
+        byte[] getData() {
+            return mData;
+        }
+
+    }
+
+    private final ForkJoinPool mPool;
+    private final int mBandRows;
+    private final long mBudgetNanos;
+    private final List<Analyzer> mAnalyzers = new CopyOnWriteArrayList<>();
+    private volatile boolean mMeasuring;
+
+    private final ThreadLocal<byte[]> mScratch = new ThreadLocal<>();
+
+    // Only touched by the thread that runs analyze(), one frame at a time
+    private Level[] mLevels;
+    private int mFrameWidth;
+    private int mFrameHeight;
+    private int mFramesToSkip;
+
+    private final AtomicLong mBuiltFrames = new AtomicLong();
+    private final AtomicLong mSkippedFrames = new AtomicLong();
+    private final AtomicLong mOverBudgetFrames = new AtomicLong();
+    private final AtomicLongArray mLevelNanos = new AtomicLongArray(LEVEL_COUNT);
+
+    /**
+     * @param pool        The pool the bands run on
+     * @param bandRows    The number of rows of a level a single task works on
+     * @param budgetNanos The time all levels of one frame may take
+     */
+    LumaPyramid(ForkJoinPool pool, int bandRows, long budgetNanos) {
+        if (bandRows < 1 || budgetNanos < 1) {
+            throw new IllegalArgumentException("Invalid pyramid configuration.");
+        }
+        mPool = pool;
+        mBandRows = bandRows;
+        mBudgetNanos = budgetNanos;
+    }
+
+    void addAnalyzer(Analyzer analyzer) {
+        mAnalyzers.add(analyzer);
+    }
+
+    void removeAnalyzer(Analyzer analyzer) {
+        mAnalyzers.remove(analyzer);
+    }
+
+    /**
+     * Sets whether the levels are built even when no analyzer consumes them.
+     */
+    void setMeasuring(boolean measuring) {
+        mMeasuring = measuring;
+    }
+
+    @Override
+    public void analyze(FramePipeline.Frame frame) {
+        if (mAnalyzers.isEmpty() && !mMeasuring) {
+            return;
+        }
+        if (mFramesToSkip > 0) {
+            mFramesToSkip--;
+            mSkippedFrames.incrementAndGet();
+            return;
+        }
+        build(frame);
+        for (Analyzer analyzer : mAnalyzers) {
+            analyzer.analyze(getLevel(analyzer.getMinWidth()), frame.getTimestamp());
+        }
+    }
+
+    /**
+     * Builds every level from the first plane of {@code frame}.
+     */
+    void build(FramePipeline.Frame frame) {
+        if (null == mLevels || frame.getWidth() != mFrameWidth
+                || frame.getHeight() != mFrameHeight) {
+            allocate(frame.getWidth(), frame.getHeight());
+        }
+        long total = 0;
+        for (int i = 0; i < LEVEL_COUNT; i++) {
+            long start = System.nanoTime();
+            mPool.invoke(new Band(frame, i, 0, mLevels[i].mHeight));
+            long nanos = System.nanoTime() - start;
+            mLevelNanos.addAndGet(i, nanos);
+            total += nanos;
+        }
+        mBuiltFrames.incrementAndGet();
+        if (total > mBudgetNanos) {
+            mOverBudgetFrames.incrementAndGet();
+            mFramesToSkip = (int) Math.min(Integer.MAX_VALUE, total / mBudgetNanos);
+        }
+    }
+
+    /**
+     * Returns the coarsest level that is at least {@code minWidth} wide, or the finest level if
+     * none is. Only valid after a frame has been built.
+     */
+    Level getLevel(int minWidth) {
+        for (int i = LEVEL_COUNT - 1; i > 0; i--) {
+            if (mLevels[i].mWidth >= minWidth) {
+                return mLevels[i];
+            }
+        }
+        return mLevels[0];
+    }
+
+    private void allocate(int frameWidth, int frameHeight) {
+        Level[] levels = new Level[LEVEL_COUNT];
+        int width = frameWidth;
+        int height = frameHeight;
+        for (int i = 0; i < LEVEL_COUNT; i++) {
+            width /= 2;
+            height /= 2;
+            if (width < 1 || height < 1) {
+                throw new IllegalArgumentException("The frame is too small for the pyramid.");
+            }
+            levels[i] = new Level(i, width, height);
+        }
+        mLevels = levels;
+        mFrameWidth = frameWidth;
+        mFrameHeight = frameHeight;
+    }
+
+    long getBuiltFrames() {
+        return mBuiltFrames.get();
+    }
+
+    /**
+     * The number of frames skipped to stay within the budget.
+     */
+    long getSkippedFrames() {
+        return mSkippedFrames.get();
+    }
+
+    long getOverBudgetFrames() {
+        return mOverBudgetFrames.get();
+    }
+
+    /**
+     * The mean time level {@code index} took to build, in nanoseconds.
+     */
+    long getMeanLevelNanos(int index) {
+        long frames = mBuiltFrames.get();
+        return frames == 0 ? 0 : mLevelNanos.get(index) / frames;
+    }
+
+    /**
+     * The mean time all levels of a frame took to build, in nanoseconds.
+     */
+    long getMeanFrameNanos() {
+        long total = 0;
+        for (int i = 0; i < LEVEL_COUNT; i++) {
+            total += getMeanLevelNanos(i);
+        }
+        return total;
+    }
+
+    boolean meetsBudget() {
+        return getMeanFrameNanos() <= mBudgetNanos;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder levels = new StringBuilder();
+        for (int i = 0; i < LEVEL_COUNT; i++) {
+            levels.append(i == 0 ? "" : "/")
+                    .append(String.format(Locale.US, "%.2f", getMeanLevelNanos(i) / 1e6));
+        }
+        return "frames=" + getBuiltFrames() + " skipped=" + getSkippedFrames() + " levelMs="
+                + levels + " budgetMs=" + String.format(Locale.US, "%.2f", mBudgetNanos / 1e6);
+    }
+
+    /**
+     * Returns at least {@code size} bytes for the calling worker.
+     */
+    private byte[] scratch(int size) {
+        byte[] scratch = mScratch.get();
+        if (null == scratch || scratch.length < size) {
+            scratch = new byte[size];
+            mScratch.set(scratch);
+        }
+        return scratch;
+    }
+
+    /**
+     * Writes the mean of each 2x2 block of rows {@code top} and {@code bottom} into
+     * {@code width} pixels of {@code out}.
+     */
+    private static void downscaleRow(byte[] top, int topOffset, byte[] bottom, int bottomOffset,
+                                     byte[] out, int outOffset, int width) {
+        for (int x = 0; x < width; x++) {
+            int t = topOffset + 2 * x;
+            int b = bottomOffset + 2 * x;
+            int sum = (top[t] & 0xff) + (top[t + 1] & 0xff)
+                    + (bottom[b] & 0xff) + (bottom[b + 1] & 0xff);
+            out[outOffset + x] = (byte) ((sum + 2) >> 2);
+        }
+    }
+
+    /**
+     * Builds the rows from {@code mStart} up to {@code mEnd} of one level, splitting itself
+     * while the range is larger than one band.
+     */
+    private final class Band extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final FramePipeline.Frame mFrame;
+        private final int mLevel;
+        private final int mStart;
+        private final int mEnd;
+
+        Band(FramePipeline.Frame frame, int level, int start, int end) {
+            mFrame = frame;
+            mLevel = level;
+            mStart = start;
+            mEnd = end;
+        }
+
+        @Override
+        protected void compute() {
+            if (mEnd - mStart > mBandRows) {
+                int middle = (mStart + mEnd) >>> 1;
+                invokeAll(new Band(mFrame, mLevel, mStart, middle),
+                        new Band(mFrame, mLevel, middle, mEnd));
+                return;
+            }
+            Level level = mLevels[mLevel];
+            int width = level.mWidth;
+            byte[] out = level.mData;
+            if (mLevel == 0) {
+                // The frame has strides of its own, the rows of the band are packed first
+                int inWidth = 2 * width;
+                byte[] in = scratch(2 * (mEnd - mStart) * inWidth);
+                mFrame.readRows(0, 2 * mStart, 2 * (mEnd - mStart), in, inWidth);
+                for (int y = mStart; y < mEnd; y++) {
+                    int top = 2 * (y - mStart) * inWidth;
+                    downscaleRow(in, top, in, top + inWidth, out, y * width, width);
+                }
+            } else {
+                Level above = mLevels[mLevel - 1];
+                byte[] in = above.mData;
+                int inWidth = above.mWidth;
+                for (int y = mStart; y < mEnd; y++) {
+                    downscaleRow(in, 2 * y * inWidth, in, (2 * y + 1) * inWidth, out,
+                            y * width, width);
+                }
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,535 @@
+/*
+ * Copyright 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2video;
+
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
+import android.media.MediaMuxer;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.support.annotation.NonNull;
+import android.util.Log;
+import android.view.Surface;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A {@link VideoEncoderEngine} built on an asynchronous {@link MediaCodec} and a
+ * {@link MediaMuxer}.
+ *
+ * Encoded frames are taken from the codec on a dedicated thread and written straight to the
+ * muxer, which is started once the codec reports its output format.
+ *
+ * A segmented recording asks the codec for a key frame once the current segment is full, while
+ * the muxer of the next segment is opened and started on a separate rotation thread. The first
+ * key frame after that goes to the new muxer, and the old one is finalized on the rotation thread
+ * as well, so the codec thread never waits for file I/O and no frame is lost or written twice.
+ *
+ * With a {@link PreRollBuffer} the codec runs before the recording starts and its frames only go
+ * into the buffer. {@link #start()} then writes the buffered frames first and continues with the
+ * live stream, all on the codec thread, so the file has no gap between the two.
+ */
+class MediaCodecEngine implements VideoEncoderEngine {
+
+    private static final String TAG = "MediaCodecEngine";
+
+    /**
+     * How long {@link #stop()} waits for the codec to drain, in milliseconds.
+     */
+    private static final long STOP_TIMEOUT_MS = 3000;
+
+    private final HandlerThread mThread;
+    private final Handler mHandler;
+    private volatile Listener mListener;
+
+    private MediaCodec mCodec;
+    private MediaMuxer mMuxer;
+    private RecordingStorage.OutputFile mFile;
+    private Surface mInputSurface;
+    private boolean mOwnsInputSurface;
+    private int mTrackIndex = -1;
+    private volatile boolean mMuxerStarted;
+    private CountDownLatch mEndOfStream;
+
+    private volatile long mEncodedFrames;
+    private volatile long mEncodedBytes;
+
+    private final ExecutorService mRotationExecutor;
+    private Output mOutput;
+    private EncoderConfig mConfig;
+    private MediaFormat mOutputFormat;
+    // Only touched by the codec thread while recording. mSegmentStartUs and mSegmentBytes measure
+    // from the last rotation attempt, so a failed rotation waits a full segment before retrying.
+    private int mSegment;
+    private long mSegmentStartUs;
+    private long mSegmentBytes;
+    private Future<Segment> mNextSegment;
+    // Whether the last rotation failed, so that a failing disk reports a single error.
+    private boolean mRotationFailed;
+
+    private PreRollBuffer mPreRoll;
+    // Whether encoded frames go into mPreRoll instead of the muxer. Only cleared on the codec
+    // thread while the codec runs.
+    private volatile boolean mPreRolling;
+
+    MediaCodecEngine(final String name) {
+        mThread = new HandlerThread(name);
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+        mRotationExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                return new Thread(runnable, name + " rotation");
+            }
+        });
+    }
+
+    @Override
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    @Override
+    public void prepare(EncoderConfig config, Output output, Surface inputSurface)
+            throws IOException {
+        String mimeType = config.getCodec() == EncoderConfig.Codec.HEVC
+                ? MediaFormat.MIMETYPE_VIDEO_HEVC : MediaFormat.MIMETYPE_VIDEO_AVC;
+        MediaFormat format = MediaFormat.createVideoFormat(mimeType,
+                config.getWidth(), config.getHeight());
+        format.setInteger(MediaFormat.KEY_COLOR_FORMAT,
+                MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
+        format.setInteger(MediaFormat.KEY_BIT_RATE, config.getBitRate());
+        format.setInteger(MediaFormat.KEY_BITRATE_MODE, toBitrateMode(config.getBitrateMode()));
+        format.setInteger(MediaFormat.KEY_FRAME_RATE, config.getFrameRate());
+        format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, config.getIFrameIntervalSeconds());
+
+        mCodec = MediaCodec.createEncoderByType(mimeType);
+        mCodec.setCallback(mCallback, mHandler);
+        mCodec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+        if (null != inputSurface) {
+            mCodec.setInputSurface(inputSurface);
+            mInputSurface = inputSurface;
+            mOwnsInputSurface = false;
+        } else {
+            mInputSurface = mCodec.createInputSurface();
+            mOwnsInputSurface = true;
+        }
+        Segment first = openSegment(output, 0, null);
+        mMuxer = first.mMuxer;
+        mFile = first.mFile;
+        mOutput = output;
+        mConfig = config;
+        mSegment = 0;
+        mSegmentStartUs = -1;
+        mSegmentBytes = 0;
+        mNextSegment = null;
+        mRotationFailed = false;
+        mPreRoll = null;
+        mPreRolling = false;
+        mTrackIndex = -1;
+        mMuxerStarted = false;
+        mEncodedFrames = 0;
+        mEncodedBytes = 0;
+        Log.d(TAG, "Prepared " + config + " on " + mCodec.getCodecInfo().getName());
+    }
+
+    private static int toBitrateMode(EncoderConfig.BitrateMode mode) {
+        switch (mode) {
+            case CBR:
+                return MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_CBR;
+            case CQ:
+                return MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_CQ;
+            default:
+                return MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_VBR;
+        }
+    }
+
+    @Override
+    public Surface getInputSurface() {
+        return mInputSurface;
+    }
+
+    @Override
+    public boolean startPreRoll(PreRollBuffer buffer) {
+        buffer.clear();
+        mPreRoll = buffer;
+        mPreRolling = true;
+        mEndOfStream = new CountDownLatch(1);
+        mCodec.start();
+        return true;
+    }
+
+    @Override
+    public void start() {
+        if (mPreRolling) {
+            mHandler.post(mFlushPreRoll);
+            return;
+        }
+        mEndOfStream = new CountDownLatch(1);
+        mCodec.start();
+    }
+
+    @Override
+    public boolean setBitRate(int bitRate) {
+        MediaCodec codec = mCodec;
+        if (null == codec) {
+            return false;
+        }
+        Bundle params = new Bundle();
+        params.putInt(MediaCodec.PARAMETER_KEY_VIDEO_BITRATE, bitRate);
+        codec.setParameters(params);
+        return true;
+    }
+
+    @Override
+    public void stop() {
+        mCodec.signalEndOfInputStream();
+        try {
+            if (!mEndOfStream.await(STOP_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                Log.w(TAG, "Timed out waiting for the end of the stream");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        mCodec.stop();
+        discardNextSegment();
+        if (mMuxerStarted) {
+            mMuxerStarted = false;
+            mMuxer.stop();
+            mMuxer.release();
+            mMuxer = null;
+            RecordingStorage.closeQuietly(mFile);
+            mFile = null;
+            segmentFinished(mSegment);
+        }
+        // Wait until the earlier segments are finalized, too
+        try {
+            mRotationExecutor.submit(new Runnable() {
+                @Override
+                public void run() {
+                }
+            }).get(STOP_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            Log.w(TAG, "Timed out finalizing the segments", e);
+        }
+        Log.d(TAG, "Stopped after " + mEncodedFrames + " frames, " + mEncodedBytes + " bytes in "
+                + (mSegment + 1) + " segments");
+    }
+
+    @Override
+    public void reset() {
+        mPreRolling = false;
+        if (null != mCodec) {
+            mCodec.release();
+            mCodec = null;
+        }
+        if (null != mMuxer) {
+            mMuxer.release();
+            mMuxer = null;
+        }
+        if (null != mFile) {
+            RecordingStorage.closeQuietly(mFile);
+            mFile = null;
+        }
+        if (mOwnsInputSurface && null != mInputSurface) {
+            mInputSurface.release();
+        }
+        mInputSurface = null;
+    }
+
+    @Override
+    public void release() {
+        reset();
+        mThread.quitSafely();
+        mRotationExecutor.shutdown();
+    }
+
+    /**
+     * Opens the file of segment {@code sequence} and a muxer on it. With a {@code format}, the
+     * track is added and the muxer started as well.
+     */
+    private static Segment openSegment(Output output, int sequence, MediaFormat format)
+            throws IOException {
+        RecordingStorage.OutputFile file = RecordingStorage.await(output.openSegment(sequence));
+        MediaMuxer muxer;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            muxer = new MediaMuxer(file.getFileDescriptor(),
+                    MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+        } else {
+            // Muxing into a descriptor needs API 26. Opening the path again truncates the file,
+            // so segments must not be preallocated here, and the write rate is only seen
+            // through its size.
+            muxer = new MediaMuxer(file.getPath(), MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+        }
+        if (null != format) {
+            muxer.addTrack(format);
+            muxer.start();
+        }
+        return new Segment(muxer, file);
+    }
+
+    /**
+     * Opens and starts the next segment on the rotation thread, and asks the codec for a key
+     * frame to start it with. Called on the codec thread.
+     */
+    private void requestRotation(MediaCodec codec) {
+        final Output output = mOutput;
+        final int sequence = mSegment + 1;
+        final MediaFormat format = mOutputFormat;
+        mNextSegment = mRotationExecutor.submit(new Callable<Segment>() {
+            @Override
+            public Segment call() throws IOException {
+                return openSegment(output, sequence, format);
+            }
+        });
+        Bundle params = new Bundle();
+        params.putInt(MediaCodec.PARAMETER_KEY_REQUEST_SYNC_FRAME, 0);
+        codec.setParameters(params);
+    }
+
+    /**
+     * Switches to the next segment if it is ready. Called on the codec thread right before a key
+     * frame is written.
+     */
+    private void rotate() {
+        final MediaMuxer previousMuxer = mMuxer;
+        final RecordingStorage.OutputFile previousFile = mFile;
+        final int finished = mSegment;
+        Segment next;
+        try {
+            next = mNextSegment.get();
+        } catch (InterruptedException | ExecutionException e) {
+            Log.e(TAG, "Could not open segment " + (mSegment + 1), e);
+            Listener listener = mListener;
+            if (!mRotationFailed && null != listener) {
+                listener.onError(e);
+            }
+            // Stay on the current segment and try again once it has grown by another segment
+            mRotationFailed = true;
+            mNextSegment = null;
+            mSegmentStartUs = -1;
+            mSegmentBytes = 0;
+            return;
+        }
+        mMuxer = next.mMuxer;
+        mFile = next.mFile;
+        mNextSegment = null;
+        mRotationFailed = false;
+        mSegment++;
+        mSegmentStartUs = -1;
+        mSegmentBytes = 0;
+        mRotationExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                previousMuxer.stop();
+                previousMuxer.release();
+                RecordingStorage.closeQuietly(previousFile);
+                segmentFinished(finished);
+            }
+        });
+    }
+
+    /**
+     * Releases a next segment that was opened but never written, and deletes its file.
+     */
+    private void discardNextSegment() {
+        if (null == mNextSegment) {
+            return;
+        }
+        final Future<Segment> next = mNextSegment;
+        final String path = mOutput.getSegmentPath(mSegment + 1);
+        mNextSegment = null;
+        mRotationExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Segment segment = next.get();
+                    segment.mMuxer.release();
+                    RecordingStorage.closeQuietly(segment.mFile);
+                } catch (InterruptedException | ExecutionException e) {
+                    // Nothing was opened
+                }
+                new File(path).delete();
+            }
+        });
+    }
+
+    private boolean isSegmentFull(long presentationTimeUs) {
+        long durationUs = mConfig.getSegmentDurationSeconds() * 1_000_000L;
+        long sizeBytes = mConfig.getSegmentSizeBytes();
+        return (durationUs > 0 && presentationTimeUs - mSegmentStartUs >= durationUs)
+                || (sizeBytes > 0 && mSegmentBytes >= sizeBytes);
+    }
+
+    private void segmentFinished(int sequence) {
+        Listener listener = mListener;
+        if (null != listener) {
+            listener.onSegmentFinished(sequence, mOutput.getSegmentPath(sequence));
+        }
+    }
+
+    long getEncodedFrames() {
+        return mEncodedFrames;
+    }
+
+    long getEncodedBytes() {
+        return mEncodedBytes;
+    }
+
+    /**
+     * Writes an encoded frame to the current segment, rotating segments as needed. Called on the
+     * codec thread.
+     */
+    private void writeSample(ByteBuffer buffer, MediaCodec.BufferInfo info) {
+        boolean keyFrame = (info.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0;
+        if (keyFrame && null != mNextSegment && mNextSegment.isDone()) {
+            rotate();
+        }
+        mMuxer.writeSampleData(mTrackIndex, buffer, info);
+        mEncodedFrames++;
+        mEncodedBytes += info.size;
+        if (mSegmentStartUs < 0) {
+            mSegmentStartUs = info.presentationTimeUs;
+        }
+        mSegmentBytes += info.size;
+        if (mConfig.isSegmented() && null == mNextSegment
+                && isSegmentFull(info.presentationTimeUs)) {
+            requestRotation(mCodec);
+        }
+        Listener listener = mListener;
+        if (null != listener) {
+            listener.onFrameEncoded(info.presentationTimeUs, info.size, keyFrame);
+        }
+    }
+
+    private final PreRollBuffer.Consumer mPreRollWriter = new PreRollBuffer.Consumer() {
+
+        @Override
+        public void onFrame(ByteBuffer data, MediaCodec.BufferInfo info) {
+            writeSample(data, info);
+        }
+
+    };
+
+    /**
+     * Writes the pre-roll to the output and switches over to the live stream. Runs on the codec
+     * thread, between two output buffers.
+     */
+    private final Runnable mFlushPreRoll = new Runnable() {
+
+        @Override
+        public void run() {
+            if (!mPreRolling) {
+                return;
+            }
+            long durationUs = mPreRoll.getBufferedDurationUs();
+            int frames = mPreRoll.drainTo(mPreRollWriter);
+            mPreRolling = false;
+            Log.d(TAG, "Wrote " + frames + " pre-roll frames covering " + durationUs / 1000
+                    + " ms");
+        }
+
+    };
+
+    private final MediaCodec.Callback mCallback = new MediaCodec.Callback() {
+
+        @Override
+        public void onInputBufferAvailable(@NonNull MediaCodec codec, int index) {
+            // Input comes from the surface
+        }
+
+        @Override
+        public void onOutputBufferAvailable(@NonNull MediaCodec codec, int index,
+                                            @NonNull MediaCodec.BufferInfo info) {
+            if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+                // The muxer takes the codec config from the output format instead
+                info.size = 0;
+            }
+            if (info.size > 0 && mMuxerStarted) {
+                ByteBuffer buffer = codec.getOutputBuffer(index);
+                if (mPreRolling) {
+                    mPreRoll.append(buffer, info);
+                } else {
+                    buffer.position(info.offset);
+                    buffer.limit(info.offset + info.size);
+                    writeSample(buffer, info);
+                }
+            }
+            codec.releaseOutputBuffer(index, false);
+            if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                mEndOfStream.countDown();
+            }
+        }
+
+        @Override
+        public void onError(@NonNull MediaCodec codec, @NonNull MediaCodec.CodecException e) {
+            Log.e(TAG, "Codec error", e);
+            Listener listener = mListener;
+            if (null != listener) {
+                listener.onError(e);
+            }
+            if (null != mEndOfStream) {
+                mEndOfStream.countDown();
+            }
+        }
+
+        @Override
+        public void onOutputFormatChanged(@NonNull MediaCodec codec,
+                                          @NonNull MediaFormat format) {
+            if (mMuxerStarted) {
+                Log.w(TAG, "Output format changed after the muxer started");
+                return;
+            }
+            mOutputFormat = format;
+            mTrackIndex = mMuxer.addTrack(format);
+            mMuxer.start();
+            mMuxerStarted = true;
+        }
+
+    };
+
+    /**
+     * The muxer of one segment and the file it writes to.
+     */
+    private static final class Segment {
+
+        final MediaMuxer mMuxer;
+        final RecordingStorage.OutputFile mFile;
+
+        Segment(MediaMuxer muxer, RecordingStorage.OutputFile file) {
+            mMuxer = muxer;
+            mFile = file;
+        }
+
+    }
+
+}
@@ -0,0 +1,209 @@
+/*
+ * Copyright 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2video;
+
+import android.media.MediaRecorder;
+import android.os.Build;
+import android.util.Log;
+import android.view.Surface;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.Future;
+
+/**
+ * A {@link VideoEncoderEngine} backed by {@link MediaRecorder}.
+ *
+ * MediaRecorder does not report encoded frames and has no control over the rate control mode or
+ * the key frame interval, so those settings are ignored.
+ *
+ * Segments are rotated by MediaRecorder itself, which switches files at a key frame once the
+ * current one approaches its maximum size. It has no such hand-over for a maximum duration, so a
+ * segment duration is turned into the size the target bitrate produces in that time. Rotation
+ * needs API 26, older devices record a single file. The file of the next segment is opened in
+ * advance, so it is ready when MediaRecorder asks for it.
+ */
+class MediaRecorderEngine implements VideoEncoderEngine {
+
+    private static final String TAG = "MediaRecorderEngine";
+
+    private MediaRecorder mMediaRecorder = new MediaRecorder();
+    private Surface mPersistentSurface;
+    private Listener mListener;
+    private Output mOutput;
+    private int mSegment;
+    private RecordingStorage.OutputFile mFile;
+    // The file opened in advance for the next segment
+    private Future<RecordingStorage.OutputFile> mNextFile;
+    // The file MediaRecorder switches to next
+    private RecordingStorage.OutputFile mPendingFile;
+
+    @Override
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    @Override
+    public void prepare(EncoderConfig config, Output output, Surface inputSurface)
+            throws IOException {
+        mOutput = output;
+        mSegment = 0;
+        mFile = RecordingStorage.await(output.openSegment(0));
+        mMediaRecorder.setOnErrorListener(new MediaRecorder.OnErrorListener() {
+            @Override
+            public void onError(MediaRecorder mr, int what, int extra) {
+                Listener listener = mListener;
+                if (null != listener) {
+                    listener.onError(new IOException(
+                            "MediaRecorder error " + what + ", extra " + extra));
+                }
+            }
+        });
+        mMediaRecorder.setVideoSource(MediaRecorder.VideoSource.SURFACE);
+        mMediaRecorder.setOutputFormat(MediaRecorder.OutputFormat.MPEG_4);
+        mMediaRecorder.setOutputFile(mFile.getFileDescriptor());
+        if (config.isSegmented()) {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+                mMediaRecorder.setMaxFileSize(config.getSegmentSizeLimitBytes());
+                mMediaRecorder.setOnInfoListener(mInfoListener);
+                mNextFile = output.openSegment(1);
+            } else {
+                Log.w(TAG, "Segmented recording needs API 26, recording a single file");
+            }
+        }
+        mMediaRecorder.setVideoEncodingBitRate(config.getBitRate());
+        mMediaRecorder.setVideoSize(config.getWidth(), config.getHeight());
+        mMediaRecorder.setVideoFrameRate(config.getFrameRate());
+        mMediaRecorder.setVideoEncoder(config.getCodec() == EncoderConfig.Codec.HEVC
+                ? MediaRecorder.VideoEncoder.HEVC : MediaRecorder.VideoEncoder.H264);
+        mPersistentSurface = inputSurface;
+        if (null != inputSurface) {
+            mMediaRecorder.setInputSurface(inputSurface);
+        }
+        mMediaRecorder.prepare();
+    }
+
+    @Override
+    public Surface getInputSurface() {
+        return null != mPersistentSurface ? mPersistentSurface : mMediaRecorder.getSurface();
+    }
+
+    @Override
+    public boolean startPreRoll(PreRollBuffer buffer) {
+        // MediaRecorder does not expose its encoded frames
+        return false;
+    }
+
+    @Override
+    public void start() {
+        mMediaRecorder.start();
+    }
+
+    @Override
+    public boolean setBitRate(int bitRate) {
+        // MediaRecorder only takes the bitrate before it is prepared
+        return false;
+    }
+
+    @Override
+    public void stop() {
+        mMediaRecorder.stop();
+        RecordingStorage.closeQuietly(mFile);
+        mFile = null;
+        discardNextFiles();
+        Listener listener = mListener;
+        if (null != listener) {
+            listener.onSegmentFinished(mSegment, mOutput.getSegmentPath(mSegment));
+        }
+    }
+
+    @Override
+    public void reset() {
+        mMediaRecorder.reset();
+        mPersistentSurface = null;
+        RecordingStorage.closeQuietly(mFile);
+        mFile = null;
+        discardNextFiles();
+    }
+
+    @Override
+    public void release() {
+        reset();
+        mMediaRecorder.release();
+    }
+
+    /**
+     * Closes and deletes the files opened for segments that were never written.
+     */
+    private void discardNextFiles() {
+        if (null != mPendingFile) {
+            RecordingStorage.closeQuietly(mPendingFile);
+            new File(mPendingFile.getPath()).delete();
+            mPendingFile = null;
+        }
+        if (null != mNextFile) {
+            try {
+                RecordingStorage.OutputFile next = RecordingStorage.await(mNextFile);
+                RecordingStorage.closeQuietly(next);
+                new File(next.getPath()).delete();
+            } catch (IOException e) {
+                // Nothing was opened
+            }
+            mNextFile = null;
+        }
+    }
+
+    private final MediaRecorder.OnInfoListener mInfoListener = new MediaRecorder.OnInfoListener() {
+
+        @Override
+        public void onInfo(MediaRecorder mr, int what, int extra) {
+            if (what == MediaRecorder.MEDIA_RECORDER_INFO_MAX_FILESIZE_APPROACHING) {
+                if (null != mPendingFile || null == mNextFile) {
+                    return;
+                }
+                try {
+                    // Usually opened long ago, so this does not wait
+                    RecordingStorage.OutputFile next = RecordingStorage.await(mNextFile);
+                    mNextFile = null;
+                    mPendingFile = next;
+                    mr.setNextOutputFile(next.getFileDescriptor());
+                } catch (IOException e) {
+                    Listener listener = mListener;
+                    if (null != listener) {
+                        listener.onError(e);
+                    }
+                }
+            } else if (what == MediaRecorder.MEDIA_RECORDER_INFO_NEXT_OUTPUT_FILE_STARTED) {
+                int finished = mSegment;
+                RecordingStorage.closeQuietly(mFile);
+                mFile = mPendingFile;
+                mPendingFile = null;
+                mSegment++;
+                mNextFile = mOutput.openSegment(mSegment + 1);
+                Listener listener = mListener;
+                if (null != listener) {
+                    listener.onSegmentFinished(finished, mOutput.getSegmentPath(finished));
+                }
+            } else if (what == MediaRecorder.MEDIA_RECORDER_INFO_MAX_FILESIZE_REACHED) {
+                Log.w(TAG, "Segment " + mSegment + " reached its size limit before the next one"
+                        + " was ready, recording stopped");
+            }
+        }
+
+    };
+
+}
@@ -0,0 +1,255 @@
+/*
+ * Copyright 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2video;
+
+import android.media.MediaCodec;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Keeps the most recent encoded frames of a stream, so a recording can start with the moments
+ * before it was requested.
+ *
+ * The frames are copied into one direct buffer allocated up front, and their sizes, offsets and
+ * timestamps are kept in primitive arrays. The oldest frames are evicted when the buffer runs out
+ * of bytes, frames or time, and the buffer always starts with a key frame, so it can be written
+ * to a new file as it is. Neither appending nor evicting allocates.
+ *
+ * All methods that change the buffer must be called from one thread, the statistics may be read
+ * from any thread.
+ */
+class PreRollBuffer {
+
+    /**
+     * Receives the buffered frames, oldest first.
+     */
+    interface Consumer {
+
+        /**
+         * @param data The buffer the frame is in, {@code info.size} bytes from
+         *             {@code info.offset} on, like a codec output buffer. Its position and limit
+         *             are not part of the frame. Only valid during the call.
+         * @param info The offset, size, timestamp and flags of the frame. Only valid during the
+         *             call.
+         */
+        void onFrame(ByteBuffer data, MediaCodec.BufferInfo info);
+
+    }
+
+    private final ByteBuffer mData;
+    // A view on mData that is handed to consumers, so their position and limit changes stay
+    // out of the way of the writer.
+    private final ByteBuffer mView;
+    private final MediaCodec.BufferInfo mInfo = new MediaCodec.BufferInfo();
+    private final long mMaxDurationUs;
+
+    private final int[] mOffsets;
+    private final int[] mSizes;
+    private final int[] mFlags;
+    private final long[] mTimestamps;
+    private int mHead;
+    private int mCount;
+    private int mWriteOffset;
+
+    private volatile int mUsedBytes;
+    private volatile long mEvictedFrames;
+    private volatile long mDroppedFrames;
+    private volatile long mBufferedDurationUs;
+
+    /**
+     * @param capacityBytes The size of the direct buffer that holds the frames
+     * @param maxFrames     The number of frames that can be held
+     * @param maxDurationUs The longest time span kept, in microseconds
+     */
+    PreRollBuffer(int capacityBytes, int maxFrames, long maxDurationUs) {
+        if (capacityBytes < 1 || maxFrames < 1 || maxDurationUs < 1) {
+            throw new IllegalArgumentException("Invalid pre-roll configuration.");
+        }
+        mData = ByteBuffer.allocateDirect(capacityBytes);
+        mView = mData.duplicate();
+        mMaxDurationUs = maxDurationUs;
+        mOffsets = new int[maxFrames];
+        mSizes = new int[maxFrames];
+        mFlags = new int[maxFrames];
+        mTimestamps = new long[maxFrames];
+    }
+
+    /**
+     * Copies an encoded frame into the buffer, evicting older frames as needed. A frame that
+     * does not follow a buffered key frame is dropped. A frame larger than the buffer is dropped
+     * along with every buffered frame, as the frames after it cannot be decoded without it, so
+     * the buffer starts over at the next key frame that fits.
+     *
+     * @param data The encoded frame, read from {@code info.offset} on
+     * @param info The timestamp, size and flags of the frame
+     */
+    void append(ByteBuffer data, MediaCodec.BufferInfo info) {
+        int size = info.size;
+        boolean keyFrame = (info.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0;
+        if (size <= 0) {
+            return;
+        }
+        if (size > mData.capacity()) {
+            mDroppedFrames++;
+            clear();
+            return;
+        }
+        if (mCount == 0 && !keyFrame) {
+            mDroppedFrames++;
+            return;
+        }
+        while (mCount > 0 && (mCount == mOffsets.length || !fits(size))) {
+            evictOldest();
+        }
+        if (mCount == 0) {
+            if (!keyFrame) {
+                // The eviction took the key frame this frame depends on
+                mDroppedFrames++;
+                return;
+            }
+            mWriteOffset = 0;
+        }
+        int offset = mWriteOffset + size <= mData.capacity() ? mWriteOffset : 0;
+
+        mData.limit(offset + size);
+        mData.position(offset);
+        int sourceLimit = data.limit();
+        int sourcePosition = data.position();
+        data.limit(info.offset + size);
+        data.position(info.offset);
+        mData.put(data);
+        data.limit(sourceLimit);
+        data.position(sourcePosition);
+
+        int index = (mHead + mCount) % mOffsets.length;
+        mOffsets[index] = offset;
+        mSizes[index] = size;
+        mFlags[index] = info.flags;
+        mTimestamps[index] = info.presentationTimeUs;
+        mCount++;
+        mWriteOffset = offset + size;
+        mUsedBytes += size;
+
+        while (mCount > 1 && info.presentationTimeUs - mTimestamps[mHead] > mMaxDurationUs) {
+            evictOldest();
+        }
+        updateDuration();
+    }
+
+    /**
+     * Hands every buffered frame to {@code consumer}, oldest first, and empties the buffer.
+     *
+     * @return The number of frames handed over
+     */
+    int drainTo(Consumer consumer) {
+        int drained = mCount;
+        while (mCount > 0) {
+            int size = mSizes[mHead];
+            int offset = mOffsets[mHead];
+            // MediaMuxer reads from info.offset and ignores the position
+            mView.clear();
+            mInfo.set(offset, size, mTimestamps[mHead], mFlags[mHead]);
+            consumer.onFrame(mView, mInfo);
+            removeOldest();
+        }
+        clear();
+        return drained;
+    }
+
+    /**
+     * Drops every buffered frame.
+     */
+    void clear() {
+        mHead = 0;
+        mCount = 0;
+        mWriteOffset = 0;
+        mUsedBytes = 0;
+        mBufferedDurationUs = 0;
+    }
+
+    /**
+     * Whether {@code size} bytes fit in one piece behind the newest frame.
+     */
+    private boolean fits(int size) {
+        int head = mOffsets[mHead];
+        if (mWriteOffset > head) {
+            // The frames do not wrap, so there is room at the end and in front of the oldest
+            return size <= mData.capacity() - mWriteOffset || size <= head;
+        }
+        return size <= head - mWriteOffset;
+    }
+
+    /**
+     * Evicts the oldest frame, and then every frame up to the next key frame, so the buffer
+     * keeps starting with a key frame.
+     */
+    private void evictOldest() {
+        do {
+            removeOldest();
+            mEvictedFrames++;
+        } while (mCount > 0 && (mFlags[mHead] & MediaCodec.BUFFER_FLAG_KEY_FRAME) == 0);
+    }
+
+    private void removeOldest() {
+        mUsedBytes -= mSizes[mHead];
+        mHead = (mHead + 1) % mOffsets.length;
+        mCount--;
+    }
+
+    private void updateDuration() {
+        mBufferedDurationUs = mCount == 0 ? 0
+                : mTimestamps[(mHead + mCount - 1) % mOffsets.length] - mTimestamps[mHead];
+    }
+
+    /**
+     * The amount of direct memory this buffer holds, in bytes.
+     */
+    int getCapacityBytes() {
+        return mData.capacity();
+    }
+
+    int getUsedBytes() {
+        return mUsedBytes;
+    }
+
+    long getBufferedDurationUs() {
+        return mBufferedDurationUs;
+    }
+
+    /**
+     * The number of frames evicted to make room for newer ones.
+     */
+    long getEvictedFrames() {
+        return mEvictedFrames;
+    }
+
+    /**
+     * The number of frames that were never buffered, because they were larger than the buffer or
+     * no key frame preceded them.
+     */
+    long getDroppedFrames() {
+        return mDroppedFrames;
+    }
+
+    @Override
+    public String toString() {
+        return getUsedBytes() / 1024 + " of " + getCapacityBytes() / 1024 + " KiB, "
+                + getBufferedDurationUs() / 1000 + " ms, evicted=" + getEvictedFrames()
+                + " dropped=" + getDroppedFrames();
+    }
+
+}
@@ -0,0 +1,225 @@
+/*
+ * Copyright 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2video;
+
+import android.media.MediaMetadataRetriever;
+import android.util.Log;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Stops the encoders of a recording and finalizes their files off the UI thread.
+ *
+ * Stopping an encoder writes the index of its file, which takes long for a 4K recording. The
+ * finalizer has a thread for every camera, so the files of all cameras are finalized in parallel
+ * while the cameras already show their preview again. Once the files of a camera are complete,
+ * their size and duration are reported to the {@link Listener}. Other files of the recording,
+ * like the mono ring, can be completed on the finalizer too, so pausing waits for them as well.
+ */
+class RecordingFinalizer {
+
+    private static final String TAG = "RecordingFinalizer";
+
+    /**
+     * Receives the finalized recordings. Called on a finalizer thread.
+     */
+    interface Listener {
+
+        void onFinalized(Recording recording);
+
+    }
+
+    /**
+     * The files of one camera once they are finalized.
+     */
+    static final class Recording {
+
+        private final String mCameraId;
+        private final List<String> mPaths;
+        private final long mSizeBytes;
+        private final long mDurationUs;
+        private final long mFinalizeNanos;
+        private final Exception mError;
+
+        Recording(String cameraId, List<String> paths, long sizeBytes, long durationUs,
+                  long finalizeNanos, Exception error) {
+            mCameraId = cameraId;
+            mPaths = paths;
+            mSizeBytes = sizeBytes;
+            mDurationUs = durationUs;
+            mFinalizeNanos = finalizeNanos;
+            mError = error;
+        }
+
+        String getCameraId() {
+            return mCameraId;
+        }
+
+        /**
+         * Returns the segment files, in order.
+         */
+        List<String> getPaths() {
+            return mPaths;
+        }
+
+        /**
+         * Returns the size of all segment files, in bytes.
+         */
+        long getSizeBytes() {
+            return mSizeBytes;
+        }
+
+        /**
+         * Returns the duration of all segments, or 0 if it could not be read.
+         */
+        long getDurationUs() {
+            return mDurationUs;
+        }
+
+        /**
+         * Returns how long stopping the encoder and finalizing its files took.
+         */
+        long getFinalizeNanos() {
+            return mFinalizeNanos;
+        }
+
+        /**
+         * Returns the error the encoder failed to stop with, or null.
+         */
+        Exception getError() {
+            return mError;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%d segments, %.1f MB, %.2f s, finalized in %d ms%s",
+                    mPaths.size(), mSizeBytes / 1e6, mDurationUs / 1e6,
+                    TimeUnit.NANOSECONDS.toMillis(mFinalizeNanos),
+                    null != mError ? ", failed: " + mError : "");
+        }
+
+    }
+
+    private final ExecutorService mExecutor;
+
+    /**
+     * @param threads The number of files finalized at the same time, one per camera plus one for
+     *                any other file of the recording
+     */
+    RecordingFinalizer(int threads) {
+        mExecutor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                return new Thread(runnable, "RecordingFinalizer " + mCount.getAndIncrement());
+            }
+        });
+    }
+
+    /**
+     * Stops {@code encoder} and finalizes the files of {@code output} on a finalizer thread, then
+     * reports them to {@code listener}.
+     */
+    Future<Recording> stop(final String cameraId, final VideoEncoderEngine encoder,
+                           final VideoEncoderEngine.Output output, final Listener listener) {
+        return mExecutor.submit(new Callable<Recording>() {
+            @Override
+            public Recording call() {
+                long start = System.nanoTime();
+                Exception error = null;
+                try {
+                    encoder.stop();
+                } catch (RuntimeException e) {
+                    // MediaRecorder throws if it stops before it got a frame
+                    error = e;
+                }
+                long finalizeNanos = System.nanoTime() - start;
+                List<String> paths = new ArrayList<>();
+                long sizeBytes = 0;
+                long durationUs = 0;
+                for (int sequence = 0; ; sequence++) {
+                    File file = new File(output.getSegmentPath(sequence));
+                    if (!file.exists()) {
+                        break;
+                    }
+                    paths.add(file.getPath());
+                    sizeBytes += file.length();
+                    durationUs += readDurationUs(file.getPath());
+                }
+                Recording recording = new Recording(cameraId,
+                        Collections.unmodifiableList(paths), sizeBytes, durationUs,
+                        finalizeNanos, error);
+                listener.onFinalized(recording);
+                return recording;
+            }
+        });
+    }
+
+    /**
+     * Runs {@code task}, which completes another file of the recording, on a finalizer thread.
+     * {@link #shutdown} waits for it like for the recordings.
+     */
+    Future<?> finish(Runnable task) {
+        return mExecutor.submit(task);
+    }
+
+    /**
+     * Stops accepting recordings and waits for the pending ones to be finalized.
+     *
+     * @return Whether all pending recordings were finalized within {@code timeoutMs}
+     */
+    boolean shutdown(long timeoutMs) {
+        mExecutor.shutdown();
+        try {
+            return mExecutor.awaitTermination(timeoutMs, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Returns the duration of the video file at {@code path}, or 0 if it cannot be read.
+     */
+    private static long readDurationUs(String path) {
+        MediaMetadataRetriever retriever = new MediaMetadataRetriever();
+        try {
+            retriever.setDataSource(path);
+            String durationMs = retriever.extractMetadata(
+                    MediaMetadataRetriever.METADATA_KEY_DURATION);
+            return null != durationMs ? Long.parseLong(durationMs) * 1000 : 0;
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Cannot read the duration of " + path, e);
+            return 0;
+        } finally {
+            retriever.release();
+        }
+    }
+
+}
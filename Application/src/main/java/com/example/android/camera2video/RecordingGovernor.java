@@ -0,0 +1,287 @@
+/*
+ * Copyright 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2video;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Steps the recording quality of each camera down while the device cannot keep up, and back up
+ * once it has recovered.
+ *
+ * Every camera has a ladder of {@link Step}s, from its best quality down to its cheapest. On each
+ * {@link #tick()} the governor reads the {@link Signals} of every camera and the {@link
+ * LoadSignal}, and turns each reading into a pressure, where 1 means the reading is at its limit.
+ * The highest pressure decides. A camera steps down after it has been above
+ * {@link Policy#mHighPressure} for {@link Policy#mDownTicks} ticks in a row, and up after it has
+ * been below {@link Policy#mLowPressure} for {@link Policy#mUpTicks} ticks in a row. The gap
+ * between the two thresholds, and the longer wait before stepping up, keep it from oscillating.
+ *
+ * The governor has no clock and no thread of its own, and only reads its signals through the
+ * interfaces, so the control loop can be run against simulated signals.
+ */
+class RecordingGovernor {
+
+    /**
+     * One quality level of a camera.
+     */
+    static final class Step {
+
+        final int mWidth;
+        final int mHeight;
+        final int mBitRate;
+        final int mFrameRate;
+
+        Step(int width, int height, int bitRate, int frameRate) {
+            mWidth = width;
+            mHeight = height;
+            mBitRate = bitRate;
+            mFrameRate = frameRate;
+        }
+
+        boolean hasSameSize(Step other) {
+            return mWidth == other.mWidth && mHeight == other.mHeight;
+        }
+
+        @Override
+        public String toString() {
+            return mWidth + "x" + mHeight + " " + mBitRate / 1000 + " kbps " + mFrameRate + " fps";
+        }
+
+    }
+
+    /**
+     * The readings of one camera at one tick.
+     */
+    static final class Sample {
+
+        /**
+         * The frames captured for the encoder that it has not finished yet, or 0 if unknown.
+         */
+        int mEncoderBacklogFrames;
+
+        /**
+         * The capture rate over the last second.
+         */
+        double mCaptureFps;
+
+        /**
+         * The rate all recordings are written to storage at, in bytes per second.
+         */
+        long mStorageBytesPerSecond;
+
+    }
+
+    /**
+     * Reads the signals of a camera.
+     */
+    interface Signals {
+
+        /**
+         * Fills {@code sample} with the current readings of camera {@code cameraId}.
+         */
+        void read(String cameraId, Sample sample);
+
+    }
+
+    /**
+     * Reports how close the device is to its thermal or load limit, from 0 for idle to 1 at the
+     * limit. It may go above 1.
+     */
+    interface LoadSignal {
+
+        double getLoad();
+
+    }
+
+    /**
+     * Receives the decisions of the governor, on the thread that calls {@link #tick()}.
+     */
+    interface Listener {
+
+        /**
+         * Called when a camera moves to another step.
+         *
+         * @param reason The pressures the decision was based on
+         */
+        void onStepChanged(String cameraId, Step from, Step to, String reason);
+
+    }
+
+    /**
+     * The limits and thresholds of the governor.
+     */
+    static final class Policy {
+
+        /**
+         * The encoder backlog, in frames, that counts as full pressure. The frames still on their
+         * way from the camera count too.
+         */
+        int mMaxBacklogFrames = 6;
+
+        /**
+         * The share of frames missing from the target rate that counts as full pressure.
+         */
+        double mMaxDroppedFraction = 0.05;
+
+        /**
+         * The storage write rate that counts as full pressure, in bytes per second.
+         */
+        long mMaxStorageBytesPerSecond = 40L * 1024 * 1024;
+
+        /**
+         * The pressure above which a camera steps down.
+         */
+        double mHighPressure = 0.9;
+
+        /**
+         * The pressure below which a camera steps up.
+         */
+        double mLowPressure = 0.6;
+
+        /**
+         * The ticks in a row above {@link #mHighPressure} before a step down.
+         */
+        int mDownTicks = 2;
+
+        /**
+         * The ticks in a row below {@link #mLowPressure} before a step up.
+         */
+        int mUpTicks = 10;
+
+    }
+
+    private static final class CameraState {
+
+        final List<Step> mLadder;
+        int mStep;
+        int mHighTicks;
+        int mLowTicks;
+
+        CameraState(List<Step> ladder) {
+            mLadder = ladder;
+        }
+
+    }
+
+    private final Policy mPolicy;
+    private final Signals mSignals;
+    private final LoadSignal mLoad;
+    private final Listener mListener;
+    private final Map<String, CameraState> mCameras = new LinkedHashMap<>();
+    private final Sample mSample = new Sample();
+
+    RecordingGovernor(Policy policy, Signals signals, LoadSignal load, Listener listener) {
+        if (policy.mLowPressure >= policy.mHighPressure || policy.mDownTicks < 1
+                || policy.mUpTicks < 1) {
+            throw new IllegalArgumentException("Invalid governor policy.");
+        }
+        mPolicy = policy;
+        mSignals = signals;
+        mLoad = load;
+        mListener = listener;
+    }
+
+    /**
+     * Returns the default ladder from {@code best} down to {@code cheapest}: the bitrate goes
+     * first, then the frame rate, then the size. A camera that cannot change its size or frame
+     * rate passes a cheapest step that keeps them.
+     */
+    static List<Step> ladder(Step best, Step cheapest) {
+        int middleFrameRate = Math.max(cheapest.mFrameRate, best.mFrameRate * 4 / 5);
+        List<Step> ladder = new ArrayList<>();
+        ladder.add(best);
+        ladder.add(new Step(best.mWidth, best.mHeight, best.mBitRate * 3 / 4, best.mFrameRate));
+        ladder.add(new Step(best.mWidth, best.mHeight, best.mBitRate / 2, middleFrameRate));
+        ladder.add(new Step(cheapest.mWidth, cheapest.mHeight,
+                Math.max(cheapest.mBitRate, best.mBitRate / 3), middleFrameRate));
+        ladder.add(cheapest);
+        return Collections.unmodifiableList(ladder);
+    }
+
+    /**
+     * Starts governing camera {@code cameraId} at step {@code step} of {@code ladder}.
+     */
+    void addCamera(String cameraId, List<Step> ladder, int step) {
+        if (step < 0 || step >= ladder.size()) {
+            throw new IllegalArgumentException("The step is not on the ladder.");
+        }
+        CameraState state = new CameraState(ladder);
+        state.mStep = step;
+        mCameras.put(cameraId, state);
+    }
+
+    /**
+     * Returns the current step of camera {@code cameraId}.
+     */
+    Step getStep(String cameraId) {
+        CameraState state = mCameras.get(cameraId);
+        return state.mLadder.get(state.mStep);
+    }
+
+    /**
+     * Reads the signals and moves every camera whose pressure has stayed out of bounds for long
+     * enough.
+     */
+    void tick() {
+        double load = mLoad.getLoad();
+        for (Map.Entry<String, CameraState> entry : mCameras.entrySet()) {
+            String cameraId = entry.getKey();
+            CameraState state = entry.getValue();
+            Step step = state.mLadder.get(state.mStep);
+            mSignals.read(cameraId, mSample);
+            double backlog = (double) mSample.mEncoderBacklogFrames / mPolicy.mMaxBacklogFrames;
+            double dropped = Math.max(0, 1 - mSample.mCaptureFps / step.mFrameRate)
+                    / mPolicy.mMaxDroppedFraction;
+            double storage = (double) mSample.mStorageBytesPerSecond
+                    / mPolicy.mMaxStorageBytesPerSecond;
+            double pressure = Math.max(Math.max(backlog, dropped), Math.max(storage, load));
+
+            int next = state.mStep;
+            if (pressure > mPolicy.mHighPressure) {
+                state.mLowTicks = 0;
+                if (++state.mHighTicks >= mPolicy.mDownTicks
+                        && state.mStep < state.mLadder.size() - 1) {
+                    next = state.mStep + 1;
+                }
+            } else if (pressure < mPolicy.mLowPressure) {
+                state.mHighTicks = 0;
+                if (++state.mLowTicks >= mPolicy.mUpTicks && state.mStep > 0) {
+                    next = state.mStep - 1;
+                }
+            } else {
+                state.mHighTicks = 0;
+                state.mLowTicks = 0;
+            }
+            if (next != state.mStep) {
+                state.mStep = next;
+                state.mHighTicks = 0;
+                state.mLowTicks = 0;
+                mListener.onStepChanged(cameraId, step, state.mLadder.get(next),
+                        String.format(Locale.US,
+                                "pressure %.2f (backlog %.2f, dropped %.2f, storage %.2f,"
+                                        + " load %.2f)", pressure, backlog, dropped, storage,
+                                load));
+            }
+        }
+    }
+
+}
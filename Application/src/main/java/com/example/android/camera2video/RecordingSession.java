@@ -0,0 +1,111 @@
+/*
+ * Copyright 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2video;
+
+import java.io.File;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Future;
+
+/**
+ * Names the files of one recording across all cameras.
+ *
+ * Every file starts with the same session id, followed by the camera and the segment number, so
+ * the segments of all cameras that were recorded together sort next to each other:
+ * {@code <session>_<camera>_<segment>.mp4}. The raw frame ring of a camera, if any, is
+ * {@code <session>_<camera>_ring.y8}. The metadata of the whole recording, such as how far apart
+ * the cameras started, is {@code <session>_session.txt}, one {@code key=value} pair per line.
+ * The color and mono frames that were captured together are listed in
+ * {@code <session>_pairs.csv}.
+ */
+final class RecordingSession {
+
+    private final RecordingStorage mStorage;
+    private final String mId;
+
+    /**
+     * @param storage The storage the files are opened in
+     */
+    RecordingSession(RecordingStorage storage) {
+        mStorage = storage;
+        mId = String.valueOf(System.currentTimeMillis());
+    }
+
+    String getId() {
+        return mId;
+    }
+
+    /**
+     * Returns the files of camera {@code cameraId} in this session.
+     *
+     * @param preallocateBytes The space reserved for each segment when it is opened
+     */
+    VideoEncoderEngine.Output newOutput(String cameraId, final long preallocateBytes) {
+        File directory = mStorage.getDirectory();
+        final String prefix = (null == directory ? "" : directory.getAbsolutePath() + "/")
+                + mId + "_" + toFileTag(cameraId) + "_";
+        return new VideoEncoderEngine.Output() {
+            @Override
+            public String getSegmentPath(int sequence) {
+                return prefix + String.format(Locale.US, "%03d", sequence) + ".mp4";
+            }
+
+            @Override
+            public Future<RecordingStorage.OutputFile> openSegment(int sequence) {
+                return mStorage.open(getSegmentPath(sequence), preallocateBytes);
+            }
+        };
+    }
+
+    /**
+     * Returns the path of the raw frame ring of camera {@code cameraId} in this session.
+     */
+    String getRingPath(String cameraId) {
+        File directory = mStorage.getDirectory();
+        return (null == directory ? "" : directory.getAbsolutePath() + "/") + mId + "_"
+                + toFileTag(cameraId) + "_ring.y8";
+    }
+
+    /**
+     * Writes {@code metadata} to the metadata file of this session on the storage thread.
+     */
+    Future<Void> writeMetadata(Map<String, String> metadata) {
+        StringBuilder text = new StringBuilder();
+        for (Map.Entry<String, String> entry : metadata.entrySet()) {
+            text.append(entry.getKey()).append('=').append(entry.getValue()).append('\n');
+        }
+        File directory = mStorage.getDirectory();
+        return mStorage.writeText((null == directory ? "" : directory.getAbsolutePath() + "/")
+                + mId + "_session.txt", text.toString());
+    }
+
+    /**
+     * Writes {@code pairs} to the pairs file of this session. They are formatted on the storage
+     * thread.
+     */
+    Future<Void> writePairs(FramePairIndex.Pairs pairs) {
+        File directory = mStorage.getDirectory();
+        return mStorage.writeText((null == directory ? "" : directory.getAbsolutePath() + "/")
+                + mId + "_pairs.csv", pairs);
+    }
+
+    private static String toFileTag(String cameraId) {
+        return cameraId.matches("\\d+")
+                ? String.format(Locale.US, "%02d", Integer.parseInt(cameraId)) : cameraId;
+    }
+
+}
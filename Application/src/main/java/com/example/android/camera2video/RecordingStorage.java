@@ -0,0 +1,472 @@
+/*
+ * Copyright 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2video;
+
+import android.system.ErrnoException;
+import android.system.Os;
+import android.util.Log;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Opens the files the encoders write to and watches the space left for them.
+ *
+ * Files are opened and preallocated on a storage thread, so a slow file system never stalls a
+ * camera or codec thread. The encoders get the {@link FileDescriptor}s. Once a second the storage
+ * thread reads how far every open file has been written and derives the write rate. From that
+ * rate and the free space of the volume it estimates how long the recording can go on, and warns
+ * the {@link Listener} while there is still time to stop cleanly.
+ *
+ * The volume is read through {@link Volume}, so the estimate can be checked against a small
+ * tmpfs or loopback directory, or a volume that reports whatever space a test needs. A
+ * {@link Delay} slows down every file operation, to check that a slow card only delays the
+ * storage thread.
+ */
+class RecordingStorage {
+
+    private static final String TAG = "RecordingStorage";
+
+    /**
+     * How often the write rates and the free space are measured, in milliseconds.
+     */
+    private static final long SAMPLE_INTERVAL_MS = 1000;
+
+    /**
+     * Reports the free space of the volume the recordings go to.
+     */
+    interface Volume {
+
+        long getUsableBytes();
+
+    }
+
+    /**
+     * Runs before every file operation, on the thread of the operation.
+     */
+    interface Delay {
+
+        /**
+         * @param path The file about to be opened, written or closed
+         */
+        void beforeWrite(String path) throws IOException;
+
+    }
+
+    /**
+     * Text that is only produced when it is written, on the storage thread.
+     */
+    interface Text {
+
+        void writeTo(Writer out) throws IOException;
+
+    }
+
+    /**
+     * Receives storage warnings. Called on the storage thread.
+     */
+    interface Listener {
+
+        /**
+         * Called once the estimated recording time left drops below the threshold, and again
+         * after it has recovered and dropped once more.
+         *
+         * @param remainingSeconds The estimated recording time left
+         * @param remainingBytes   The space left before the reserve, in bytes
+         */
+        void onStorageLow(long remainingSeconds, long remainingBytes);
+
+    }
+
+    private final File mDirectory;
+    private final Volume mVolume;
+    private final long mReserveBytes;
+    private final long mLowSeconds;
+    private final ScheduledExecutorService mExecutor;
+    private final List<OutputFile> mOpenFiles = new CopyOnWriteArrayList<>();
+    private volatile Listener mListener;
+    private volatile Delay mDelay;
+
+    // Only touched by the storage thread.
+    private ScheduledFuture<?> mSampling;
+    private boolean mLow;
+
+    private volatile long mBytesPerSecond;
+    private volatile long mRemainingBytes = Long.MAX_VALUE;
+
+    /**
+     * @param directory    The directory recordings are written to
+     * @param reserveBytes The space that is never used for recordings
+     * @param lowSeconds   The estimated recording time left at which the listener is warned
+     */
+    RecordingStorage(File directory, long reserveBytes, long lowSeconds) {
+        this(directory, reserveBytes, lowSeconds, null);
+    }
+
+    /**
+     * @param volume The volume to read the free space from, or null to use the one that holds
+     *               {@code directory}
+     */
+    RecordingStorage(final File directory, long reserveBytes, long lowSeconds, Volume volume) {
+        mDirectory = directory;
+        mVolume = null != volume ? volume : new Volume() {
+            @Override
+            public long getUsableBytes() {
+                return directory.getUsableSpace();
+            }
+        };
+        mReserveBytes = reserveBytes;
+        mLowSeconds = lowSeconds;
+        mExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                return new Thread(runnable, "RecordingStorage");
+            }
+        });
+    }
+
+    File getDirectory() {
+        return mDirectory;
+    }
+
+    void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Sets the delay to run before every file operation, or null for none.
+     */
+    void setDelay(Delay delay) {
+        mDelay = delay;
+    }
+
+    private void delay(String path) throws IOException {
+        Delay delay = mDelay;
+        if (null != delay) {
+            delay.beforeWrite(path);
+        }
+    }
+
+    /**
+     * Opens {@code path} for writing on the storage thread and reserves {@code preallocateBytes}
+     * for it. Preallocation is skipped where the file system does not support it.
+     */
+    Future<OutputFile> open(final String path, final long preallocateBytes) {
+        return mExecutor.submit(new Callable<OutputFile>() {
+            @Override
+            public OutputFile call() throws IOException {
+                delay(path);
+                OutputFile file = new OutputFile(path, preallocateBytes);
+                mOpenFiles.add(file);
+                if (null == mSampling) {
+                    mSampling = mExecutor.scheduleAtFixedRate(mSample, SAMPLE_INTERVAL_MS,
+                            SAMPLE_INTERVAL_MS, TimeUnit.MILLISECONDS);
+                }
+                return file;
+            }
+        });
+    }
+
+    /**
+     * Writes {@code text} to {@code path} on the storage thread, replacing the file if it exists.
+     */
+    Future<Void> writeText(String path, final String text) {
+        return writeText(path, new Text() {
+            @Override
+            public void writeTo(Writer out) throws IOException {
+                out.write(text);
+            }
+        });
+    }
+
+    /**
+     * Writes {@code text} to {@code path} on the storage thread, replacing the file if it exists.
+     * The text is produced there too.
+     */
+    Future<Void> writeText(final String path, final Text text) {
+        return mExecutor.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws IOException {
+                delay(path);
+                try (Writer out = new BufferedWriter(new OutputStreamWriter(
+                        new FileOutputStream(path), StandardCharsets.UTF_8))) {
+                    text.writeTo(out);
+                }
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Runs {@code task} on the storage thread, behind the files and text queued before it.
+     */
+    void execute(Runnable task) {
+        mExecutor.execute(task);
+    }
+
+    /**
+     * Waits for a file opened with {@link #open}.
+     */
+    static OutputFile await(Future<OutputFile> file) throws IOException {
+        try {
+            return file.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while opening a file.");
+        } catch (ExecutionException e) {
+            throw new IOException("Could not open a file.", e.getCause());
+        }
+    }
+
+    /**
+     * Closes {@code file}, logging instead of throwing on failure. Accepts null.
+     */
+    static void closeQuietly(OutputFile file) {
+        if (null == file) {
+            return;
+        }
+        try {
+            file.close();
+        } catch (IOException e) {
+            Log.w(TAG, "Could not close " + file.getPath(), e);
+        }
+    }
+
+    /**
+     * Whether there is room for at least {@code seconds} more at the measured rate, or at
+     * {@code bytesPerSecond} if nothing is being written yet.
+     */
+    boolean hasRoomFor(long seconds, long bytesPerSecond) {
+        long rate = Math.max(mBytesPerSecond, bytesPerSecond);
+        return getRemainingBytes() / Math.max(1, rate) >= seconds;
+    }
+
+    /**
+     * The space left before the reserve, counting the unused part of preallocated files as free.
+     */
+    long getRemainingBytes() {
+        long preallocated = 0;
+        for (OutputFile file : mOpenFiles) {
+            preallocated += Math.max(0, file.mPreallocated - file.mWritten);
+        }
+        return Math.max(0, mVolume.getUsableBytes() + preallocated - mReserveBytes);
+    }
+
+    /**
+     * The combined write rate of all open files, in bytes per second.
+     */
+    long getBytesPerSecond() {
+        return mBytesPerSecond;
+    }
+
+    /**
+     * The estimated recording time left at the current rate, or {@link Long#MAX_VALUE} if
+     * nothing is being written.
+     */
+    long getRemainingSeconds() {
+        long rate = mBytesPerSecond;
+        return rate == 0 ? Long.MAX_VALUE : mRemainingBytes / rate;
+    }
+
+    void shutdown() {
+        mExecutor.shutdown();
+    }
+
+    /**
+     * Measures the write rate of every open file and checks the space left.
+     */
+    void sample(long nowNanos) {
+        long total = 0;
+        for (OutputFile file : mOpenFiles) {
+            total += file.sample(nowNanos);
+        }
+        mBytesPerSecond = total;
+        long remaining = getRemainingBytes();
+        mRemainingBytes = remaining;
+        boolean low = total > 0 && remaining / total < mLowSeconds;
+        if (low && !mLow) {
+            Log.w(TAG, "Storage low: " + remaining / (1024 * 1024) + " MB left, "
+                    + remaining / total + " s at " + total / 1024 + " KiB/s");
+            Listener listener = mListener;
+            if (null != listener) {
+                listener.onStorageLow(remaining / total, remaining);
+            }
+        }
+        mLow = low;
+    }
+
+    private final Runnable mSample = new Runnable() {
+        @Override
+        public void run() {
+            sample(System.nanoTime());
+            if (mOpenFiles.isEmpty() && null != mSampling) {
+                mSampling.cancel(false);
+                mSampling = null;
+                mBytesPerSecond = 0;
+                mLow = false;
+            }
+        }
+    };
+
+    /**
+     * A file an encoder writes to.
+     */
+    final class OutputFile implements Closeable {
+
+        private final String mPath;
+        private final RandomAccessFile mFile;
+        private final long mPreallocated;
+        private final long mOpenedNanos = System.nanoTime();
+
+        // Written by the storage thread.
+        private volatile long mWritten;
+        private volatile long mBytesPerSecond;
+        private long mLastSampleNanos = mOpenedNanos;
+        private long mLastSampleBytes;
+
+        private OutputFile(String path, long preallocateBytes) throws IOException {
+            mPath = path;
+            mFile = new RandomAccessFile(path, "rw");
+            long preallocated = 0;
+            if (preallocateBytes > 0) {
+                try {
+                    Os.posix_fallocate(mFile.getFD(), 0, preallocateBytes);
+                    preallocated = preallocateBytes;
+                } catch (ErrnoException e) {
+                    Log.w(TAG, "Could not preallocate " + path + ", errno " + e.errno);
+                }
+            }
+            mPreallocated = preallocated;
+        }
+
+        String getPath() {
+            return mPath;
+        }
+
+        /**
+         * The descriptor to hand to the encoder. Encoders duplicate it, and the duplicate shares
+         * the file offset, which is how the written size is measured.
+         */
+        FileDescriptor getFileDescriptor() throws IOException {
+            return mFile.getFD();
+        }
+
+        long getWrittenBytes() {
+            return mWritten;
+        }
+
+        long getBytesPerSecond() {
+            return mBytesPerSecond;
+        }
+
+        /**
+         * Updates the written size and rate of this file. Returns the rate.
+         */
+        private long sample(long nowNanos) {
+            long written;
+            try {
+                written = Math.max(mWritten, mFile.getFilePointer());
+            } catch (IOException e) {
+                // Closed in the meantime
+                return 0;
+            }
+            long elapsed = nowNanos - mLastSampleNanos;
+            if (elapsed > 0) {
+                mBytesPerSecond = (written - mLastSampleBytes) * 1_000_000_000L / elapsed;
+            }
+            mWritten = written;
+            mLastSampleBytes = written;
+            mLastSampleNanos = nowNanos;
+            return mBytesPerSecond;
+        }
+
+        /**
+         * Cuts off the preallocated space the encoder did not use, and closes the file. Must only
+         * be called once the encoder has finalized the file.
+         */
+        @Override
+        public void close() throws IOException {
+            mOpenFiles.remove(this);
+            try {
+                delay(mPath);
+                if (mPreallocated > 0) {
+                    long end = findEndOfBoxes(mFile);
+                    if (end > 0 && end < mFile.length()) {
+                        mFile.setLength(end);
+                    }
+                }
+                long seconds = (System.nanoTime() - mOpenedNanos) / 1_000_000_000L;
+                Log.d(TAG, "Closed " + mPath + ": " + mFile.length() / 1024 + " KiB in "
+                        + seconds + " s");
+            } finally {
+                mFile.close();
+            }
+        }
+
+    }
+
+    /**
+     * Walks the top-level boxes of an MP4 file and returns the offset behind the last complete
+     * one, or 0 if the layout is not understood.
+     */
+    static long findEndOfBoxes(RandomAccessFile file) throws IOException {
+        long length = file.length();
+        long offset = 0;
+        while (offset + 8 <= length) {
+            file.seek(offset);
+            long size = file.readInt() & 0xffffffffL;
+            int type = file.readInt();
+            if (size == 1) {
+                if (offset + 16 > length) {
+                    break;
+                }
+                size = file.readLong();
+            } else if (size == 0) {
+                // The box was never finished
+                return type == 0 ? offset : 0;
+            }
+            if (type == 0) {
+                // The unused preallocated space
+                break;
+            }
+            if (size < 8 || offset + size > length) {
+                return 0;
+            }
+            offset += size;
+        }
+        return offset;
+    }
+
+}
@@ -0,0 +1,329 @@
+/*
+ * Copyright 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2video;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Starts the recordings of several cameras in the same short window.
+ *
+ * Each camera {@link #arrive}s once its session is configured and its encoder is prepared, which
+ * can be hundreds of milliseconds apart between cameras. Nothing starts until the last one has
+ * arrived. The barrier then posts a start to the {@link Executor} of every camera. Each start
+ * first waits, for at most the align timeout, until the starts of all cameras are running, and
+ * only then starts its camera. So the cameras only wait for each other for as long as it takes
+ * their threads to pick up the start, and start in parallel rather than one after the other.
+ *
+ * The spread between the times the starts returned is the start skew of the recording. It is
+ * reported with the {@link Result} once every camera has started or failed to.
+ *
+ * The cameras are only seen through {@link Participant}, so the barrier can be driven by fake
+ * sessions that arrive and start with whatever latencies a test injects.
+ */
+class StartBarrier {
+
+    /**
+     * A camera whose recording the barrier starts.
+     */
+    interface Participant {
+
+        /**
+         * Returns the executor the recording is started on.
+         */
+        Executor getExecutor();
+
+        /**
+         * Starts the recording. Called on the executor of the participant.
+         */
+        void start() throws Exception;
+
+    }
+
+    /**
+     * Receives the outcome of the barrier.
+     */
+    interface Listener {
+
+        /**
+         * Called once every participant has started or failed to, on the executor of the last
+         * one.
+         */
+        void onStarted(Result result);
+
+    }
+
+    /**
+     * The outcome of a barrier.
+     */
+    static final class Result {
+
+        private final List<String> mNames;
+        private final long[] mStartedNanos;
+        private final long[] mStartDurationNanos;
+        private final Exception[] mErrors;
+        private final boolean mAlignTimedOut;
+
+        Result(List<String> names, long[] startedNanos, long[] startDurationNanos,
+               Exception[] errors, boolean alignTimedOut) {
+            mNames = names;
+            mStartedNanos = startedNanos;
+            mStartDurationNanos = startDurationNanos;
+            mErrors = errors;
+            mAlignTimedOut = alignTimedOut;
+        }
+
+        List<String> getNames() {
+            return mNames;
+        }
+
+        /**
+         * Returns whether at least one participant started.
+         */
+        boolean isStarted() {
+            for (Exception error : mErrors) {
+                if (null == error) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Returns whether every participant started.
+         */
+        boolean isSuccessful() {
+            for (Exception error : mErrors) {
+                if (null != error) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Returns the error participant {@code index} failed with, or null if it started.
+         */
+        Exception getError(int index) {
+            return mErrors[index];
+        }
+
+        /**
+         * Returns when the start of participant {@code index} returned, on the
+         * {@link System#nanoTime()} clock, or 0 if it failed.
+         */
+        long getStartedNanos(int index) {
+            return mStartedNanos[index];
+        }
+
+        /**
+         * Returns how long after the first participant the start of participant {@code index}
+         * returned.
+         */
+        long getStartOffsetNanos(int index) {
+            return mStartedNanos[index] - getFirstStartedNanos();
+        }
+
+        /**
+         * Returns how long the start of participant {@code index} took.
+         */
+        long getStartDurationNanos(int index) {
+            return mStartDurationNanos[index];
+        }
+
+        /**
+         * Returns the time from the first to the last start that returned, over the participants
+         * that started.
+         */
+        long getSkewNanos() {
+            long last = Long.MIN_VALUE;
+            for (int i = 0; i < mStartedNanos.length; i++) {
+                if (null == mErrors[i]) {
+                    last = Math.max(last, mStartedNanos[i]);
+                }
+            }
+            return isStarted() ? last - getFirstStartedNanos() : 0;
+        }
+
+        /**
+         * Returns whether a start stopped waiting for the others before they were all running.
+         */
+        boolean isAlignTimedOut() {
+            return mAlignTimedOut;
+        }
+
+        private long getFirstStartedNanos() {
+            long first = Long.MAX_VALUE;
+            for (int i = 0; i < mStartedNanos.length; i++) {
+                if (null == mErrors[i]) {
+                    first = Math.min(first, mStartedNanos[i]);
+                }
+            }
+            return first;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder builder = new StringBuilder(String.format(Locale.US,
+                    "skew %.2f ms%s", getSkewNanos() / 1e6,
+                    mAlignTimedOut ? " (align timed out)" : ""));
+            for (int i = 0; i < mNames.size(); i++) {
+                builder.append(", ").append(mNames.get(i));
+                if (null != mErrors[i]) {
+                    builder.append(" failed: ").append(mErrors[i]);
+                } else {
+                    builder.append(String.format(Locale.US, " at +%.2f ms in %.2f ms",
+                            getStartOffsetNanos(i) / 1e6, mStartDurationNanos[i] / 1e6));
+                }
+            }
+            return builder.toString();
+        }
+
+    }
+
+    private final List<String> mNames;
+    private final long mAlignTimeoutNanos;
+    private final Listener mListener;
+    private final Participant[] mParticipants;
+    private int mArrived;
+    private boolean mReleased;
+    private boolean mCancelled;
+
+    /**
+     * @param names             The names of the participants to wait for
+     * @param alignTimeoutNanos  How long a start waits for the starts of the others
+     */
+    StartBarrier(List<String> names, long alignTimeoutNanos, Listener listener) {
+        if (names.isEmpty()) {
+            throw new IllegalArgumentException("A barrier needs a participant.");
+        }
+        mNames = Collections.unmodifiableList(new ArrayList<>(names));
+        mAlignTimeoutNanos = alignTimeoutNanos;
+        mListener = listener;
+        mParticipants = new Participant[names.size()];
+    }
+
+    /**
+     * Reports that participant {@code name} is ready to start. Starts every participant if it
+     * was the last one.
+     *
+     * @return Whether the participant will be started, false if the barrier was cancelled
+     */
+    boolean arrive(String name, Participant participant) {
+        int index = mNames.indexOf(name);
+        if (index < 0) {
+            throw new IllegalArgumentException("Unknown participant " + name + ".");
+        }
+        synchronized (this) {
+            if (mCancelled) {
+                return false;
+            }
+            if (null != mParticipants[index]) {
+                throw new IllegalStateException(name + " has already arrived.");
+            }
+            mParticipants[index] = participant;
+            if (++mArrived < mParticipants.length) {
+                return true;
+            }
+            mReleased = true;
+        }
+        release();
+        return true;
+    }
+
+    /**
+     * Cancels the barrier unless it has already released the starts.
+     *
+     * @return Whether the barrier was cancelled, false if the participants are being started
+     */
+    synchronized boolean cancel() {
+        if (!mReleased) {
+            mCancelled = true;
+        }
+        return mCancelled;
+    }
+
+    /**
+     * Returns whether participant {@code name} has arrived.
+     */
+    synchronized boolean hasArrived(String name) {
+        int index = mNames.indexOf(name);
+        return index >= 0 && null != mParticipants[index];
+    }
+
+    private void release() {
+        final int count = mParticipants.length;
+        final CountDownLatch aligned = new CountDownLatch(count);
+        final AtomicInteger remaining = new AtomicInteger(count);
+        final AtomicBoolean alignTimedOut = new AtomicBoolean();
+        final long[] startedNanos = new long[count];
+        final long[] durationNanos = new long[count];
+        final Exception[] errors = new Exception[count];
+        for (int i = 0; i < count; i++) {
+            final int index = i;
+            final Participant participant = mParticipants[i];
+            Runnable start = new Runnable() {
+                @Override
+                public void run() {
+                    aligned.countDown();
+                    try {
+                        if (!aligned.await(mAlignTimeoutNanos, TimeUnit.NANOSECONDS)) {
+                            alignTimedOut.set(true);
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        alignTimedOut.set(true);
+                    }
+                    long before = System.nanoTime();
+                    try {
+                        participant.start();
+                        long after = System.nanoTime();
+                        startedNanos[index] = after;
+                        durationNanos[index] = after - before;
+                    } catch (Exception e) {
+                        errors[index] = e;
+                    }
+                    // The last one to finish sees the results of all others
+                    if (0 == remaining.decrementAndGet()) {
+                        mListener.onStarted(new Result(mNames, startedNanos, durationNanos,
+                                errors, alignTimedOut.get()));
+                    }
+                }
+            };
+            try {
+                participant.getExecutor().execute(start);
+            } catch (RejectedExecutionException e) {
+                // The others stop waiting for this one after the align timeout
+                errors[index] = e;
+                alignTimedOut.set(true);
+                if (0 == remaining.decrementAndGet()) {
+                    mListener.onStarted(new Result(mNames, startedNanos, durationNanos, errors,
+                            true));
+                }
+            }
+        }
+    }
+
+}
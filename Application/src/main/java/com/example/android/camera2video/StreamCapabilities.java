@@ -0,0 +1,279 @@
+/*
+ * Copyright 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2video;
+
+import android.graphics.SurfaceTexture;
+import android.hardware.camera2.CameraCharacteristics;
+import android.hardware.camera2.params.StreamConfigurationMap;
+import android.media.MediaRecorder;
+import android.util.Range;
+import android.util.Size;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A snapshot of the output sizes of one camera, with the minimum frame duration and the stall
+ * duration of each of them.
+ *
+ * The snapshot only holds plain values, so it can be recorded from a device once and rebuilt with
+ * {@link #add} wherever the {@link StreamConfigResolver} needs to be checked against it.
+ * {@link #toProfile()} writes it down as text for that.
+ */
+final class StreamCapabilities {
+
+    /**
+     * The kinds of output a camera streams to.
+     */
+    enum Target {
+        /**
+         * A {@link SurfaceTexture}, for the preview.
+         */
+        PREVIEW,
+        /**
+         * The input surface of an encoder.
+         */
+        RECORDER,
+        /**
+         * An ImageReader in the {@link #getAnalysisFormat() analysis format}, for the analyzers.
+         */
+        ANALYSIS
+    }
+
+    /**
+     * One output size and its timing.
+     */
+    static final class Output {
+
+        private final Size mSize;
+        private final long mMinFrameDurationNs;
+        private final long mStallDurationNs;
+
+        Output(Size size, long minFrameDurationNs, long stallDurationNs) {
+            mSize = size;
+            mMinFrameDurationNs = minFrameDurationNs;
+            mStallDurationNs = stallDurationNs;
+        }
+
+        Size getSize() {
+            return mSize;
+        }
+
+        long getMinFrameDurationNs() {
+            return mMinFrameDurationNs;
+        }
+
+        long getStallDurationNs() {
+            return mStallDurationNs;
+        }
+
+    }
+
+    /**
+     * A size and frame rate range a constrained high-speed session supports.
+     */
+    static final class HighSpeedConfig {
+
+        private final Size mSize;
+        private final int mMinFps;
+        private final int mMaxFps;
+
+        HighSpeedConfig(Size size, int minFps, int maxFps) {
+            mSize = size;
+            mMinFps = minFps;
+            mMaxFps = maxFps;
+        }
+
+        Size getSize() {
+            return mSize;
+        }
+
+        int getMinFps() {
+            return mMinFps;
+        }
+
+        int getMaxFps() {
+            return mMaxFps;
+        }
+
+        /**
+         * Whether the range has a single rate. Only such ranges may be used while recording.
+         */
+        boolean isFixed() {
+            return mMinFps == mMaxFps;
+        }
+
+        @Override
+        public String toString() {
+            return mSize + " [" + mMinFps + ", " + mMaxFps + "]";
+        }
+
+    }
+
+    private final String mCameraId;
+    private final Map<Target, List<Output>> mOutputs = new EnumMap<>(Target.class);
+    private final List<HighSpeedConfig> mHighSpeedConfigs = new ArrayList<>();
+    private int mAnalysisFormat = LumaFormat.YUV_420_888;
+
+    StreamCapabilities(String cameraId) {
+        mCameraId = cameraId;
+        for (Target target : Target.values()) {
+            mOutputs.put(target, new ArrayList<Output>());
+        }
+    }
+
+    /**
+     * Reads the outputs of every {@link Target} from {@code characteristics}. A camera without a
+     * stream configuration map has no outputs.
+     */
+    static StreamCapabilities of(String cameraId, CameraCharacteristics characteristics) {
+        StreamCapabilities capabilities = new StreamCapabilities(cameraId);
+        StreamConfigurationMap map =
+                characteristics.get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
+        if (null == map) {
+            return capabilities;
+        }
+        Size[] preview = map.getOutputSizes(SurfaceTexture.class);
+        if (null != preview) {
+            for (Size size : preview) {
+                capabilities.add(Target.PREVIEW, size,
+                        map.getOutputMinFrameDuration(SurfaceTexture.class, size),
+                        map.getOutputStallDuration(SurfaceTexture.class, size));
+            }
+        }
+        Size[] recorder = map.getOutputSizes(MediaRecorder.class);
+        if (null != recorder) {
+            for (Size size : recorder) {
+                capabilities.add(Target.RECORDER, size,
+                        map.getOutputMinFrameDuration(MediaRecorder.class, size),
+                        map.getOutputStallDuration(MediaRecorder.class, size));
+            }
+        }
+        int analysisFormat = LumaFormat.choose(map.getOutputFormats());
+        if (analysisFormat != -1) {
+            capabilities.setAnalysisFormat(analysisFormat);
+            Size[] analysis = map.getOutputSizes(analysisFormat);
+            if (null != analysis) {
+                for (Size size : analysis) {
+                    capabilities.add(Target.ANALYSIS, size,
+                            map.getOutputMinFrameDuration(analysisFormat, size),
+                            map.getOutputStallDuration(analysisFormat, size));
+                }
+            }
+        }
+        // Empty unless the camera has the constrained high-speed video capability
+        Size[] highSpeed = map.getHighSpeedVideoSizes();
+        if (null != highSpeed) {
+            for (Size size : highSpeed) {
+                for (Range<Integer> range : map.getHighSpeedVideoFpsRangesFor(size)) {
+                    capabilities.addHighSpeed(size, range.getLower(), range.getUpper());
+                }
+            }
+        }
+        return capabilities;
+    }
+
+    /**
+     * Adds an output size of {@code target}.
+     *
+     * @return This snapshot, so a recorded profile can be written as one expression
+     */
+    StreamCapabilities add(Target target, Size size, long minFrameDurationNs,
+                           long stallDurationNs) {
+        mOutputs.get(target).add(new Output(size, minFrameDurationNs, stallDurationNs));
+        return this;
+    }
+
+    /**
+     * Adds a size and frame rate range of constrained high-speed sessions.
+     *
+     * @return This snapshot
+     */
+    StreamCapabilities addHighSpeed(Size size, int minFps, int maxFps) {
+        mHighSpeedConfigs.add(new HighSpeedConfig(size, minFps, maxFps));
+        return this;
+    }
+
+    /**
+     * Sets the image format of the {@link Target#ANALYSIS} outputs, one of {@link LumaFormat}.
+     *
+     * @return This snapshot
+     */
+    StreamCapabilities setAnalysisFormat(int format) {
+        mAnalysisFormat = format;
+        return this;
+    }
+
+    int getAnalysisFormat() {
+        return mAnalysisFormat;
+    }
+
+    String getCameraId() {
+        return mCameraId;
+    }
+
+    /**
+     * Returns the outputs of {@code target} in the order they were added.
+     */
+    List<Output> getOutputs(Target target) {
+        return Collections.unmodifiableList(mOutputs.get(target));
+    }
+
+    List<HighSpeedConfig> getHighSpeedConfigs() {
+        return Collections.unmodifiableList(mHighSpeedConfigs);
+    }
+
+    /**
+     * Returns the snapshot as a profile, one line per output:
+     * {@code <target> <width>x<height> <min frame duration ns> <stall duration ns>}, one line per
+     * high-speed range: {@code HIGH_SPEED <width>x<height> <min fps> <max fps>}, and the analysis
+     * format as {@code ANALYSIS_FORMAT 0x<format>}.
+     */
+    String toProfile() {
+        StringBuilder profile = new StringBuilder();
+        profile.append("ANALYSIS_FORMAT 0x").append(Integer.toHexString(mAnalysisFormat))
+                .append('\n');
+        for (Map.Entry<Target, List<Output>> target : mOutputs.entrySet()) {
+            for (Output output : target.getValue()) {
+                profile.append(target.getKey()).append(' ').append(output.mSize).append(' ')
+                        .append(output.mMinFrameDurationNs).append(' ')
+                        .append(output.mStallDurationNs).append('\n');
+            }
+        }
+        for (HighSpeedConfig config : mHighSpeedConfigs) {
+            profile.append("HIGH_SPEED ").append(config.mSize).append(' ')
+                    .append(config.mMinFps).append(' ').append(config.mMaxFps).append('\n');
+        }
+        return profile.toString();
+    }
+
+    /**
+     * Returns the output of {@code target} with exactly {@code size}, or null.
+     */
+    Output find(Target target, Size size) {
+        for (Output output : mOutputs.get(target)) {
+            if (output.mSize.equals(size)) {
+                return output;
+            }
+        }
+        return null;
+    }
+
+}
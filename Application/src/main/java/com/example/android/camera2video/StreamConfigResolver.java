@@ -0,0 +1,408 @@
+/*
+ * Copyright 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2video;
+
+import android.util.Size;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Chooses the sizes of every stream of every camera so that all of them together keep up with
+ * the requested frame rate.
+ *
+ * A camera can only run a set of streams as fast as its slowest stream allows: the frame duration
+ * of a request is the largest minimum frame duration of its outputs, plus the largest stall
+ * duration among them. The resolver walks the recorder sizes the cameras share, largest first,
+ * and picks the preview and analysis sizes that go with each of them. The first recorder size at
+ * which every camera stays within the frame budget wins.
+ *
+ * Every size that is passed over is recorded with the reason, so a device profile that resolves
+ * to something unexpected can be understood from the {@link Resolution} alone. The resolver only
+ * reads {@link StreamCapabilities} snapshots and has no state.
+ */
+final class StreamConfigResolver {
+
+    private StreamConfigResolver() {
+    }
+
+    /**
+     * What the streams have to sustain, and which streams each camera runs.
+     */
+    static final class Request {
+
+        private final int mFrameRate;
+        private final Size mMaxRecordSize;
+        private final int mViewWidth;
+        private final int mViewHeight;
+        private final List<StreamCapabilities> mCameras = new ArrayList<>();
+        private final List<Set<StreamCapabilities.Target>> mTargets = new ArrayList<>();
+
+        /**
+         * @param frameRate     The frame rate every camera has to keep up with
+         * @param maxRecordSize The largest size to record at. Its aspect ratio is used for every
+         *                      stream.
+         * @param viewWidth     The minimum desired preview width
+         * @param viewHeight    The minimum desired preview height
+         */
+        Request(int frameRate, Size maxRecordSize, int viewWidth, int viewHeight) {
+            if (frameRate < 1) {
+                throw new IllegalArgumentException("The frame rate must be positive.");
+            }
+            mFrameRate = frameRate;
+            mMaxRecordSize = maxRecordSize;
+            mViewWidth = viewWidth;
+            mViewHeight = viewHeight;
+        }
+
+        /**
+         * Adds a camera that streams to {@code targets} at the same time.
+         */
+        Request addCamera(StreamCapabilities camera, Set<StreamCapabilities.Target> targets) {
+            mCameras.add(camera);
+            mTargets.add(EnumSet.copyOf(targets));
+            return this;
+        }
+
+        long getFrameBudgetNs() {
+            return 1_000_000_000L / mFrameRate;
+        }
+
+    }
+
+    /**
+     * The chosen sizes, or the reasons why no sizes could be chosen.
+     */
+    static final class Resolution {
+
+        private final Map<String, Map<StreamCapabilities.Target, Size>> mSizes;
+        private final Map<String, Long> mFrameDurations;
+        private final List<String> mRejections;
+
+        private Resolution(Map<String, Map<StreamCapabilities.Target, Size>> sizes,
+                           Map<String, Long> frameDurations, List<String> rejections) {
+            mSizes = sizes;
+            mFrameDurations = frameDurations;
+            mRejections = Collections.unmodifiableList(rejections);
+        }
+
+        boolean isResolved() {
+            return null != mSizes;
+        }
+
+        /**
+         * Returns the size of the {@code target} stream of camera {@code cameraId}, or null if
+         * that camera does not stream to it.
+         */
+        Size getSize(String cameraId, StreamCapabilities.Target target) {
+            if (null == mSizes || !mSizes.containsKey(cameraId)) {
+                return null;
+            }
+            return mSizes.get(cameraId).get(target);
+        }
+
+        /**
+         * Returns the shortest frame duration camera {@code cameraId} can run all of its streams
+         * at, in nanoseconds.
+         */
+        long getFrameDurationNs(String cameraId) {
+            Long duration = null == mFrameDurations ? null : mFrameDurations.get(cameraId);
+            return null == duration ? 0 : duration;
+        }
+
+        /**
+         * Returns every alternative that was passed over, with the reason, in the order they were
+         * tried.
+         */
+        List<String> getRejections() {
+            return mRejections;
+        }
+
+        @Override
+        public String toString() {
+            if (null == mSizes) {
+                return "unresolved after " + mRejections.size() + " rejections";
+            }
+            StringBuilder builder = new StringBuilder();
+            for (Map.Entry<String, Map<StreamCapabilities.Target, Size>> camera
+                    : mSizes.entrySet()) {
+                if (builder.length() > 0) {
+                    builder.append("; ");
+                }
+                builder.append("camera ").append(camera.getKey()).append(": ")
+                        .append(camera.getValue()).append(" at ")
+                        .append(formatDuration(mFrameDurations.get(camera.getKey())));
+            }
+            return builder.toString();
+        }
+
+    }
+
+    /**
+     * Chooses the stream sizes for {@code request}.
+     */
+    static Resolution resolve(Request request) {
+        List<String> rejections = new ArrayList<>();
+        long budget = request.getFrameBudgetNs();
+        for (Size candidate : recordSizeCandidates(request, rejections)) {
+            Map<String, Map<StreamCapabilities.Target, Size>> sizes = new LinkedHashMap<>();
+            Map<String, Long> durations = new LinkedHashMap<>();
+            boolean sustained = true;
+            for (int i = 0; i < request.mCameras.size() && sustained; i++) {
+                StreamCapabilities camera = request.mCameras.get(i);
+                Map<StreamCapabilities.Target, StreamCapabilities.Output> outputs =
+                        chooseOutputs(request, camera, request.mTargets.get(i), candidate,
+                                rejections);
+                if (null == outputs) {
+                    sustained = false;
+                    break;
+                }
+                long duration = getFrameDuration(outputs.values());
+                if (duration > budget) {
+                    rejections.add("Record size " + candidate + ": camera "
+                            + camera.getCameraId() + " needs " + formatDuration(duration)
+                            + " per frame for " + describe(outputs) + ", more than "
+                            + formatDuration(budget) + " at " + request.mFrameRate + " fps");
+                    sustained = false;
+                    break;
+                }
+                Map<StreamCapabilities.Target, Size> cameraSizes =
+                        new EnumMap<>(StreamCapabilities.Target.class);
+                for (Map.Entry<StreamCapabilities.Target, StreamCapabilities.Output> output
+                        : outputs.entrySet()) {
+                    cameraSizes.put(output.getKey(), output.getValue().getSize());
+                }
+                sizes.put(camera.getCameraId(), cameraSizes);
+                durations.put(camera.getCameraId(), duration);
+            }
+            if (sustained) {
+                return new Resolution(sizes, durations, rejections);
+            }
+        }
+        return new Resolution(null, null, rejections);
+    }
+
+    /**
+     * Returns the recorder sizes every recording camera supports that have the requested aspect
+     * ratio and fit into the maximum record size, largest first.
+     */
+    private static List<Size> recordSizeCandidates(Request request, List<String> rejections) {
+        List<Size> candidates = new ArrayList<>();
+        StreamCapabilities first = null;
+        for (int i = 0; i < request.mCameras.size(); i++) {
+            if (request.mTargets.get(i).contains(StreamCapabilities.Target.RECORDER)) {
+                first = request.mCameras.get(i);
+                break;
+            }
+        }
+        if (null == first) {
+            // Nothing records, the maximum size only sets the aspect ratio
+            candidates.add(request.mMaxRecordSize);
+            return candidates;
+        }
+        Size max = request.mMaxRecordSize;
+        for (StreamCapabilities.Output output
+                : first.getOutputs(StreamCapabilities.Target.RECORDER)) {
+            Size size = output.getSize();
+            if (size.getWidth() > max.getWidth() || size.getHeight() > max.getHeight()) {
+                rejections.add("Record size " + size + ": larger than " + max);
+            } else if (!hasAspectRatio(size, max)) {
+                rejections.add("Record size " + size + ": not the aspect ratio of " + max);
+            } else {
+                String missing = findCameraWithout(request, size);
+                if (null != missing) {
+                    rejections.add("Record size " + size + ": not supported by camera "
+                            + missing);
+                } else {
+                    candidates.add(size);
+                }
+            }
+        }
+        if (candidates.isEmpty()) {
+            rejections.add("No record size is left");
+        }
+        Collections.sort(candidates,
+                Collections.reverseOrder(new SizeChooser.CompareSizesByArea()));
+        return candidates;
+    }
+
+    /**
+     * Returns the id of a recording camera that cannot record at {@code size}, or null.
+     */
+    private static String findCameraWithout(Request request, Size size) {
+        for (int i = 0; i < request.mCameras.size(); i++) {
+            StreamCapabilities camera = request.mCameras.get(i);
+            if (request.mTargets.get(i).contains(StreamCapabilities.Target.RECORDER)
+                    && null == camera.find(StreamCapabilities.Target.RECORDER, size)) {
+                return camera.getCameraId();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Chooses the output of every target of {@code camera} for the record size {@code record}, or
+     * returns null if one of them cannot keep up on its own.
+     */
+    private static Map<StreamCapabilities.Target, StreamCapabilities.Output> chooseOutputs(
+            Request request, StreamCapabilities camera, Set<StreamCapabilities.Target> targets,
+            Size record, List<String> rejections) {
+        Map<StreamCapabilities.Target, StreamCapabilities.Output> outputs =
+                new EnumMap<>(StreamCapabilities.Target.class);
+        long budget = request.getFrameBudgetNs();
+        for (StreamCapabilities.Target target : targets) {
+            StreamCapabilities.Output output;
+            switch (target) {
+                case RECORDER:
+                    output = camera.find(target, record);
+                    if (output.getMinFrameDurationNs() > budget) {
+                        rejections.add(describeSlow(camera, target, output, request));
+                        output = null;
+                    }
+                    break;
+                case PREVIEW:
+                    output = choosePreview(request, camera, record, rejections);
+                    break;
+                default:
+                    output = chooseLargestFitting(request, camera, target, record, rejections);
+                    break;
+            }
+            if (null == output) {
+                rejections.add("Record size " + record + ": camera " + camera.getCameraId()
+                        + " has no " + target + " size that keeps up");
+                return null;
+            }
+            outputs.put(target, output);
+        }
+        return outputs;
+    }
+
+    /**
+     * Returns the smallest preview output with the aspect ratio of {@code record} that covers the
+     * view, or the largest one if none does. Only outputs that keep up are considered.
+     */
+    private static StreamCapabilities.Output choosePreview(Request request,
+                                                           StreamCapabilities camera, Size record,
+                                                           List<String> rejections) {
+        StreamCapabilities.Output bigEnough = null;
+        StreamCapabilities.Output largest = null;
+        long budget = request.getFrameBudgetNs();
+        for (StreamCapabilities.Output output
+                : camera.getOutputs(StreamCapabilities.Target.PREVIEW)) {
+            Size size = output.getSize();
+            if (!hasAspectRatio(size, record)) {
+                continue;
+            }
+            if (output.getMinFrameDurationNs() > budget) {
+                rejections.add(describeSlow(camera, StreamCapabilities.Target.PREVIEW, output,
+                        request));
+                continue;
+            }
+            if (size.getWidth() >= request.mViewWidth && size.getHeight() >= request.mViewHeight
+                    && (null == bigEnough || area(size) < area(bigEnough.getSize()))) {
+                bigEnough = output;
+            }
+            if (null == largest || area(size) > area(largest.getSize())) {
+                largest = output;
+            }
+        }
+        return null != bigEnough ? bigEnough : largest;
+    }
+
+    /**
+     * Returns the largest output of {@code target} with the aspect ratio of {@code record} that
+     * is no larger than it and keeps up.
+     */
+    private static StreamCapabilities.Output chooseLargestFitting(
+            Request request, StreamCapabilities camera, StreamCapabilities.Target target,
+            Size record, List<String> rejections) {
+        StreamCapabilities.Output largest = null;
+        long budget = request.getFrameBudgetNs();
+        for (StreamCapabilities.Output output : camera.getOutputs(target)) {
+            Size size = output.getSize();
+            if (!hasAspectRatio(size, record) || size.getWidth() > record.getWidth()
+                    || size.getHeight() > record.getHeight()) {
+                continue;
+            }
+            if (output.getMinFrameDurationNs() > budget) {
+                rejections.add(describeSlow(camera, target, output, request));
+                continue;
+            }
+            if (null == largest || area(size) > area(largest.getSize())) {
+                largest = output;
+            }
+        }
+        return largest;
+    }
+
+    /**
+     * Returns the frame duration of a request that targets all of {@code outputs}: the slowest
+     * output, plus the longest stall among them.
+     */
+    private static long getFrameDuration(Iterable<StreamCapabilities.Output> outputs) {
+        long minFrameDuration = 0;
+        long stall = 0;
+        for (StreamCapabilities.Output output : outputs) {
+            minFrameDuration = Math.max(minFrameDuration, output.getMinFrameDurationNs());
+            stall = Math.max(stall, output.getStallDurationNs());
+        }
+        return minFrameDuration + stall;
+    }
+
+    private static boolean hasAspectRatio(Size size, Size reference) {
+        return (long) size.getWidth() * reference.getHeight()
+                == (long) size.getHeight() * reference.getWidth();
+    }
+
+    private static long area(Size size) {
+        return (long) size.getWidth() * size.getHeight();
+    }
+
+    private static String describeSlow(StreamCapabilities camera,
+                                       StreamCapabilities.Target target,
+                                       StreamCapabilities.Output output, Request request) {
+        return target + " size " + output.getSize() + ": camera " + camera.getCameraId()
+                + " needs at least " + formatDuration(output.getMinFrameDurationNs())
+                + " per frame, more than " + formatDuration(request.getFrameBudgetNs()) + " at "
+                + request.mFrameRate + " fps";
+    }
+
+    private static String describe(
+            Map<StreamCapabilities.Target, StreamCapabilities.Output> outputs) {
+        StringBuilder builder = new StringBuilder();
+        for (Map.Entry<StreamCapabilities.Target, StreamCapabilities.Output> output
+                : outputs.entrySet()) {
+            if (builder.length() > 0) {
+                builder.append(", ");
+            }
+            builder.append(output.getKey()).append(' ').append(output.getValue().getSize());
+        }
+        return builder.toString();
+    }
+
+    private static String formatDuration(long nanos) {
+        return String.format(Locale.US, "%.1f ms", nanos / 1e6);
+    }
+
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2video;
+
+import android.view.Surface;
+
+import java.io.IOException;
+import java.util.concurrent.Future;
+
+/**
+ * Encodes the frames a camera renders into an input {@link Surface} and writes them to a file.
+ *
+ * The recording code only talks to this interface, so the encoder can be swapped for
+ * {@link MediaRecorderEngine}, {@link MediaCodecEngine} or a fake that needs no device.
+ */
+interface VideoEncoderEngine {
+
+    /**
+     * Receives events of an encoder. Called on a thread owned by the encoder.
+     */
+    interface Listener {
+
+        /**
+         * Called for every encoded frame written to the output.
+         *
+         * @param presentationTimeUs The presentation time of the frame
+         * @param size               The size of the encoded frame, in bytes
+         * @param keyFrame           Whether the frame is a key frame
+         */
+        void onFrameEncoded(long presentationTimeUs, int size, boolean keyFrame);
+
+        /**
+         * Called once a segment file is complete, including the last one of a recording.
+         *
+         * @param sequence The number of the segment, starting at 0
+         * @param path     The file the segment was written to
+         */
+        void onSegmentFinished(int sequence, String path);
+
+        void onError(Exception e);
+
+    }
+
+    /**
+     * The files of a recording. An unsegmented recording only uses segment 0.
+     */
+    interface Output {
+
+        String getSegmentPath(int sequence);
+
+        /**
+         * Opens segment {@code sequence} for writing in the background. The encoder closes the
+         * file once the segment is finalized.
+         */
+        Future<RecordingStorage.OutputFile> openSegment(int sequence);
+
+    }
+
+    void setListener(Listener listener);
+
+    /**
+     * Configures the encoder for the next recording.
+     *
+     * @param config       The encoder settings
+     * @param output       The files to write to
+     * @param inputSurface A persistent input surface to encode from, or null to let the encoder
+     *                     create its own
+     */
+    void prepare(EncoderConfig config, Output output, Surface inputSurface)
+            throws IOException;
+
+    /**
+     * Returns the surface the camera renders into. Valid between {@link #prepare} and
+     * {@link #reset()}.
+     */
+    Surface getInputSurface();
+
+    /**
+     * Starts encoding into {@code buffer} without writing to the output. A following
+     * {@link #start()} writes the buffered frames to the output first. Must be called after
+     * {@link #prepare} and instead of an immediate {@link #start()}.
+     *
+     * @return Whether the encoder supports pre-roll. If not, nothing was started.
+     */
+    boolean startPreRoll(PreRollBuffer buffer);
+
+    void start();
+
+    /**
+     * Changes the target bitrate of the running encoder.
+     *
+     * @return Whether the encoder supports it. If not, the bitrate only changes with the next
+     *         {@link #prepare}.
+     */
+    boolean setBitRate(int bitRate);
+
+    /**
+     * Stops encoding and finalizes the output file.
+     */
+    void stop();
+
+    /**
+     * Returns the encoder to its state before {@link #prepare}.
+     */
+    void reset();
+
+    void release();
+
+}
@@ -0,0 +1,424 @@
+/*
+ * Copyright 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2video;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.zip.Deflater;
+
+/**
+ * Keeps the luma plane of the most recent frames of a stream in a memory-mapped file, losslessly.
+ *
+ * The file is allocated and mapped once, and holds a ring of fixed-size slots, each large enough
+ * for one plane of {@code width} by {@code height} bytes. A frame goes into the slot after the
+ * previous one, overwriting the oldest frame once the ring is full. The file is laid out as:
+ *
+ * <ul>
+ * <li>A header of {@link #HEADER_BYTES}: the magic, the format version, the width, the height,
+ * the slot count, the slot size and the flags, as big-endian ints.</li>
+ * <li>An index of one {@link #ENTRY_BYTES} entry per slot: the sequence number of the frame, or
+ * -1 while the slot is empty or being written, its sensor timestamp and frame number, the file
+ * offset and length of its data, and its encoding.</li>
+ * <li>The slots, in index order.</li>
+ * </ul>
+ *
+ * A plane is stored row after row without padding. If compression is on, every row is replaced
+ * by the differences between neighbouring pixels and the plane is deflated at the fastest level.
+ * A plane that would not fit its slot compressed is stored raw.
+ *
+ * The writer is an analyzer of a {@link FramePipeline}. It only hands frames to its own worker
+ * threads, which copy and compress them, so a slow disk or a slow compression drops frames
+ * instead of holding up the stream. Workers, jobs and buffers are all created up front, nothing
+ * is allocated per frame. A worker claims its slot before writing it, so a worker that stalls
+ * for a whole lap of the ring drops the newer frame instead of interleaving with it, and never
+ * overwrites a newer frame with an older one.
+ */
+class Y8RingFile implements FramePipeline.Analyzer {
+
+    static final int MAGIC = 0x59385246;
+    static final int FORMAT_VERSION = 1;
+    static final int HEADER_BYTES = 64;
+    static final int ENTRY_BYTES = 40;
+
+    /**
+     * The header flag of a file whose planes may be compressed.
+     */
+    static final int FLAG_COMPRESSED = 1;
+
+    /**
+     * The encodings of a slot.
+     */
+    static final int ENCODING_RAW = 0;
+    static final int ENCODING_DELTA_DEFLATE = 1;
+
+    /**
+     * The number of recent capture starts kept to find the frame number of a frame.
+     */
+    private static final int FRAME_NUMBER_HISTORY = 32;
+
+    private final File mFile;
+    private final int mWidth;
+    private final int mHeight;
+    private final int mSlotCount;
+    private final int mSlotBytes;
+    private final int mDataOffset;
+    private final boolean mCompress;
+
+    private final RandomAccessFile mRandomAccessFile;
+    private final MappedByteBuffer mMap;
+    private final Worker[] mWorkers;
+    private final BlockingQueue<Job> mFreeJobs;
+    private final BlockingQueue<Job> mPendingJobs;
+    // 1 while a worker writes the slot
+    private final AtomicIntegerArray mBusySlots;
+
+    // The timestamp and frame number of each recent capture start, one after the other
+    private final AtomicLongArray mFrameNumbers = new AtomicLongArray(2 * FRAME_NUMBER_HISTORY);
+    private int mFrameNumberIndex;
+
+    private final Object mLock = new Object();
+    private boolean mClosed;
+    private long mNextSequence;
+
+    private final AtomicLong mWrittenFrames = new AtomicLong();
+    private final AtomicLong mDroppedFrames = new AtomicLong();
+    private final AtomicLong mWrittenBytes = new AtomicLong();
+
+    /**
+     * Creates the file, or replaces it, and starts the workers.
+     *
+     * @param slotCount     The number of frames the ring holds
+     * @param compress      Whether planes are compressed
+     * @param workerThreads The number of threads that copy and compress planes. As many frames
+     *                      are held at once, which must stay below what the pipeline allows.
+     */
+    Y8RingFile(File file, int width, int height, int slotCount, boolean compress,
+               int workerThreads) throws IOException {
+        if (width < 1 || height < 1 || workerThreads < 1 || slotCount <= workerThreads) {
+            throw new IllegalArgumentException("Invalid ring configuration.");
+        }
+        long slotBytes = (long) width * height;
+        long length = HEADER_BYTES + (long) ENTRY_BYTES * slotCount + slotBytes * slotCount;
+        if (length > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("The ring does not fit a single mapping.");
+        }
+        mFile = file;
+        mWidth = width;
+        mHeight = height;
+        mSlotCount = slotCount;
+        mSlotBytes = (int) slotBytes;
+        mDataOffset = HEADER_BYTES + ENTRY_BYTES * slotCount;
+        mCompress = compress;
+        mBusySlots = new AtomicIntegerArray(slotCount);
+
+        mRandomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            mRandomAccessFile.setLength(length);
+            mMap = mRandomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length);
+        } catch (IOException e) {
+            mRandomAccessFile.close();
+            throw e;
+        }
+        mMap.putInt(0, MAGIC);
+        mMap.putInt(4, FORMAT_VERSION);
+        mMap.putInt(8, width);
+        mMap.putInt(12, height);
+        mMap.putInt(16, slotCount);
+        mMap.putInt(20, mSlotBytes);
+        mMap.putInt(24, compress ? FLAG_COMPRESSED : 0);
+        for (int slot = 0; slot < slotCount; slot++) {
+            mMap.putLong(getEntryOffset(slot), -1);
+        }
+        for (int i = 0; i < FRAME_NUMBER_HISTORY; i++) {
+            mFrameNumbers.set(2 * i, -1);
+        }
+
+        mFreeJobs = new ArrayBlockingQueue<>(workerThreads);
+        mPendingJobs = new ArrayBlockingQueue<>(workerThreads);
+        mWorkers = new Worker[workerThreads];
+        for (int i = 0; i < workerThreads; i++) {
+            mFreeJobs.add(new Job());
+            mWorkers[i] = new Worker(i);
+            mWorkers[i].start();
+        }
+    }
+
+    File getFile() {
+        return mFile;
+    }
+
+    /**
+     * Records the frame number of the capture that started at {@code timestamp}, so its frame
+     * can be indexed with it. Called on the camera thread.
+     */
+    void onCaptureStarted(long timestamp, long frameNumber) {
+        int index = 2 * mFrameNumberIndex;
+        mFrameNumberIndex = (mFrameNumberIndex + 1) % FRAME_NUMBER_HISTORY;
+        // Invalidate the entry while it changes, readers check the timestamp again afterwards
+        mFrameNumbers.set(index, -1);
+        mFrameNumbers.set(index + 1, frameNumber);
+        mFrameNumbers.set(index, timestamp);
+    }
+
+    /**
+     * Returns the frame number of the capture that started at {@code timestamp}, or -1 if it is
+     * no longer known.
+     */
+    private long findFrameNumber(long timestamp) {
+        for (int i = 0; i < 2 * FRAME_NUMBER_HISTORY; i += 2) {
+            if (mFrameNumbers.get(i) == timestamp) {
+                long frameNumber = mFrameNumbers.get(i + 1);
+                if (mFrameNumbers.get(i) == timestamp) {
+                    return frameNumber;
+                }
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public void analyze(FramePipeline.Frame frame) {
+        if (frame.getWidth() != mWidth || frame.getHeight() != mHeight) {
+            mDroppedFrames.incrementAndGet();
+            return;
+        }
+        Job job = mFreeJobs.poll();
+        if (null == job) {
+            // Every worker is busy
+            mDroppedFrames.incrementAndGet();
+            return;
+        }
+        job.mFrameNumber = findFrameNumber(frame.getTimestamp());
+        synchronized (mLock) {
+            if (mClosed) {
+                mFreeJobs.offer(job);
+                return;
+            }
+            job.mFrame = frame.retain();
+            job.mSequence = mNextSequence++;
+            mPendingJobs.offer(job);
+        }
+    }
+
+    /**
+     * Stops the workers once they are done with their current frame, releases the frames that
+     * were still waiting, and writes the mapped file back to storage. Blocks until all of that is
+     * done.
+     */
+    void close() {
+        synchronized (mLock) {
+            if (mClosed) {
+                return;
+            }
+            mClosed = true;
+        }
+        for (Worker worker : mWorkers) {
+            worker.interrupt();
+        }
+        for (Worker worker : mWorkers) {
+            try {
+                worker.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        Job job;
+        while (null != (job = mPendingJobs.poll())) {
+            job.mFrame.release();
+            job.mFrame = null;
+        }
+        mMap.force();
+        try {
+            mRandomAccessFile.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    long getWrittenFrames() {
+        return mWrittenFrames.get();
+    }
+
+    /**
+     * The number of frames dropped because every worker was busy, their slot was still being
+     * written or their size did not match.
+     */
+    long getDroppedFrames() {
+        return mDroppedFrames.get();
+    }
+
+    /**
+     * The size of the written planes over their raw size.
+     */
+    double getCompressionRatio() {
+        long frames = mWrittenFrames.get();
+        return frames == 0 ? 1 : (double) mWrittenBytes.get() / (frames * (long) mSlotBytes);
+    }
+
+    @Override
+    public String toString() {
+        return mFile.getName() + " written=" + getWrittenFrames() + " dropped="
+                + getDroppedFrames() + " ratio="
+                + String.format(Locale.US, "%.2f", getCompressionRatio());
+    }
+
+    private int getEntryOffset(int slot) {
+        return HEADER_BYTES + ENTRY_BYTES * slot;
+    }
+
+    /**
+     * A frame handed to the workers. Jobs are reused.
+     */
+    private static final class Job {
+
+        FramePipeline.Frame mFrame;
+        long mSequence;
+        long mFrameNumber;
+
+    }
+
+    private final class Worker extends Thread {
+
+        // The plane, packed to one byte per pixel
+        private final byte[] mPlane = new byte[mSlotBytes];
+        private final byte[] mCompressed;
+        private final Deflater mDeflater;
+        private final ByteBuffer mData = mMap.duplicate();
+
+        Worker(int index) {
+            super("Y8RingFile " + index);
+            setPriority(Thread.NORM_PRIORITY - 1);
+            mCompressed = mCompress ? new byte[mSlotBytes] : null;
+            mDeflater = mCompress ? new Deflater(Deflater.BEST_SPEED, true) : null;
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    Job job = mPendingJobs.take();
+                    try {
+                        write(job.mFrame, job.mSequence, job.mFrameNumber);
+                    } finally {
+                        job.mFrame.release();
+                        job.mFrame = null;
+                        mFreeJobs.offer(job);
+                    }
+                }
+            } catch (InterruptedException e) {
+                // Closed
+            } finally {
+                if (null != mDeflater) {
+                    mDeflater.end();
+                }
+            }
+        }
+
+        private void write(FramePipeline.Frame frame, long sequence, long frameNumber) {
+            int slot = (int) (sequence % mSlotCount);
+            if (!mBusySlots.compareAndSet(slot, 0, 1)) {
+                // A stalled worker is still writing the frame one lap behind
+                mDroppedFrames.incrementAndGet();
+                return;
+            }
+            try {
+                write(frame, sequence, frameNumber, slot);
+            } finally {
+                mBusySlots.set(slot, 0);
+            }
+        }
+
+        private void write(FramePipeline.Frame frame, long sequence, long frameNumber,
+                           int slot) {
+            int entry = getEntryOffset(slot);
+            if (mMap.getLong(entry) > sequence) {
+                // This worker stalled for a whole lap, and a newer frame took the slot
+                mDroppedFrames.incrementAndGet();
+                return;
+            }
+            for (int y = 0; y < mHeight; y++) {
+                frame.readRow(0, y, mPlane, y * mWidth, mWidth);
+            }
+            byte[] data = mPlane;
+            int length = mSlotBytes;
+            int encoding = ENCODING_RAW;
+            if (mCompress) {
+                int compressed = compress();
+                if (compressed > 0) {
+                    data = mCompressed;
+                    length = compressed;
+                    encoding = ENCODING_DELTA_DEFLATE;
+                }
+            }
+            int offset = mDataOffset + mSlotBytes * slot;
+            // Readers skip the slot until its entry is complete
+            mMap.putLong(entry, -1);
+            mData.clear();
+            mData.position(offset);
+            mData.put(data, 0, length);
+            mMap.putLong(entry + 8, frame.getTimestamp());
+            mMap.putLong(entry + 16, frameNumber);
+            mMap.putLong(entry + 24, offset);
+            mMap.putInt(entry + 32, length);
+            mMap.putInt(entry + 36, encoding);
+            mMap.putLong(entry, sequence);
+            mWrittenFrames.incrementAndGet();
+            mWrittenBytes.addAndGet(length);
+        }
+
+        /**
+         * Delta codes and deflates {@link #mPlane} into {@link #mCompressed}.
+         *
+         * @return The compressed length, or 0 if it does not fit a slot. {@link #mPlane} then
+         *         holds the raw plane again.
+         */
+        private int compress() {
+            byte[] plane = mPlane;
+            for (int row = 0; row < mSlotBytes; row += mWidth) {
+                for (int x = row + mWidth - 1; x > row; x--) {
+                    plane[x] -= plane[x - 1];
+                }
+            }
+            mDeflater.reset();
+            mDeflater.setInput(plane, 0, mSlotBytes);
+            mDeflater.finish();
+            int length = mDeflater.deflate(mCompressed, 0, mSlotBytes);
+            if (mDeflater.finished()) {
+                return length;
+            }
+            for (int row = 0; row < mSlotBytes; row += mWidth) {
+                for (int x = row + 1; x < row + mWidth; x++) {
+                    plane[x] += plane[x - 1];
+                }
+            }
+            return 0;
+        }
+
+    }
+
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2video;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Drives a {@link CameraStateMachine} through a whole session against a fake camera backend
+ * that completes every operation at once: open, preview, record, stop, close. The second
+ * benchmark asks for the stop while the recording is still arming, which the machine keeps and
+ * runs once the recording has started.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class CameraStateMachineBenchmark {
+
+    private CameraStateMachine mMachine;
+    private boolean mDeferStart;
+    private int mRecordings;
+
+    @Setup
+    public void setUp() {
+        mMachine = new CameraStateMachine("fake camera");
+        mMachine.setBackend(new CameraStateMachine.Backend() {
+            @Override
+            public void startRecording() {
+                if (!mDeferStart) {
+                    mRecordings++;
+                    mMachine.onRecordingStarted();
+                }
+            }
+
+            @Override
+            public void stopRecording() {
+                mMachine.onStopped();
+            }
+
+            @Override
+            public void close() {
+            }
+        });
+    }
+
+    @Benchmark
+    public int cycle() {
+        mDeferStart = false;
+        mMachine.onOpening();
+        mMachine.onDeviceOpened();
+        mMachine.onPreviewStarted();
+        mMachine.record();
+        mMachine.stop();
+        mMachine.close();
+        return mRecordings;
+    }
+
+    @Benchmark
+    public int stopDuringArming() {
+        mDeferStart = true;
+        mMachine.onOpening();
+        mMachine.onDeviceOpened();
+        mMachine.onPreviewStarted();
+        mMachine.record();
+        mMachine.stop();
+        // The recording starts after the stop was asked for, and stops right away
+        mMachine.onRecordingStarted();
+        if (mMachine.getState() != CameraStateMachine.State.PREVIEW) {
+            throw new IllegalStateException("The stop was lost: " + mMachine);
+        }
+        mMachine.close();
+        return mRecordings;
+    }
+
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2video;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the cost {@link CaptureTelemetry} adds to every capture callback.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class CaptureTelemetryBenchmark {
+
+    private CaptureTelemetry mTelemetry;
+    private long mFrameNumber;
+    private long mTimestamp;
+
+    @Setup
+    public void setUp() {
+        mTelemetry = new CaptureTelemetry();
+        mTelemetry.onSessionStarted();
+    }
+
+    @Benchmark
+    public void onCaptureStarted() {
+        // A 30 fps stream with a little jitter and a missing frame now and then
+        mFrameNumber += (mFrameNumber & 1023) == 0 ? 2 : 1;
+        mTimestamp += 33_000_000L + (mFrameNumber & 7) * 100_000L;
+        mTelemetry.onCaptureStarted(mTimestamp, mFrameNumber);
+    }
+
+    @Benchmark
+    public long intervalPercentile() {
+        return mTelemetry.getIntervalPercentileUs(0.99);
+    }
+
+}
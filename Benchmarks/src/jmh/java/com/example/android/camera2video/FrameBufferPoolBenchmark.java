@@ -0,0 +1,63 @@
+/*
+ * Copyright 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2video;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Copies a 4K luma plane with padded rows into a {@link FrameBufferPool} buffer and releases it
+ * again, the work done for every mono image before it goes back to the reader.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class FrameBufferPoolBenchmark {
+
+    @Param({"true", "false"})
+    public boolean direct;
+
+    private FrameBufferPool mPool;
+    private ByteBuffer mPlane;
+
+    @Setup
+    public void setUp() {
+        mPool = new FrameBufferPool(SyntheticPlanes.WIDTH * SyntheticPlanes.HEIGHT, 2,
+                TimeUnit.SECONDS.toNanos(1));
+        mPlane = SyntheticPlanes.luma(direct, 1);
+    }
+
+    @Benchmark
+    public int copy() {
+        FrameBufferPool.Buffer buffer = mPool.acquire();
+        buffer.copyPlane(mPlane, SyntheticPlanes.LUMA_ROW_STRIDE, 1, SyntheticPlanes.WIDTH,
+                SyntheticPlanes.HEIGHT);
+        int first = buffer.getData().get(0);
+        buffer.release();
+        return first;
+    }
+
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2video;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pairs color and mono frames, once from a single thread and once from two threads, the way the
+ * two camera threads feed the pairer.
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class FramePairerBenchmark {
+
+    /**
+     * The frame interval of a 30 fps stream, in nanoseconds.
+     */
+    private static final long FRAME_INTERVAL_NS = 33_333_333L;
+
+    private FramePairer mPairer;
+    private final AtomicLong mColorFrame = new AtomicLong();
+    private final AtomicLong mMonoFrame = new AtomicLong();
+
+    @Setup
+    public void setUp() {
+        mPairer = new FramePairer(16, FRAME_INTERVAL_NS / 2);
+        mPairer.setListener(new FramePairer.Listener() {
+            @Override
+            public void onFramesPaired(long colorTimestamp, long colorFrameNumber,
+                                       long monoTimestamp, long monoFrameNumber) {
+            }
+        });
+    }
+
+    @Benchmark
+    @Group("singleThread")
+    public void pair() {
+        long frame = mColorFrame.getAndIncrement();
+        mPairer.onColorFrame(frame * FRAME_INTERVAL_NS, frame);
+        mPairer.onMonoFrame(frame * FRAME_INTERVAL_NS + 1_000_000L, frame);
+    }
+
+    @Benchmark
+    @Group("twoThreads")
+    public void color() {
+        long frame = mColorFrame.getAndIncrement();
+        mPairer.onColorFrame(frame * FRAME_INTERVAL_NS, frame);
+    }
+
+    @Benchmark
+    @Group("twoThreads")
+    public void mono() {
+        long frame = mMonoFrame.getAndIncrement();
+        mPairer.onMonoFrame(frame * FRAME_INTERVAL_NS + 1_000_000L, frame);
+    }
+
+}
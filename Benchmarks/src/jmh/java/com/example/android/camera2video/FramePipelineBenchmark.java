@@ -0,0 +1,93 @@
+/*
+ * Copyright 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2video;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Submits 4K frames to a {@link FramePipeline} with analyzers that only touch one pixel, which
+ * measures the cost of the fan-out and the reference counting.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class FramePipelineBenchmark {
+
+    @Param({"1", "3"})
+    public int analyzers;
+
+    // A String, as the generated harness cannot see the package-private enum
+    @Param({"LATEST", "FIFO"})
+    public String dropPolicy;
+
+    private FramePipeline mPipeline;
+    private ByteBuffer[] mPlanes;
+    private int[] mRowStrides;
+    private int[] mPixelStrides;
+    private long mTimestamp;
+
+    private final AutoCloseable mImage = new AutoCloseable() {
+        @Override
+        public void close() {
+        }
+    };
+
+    @Setup
+    public void setUp() {
+        mPipeline = new FramePipeline(4, 2, 2, FramePipeline.DropPolicy.valueOf(dropPolicy));
+        for (int i = 0; i < analyzers; i++) {
+            mPipeline.addAnalyzer(new FramePipeline.Analyzer() {
+                @Override
+                public void analyze(FramePipeline.Frame frame) {
+                    frame.getPlane(0).get(0);
+                }
+            });
+        }
+        ByteBuffer chroma = SyntheticPlanes.chroma(true, 2);
+        ByteBuffer v = chroma.duplicate();
+        v.position(1);
+        mPlanes = new ByteBuffer[]{SyntheticPlanes.luma(true, 1), chroma, v.slice()};
+        mRowStrides = new int[]{SyntheticPlanes.LUMA_ROW_STRIDE,
+                SyntheticPlanes.CHROMA_ROW_STRIDE, SyntheticPlanes.CHROMA_ROW_STRIDE};
+        mPixelStrides = new int[]{1, SyntheticPlanes.CHROMA_PIXEL_STRIDE,
+                SyntheticPlanes.CHROMA_PIXEL_STRIDE};
+    }
+
+    @TearDown
+    public void tearDown() {
+        mPipeline.shutdown();
+    }
+
+    @Benchmark
+    public boolean submit() {
+        mTimestamp += 33_333_333L;
+        return mPipeline.submit(new FramePipeline.Frame(mImage, mPlanes, mRowStrides,
+                mPixelStrides, SyntheticPlanes.WIDTH, SyntheticPlanes.HEIGHT, mTimestamp));
+    }
+
+}
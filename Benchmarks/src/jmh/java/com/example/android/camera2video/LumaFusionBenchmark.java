@@ -0,0 +1,80 @@
+/*
+ * Copyright 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2video;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fuses 4K color and mono luma planes, and fails the run if one core does not reach
+ * {@link LumaFusion#TARGET_4K_FRAMES_PER_SECOND_PER_CORE}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class LumaFusionBenchmark {
+
+    @Param({"1", "2", "4"})
+    public int parallelism;
+
+    @Param({"32", "128"})
+    public int bandRows;
+
+    private ForkJoinPool mPool;
+    private LumaFusion mFusion;
+    private ByteBuffer mColor;
+    private ByteBuffer mMono;
+    private ByteBuffer mOut;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        mPool = new ForkJoinPool(parallelism);
+        mFusion = new LumaFusion(mPool, bandRows, 128);
+        mColor = SyntheticPlanes.luma(true, 1);
+        mMono = SyntheticPlanes.luma(true, 2);
+        mOut = ByteBuffer.allocateDirect(SyntheticPlanes.WIDTH * SyntheticPlanes.HEIGHT);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        mPool.shutdown();
+        if (!mFusion.meetsTarget()) {
+            throw new IllegalStateException("Luma fusion is below its target: " + mFusion);
+        }
+    }
+
+    @Benchmark
+    public ByteBuffer fuse() {
+        mFusion.fuse(mColor, SyntheticPlanes.LUMA_ROW_STRIDE, 1,
+                mMono, SyntheticPlanes.LUMA_ROW_STRIDE, 1,
+                SyntheticPlanes.WIDTH, SyntheticPlanes.HEIGHT, mOut, SyntheticPlanes.WIDTH);
+        return mOut;
+    }
+
+}
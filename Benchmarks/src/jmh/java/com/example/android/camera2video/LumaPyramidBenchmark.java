@@ -0,0 +1,71 @@
+/*
+ * Copyright 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2video;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Builds the levels of a {@link LumaPyramid} from a 4K luma plane with padded rows, and reports
+ * the time of each level next to the budget.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class LumaPyramidBenchmark {
+
+    @Param({"1", "2", "4"})
+    public int parallelism;
+
+    @Param({"16", "64"})
+    public int bandRows;
+
+    private ForkJoinPool mPool;
+    private LumaPyramid mPyramid;
+    private FramePipeline.Frame mFrame;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        mPool = new ForkJoinPool(parallelism);
+        mPyramid = new LumaPyramid(mPool, bandRows, LumaPyramid.DEFAULT_BUDGET_NANOS);
+        mFrame = SyntheticPlanes.lumaFrame(1);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        mPool.shutdown();
+        System.out.println("Luma pyramid: " + mPyramid);
+    }
+
+    @Benchmark
+    public LumaPyramid.Level build() {
+        mPyramid.build(mFrame);
+        return mPyramid.getLevel(0);
+    }
+
+}
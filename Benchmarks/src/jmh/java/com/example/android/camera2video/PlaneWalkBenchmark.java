@@ -0,0 +1,104 @@
+/*
+ * Copyright 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2video;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Walks the planes of a 4K YUV_420_888 frame with real row and pixel strides, the access pattern
+ * of every analyzer on the mono stream.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class PlaneWalkBenchmark {
+
+    @Param({"true", "false"})
+    public boolean direct;
+
+    private ByteBuffer mLuma;
+    private ByteBuffer mChroma;
+    private byte[] mRow;
+
+    @Setup
+    public void setUp() {
+        mLuma = SyntheticPlanes.luma(direct, 1);
+        mChroma = SyntheticPlanes.chroma(direct, 2);
+        mRow = new byte[SyntheticPlanes.WIDTH];
+    }
+
+    /**
+     * Sums the luma plane with one absolute get per pixel.
+     */
+    @Benchmark
+    public long lumaAbsolute() {
+        long sum = 0;
+        for (int y = 0; y < SyntheticPlanes.HEIGHT; y++) {
+            int base = y * SyntheticPlanes.LUMA_ROW_STRIDE;
+            for (int x = 0; x < SyntheticPlanes.WIDTH; x++) {
+                sum += mLuma.get(base + x) & 0xff;
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * Sums the luma plane row by row through a bulk copy into a scratch array.
+     */
+    @Benchmark
+    public long lumaBulkRows() {
+        ByteBuffer plane = mLuma.duplicate();
+        byte[] row = mRow;
+        long sum = 0;
+        for (int y = 0; y < SyntheticPlanes.HEIGHT; y++) {
+            plane.position(y * SyntheticPlanes.LUMA_ROW_STRIDE);
+            plane.get(row, 0, SyntheticPlanes.WIDTH);
+            for (int x = 0; x < SyntheticPlanes.WIDTH; x++) {
+                sum += row[x] & 0xff;
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * Sums the U and V planes, which interleave with a pixel stride of 2.
+     */
+    @Benchmark
+    public long chromaInterleaved() {
+        long sum = 0;
+        int width = SyntheticPlanes.WIDTH / 2;
+        for (int y = 0; y < SyntheticPlanes.HEIGHT / 2; y++) {
+            int base = y * SyntheticPlanes.CHROMA_ROW_STRIDE;
+            for (int x = 0; x < width; x++) {
+                int index = base + x * SyntheticPlanes.CHROMA_PIXEL_STRIDE;
+                sum += (mChroma.get(index) & 0xff) - (mChroma.get(index + 1) & 0xff);
+            }
+        }
+        return sum;
+    }
+
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2video;
+
+import android.media.MediaCodec;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Appends encoded frames to a full {@link PreRollBuffer}, so every append evicts, and drains it.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class PreRollBufferBenchmark {
+
+    private static final int KEY_FRAME_INTERVAL = 30;
+    private static final int KEY_FRAME_BYTES = 400 * 1024;
+    private static final int FRAME_BYTES = 100 * 1024;
+
+    private PreRollBuffer mBuffer;
+    private ByteBuffer mKeyFrame;
+    private ByteBuffer mFrame;
+    private final MediaCodec.BufferInfo mInfo = new MediaCodec.BufferInfo();
+    private long mFrames;
+    private final PreRollBuffer.Consumer mConsumer = new PreRollBuffer.Consumer() {
+        @Override
+        public void onFrame(ByteBuffer data, MediaCodec.BufferInfo info) {
+        }
+    };
+
+    @Setup
+    public void setUp() {
+        // Three seconds of 30 fps video at about 24 Mbps
+        mBuffer = new PreRollBuffer(10 * 1024 * 1024, 128, 3_000_000L);
+        mKeyFrame = ByteBuffer.allocateDirect(KEY_FRAME_BYTES);
+        mFrame = ByteBuffer.allocateDirect(FRAME_BYTES);
+        for (int i = 0; i < 4 * KEY_FRAME_INTERVAL; i++) {
+            append();
+        }
+    }
+
+    @Benchmark
+    public void append() {
+        boolean keyFrame = mFrames % KEY_FRAME_INTERVAL == 0;
+        ByteBuffer data = keyFrame ? mKeyFrame : mFrame;
+        data.clear();
+        mInfo.set(0, data.capacity(), mFrames * 33_333L,
+                keyFrame ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0);
+        mBuffer.append(data, mInfo);
+        mFrames++;
+    }
+
+    @Benchmark
+    public int drainAndRefill() {
+        int drained = mBuffer.drainTo(mConsumer);
+        for (int i = 0; i < KEY_FRAME_INTERVAL; i++) {
+            append();
+        }
+        return drained;
+    }
+
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2video;
+
+import android.util.Size;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the stream size resolution run whenever the preview surface changes, against the
+ * recorded profiles of the color and mono cameras in the test resources.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class SizeChooserBenchmark {
+
+    private static final Size UHD = new Size(3840, 2160);
+
+    // Whether the mono camera streams too, which rules out the sizes it cannot keep up with
+    @Param({"false", "true"})
+    public boolean mono;
+
+    private StreamConfigResolver.Request mRequest;
+    private Size[] mSizes;
+
+    private final SizeChooser.CompareSizesByArea mComparator =
+            new SizeChooser.CompareSizesByArea();
+
+    @Setup
+    public void setUp() throws IOException {
+        StreamCapabilities color = DeviceProfiles.load("color", "0");
+        mRequest = new StreamConfigResolver.Request(30, UHD, 1280, 720)
+                .addCamera(color, EnumSet.of(StreamCapabilities.Target.PREVIEW,
+                        StreamCapabilities.Target.RECORDER));
+        if (mono) {
+            mRequest.addCamera(DeviceProfiles.load("mono", "2"),
+                    EnumSet.of(StreamCapabilities.Target.RECORDER,
+                            StreamCapabilities.Target.ANALYSIS));
+        }
+        List<StreamCapabilities.Output> outputs =
+                color.getOutputs(StreamCapabilities.Target.RECORDER);
+        mSizes = new Size[outputs.size()];
+        for (int i = 0; i < mSizes.length; i++) {
+            mSizes[i] = outputs.get(i).getSize();
+        }
+    }
+
+    @Benchmark
+    public StreamConfigResolver.Resolution resolve() {
+        return StreamConfigResolver.resolve(mRequest);
+    }
+
+    @Benchmark
+    public Size[] sortByArea() {
+        Size[] sizes = mSizes.clone();
+        Arrays.sort(sizes, mComparator);
+        return sizes;
+    }
+
+}
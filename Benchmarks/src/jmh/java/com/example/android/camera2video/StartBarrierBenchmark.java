@@ -0,0 +1,122 @@
+/*
+ * Copyright 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2video;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Starts two fake cameras through a {@link StartBarrier}. Their sessions are configured
+ * {@code configureGapUs} apart, and each start takes {@code startUs} plus up to half as much
+ * again, like a recorder that talks to the media server. Each camera has its own thread, as on
+ * the device. Returns the start skew, which stays near the jitter of the starts whatever the gap.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class StartBarrierBenchmark {
+
+    private static final int CAMERAS = 2;
+
+    @Param({"0", "2000"})
+    public long configureGapUs;
+
+    @Param({"500"})
+    public long startUs;
+
+    private ExecutorService[] mThreads;
+    private long mSeed = 1;
+
+    @Setup
+    public void setUp() {
+        mThreads = new ExecutorService[CAMERAS];
+        for (int i = 0; i < CAMERAS; i++) {
+            mThreads[i] = Executors.newSingleThreadExecutor();
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        for (ExecutorService thread : mThreads) {
+            thread.shutdown();
+        }
+    }
+
+    @Benchmark
+    public long start() throws InterruptedException {
+        final LinkedBlockingQueue<StartBarrier.Result> results = new LinkedBlockingQueue<>();
+        String[] names = new String[CAMERAS];
+        for (int i = 0; i < CAMERAS; i++) {
+            names[i] = String.valueOf(i);
+        }
+        final StartBarrier barrier = new StartBarrier(Arrays.asList(names),
+                TimeUnit.MILLISECONDS.toNanos(100), new StartBarrier.Listener() {
+                    @Override
+                    public void onStarted(StartBarrier.Result result) {
+                        results.add(result);
+                    }
+                });
+        for (int i = 0; i < CAMERAS; i++) {
+            final ExecutorService thread = mThreads[i];
+            final String name = names[i];
+            final long configureNanos = TimeUnit.MICROSECONDS.toNanos(configureGapUs * i);
+            final long startNanos = TimeUnit.MICROSECONDS.toNanos(startUs + nextJitter(startUs));
+            // The session of the camera is configured on its own thread
+            thread.execute(new Runnable() {
+                @Override
+                public void run() {
+                    LockSupport.parkNanos(configureNanos);
+                    barrier.arrive(name, new StartBarrier.Participant() {
+                        @Override
+                        public ExecutorService getExecutor() {
+                            return thread;
+                        }
+
+                        @Override
+                        public void start() {
+                            LockSupport.parkNanos(startNanos);
+                        }
+                    });
+                }
+            });
+        }
+        return results.take().getSkewNanos();
+    }
+
+    /**
+     * Returns a pseudo-random delay between 0 and half of {@code micros}.
+     */
+    private long nextJitter(long micros) {
+        mSeed = mSeed * 6364136223846793005L + 1442695040888963407L;
+        return (mSeed >>> 33) % (micros / 2 + 1);
+    }
+
+}
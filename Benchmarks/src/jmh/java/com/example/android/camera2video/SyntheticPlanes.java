@@ -0,0 +1,91 @@
+/*
+ * Copyright 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2video;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * Builds image planes laid out the way camera HALs deliver YUV_420_888: a luma plane whose rows
+ * are padded beyond the width, and interleaved chroma planes with a pixel stride of 2.
+ */
+final class SyntheticPlanes {
+
+    static final int WIDTH = 3840;
+    static final int HEIGHT = 2160;
+
+    /**
+     * The row stride of the luma plane. Many HALs align rows to 64 or more bytes.
+     */
+    static final int LUMA_ROW_STRIDE = WIDTH + 64;
+
+    /**
+     * The row stride of the interleaved chroma planes.
+     */
+    static final int CHROMA_ROW_STRIDE = WIDTH + 64;
+    static final int CHROMA_PIXEL_STRIDE = 2;
+
+    private SyntheticPlanes() {
+    }
+
+    /**
+     * Returns a luma plane of {@code WIDTH} x {@code HEIGHT} filled with noise around a gradient.
+     */
+    static ByteBuffer luma(boolean direct, long seed) {
+        ByteBuffer plane = allocate(LUMA_ROW_STRIDE * (HEIGHT - 1) + WIDTH, direct);
+        Random random = new Random(seed);
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                int value = (x * 255 / WIDTH + random.nextInt(16)) & 0xff;
+                plane.put(y * LUMA_ROW_STRIDE + x, (byte) value);
+            }
+        }
+        return plane;
+    }
+
+    /**
+     * Returns a frame with only the luma plane of {@link #luma}, in direct memory.
+     */
+    static FramePipeline.Frame lumaFrame(long seed) {
+        AutoCloseable owner = new AutoCloseable() {
+            @Override
+            public void close() {
+            }
+        };
+        return new FramePipeline.Frame(owner, new ByteBuffer[]{luma(true, seed)},
+                new int[]{LUMA_ROW_STRIDE}, new int[]{1}, WIDTH, HEIGHT, 0);
+    }
+
+    /**
+     * Returns the memory shared by the two interleaved chroma planes, so that the U plane starts
+     * at index 0 and the V plane at index 1.
+     */
+    static ByteBuffer chroma(boolean direct, long seed) {
+        int height = HEIGHT / 2;
+        ByteBuffer planes = allocate(CHROMA_ROW_STRIDE * (height - 1) + WIDTH, direct);
+        Random random = new Random(seed);
+        for (int i = 0; i < planes.capacity(); i++) {
+            planes.put(i, (byte) (128 + random.nextInt(32) - 16));
+        }
+        return planes;
+    }
+
+    private static ByteBuffer allocate(int size, boolean direct) {
+        return direct ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+    }
+
+}
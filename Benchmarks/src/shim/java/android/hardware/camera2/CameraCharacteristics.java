@@ -0,0 +1,44 @@
+/*
+ * Copyright 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.hardware.camera2;
+
+import android.hardware.camera2.params.StreamConfigurationMap;
+
+/**
+ * A JVM stand-in for the framework class. The tests build capabilities from recorded profiles
+ * instead, so it has no values.
+ */
+public final class CameraCharacteristics {
+
+    public static final class Key<T> {
+
+        private Key() {
+        }
+
+    }
+
+    public static final Key<StreamConfigurationMap> SCALER_STREAM_CONFIGURATION_MAP =
+            new Key<>();
+
+    private CameraCharacteristics() {
+    }
+
+    public <T> T get(Key<T> key) {
+        return null;
+    }
+
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.hardware.camera2.params;
+
+import android.util.Range;
+import android.util.Size;
+
+/**
+ * A JVM stand-in for the framework class. The tests build capabilities from recorded profiles
+ * instead, so it is never instantiated.
+ */
+public final class StreamConfigurationMap {
+
+    private StreamConfigurationMap() {
+    }
+
+    public int[] getOutputFormats() {
+        throw new UnsupportedOperationException();
+    }
+
+    public Size[] getOutputSizes(int format) {
+        throw new UnsupportedOperationException();
+    }
+
+    public <T> Size[] getOutputSizes(Class<T> klass) {
+        throw new UnsupportedOperationException();
+    }
+
+    public long getOutputMinFrameDuration(int format, Size size) {
+        throw new UnsupportedOperationException();
+    }
+
+    public <T> long getOutputMinFrameDuration(Class<T> klass, Size size) {
+        throw new UnsupportedOperationException();
+    }
+
+    public long getOutputStallDuration(int format, Size size) {
+        throw new UnsupportedOperationException();
+    }
+
+    public <T> long getOutputStallDuration(Class<T> klass, Size size) {
+        throw new UnsupportedOperationException();
+    }
+
+    public Size[] getHighSpeedVideoSizes() {
+        throw new UnsupportedOperationException();
+    }
+
+    public Range<Integer>[] getHighSpeedVideoFpsRangesFor(Size size) {
+        throw new UnsupportedOperationException();
+    }
+
+}
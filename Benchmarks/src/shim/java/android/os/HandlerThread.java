@@ -0,0 +1,49 @@
+/*
+ * Copyright 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.os;
+
+/**
+ * A JVM stand-in for the framework class, with the members the tested code uses. The priority is
+ * ignored.
+ */
+public class HandlerThread extends Thread {
+
+    private final Looper mLooper = new Looper();
+
+    public HandlerThread(String name) {
+        super(name);
+    }
+
+    public HandlerThread(String name, int priority) {
+        super(name);
+    }
+
+    @Override
+    public void run() {
+        mLooper.loop();
+    }
+
+    public Looper getLooper() {
+        return mLooper;
+    }
+
+    public boolean quitSafely() {
+        mLooper.quitSafely();
+        return true;
+    }
+
+}
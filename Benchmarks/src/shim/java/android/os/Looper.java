@@ -0,0 +1,71 @@
+/*
+ * Copyright 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.os;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * A JVM stand-in for the framework class, with the members the tested code uses. Messages are
+ * only posted to run as soon as possible, so the queue runs them in order.
+ */
+public final class Looper {
+
+    private final Deque<Message> mQueue = new ArrayDeque<>();
+    private boolean mQuitting;
+
+    Looper() {
+    }
+
+    synchronized boolean enqueue(Message msg) {
+        if (mQuitting) {
+            return false;
+        }
+        mQueue.addLast(msg);
+        notifyAll();
+        return true;
+    }
+
+    /**
+     * Runs the queued messages until {@link #quitSafely} was called and the queue is empty.
+     */
+    void loop() {
+        while (true) {
+            Message msg;
+            synchronized (this) {
+                while (mQueue.isEmpty() && !mQuitting) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                msg = mQueue.pollFirst();
+            }
+            if (null == msg) {
+                return;
+            }
+            msg.target.dispatchMessage(msg);
+        }
+    }
+
+    synchronized void quitSafely() {
+        mQuitting = true;
+        notifyAll();
+    }
+
+}
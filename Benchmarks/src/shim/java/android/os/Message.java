@@ -0,0 +1,38 @@
+/*
+ * Copyright 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.os;
+
+/**
+ * A JVM stand-in for the framework class, with the members the benchmarked code uses.
+ */
+public final class Message {
+
+    public int what;
+
+    long when;
+    Runnable callback;
+    Handler target;
+
+    public long getWhen() {
+        return when;
+    }
+
+    public Runnable getCallback() {
+        return callback;
+    }
+
+}
@@ -0,0 +1,52 @@
+/*
+ * Copyright 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.system;
+
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A JVM stand-in for the framework class, with the members the tested code uses.
+ */
+public final class Os {
+
+    private static final int EIO = 5;
+
+    private Os() {
+    }
+
+    /**
+     * Extends the file to at least {@code offset + len} bytes, as a sparse file. The file offset
+     * of {@code fd} is left where it was.
+     */
+    public static void posix_fallocate(FileDescriptor fd, long offset, long len)
+            throws ErrnoException {
+        // The stream is not closed, that would close fd
+        FileChannel channel = new FileOutputStream(fd).getChannel();
+        try {
+            if (channel.size() < offset + len) {
+                channel.write(ByteBuffer.allocate(1), offset + len - 1);
+            }
+        } catch (IOException e) {
+            throw new ErrnoException("posix_fallocate", EIO);
+        }
+    }
+
+}
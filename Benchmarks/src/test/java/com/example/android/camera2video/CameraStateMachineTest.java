@@ -0,0 +1,344 @@
+/*
+ * Copyright 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2video;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Drives the machine headless, with a fake backend that only records what it was asked to do.
+ */
+public class CameraStateMachineTest {
+
+    private final List<String> mCalls = Collections.synchronizedList(new ArrayList<String>());
+    private final List<String> mTransitions =
+            Collections.synchronizedList(new ArrayList<String>());
+    private CameraStateMachine mMachine;
+
+    @Before
+    public void setUp() {
+        mMachine = new CameraStateMachine("camera 0");
+        mMachine.setBackend(new CameraStateMachine.Backend() {
+            @Override
+            public void startRecording() {
+                mCalls.add("startRecording");
+            }
+
+            @Override
+            public void stopRecording() {
+                mCalls.add("stopRecording");
+            }
+
+            @Override
+            public void close() {
+                mCalls.add("close");
+            }
+        });
+        mMachine.setListener(new CameraStateMachine.Listener() {
+            @Override
+            public void onTransition(String name, CameraStateMachine.State from,
+                                     CameraStateMachine.State to, long nanosInFrom) {
+                mTransitions.add(from + " " + to);
+            }
+        });
+    }
+
+    private void open() {
+        mMachine.onOpening();
+        assertTrue(mMachine.onDeviceOpened());
+        assertTrue(mMachine.onPreviewStarted());
+    }
+
+    private void startRecording() {
+        open();
+        mMachine.record();
+        assertTrue(mMachine.onRecordingStarted());
+    }
+
+    private void assertState(CameraStateMachine.State state) {
+        assertEquals(state, mMachine.getState());
+    }
+
+    private void assertCalls(String... calls) {
+        assertEquals(Arrays.asList(calls), mCalls);
+    }
+
+    @Test
+    public void walksTheAllowedTransitions() throws InterruptedException {
+        startRecording();
+        mMachine.stop();
+        assertTrue(mMachine.onStopped());
+        mMachine.record();
+        assertTrue(mMachine.onRecordingFailed());
+        mMachine.close();
+        assertState(CameraStateMachine.State.CLOSED);
+        assertTrue(mMachine.awaitClosed(0));
+        assertEquals(Arrays.asList("CLOSED OPENING", "OPENING PREVIEW", "PREVIEW ARMING",
+                "ARMING RECORDING", "RECORDING STOPPING", "STOPPING PREVIEW", "PREVIEW ARMING",
+                "ARMING PREVIEW", "PREVIEW CLOSED"), mTransitions);
+        assertCalls("startRecording", "stopRecording", "startRecording", "close");
+    }
+
+    @Test
+    public void closesFromEveryOpenState() {
+        mMachine.onOpening();
+        assertTrue(mMachine.onDeviceOpened());
+        mMachine.close();
+        assertState(CameraStateMachine.State.CLOSED);
+
+        open();
+        mMachine.close();
+        assertState(CameraStateMachine.State.CLOSED);
+
+        open();
+        mMachine.record();
+        mMachine.close();
+        assertState(CameraStateMachine.State.CLOSED);
+
+        startRecording();
+        mMachine.close();
+        assertState(CameraStateMachine.State.CLOSED);
+
+        startRecording();
+        mMachine.stop();
+        mMachine.close();
+        assertState(CameraStateMachine.State.CLOSED);
+
+        assertEquals(5, Collections.frequency(mCalls, "close"));
+        // A closed camera has nothing left to close
+        mMachine.close();
+        assertEquals(5, Collections.frequency(mCalls, "close"));
+    }
+
+    @Test
+    public void rejectsEventsOutOfOrder() {
+        assertFalse(mMachine.onDeviceOpened());
+        assertFalse(mMachine.onPreviewStarted());
+        assertFalse(mMachine.onRecordingStarted());
+        assertFalse(mMachine.onRecordingFailed());
+        assertFalse(mMachine.onStopped());
+        mMachine.record();
+        mMachine.stop();
+        assertState(CameraStateMachine.State.CLOSED);
+
+        mMachine.onOpening();
+        assertFalse(mMachine.onRecordingStarted());
+        assertFalse(mMachine.onStopped());
+        assertState(CameraStateMachine.State.OPENING);
+
+        assertTrue(mMachine.onDeviceOpened());
+        assertTrue(mMachine.onPreviewStarted());
+        assertFalse(mMachine.onPreviewStarted());
+        assertFalse(mMachine.onRecordingStarted());
+        assertFalse(mMachine.onRecordingFailed());
+        assertFalse(mMachine.onStopped());
+        mMachine.stop();
+        assertState(CameraStateMachine.State.PREVIEW);
+
+        mMachine.record();
+        assertFalse(mMachine.onStopped());
+        assertTrue(mMachine.onRecordingStarted());
+        assertFalse(mMachine.onPreviewStarted());
+        assertFalse(mMachine.onRecordingFailed());
+        mMachine.record();
+        assertState(CameraStateMachine.State.RECORDING);
+
+        mMachine.stop();
+        assertFalse(mMachine.onRecordingStarted());
+        assertFalse(mMachine.onPreviewStarted());
+        mMachine.stop();
+        assertState(CameraStateMachine.State.STOPPING);
+
+        assertCalls("startRecording", "stopRecording");
+    }
+
+    @Test
+    public void opensOnlyWhenClosed() {
+        mMachine.onOpening();
+        try {
+            mMachine.onOpening();
+            fail("Opened twice");
+        } catch (IllegalStateException e) {
+            assertState(CameraStateMachine.State.OPENING);
+        }
+        assertTrue(mMachine.onDeviceOpened());
+        assertTrue(mMachine.onPreviewStarted());
+        try {
+            mMachine.onOpening();
+            fail("Opened from the preview");
+        } catch (IllegalStateException e) {
+            assertState(CameraStateMachine.State.PREVIEW);
+        }
+    }
+
+    @Test
+    public void recordDuringOpeningStartsWithThePreview() {
+        mMachine.onOpening();
+        assertTrue(mMachine.canRecord());
+        mMachine.record();
+        assertCalls();
+        assertTrue(mMachine.onDeviceOpened());
+        assertTrue(mMachine.onPreviewStarted());
+        assertState(CameraStateMachine.State.ARMING);
+        assertCalls("startRecording");
+    }
+
+    @Test
+    public void recordThenStopDuringOpeningCancelOut() {
+        mMachine.onOpening();
+        mMachine.record();
+        mMachine.stop();
+        assertTrue(mMachine.onDeviceOpened());
+        assertTrue(mMachine.onPreviewStarted());
+        assertState(CameraStateMachine.State.PREVIEW);
+        assertCalls();
+    }
+
+    @Test
+    public void recordDuringStoppingStartsOnceStopped() {
+        startRecording();
+        mMachine.stop();
+        assertTrue(mMachine.canRecord());
+        mMachine.record();
+        assertTrue(mMachine.onStopped());
+        assertState(CameraStateMachine.State.ARMING);
+        assertCalls("startRecording", "stopRecording", "startRecording");
+    }
+
+    @Test
+    public void stopDuringArmingRunsOnceStarted() {
+        open();
+        mMachine.record();
+        mMachine.stop();
+        assertState(CameraStateMachine.State.ARMING);
+        assertCalls("startRecording");
+        assertTrue(mMachine.onRecordingStarted());
+        assertState(CameraStateMachine.State.STOPPING);
+        assertCalls("startRecording", "stopRecording");
+    }
+
+    @Test
+    public void recordAfterStopDuringArmingKeepsRecording() {
+        open();
+        mMachine.record();
+        mMachine.stop();
+        mMachine.record();
+        assertTrue(mMachine.onRecordingStarted());
+        assertState(CameraStateMachine.State.RECORDING);
+        assertCalls("startRecording");
+    }
+
+    @Test
+    public void stopDuringArmingOfAFailedStartIsDropped() {
+        open();
+        mMachine.record();
+        mMachine.stop();
+        assertTrue(mMachine.onRecordingFailed());
+        assertState(CameraStateMachine.State.PREVIEW);
+        assertCalls("startRecording");
+    }
+
+    @Test
+    public void closeDuringOpeningRunsOnceTheDeviceIsOpen() throws InterruptedException {
+        mMachine.onOpening();
+        mMachine.close();
+        assertState(CameraStateMachine.State.OPENING);
+        assertCalls();
+        // A close wins over anything asked for after it
+        assertFalse(mMachine.canRecord());
+        mMachine.record();
+        assertFalse(mMachine.awaitClosed(10));
+        assertFalse(mMachine.onDeviceOpened());
+        assertState(CameraStateMachine.State.CLOSED);
+        assertTrue(mMachine.awaitClosed(0));
+        assertCalls("close");
+    }
+
+    @Test
+    public void ignoresLateEventsAfterClose() {
+        startRecording();
+        mMachine.stop();
+        mMachine.close();
+        List<String> transitions = new ArrayList<>(mTransitions);
+        assertFalse(mMachine.onStopped());
+        assertFalse(mMachine.onRecordingStarted());
+        assertFalse(mMachine.onRecordingFailed());
+        assertFalse(mMachine.onPreviewStarted());
+        assertFalse(mMachine.onDeviceOpened());
+        assertState(CameraStateMachine.State.CLOSED);
+        assertEquals(transitions, mTransitions);
+        assertCalls("startRecording", "stopRecording", "close");
+    }
+
+    @Test
+    public void pauseDuringOpeningForceClosesAndReopens() throws InterruptedException {
+        // onPause: the device does not open within the close timeout
+        mMachine.onOpening();
+        mMachine.close();
+        assertFalse(mMachine.awaitClosed(10));
+        mMachine.forceClose();
+        assertState(CameraStateMachine.State.CLOSED);
+        assertTrue(mMachine.awaitClosed(0));
+        assertCalls("close");
+
+        // The device of the abandoned open arrives late, its opener closes it
+        assertFalse(mMachine.onDeviceOpened());
+        assertCalls("close");
+
+        // onResume opens again
+        mMachine.onOpening();
+        assertState(CameraStateMachine.State.OPENING);
+        assertTrue(mMachine.onDeviceOpened());
+        assertTrue(mMachine.onPreviewStarted());
+        assertState(CameraStateMachine.State.PREVIEW);
+        mMachine.forceClose();
+        mMachine.forceClose();
+        assertCalls("close", "close");
+    }
+
+    @Test
+    public void awaitClosedWakesUpOnClose() throws InterruptedException {
+        mMachine.onOpening();
+        mMachine.close();
+        Thread opener = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(20);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                mMachine.onDeviceOpened();
+            }
+        });
+        opener.start();
+        assertTrue(mMachine.awaitClosed(5000));
+        opener.join();
+        assertCalls("close");
+    }
+
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2video;
+
+import android.util.Size;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reads the device profiles in the test resources, as written by
+ * {@link StreamCapabilities#toProfile()}.
+ */
+final class DeviceProfiles {
+
+    private DeviceProfiles() {
+    }
+
+    /**
+     * Rebuilds the capabilities of camera {@code cameraId} from {@code profiles/<name>.profile}.
+     */
+    static StreamCapabilities load(String name, String cameraId) throws IOException {
+        InputStream in = DeviceProfiles.class.getResourceAsStream(
+                "/profiles/" + name + ".profile");
+        if (null == in) {
+            throw new IOException("No profile " + name);
+        }
+        StreamCapabilities capabilities = new StreamCapabilities(cameraId);
+        try (BufferedReader reader =
+                     new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8))) {
+            String line;
+            while (null != (line = reader.readLine())) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                String[] fields = line.split("\\s+");
+                if (fields[0].equals("ANALYSIS_FORMAT")) {
+                    capabilities.setAnalysisFormat(Integer.decode(fields[1]));
+                } else if (fields[0].equals("HIGH_SPEED")) {
+                    capabilities.addHighSpeed(parseSize(fields[1]), Integer.parseInt(fields[2]),
+                            Integer.parseInt(fields[3]));
+                } else {
+                    capabilities.add(StreamCapabilities.Target.valueOf(fields[0]),
+                            parseSize(fields[1]), Long.parseLong(fields[2]),
+                            Long.parseLong(fields[3]));
+                }
+            }
+        }
+        return capabilities;
+    }
+
+    private static Size parseSize(String size) {
+        int separator = size.indexOf('x');
+        return new Size(Integer.parseInt(size.substring(0, separator)),
+                Integer.parseInt(size.substring(separator + 1)));
+    }
+
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2video;
+
+import android.view.Surface;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * A {@link VideoEncoderEngine} that needs no device. {@link #encode} stands in for the frames the
+ * camera renders: each one is written to the current segment as {@code frameBytes} bytes, and a
+ * segment past the size limit of the config is rotated at the next key frame, like
+ * {@link MediaCodecEngine} does.
+ */
+class FakeVideoEncoderEngine implements VideoEncoderEngine {
+
+    private final Surface mSurface = new Surface();
+    private Listener mListener;
+    private EncoderConfig mConfig;
+    private Output mOutput;
+    private RecordingStorage.OutputFile mFile;
+    private FileOutputStream mStream;
+    private int mSegment;
+    private long mSegmentBytes;
+    private long mFrames;
+    private boolean mStarted;
+
+    @Override
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    @Override
+    public void prepare(EncoderConfig config, Output output, Surface inputSurface)
+            throws IOException {
+        if (null != mConfig) {
+            throw new IllegalStateException("Already prepared.");
+        }
+        mConfig = config;
+        mOutput = output;
+        mSegment = 0;
+        mFrames = 0;
+        open();
+    }
+
+    @Override
+    public Surface getInputSurface() {
+        return mSurface;
+    }
+
+    @Override
+    public boolean startPreRoll(PreRollBuffer buffer) {
+        return false;
+    }
+
+    @Override
+    public void start() {
+        if (null == mConfig || mStarted) {
+            throw new IllegalStateException("Not prepared.");
+        }
+        mStarted = true;
+    }
+
+    /**
+     * Encodes {@code frames} frames of {@code frameBytes} bytes each.
+     */
+    void encode(int frames, int frameBytes) throws IOException {
+        if (!mStarted) {
+            throw new IllegalStateException("Not started.");
+        }
+        int keyFrameInterval = Math.max(1,
+                mConfig.getFrameRate() * mConfig.getIFrameIntervalSeconds());
+        byte[] frame = new byte[frameBytes];
+        for (int i = 0; i < frames; i++) {
+            boolean keyFrame = mFrames % keyFrameInterval == 0;
+            if (keyFrame && mConfig.isSegmented()
+                    && mSegmentBytes >= mConfig.getSegmentSizeLimitBytes()) {
+                finish();
+                mSegment++;
+                open();
+            }
+            mStream.write(frame);
+            mSegmentBytes += frameBytes;
+            mListener.onFrameEncoded(mFrames * 1_000_000L / mConfig.getFrameRate(), frameBytes,
+                    keyFrame);
+            mFrames++;
+        }
+    }
+
+    @Override
+    public boolean setBitRate(int bitRate) {
+        return false;
+    }
+
+    @Override
+    public void stop() {
+        if (!mStarted) {
+            throw new IllegalStateException("Not started.");
+        }
+        mStarted = false;
+        try {
+            finish();
+        } catch (IOException e) {
+            mListener.onError(e);
+        }
+        mConfig = null;
+    }
+
+    @Override
+    public void reset() {
+        mStarted = false;
+        mConfig = null;
+        RecordingStorage.closeQuietly(mFile);
+        mFile = null;
+    }
+
+    @Override
+    public void release() {
+        reset();
+    }
+
+    private void open() throws IOException {
+        mFile = RecordingStorage.await(mOutput.openSegment(mSegment));
+        mStream = new FileOutputStream(mFile.getFileDescriptor());
+        mSegmentBytes = 0;
+    }
+
+    private void finish() throws IOException {
+        mStream.flush();
+        mFile.close();
+        mFile = null;
+        mListener.onSegmentFinished(mSegment, mOutput.getSegmentPath(mSegment));
+    }
+
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2video;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringWriter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class FramePairIndexTest {
+
+    private static String toCsv(FramePairIndex.Pairs pairs) throws IOException {
+        StringWriter out = new StringWriter();
+        pairs.writeTo(out);
+        return out.toString();
+    }
+
+    @Test
+    public void onlyCollectsWhileStarted() throws IOException {
+        FramePairIndex index = new FramePairIndex();
+        index.onFramesPaired(1, 2, 3, 4);
+        assertNull(index.stop());
+
+        index.start(0);
+        index.onFramesPaired(100, 1, 105, 7);
+        index.onFramesPaired(200, 2, 204, 8);
+        FramePairIndex.Pairs pairs = index.stop();
+        index.onFramesPaired(300, 3, 303, 9);
+        assertEquals(2, pairs.getCount());
+        assertEquals("color_timestamp,color_frame,mono_timestamp,mono_frame\n"
+                + "100,1,105,7\n200,2,204,8\n", toCsv(pairs));
+        assertNull(index.stop());
+    }
+
+    @Test
+    public void outgrowsTheExpectedPairs() throws IOException {
+        FramePairIndex index = new FramePairIndex();
+        index.start(FramePairIndex.CHUNK_PAIRS);
+        int count = 3 * FramePairIndex.CHUNK_PAIRS + 5;
+        for (int i = 0; i < count; i++) {
+            index.onFramesPaired(10L * i, i, 10L * i + 1, i + 1);
+        }
+        assertEquals(count, index.getCount());
+        FramePairIndex.Pairs pairs = index.stop();
+        String[] lines = toCsv(pairs).split("\n");
+        assertEquals(count + 1, lines.length);
+        for (int i = 0; i < count; i++) {
+            assertEquals((10L * i) + "," + i + "," + (10L * i + 1) + "," + (i + 1),
+                    lines[i + 1]);
+        }
+    }
+
+    @Test
+    public void stoppedPairsAreNotOverwrittenByTheNextRecording() throws IOException {
+        FramePairIndex index = new FramePairIndex();
+        index.start(1);
+        index.onFramesPaired(100, 1, 105, 7);
+        FramePairIndex.Pairs first = index.stop();
+        index.start(1);
+        index.onFramesPaired(900, 9, 905, 97);
+        assertEquals("color_timestamp,color_frame,mono_timestamp,mono_frame\n100,1,105,7\n",
+                toCsv(first));
+    }
+
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2video;
+
+import android.util.Size;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.EnumSet;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class HighSpeedSelectorTest {
+
+    private static final Size UHD = new Size(3840, 2160);
+    private static final Set<StreamCapabilities.Target> COLOR_TARGETS =
+            EnumSet.of(StreamCapabilities.Target.PREVIEW, StreamCapabilities.Target.RECORDER);
+    private static final Set<StreamCapabilities.Target> MONO_TARGETS =
+            EnumSet.of(StreamCapabilities.Target.RECORDER, StreamCapabilities.Target.ANALYSIS);
+
+    private StreamCapabilities mColor;
+    private StreamCapabilities mMono;
+
+    @Before
+    public void setUp() throws IOException {
+        mColor = DeviceProfiles.load("color", "0");
+        mMono = DeviceProfiles.load("mono", "2");
+    }
+
+    @Test
+    public void monoCameraWithoutConfigsStaysAtNormalSpeed() {
+        HighSpeedSelector.Selection selection = HighSpeedSelector.choose(mMono,
+                EnumSet.of(StreamCapabilities.Target.RECORDER), 120, UHD);
+        assertFalse(selection.isHighSpeed());
+        assertEquals("camera 2 has no constrained high-speed configurations",
+                selection.getReason());
+    }
+
+    @Test
+    public void analysisStreamStaysAtNormalSpeed() {
+        HighSpeedSelector.Selection selection =
+                HighSpeedSelector.choose(mColor, MONO_TARGETS, 120, UHD);
+        assertFalse(selection.isHighSpeed());
+        assertEquals("the ANALYSIS stream is not allowed in high-speed sessions",
+                selection.getReason());
+    }
+
+    @Test
+    public void choosesTheLargestSizeAtTheRate() {
+        HighSpeedSelector.Selection selection =
+                HighSpeedSelector.choose(mColor, COLOR_TARGETS, 120, UHD);
+        assertTrue(selection.isHighSpeed());
+        assertEquals(new Size(1920, 1080), selection.getSize());
+        assertEquals(120, selection.getFrameRate());
+        assertTrue(selection.getRecordConfig().isFixed());
+    }
+
+    @Test
+    public void fallsBackToTheHighestRateTheCameraReaches() {
+        HighSpeedSelector.Selection selection =
+                HighSpeedSelector.choose(mColor, COLOR_TARGETS, 480, UHD);
+        assertTrue(selection.isHighSpeed());
+        assertEquals(240, selection.getFrameRate());
+    }
+
+    @Test
+    public void staysAtNormalSpeedBelowEveryRate() {
+        HighSpeedSelector.Selection selection =
+                HighSpeedSelector.choose(mColor, COLOR_TARGETS, 60, UHD);
+        assertFalse(selection.isHighSpeed());
+        assertEquals("camera 0 has no fixed high-speed range up to 60 fps within 3840x2160 and"
+                + " its aspect ratio, only [120, 240]", selection.getReason());
+    }
+
+    @Test
+    public void keepsTheAspectRatioOfTheRecordSize() {
+        // The 4:3 size is larger, but the recording is 16:9
+        assertEquals(new Size(1280, 720),
+                HighSpeedSelector.choose(mColor, COLOR_TARGETS, 240, UHD).getSize());
+        assertEquals(new Size(1440, 1080), HighSpeedSelector.choose(mColor, COLOR_TARGETS, 240,
+                new Size(1440, 1080)).getSize());
+    }
+
+    @Test
+    public void previewRampsUpFromTheLowestRange() {
+        HighSpeedSelector.Selection selection =
+                HighSpeedSelector.choose(mColor, COLOR_TARGETS, 240, UHD);
+        assertEquals(240, selection.getRecordConfig().getMinFps());
+        assertEquals(new Size(1280, 720), selection.getPreviewConfig().getSize());
+        assertEquals(30, selection.getPreviewConfig().getMinFps());
+        assertEquals(240, selection.getPreviewConfig().getMaxFps());
+    }
+
+    @Test
+    public void previewKeepsTheFixedRangeWithoutARamp() {
+        HighSpeedSelector.Selection selection = HighSpeedSelector.choose(mColor, COLOR_TARGETS,
+                240, new Size(1440, 1080));
+        assertEquals(240, selection.getPreviewConfig().getMinFps());
+    }
+
+}
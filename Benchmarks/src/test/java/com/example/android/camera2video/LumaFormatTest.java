@@ -0,0 +1,70 @@
+/*
+ * Copyright 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2video;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class LumaFormatTest {
+
+    // The values of ImageFormat
+    private static final int JPEG = 0x100;
+    private static final int PRIVATE = 0x22;
+    private static final int RAW_SENSOR = 0x20;
+    private static final int RAW_PRIVATE = 0x24;
+    private static final int RAW10 = 0x25;
+    private static final int RAW12 = 0x26;
+
+    @Test
+    public void prefersY8() {
+        assertEquals(LumaFormat.Y8, LumaFormat.choose(
+                new int[]{JPEG, LumaFormat.YUV_420_888, PRIVATE, LumaFormat.Y8, RAW10}));
+    }
+
+    @Test
+    public void fallsBackToYuv() {
+        assertEquals(LumaFormat.YUV_420_888,
+                LumaFormat.choose(new int[]{JPEG, PRIVATE, LumaFormat.YUV_420_888, RAW_SENSOR}));
+    }
+
+    @Test
+    public void ignoresRawFormats() {
+        assertEquals(-1, LumaFormat.choose(new int[]{RAW_SENSOR, RAW_PRIVATE, RAW10, RAW12}));
+    }
+
+    @Test
+    public void choosesNothingWithoutFormats() {
+        assertEquals(-1, LumaFormat.choose(null));
+        assertEquals(-1, LumaFormat.choose(new int[0]));
+    }
+
+    @Test
+    public void followsTheGivenPreference() {
+        assertEquals(LumaFormat.YUV_420_888, LumaFormat.choose(
+                new int[]{LumaFormat.Y8, LumaFormat.YUV_420_888},
+                new int[]{LumaFormat.YUV_420_888, LumaFormat.Y8}));
+    }
+
+    @Test
+    public void countsTheChromaOfYuvFrames() {
+        assertEquals(1920 * 1080, LumaFormat.getFrameBytes(LumaFormat.Y8, 1920, 1080));
+        assertEquals(1920 * 1080 * 3 / 2,
+                LumaFormat.getFrameBytes(LumaFormat.YUV_420_888, 1920, 1080));
+    }
+
+}
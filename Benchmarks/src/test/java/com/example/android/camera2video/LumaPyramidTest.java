@@ -0,0 +1,109 @@
+/*
+ * Copyright 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2video;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.assertEquals;
+
+public class LumaPyramidTest {
+
+    private static final int WIDTH = 32;
+    private static final int HEIGHT = 16;
+
+    private ForkJoinPool mPool;
+    private LumaPyramid mPyramid;
+
+    @Before
+    public void setUp() {
+        mPool = new ForkJoinPool(2);
+        // Bands of two rows, and no budget to skip frames for
+        mPyramid = new LumaPyramid(mPool, 2, Long.MAX_VALUE);
+    }
+
+    @After
+    public void tearDown() {
+        mPool.shutdown();
+    }
+
+    /**
+     * A frame whose pixel at (x, y) is {@code 4 * x + y}, with rows padded to a stride.
+     */
+    private static FramePipeline.Frame frame(long timestamp) {
+        int stride = WIDTH + 8;
+        ByteBuffer luma = ByteBuffer.allocate(stride * HEIGHT);
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                luma.put(y * stride + x, (byte) (4 * x + y));
+            }
+        }
+        return new FramePipeline.Frame(null, new ByteBuffer[]{luma}, new int[]{stride},
+                new int[]{1}, WIDTH, HEIGHT, timestamp);
+    }
+
+    @Test
+    public void buildsNothingWithoutAnalyzers() {
+        mPyramid.analyze(frame(0));
+        assertEquals(0, mPyramid.getBuiltFrames());
+    }
+
+    @Test
+    public void measuresWithoutAnalyzers() {
+        mPyramid.setMeasuring(true);
+        mPyramid.analyze(frame(0));
+        mPyramid.analyze(frame(1));
+        assertEquals(2, mPyramid.getBuiltFrames());
+        assertEquals(0, mPyramid.getSkippedFrames());
+    }
+
+    @Test
+    public void averagesEachBlock() {
+        final LumaPyramid.Level[] received = new LumaPyramid.Level[1];
+        final long[] timestamp = new long[1];
+        mPyramid.addAnalyzer(new LumaPyramid.Analyzer() {
+            @Override
+            public int getMinWidth() {
+                return WIDTH / 4;
+            }
+
+            @Override
+            public void analyze(LumaPyramid.Level level, long frameTimestamp) {
+                received[0] = level;
+                timestamp[0] = frameTimestamp;
+            }
+        });
+        mPyramid.analyze(frame(42));
+        assertEquals(42, timestamp[0]);
+        // The coarsest level that is wide enough
+        LumaPyramid.Level level = received[0];
+        assertEquals(4, level.getScale());
+        assertEquals(WIDTH / 4, level.getWidth());
+        assertEquals(HEIGHT / 4, level.getHeight());
+        // The mean of each 4x4 block is 16x + 4y + 7.5, and each level rounds half up
+        for (int y = 0; y < level.getHeight(); y++) {
+            for (int x = 0; x < level.getWidth(); x++) {
+                assertEquals(16 * x + 4 * y + 8, level.getData()[y * level.getWidth() + x] & 0xff);
+            }
+        }
+    }
+
+}
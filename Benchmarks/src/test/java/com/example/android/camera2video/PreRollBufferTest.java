@@ -0,0 +1,156 @@
+/*
+ * Copyright 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2video;
+
+import android.media.MediaCodec;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class PreRollBufferTest {
+
+    private static final int CAPACITY = 100;
+
+    /**
+     * A consumer that reads every frame the way MediaMuxer does, from {@code info.offset} and
+     * regardless of the position and limit of the buffer.
+     */
+    private static final class Copier implements PreRollBuffer.Consumer {
+
+        final List<byte[]> mFrames = new ArrayList<>();
+        final List<Integer> mOffsets = new ArrayList<>();
+        final List<Long> mTimestamps = new ArrayList<>();
+        final List<Integer> mFlags = new ArrayList<>();
+
+        @Override
+        public void onFrame(ByteBuffer data, MediaCodec.BufferInfo info) {
+            byte[] frame = new byte[info.size];
+            for (int i = 0; i < info.size; i++) {
+                frame[i] = data.get(info.offset + i);
+            }
+            mFrames.add(frame);
+            mOffsets.add(info.offset);
+            mTimestamps.add(info.presentationTimeUs);
+            mFlags.add(info.flags);
+        }
+
+    }
+
+    private final MediaCodec.BufferInfo mInfo = new MediaCodec.BufferInfo();
+
+    /**
+     * Returns {@code size} bytes that differ from those of every other frame.
+     */
+    private static byte[] frame(int id, int size) {
+        byte[] frame = new byte[size];
+        for (int i = 0; i < size; i++) {
+            frame[i] = (byte) (id * 31 + i);
+        }
+        return frame;
+    }
+
+    /**
+     * Appends {@code frame} from behind a few bytes of padding, as a codec output buffer can hand
+     * it over.
+     */
+    private void append(PreRollBuffer buffer, byte[] frame, long timestampUs, boolean keyFrame) {
+        ByteBuffer data = ByteBuffer.allocate(frame.length + 7);
+        data.position(7);
+        data.put(frame);
+        data.position(3);
+        mInfo.set(7, frame.length, timestampUs, keyFrame ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0);
+        buffer.append(data, mInfo);
+    }
+
+    @Test
+    public void drainsTheBytesOfEveryFrame() {
+        PreRollBuffer buffer = new PreRollBuffer(CAPACITY, 16, 10_000_000L);
+        byte[][] frames = {frame(1, 30), frame(2, 20), frame(3, 25)};
+        append(buffer, frames[0], 0, true);
+        append(buffer, frames[1], 33_000, false);
+        append(buffer, frames[2], 66_000, false);
+
+        Copier copier = new Copier();
+        assertEquals(3, buffer.drainTo(copier));
+        for (int i = 0; i < frames.length; i++) {
+            assertArrayEquals("Frame " + i, frames[i], copier.mFrames.get(i));
+            assertEquals(33_000L * i, (long) copier.mTimestamps.get(i));
+        }
+        assertEquals(MediaCodec.BUFFER_FLAG_KEY_FRAME, (int) copier.mFlags.get(0));
+        assertEquals(0, (int) copier.mFlags.get(1));
+        assertEquals(0, buffer.getUsedBytes());
+    }
+
+    @Test
+    public void drainsFramesPastTheStartOfTheRing() {
+        PreRollBuffer buffer = new PreRollBuffer(CAPACITY, 16, 10_000_000L);
+        byte[] key = frame(1, 30);
+        byte[] delta = frame(2, 20);
+        byte[] nextKey = frame(3, 30);
+        byte[] wrapped = frame(4, 30);
+        append(buffer, key, 0, true);
+        append(buffer, delta, 33_000, false);
+        append(buffer, nextKey, 66_000, true);
+        // Only fits at the start of the ring, once the first group of frames is evicted
+        append(buffer, wrapped, 99_000, false);
+
+        Copier copier = new Copier();
+        assertEquals(2, buffer.drainTo(copier));
+        assertEquals(50, (int) copier.mOffsets.get(0));
+        assertArrayEquals(nextKey, copier.mFrames.get(0));
+        assertEquals(0, (int) copier.mOffsets.get(1));
+        assertArrayEquals(wrapped, copier.mFrames.get(1));
+        assertEquals(2, buffer.getEvictedFrames());
+    }
+
+    @Test
+    public void startsWithAKeyFrame() {
+        PreRollBuffer buffer = new PreRollBuffer(CAPACITY, 16, 10_000_000L);
+        append(buffer, frame(1, 10), 0, false);
+        append(buffer, frame(2, 10), 33_000, true);
+
+        Copier copier = new Copier();
+        assertEquals(1, buffer.drainTo(copier));
+        assertArrayEquals(frame(2, 10), copier.mFrames.get(0));
+        assertEquals(1, buffer.getDroppedFrames());
+    }
+
+    @Test
+    public void startsOverAfterAnOversizedKeyFrame() {
+        PreRollBuffer buffer = new PreRollBuffer(CAPACITY, 16, 10_000_000L);
+        append(buffer, frame(1, 30), 0, true);
+        append(buffer, frame(2, 20), 33_000, false);
+        append(buffer, frame(3, CAPACITY + 1), 66_000, true);
+        // Depends on the dropped key frame, not on the frames before it
+        append(buffer, frame(4, 20), 99_000, false);
+        append(buffer, frame(5, 30), 132_000, true);
+        append(buffer, frame(6, 20), 165_000, false);
+
+        Copier copier = new Copier();
+        assertEquals(2, buffer.drainTo(copier));
+        assertArrayEquals(frame(5, 30), copier.mFrames.get(0));
+        assertArrayEquals(frame(6, 20), copier.mFrames.get(1));
+        assertEquals(2, buffer.getDroppedFrames());
+    }
+
+}
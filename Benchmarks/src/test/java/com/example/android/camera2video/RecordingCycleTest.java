@@ -0,0 +1,213 @@
+/*
+ * Copyright 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2video;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Records, rotates and stops over and over through a {@link CameraStateMachine} whose backend
+ * drives a {@link FakeVideoEncoderEngine}, the way the fragment drives a real encoder.
+ */
+public class RecordingCycleTest {
+
+    private static final int CYCLES = 20;
+    private static final int FRAME_BYTES = 10 * 1024;
+
+    // The threads the process may gain after the first cycle, as the fragment allows, for the
+    // short-lived ones that are still ending when they are counted
+    private static final int THREAD_COUNT_SLACK = 2;
+
+    // 30 fps with a key frame every second, and a new segment after 100 KiB
+    private static final EncoderConfig CONFIG = new EncoderConfig(EncoderConfig.Codec.H264,
+            EncoderConfig.BitrateMode.VBR, 1920, 1080, 8_000_000, 30, 1, 0, 100 * 1024);
+
+    private File mDirectory;
+    private RecordingStorage mStorage;
+    private final FakeVideoEncoderEngine mEngine = new FakeVideoEncoderEngine();
+    private final CameraStateMachine mMachine = new CameraStateMachine("camera 0");
+    private final List<Integer> mSegments = new ArrayList<>();
+    private final List<Exception> mErrors = new ArrayList<>();
+    private int mFrames;
+    private int mCycle;
+
+    @Before
+    public void setUp() throws IOException {
+        mDirectory = Files.createTempDirectory("RecordingCycleTest").toFile();
+        mStorage = new RecordingStorage(mDirectory, 0, 0);
+        mEngine.setListener(new VideoEncoderEngine.Listener() {
+            @Override
+            public void onFrameEncoded(long presentationTimeUs, int size, boolean keyFrame) {
+                mFrames++;
+            }
+
+            @Override
+            public void onSegmentFinished(int sequence, String path) {
+                mSegments.add(sequence);
+            }
+
+            @Override
+            public void onError(Exception e) {
+                mErrors.add(e);
+            }
+        });
+        mMachine.setBackend(new CameraStateMachine.Backend() {
+            @Override
+            public void startRecording() {
+                mEngine.start();
+                mMachine.onRecordingStarted();
+            }
+
+            @Override
+            public void stopRecording() {
+                mEngine.stop();
+                // Armed for the next recording before the camera is ready again
+                arm(mCycle + 1);
+                mMachine.onStopped();
+            }
+
+            @Override
+            public void close() {
+                mEngine.release();
+            }
+        });
+        mMachine.onOpening();
+        mMachine.onDeviceOpened();
+        arm(0);
+        mMachine.onPreviewStarted();
+    }
+
+    @After
+    public void tearDown() {
+        mMachine.close();
+        mStorage.shutdown();
+        File[] files = mDirectory.listFiles();
+        if (null != files) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mDirectory.delete();
+    }
+
+    private void arm(int cycle) {
+        try {
+            mEngine.prepare(CONFIG, output(cycle), null);
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private VideoEncoderEngine.Output output(final int cycle) {
+        return new VideoEncoderEngine.Output() {
+            @Override
+            public String getSegmentPath(int sequence) {
+                return new File(mDirectory,
+                        String.format(Locale.US, "%02d_%03d.mp4", cycle, sequence)).getPath();
+            }
+
+            @Override
+            public Future<RecordingStorage.OutputFile> openSegment(int sequence) {
+                return mStorage.open(getSegmentPath(sequence), 0);
+            }
+        };
+    }
+
+    @Test
+    public void rotatesAndStopsEveryCycle() throws IOException {
+        for (mCycle = 0; mCycle < CYCLES; mCycle++) {
+            mSegments.clear();
+            mMachine.record();
+            assertEquals(CameraStateMachine.State.RECORDING, mMachine.getState());
+            // Rotates at the key frames 30, 60 and 90, and stops within the fourth segment
+            mEngine.encode(95, FRAME_BYTES);
+            mMachine.stop();
+            assertEquals(CameraStateMachine.State.PREVIEW, mMachine.getState());
+            assertEquals(Arrays.asList(0, 1, 2, 3), mSegments);
+            for (int sequence = 0; sequence < 4; sequence++) {
+                File segment = new File(output(mCycle).getSegmentPath(sequence));
+                assertEquals(segment.getName(), (sequence < 3 ? 30 : 5) * FRAME_BYTES,
+                        segment.length());
+            }
+            // Armed for the next cycle, which has not opened more than its first segment
+            assertTrue(new File(output(mCycle + 1).getSegmentPath(0)).exists());
+            assertFalse(new File(output(mCycle + 1).getSegmentPath(1)).exists());
+        }
+        assertEquals(CYCLES * 95, mFrames);
+        assertTrue(mErrors.toString(), mErrors.isEmpty());
+    }
+
+    @Test
+    public void reusesTheThreadsOfTheFirstCycle() throws Exception {
+        CameraThreads threads = new CameraThreads("0", true, 33);
+        try {
+            int baseline = 0;
+            for (mCycle = 0; mCycle < CYCLES; mCycle++) {
+                // Recorded on the control thread of the camera, as the fragment does
+                FutureTask<Void> cycle = new FutureTask<>(new Callable<Void>() {
+                    @Override
+                    public Void call() throws IOException {
+                        mMachine.record();
+                        mEngine.encode(95, FRAME_BYTES);
+                        mMachine.stop();
+                        return null;
+                    }
+                });
+                threads.getControlExecutor().execute(cycle);
+                await(cycle);
+                int count = CameraThreads.countThreads();
+                if (0 == mCycle) {
+                    baseline = count;
+                } else {
+                    assertTrue("Cycle " + mCycle + " left " + count + " threads, up from "
+                                    + baseline + ": " + CameraThreads.getThreadNames(),
+                            count <= baseline + THREAD_COUNT_SLACK);
+                }
+            }
+        } finally {
+            threads.quit();
+        }
+        assertEquals(CYCLES * 95, mFrames);
+        assertTrue(mErrors.toString(), mErrors.isEmpty());
+    }
+
+    private static void await(Future<Void> future) throws Exception {
+        try {
+            future.get();
+        } catch (ExecutionException e) {
+            throw (Exception) e.getCause();
+        }
+    }
+
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2video;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs the governor against scripted signals, one {@link RecordingGovernor#tick()} at a time.
+ */
+public class RecordingGovernorTest {
+
+    private static final List<RecordingGovernor.Step> LADDER = RecordingGovernor.ladder(
+            new RecordingGovernor.Step(3840, 2160, 40_000_000, 30),
+            new RecordingGovernor.Step(1920, 1080, 8_000_000, 24));
+
+    /**
+     * The signals of camera "0", changed by the tests between ticks.
+     */
+    private final RecordingGovernor.Sample mScript = new RecordingGovernor.Sample();
+    private double mLoad;
+    private final List<String> mChanges = new ArrayList<>();
+    private RecordingGovernor mGovernor;
+
+    @Before
+    public void setUp() {
+        mScript.mCaptureFps = 30;
+        mGovernor = new RecordingGovernor(new RecordingGovernor.Policy(),
+                new RecordingGovernor.Signals() {
+                    @Override
+                    public void read(String cameraId, RecordingGovernor.Sample sample) {
+                        sample.mEncoderBacklogFrames = mScript.mEncoderBacklogFrames;
+                        sample.mCaptureFps = mScript.mCaptureFps;
+                        sample.mStorageBytesPerSecond = mScript.mStorageBytesPerSecond;
+                    }
+                },
+                new RecordingGovernor.LoadSignal() {
+                    @Override
+                    public double getLoad() {
+                        return mLoad;
+                    }
+                },
+                new RecordingGovernor.Listener() {
+                    @Override
+                    public void onStepChanged(String cameraId, RecordingGovernor.Step from,
+                                              RecordingGovernor.Step to, String reason) {
+                        mChanges.add(cameraId + ": " + from + " to " + to + ", " + reason);
+                    }
+                });
+    }
+
+    private void tick(int ticks) {
+        for (int i = 0; i < ticks; i++) {
+            mGovernor.tick();
+        }
+    }
+
+    @Test
+    public void stepsDownAfterDownTicks() {
+        mGovernor.addCamera("0", LADDER, 0);
+        mLoad = 0.95;
+        tick(1);
+        assertEquals(LADDER.get(0), mGovernor.getStep("0"));
+        tick(1);
+        assertEquals(LADDER.get(1), mGovernor.getStep("0"));
+        assertEquals(1, mChanges.size());
+        assertTrue(mChanges.get(0), mChanges.get(0).endsWith(", pressure 0.95 (backlog 0.00,"
+                + " dropped 0.00, storage 0.00, load 0.95)"));
+        // The count starts over after a step
+        tick(1);
+        assertEquals(LADDER.get(1), mGovernor.getStep("0"));
+    }
+
+    @Test
+    public void encoderBacklogStepsDown() {
+        mGovernor.addCamera("0", LADDER, 0);
+        mScript.mEncoderBacklogFrames = 6;
+        tick(2);
+        assertEquals(LADDER.get(1), mGovernor.getStep("0"));
+    }
+
+    @Test
+    public void stepsUpAfterUpTicks() {
+        mGovernor.addCamera("0", LADDER, 2);
+        mLoad = 0.3;
+        tick(9);
+        assertEquals(LADDER.get(2), mGovernor.getStep("0"));
+        tick(1);
+        assertEquals(LADDER.get(1), mGovernor.getStep("0"));
+        tick(10);
+        assertEquals(LADDER.get(0), mGovernor.getStep("0"));
+        assertEquals(2, mChanges.size());
+    }
+
+    @Test
+    public void holdsInsideTheHysteresisBand() {
+        mGovernor.addCamera("0", LADDER, 2);
+        mLoad = 0.75;
+        tick(100);
+        // A reading inside the band restarts both counts
+        for (int i = 0; i < 10; i++) {
+            mLoad = 0.95;
+            tick(1);
+            mLoad = 0.75;
+            tick(1);
+        }
+        for (int i = 0; i < 10; i++) {
+            mLoad = 0.3;
+            tick(9);
+            mLoad = 0.75;
+            tick(1);
+        }
+        assertEquals(LADDER.get(2), mGovernor.getStep("0"));
+        assertEquals(0, mChanges.size());
+    }
+
+    @Test
+    public void staysOnTheLadder() {
+        mGovernor.addCamera("0", LADDER, LADDER.size() - 1);
+        mLoad = 2;
+        tick(20);
+        assertEquals(LADDER.get(LADDER.size() - 1), mGovernor.getStep("0"));
+
+        mLoad = 0;
+        tick(100);
+        assertEquals(LADDER.get(0), mGovernor.getStep("0"));
+        tick(100);
+        assertEquals(LADDER.get(0), mGovernor.getStep("0"));
+        assertEquals(LADDER.size() - 1, mChanges.size());
+    }
+
+}
@@ -0,0 +1,208 @@
+/*
+ * Copyright 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2video;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RecordingStorageTest {
+
+    private static final long MIB = 1024 * 1024;
+    private static final long RESERVE_BYTES = 10 * MIB;
+    private static final long LOW_SECONDS = 30;
+    private static final long SECOND_NANOS = 1_000_000_000L;
+
+    private final AtomicLong mUsableBytes = new AtomicLong();
+    private File mDirectory;
+    private RecordingStorage mStorage;
+
+    @Before
+    public void setUp() throws IOException {
+        mDirectory = Files.createTempDirectory("RecordingStorageTest").toFile();
+        mStorage = new RecordingStorage(mDirectory, RESERVE_BYTES, LOW_SECONDS,
+                new RecordingStorage.Volume() {
+                    @Override
+                    public long getUsableBytes() {
+                        return mUsableBytes.get();
+                    }
+                });
+    }
+
+    @After
+    public void tearDown() {
+        mStorage.shutdown();
+        File[] files = mDirectory.listFiles();
+        if (null != files) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mDirectory.delete();
+    }
+
+    private RecordingStorage.OutputFile open(String name, long preallocateBytes)
+            throws IOException {
+        return RecordingStorage.await(
+                mStorage.open(new File(mDirectory, name).getPath(), preallocateBytes));
+    }
+
+    /**
+     * Writes {@code bytes} the way an encoder does, through the descriptor of {@code file}.
+     */
+    private static void write(RecordingStorage.OutputFile file, byte[] bytes)
+            throws IOException {
+        // Not closed, the descriptor belongs to the file
+        new FileOutputStream(file.getFileDescriptor()).write(bytes);
+    }
+
+    private static byte[] box(String type, int size) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(size);
+        out.writeBytes(type);
+        out.write(new byte[size - 8]);
+        return bytes.toByteArray();
+    }
+
+    @Test
+    public void countsUnusedPreallocationAsFree() throws IOException {
+        mUsableBytes.set(100 * MIB);
+        RecordingStorage.OutputFile file = open("a.mp4", 20 * MIB);
+        long start = System.nanoTime();
+        // The preallocation came out of the volume
+        mUsableBytes.set(80 * MIB);
+        assertEquals(90 * MIB, mStorage.getRemainingBytes());
+
+        write(file, new byte[(int) MIB]);
+        mStorage.sample(start + SECOND_NANOS);
+        assertEquals(MIB, file.getWrittenBytes());
+        assertEquals(89 * MIB, mStorage.getRemainingBytes());
+        file.close();
+    }
+
+    @Test
+    public void warnsOnceEachTimeTheSpaceRunsLow() throws IOException {
+        final AtomicInteger warnings = new AtomicInteger();
+        final AtomicLong warnedSeconds = new AtomicLong();
+        mStorage.setListener(new RecordingStorage.Listener() {
+            @Override
+            public void onStorageLow(long remainingSeconds, long remainingBytes) {
+                warnings.incrementAndGet();
+                warnedSeconds.set(remainingSeconds);
+            }
+        });
+        mUsableBytes.set(RESERVE_BYTES + 20 * MIB);
+        RecordingStorage.OutputFile file = open("a.mp4", 0);
+        long start = System.nanoTime();
+
+        // 20 s left at 1 MiB/s
+        write(file, new byte[(int) MIB]);
+        mStorage.sample(start + SECOND_NANOS);
+        assertEquals(1, warnings.get());
+        assertEquals(20, warnedSeconds.get());
+        assertFalse(mStorage.hasRoomFor(LOW_SECONDS, 0));
+
+        // Still low, but already warned
+        write(file, new byte[(int) MIB]);
+        mStorage.sample(start + 2 * SECOND_NANOS);
+        assertEquals(1, warnings.get());
+
+        // Recovered
+        mUsableBytes.set(RESERVE_BYTES + 100 * MIB);
+        write(file, new byte[(int) MIB]);
+        mStorage.sample(start + 3 * SECOND_NANOS);
+        assertEquals(1, warnings.get());
+        assertTrue(mStorage.hasRoomFor(LOW_SECONDS, 0));
+
+        // Low again
+        mUsableBytes.set(RESERVE_BYTES + 5 * MIB);
+        write(file, new byte[(int) MIB]);
+        mStorage.sample(start + 4 * SECOND_NANOS);
+        assertEquals(2, warnings.get());
+        assertEquals(5, warnedSeconds.get());
+        file.close();
+    }
+
+    @Test
+    public void trimsUnusedPreallocation() throws IOException {
+        RecordingStorage.OutputFile file = open("a.mp4", MIB);
+        File path = new File(file.getPath());
+        assertEquals(MIB, path.length());
+
+        write(file, box("ftyp", 24));
+        write(file, box("mdat", 1000));
+        file.close();
+        assertEquals(1024, path.length());
+    }
+
+    @Test
+    public void keepsAFileItCannotParse() throws IOException {
+        RecordingStorage.OutputFile file = open("a.mp4", MIB);
+        File path = new File(file.getPath());
+        // A box that claims more bytes than the file has
+        write(file, box("ftyp", 24));
+        write(file, new byte[]{0x7f, 0, 0, 0, 'm', 'd', 'a', 't'});
+        file.close();
+        assertEquals(MIB, path.length());
+    }
+
+    @Test
+    public void slowStorageOnlyDelaysItsOwnThread() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        mStorage.setDelay(new RecordingStorage.Delay() {
+            @Override
+            public void beforeWrite(String path) throws IOException {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+            }
+        });
+        Future<RecordingStorage.OutputFile> opening =
+                mStorage.open(new File(mDirectory, "a.mp4").getPath(), MIB);
+        Future<Void> writing =
+                mStorage.writeText(new File(mDirectory, "a.txt").getPath(), "text");
+        Thread.sleep(50);
+        assertFalse(opening.isDone());
+        assertFalse(writing.isDone());
+
+        release.countDown();
+        RecordingStorage.OutputFile file = opening.get(5, TimeUnit.SECONDS);
+        writing.get(5, TimeUnit.SECONDS);
+        assertEquals(4, new File(mDirectory, "a.txt").length());
+        file.close();
+    }
+
+}
@@ -0,0 +1,209 @@
+/*
+ * Copyright 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2video;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Drives the barrier with fake participants, each started on a thread of its own.
+ */
+public class StartBarrierTest {
+
+    private static final long ALIGN_TIMEOUT_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+
+    private final List<ExecutorService> mExecutors = new ArrayList<>();
+    private final AtomicInteger mStarts = new AtomicInteger();
+    private final CountDownLatch mDone = new CountDownLatch(1);
+    private volatile StartBarrier.Result mResult;
+
+    private final StartBarrier.Listener mListener = new StartBarrier.Listener() {
+        @Override
+        public void onStarted(StartBarrier.Result result) {
+            mResult = result;
+            mDone.countDown();
+        }
+    };
+
+    @After
+    public void tearDown() {
+        for (ExecutorService executor : mExecutors) {
+            executor.shutdownNow();
+        }
+    }
+
+    private StartBarrier barrier(String... names) {
+        return new StartBarrier(Arrays.asList(names), ALIGN_TIMEOUT_NANOS, mListener);
+    }
+
+    /**
+     * Returns a participant that starts after {@code latencyMs}, or throws {@code error}.
+     */
+    private StartBarrier.Participant participant(final long latencyMs, final Exception error) {
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        mExecutors.add(executor);
+        return new StartBarrier.Participant() {
+            @Override
+            public Executor getExecutor() {
+                return executor;
+            }
+
+            @Override
+            public void start() throws Exception {
+                Thread.sleep(latencyMs);
+                if (null != error) {
+                    throw error;
+                }
+                mStarts.incrementAndGet();
+            }
+        };
+    }
+
+    private static StartBarrier.Participant rejecting() {
+        return new StartBarrier.Participant() {
+            @Override
+            public Executor getExecutor() {
+                return new Executor() {
+                    @Override
+                    public void execute(Runnable command) {
+                        throw new RejectedExecutionException("Closed");
+                    }
+                };
+            }
+
+            @Override
+            public void start() {
+                throw new AssertionError("Started on a rejecting executor");
+            }
+        };
+    }
+
+    private StartBarrier.Result awaitResult() throws InterruptedException {
+        assertTrue("No result", mDone.await(5, TimeUnit.SECONDS));
+        return mResult;
+    }
+
+    @Test
+    public void nothingStartsBeforeTheLastArrive() throws Exception {
+        StartBarrier barrier = barrier("color", "mono", "wide");
+        assertTrue(barrier.arrive("color", participant(0, null)));
+        assertTrue(barrier.arrive("mono", participant(0, null)));
+        Thread.sleep(20);
+        assertEquals(0, mStarts.get());
+        assertNull(mResult);
+        assertTrue(barrier.hasArrived("mono"));
+        assertFalse(barrier.hasArrived("wide"));
+
+        assertTrue(barrier.arrive("wide", participant(0, null)));
+        StartBarrier.Result result = awaitResult();
+        assertEquals(3, mStarts.get());
+        assertTrue(result.isSuccessful());
+        assertFalse(result.isAlignTimedOut());
+        assertEquals(Arrays.asList("color", "mono", "wide"), result.getNames());
+        // Too late to cancel
+        assertFalse(barrier.cancel());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void arrivesOnlyOnce() {
+        StartBarrier barrier = barrier("color", "mono");
+        barrier.arrive("color", participant(0, null));
+        barrier.arrive("color", participant(0, null));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsUnknownParticipants() {
+        barrier("color").arrive("mono", participant(0, null));
+    }
+
+    @Test
+    public void cancelBeforeReleaseStartsNothing() throws Exception {
+        StartBarrier barrier = barrier("color", "mono");
+        assertTrue(barrier.arrive("color", participant(0, null)));
+        assertTrue(barrier.cancel());
+        assertFalse(barrier.arrive("mono", participant(0, null)));
+        assertFalse(mDone.await(100, TimeUnit.MILLISECONDS));
+        assertEquals(0, mStarts.get());
+        assertTrue(barrier.cancel());
+    }
+
+    @Test
+    public void alignTimesOutWhenAnExecutorRejects() throws Exception {
+        StartBarrier barrier = barrier("color", "mono");
+        long arrived = System.nanoTime();
+        barrier.arrive("color", participant(0, null));
+        barrier.arrive("mono", rejecting());
+        StartBarrier.Result result = awaitResult();
+        assertTrue(result.isAlignTimedOut());
+        assertTrue(result.isStarted());
+        assertFalse(result.isSuccessful());
+        assertNull(result.getError(0));
+        assertTrue(result.getError(1) instanceof RejectedExecutionException);
+        // The color camera waited for the mono one until the timeout, then started anyway
+        assertTrue(result.getStartedNanos(0) - arrived >= ALIGN_TIMEOUT_NANOS);
+        assertEquals(0, result.getSkewNanos());
+    }
+
+    @Test
+    public void skewOnlyCountsTheParticipantsThatStarted() throws Exception {
+        StartBarrier barrier = barrier("color", "mono", "wide");
+        barrier.arrive("color", participant(0, null));
+        barrier.arrive("mono", participant(0, new Exception("Encoder failed")));
+        barrier.arrive("wide", participant(30, null));
+        StartBarrier.Result result = awaitResult();
+        assertTrue(result.isStarted());
+        assertFalse(result.isSuccessful());
+        assertFalse(result.isAlignTimedOut());
+        assertNotNull(result.getError(1));
+        assertEquals(0, result.getStartedNanos(1));
+        assertEquals(result.getStartedNanos(2) - result.getStartedNanos(0),
+                result.getSkewNanos());
+        // The wide camera took its injected latency longer to start
+        assertTrue(result.getSkewNanos() >= TimeUnit.MILLISECONDS.toNanos(30));
+        assertTrue(result.getStartDurationNanos(2) >= TimeUnit.MILLISECONDS.toNanos(30));
+        assertTrue(result.toString(),
+                result.toString().contains("mono failed: java.lang.Exception: Encoder failed"));
+    }
+
+    @Test
+    public void notStartedWhenEveryParticipantFails() throws Exception {
+        StartBarrier barrier = barrier("color", "mono");
+        barrier.arrive("color", participant(0, new Exception("Encoder failed")));
+        barrier.arrive("mono", participant(0, new Exception("Encoder failed")));
+        StartBarrier.Result result = awaitResult();
+        assertFalse(result.isStarted());
+        assertEquals(0, result.getSkewNanos());
+    }
+
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2video;
+
+import android.util.Size;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.EnumSet;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class StreamConfigResolverTest {
+
+    private static final Size UHD = new Size(3840, 2160);
+    private static final Set<StreamCapabilities.Target> COLOR_TARGETS =
+            EnumSet.of(StreamCapabilities.Target.PREVIEW, StreamCapabilities.Target.RECORDER);
+    private static final Set<StreamCapabilities.Target> MONO_TARGETS =
+            EnumSet.of(StreamCapabilities.Target.RECORDER, StreamCapabilities.Target.ANALYSIS);
+
+    private StreamCapabilities mColor;
+    private StreamCapabilities mMono;
+
+    @Before
+    public void setUp() throws IOException {
+        mColor = DeviceProfiles.load("color", "0");
+        mMono = DeviceProfiles.load("mono", "2");
+    }
+
+    private static void assertRejected(StreamConfigResolver.Resolution resolution,
+                                       String rejection) {
+        assertTrue("Missing rejection \"" + rejection + "\" in " + resolution.getRejections(),
+                resolution.getRejections().contains(rejection));
+    }
+
+    @Test
+    public void resolvesUhdForTheColorCameraAlone() {
+        StreamConfigResolver.Resolution resolution = StreamConfigResolver.resolve(
+                new StreamConfigResolver.Request(30, UHD, 1280, 720)
+                        .addCamera(mColor, COLOR_TARGETS));
+        assertTrue(resolution.isResolved());
+        assertEquals(UHD, resolution.getSize("0", StreamCapabilities.Target.RECORDER));
+        // The smallest preview that covers the view
+        assertEquals(new Size(1280, 720),
+                resolution.getSize("0", StreamCapabilities.Target.PREVIEW));
+        assertEquals(33_333_333L, resolution.getFrameDurationNs("0"));
+        assertRejected(resolution,
+                "Record size 1440x1080: not the aspect ratio of 3840x2160");
+    }
+
+    @Test
+    public void stallPushesUhdPastTheBudget() {
+        StreamConfigResolver.Resolution resolution = StreamConfigResolver.resolve(
+                new StreamConfigResolver.Request(30, UHD, 1280, 720)
+                        .addCamera(mColor, COLOR_TARGETS)
+                        .addCamera(mMono, MONO_TARGETS));
+        assertTrue(resolution.isResolved());
+        assertRejected(resolution, "Record size 3840x2160: camera 2 needs 41.3 ms per frame for"
+                + " RECORDER 3840x2160, ANALYSIS 3840x2160, more than 33.3 ms at 30 fps");
+        // The mono camera cannot record at the size in between
+        assertRejected(resolution, "Record size 3200x1800: not supported by camera 2");
+
+        Size fullHd = new Size(1920, 1080);
+        assertEquals(fullHd, resolution.getSize("0", StreamCapabilities.Target.RECORDER));
+        assertEquals(new Size(1280, 720),
+                resolution.getSize("0", StreamCapabilities.Target.PREVIEW));
+        assertEquals(fullHd, resolution.getSize("2", StreamCapabilities.Target.RECORDER));
+        assertEquals(fullHd, resolution.getSize("2", StreamCapabilities.Target.ANALYSIS));
+        assertEquals(33_333_333L, resolution.getFrameDurationNs("2"));
+        assertEquals(null, resolution.getSize("2", StreamCapabilities.Target.PREVIEW));
+    }
+
+    @Test
+    public void skipsRecordSizesAboveTheMaximum() {
+        StreamConfigResolver.Resolution resolution = StreamConfigResolver.resolve(
+                new StreamConfigResolver.Request(30, new Size(1920, 1080), 640, 360)
+                        .addCamera(mColor, COLOR_TARGETS)
+                        .addCamera(mMono, MONO_TARGETS));
+        assertTrue(resolution.isResolved());
+        assertRejected(resolution, "Record size 3840x2160: larger than 1920x1080");
+        assertEquals(new Size(1920, 1080),
+                resolution.getSize("0", StreamCapabilities.Target.RECORDER));
+        assertEquals(new Size(1280, 720),
+                resolution.getSize("0", StreamCapabilities.Target.PREVIEW));
+    }
+
+    @Test
+    public void reportsWhyNothingSustainsTheRate() {
+        StreamConfigResolver.Resolution resolution = StreamConfigResolver.resolve(
+                new StreamConfigResolver.Request(60, UHD, 1280, 720)
+                        .addCamera(mColor, COLOR_TARGETS)
+                        .addCamera(mMono, MONO_TARGETS));
+        assertFalse(resolution.isResolved());
+        assertEquals(null, resolution.getSize("0", StreamCapabilities.Target.RECORDER));
+        // The preview is checked first, and no color stream runs faster than 30 fps
+        assertRejected(resolution, "PREVIEW size 1280x720: camera 0 needs at least 33.3 ms"
+                + " per frame, more than 16.7 ms at 60 fps");
+        assertRejected(resolution,
+                "Record size 1280x720: camera 0 has no PREVIEW size that keeps up");
+    }
+
+    @Test
+    public void profilesRoundTrip() {
+        String profile = mMono.toProfile();
+        assertTrue(profile, profile.startsWith("ANALYSIS_FORMAT 0x20203859\n"));
+        assertTrue(profile, profile.contains("ANALYSIS 3840x2160 33333333 8000000\n"));
+    }
+
+}
@@ -0,0 +1,21 @@
+# The color camera of a dual-camera rig, as written by StreamCapabilities.toProfile().
+# Every YUV and private stream runs at 30 fps without stalls. The largest 240 fps high-speed
+# size is the 4:3 one, which has no range that ramps up from 30 fps.
+ANALYSIS_FORMAT 0x23
+PREVIEW 3840x2160 33333333 0
+PREVIEW 1920x1080 33333333 0
+PREVIEW 1440x1080 33333333 0
+PREVIEW 1280x720 33333333 0
+PREVIEW 640x480 33333333 0
+RECORDER 3840x2160 33333333 0
+RECORDER 3200x1800 33333333 0
+RECORDER 1920x1080 33333333 0
+RECORDER 1440x1080 33333333 0
+RECORDER 1280x720 33333333 0
+ANALYSIS 1920x1080 33333333 0
+ANALYSIS 1280x720 33333333 0
+HIGH_SPEED 1920x1080 30 120
+HIGH_SPEED 1920x1080 120 120
+HIGH_SPEED 1280x720 30 240
+HIGH_SPEED 1280x720 240 240
+HIGH_SPEED 1440x1080 240 240
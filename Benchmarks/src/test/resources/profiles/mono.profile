@@ -0,0 +1,13 @@
+# The mono camera of a dual-camera rig, as written by StreamCapabilities.toProfile().
+# Full-size Y8 output stalls for 8 ms per frame. Smaller sizes are scaled without a stall, and
+# 1280x720 and below run at 60 fps. The camera has no high-speed configurations.
+ANALYSIS_FORMAT 0x20203859
+PREVIEW 1920x1080 33333333 0
+PREVIEW 1280x720 16666666 0
+RECORDER 3840x2160 33333333 0
+RECORDER 1920x1080 33333333 0
+RECORDER 1280x720 16666666 0
+ANALYSIS 3840x2160 33333333 8000000
+ANALYSIS 1920x1080 33333333 0
+ANALYSIS 1280x720 16666666 0
+ANALYSIS 640x480 16666666 0